@@ -112,6 +112,14 @@ public final class Buffer {
 		return LuaString.valueOf( bytes, offset, length );
 	}
 	
+	/** 
+	 * Get the number of bytes in the buffer
+	 * @return the length in bytes, or 0 while the contents are a {@link LuaValue}
+	 */
+	public final int length() {
+		return length;
+	}
+	
 	/** 
 	 * Convert the buffer to a Java String
 	 * @return the value as a Java String
@@ -159,16 +167,52 @@ public final class Buffer {
 		return this;
 	}
 	
+	/** 
+	 * Append part of a {@link LuaString} to the buffer.
+	 * @param str the string to copy from
+	 * @param strOffset offset of the first byte to copy, relative to the start of {@code str}
+	 * @param len number of bytes to copy
+	 * @return {@code this} to allow call chaining
+	 */
+	public final Buffer append( LuaString str, int strOffset, int len ) {
+		makeroom( 0, len );
+		str.copyInto( strOffset, bytes, offset + length, len );
+		length += len;
+		return this;
+	}
+	
 	public final Buffer append( byte[] bry ) {
 		final int len = bry.length;
 		makeroom( 0, len );
-		for (int i = 0; i < len; i++) {
-			bytes[offset + i] = bry[i];
-		}
+		System.arraycopy( bry, 0, bytes, offset + length, len );	// NOTE: was copying to offset, not offset + length, which overwrote the start of the buffer
 		length += len;
 		return this;
 	}
 
+	/**
+	 * Append the decimal digits of an int to the buffer,
+	 * as appending {@code LuaInteger.valueOf(i)} would, but without making a string.
+	 * @return {@code this} to allow call chaining
+	 */
+	public final Buffer append( int i ) {
+		if ( i == Integer.MIN_VALUE )
+			return append( Integer.toString(i) );
+		int x = i < 0 ? -i : i;
+		int n = i < 0 ? 2 : 1;
+		for ( int y = x; y >= 10; y /= 10 )
+			n++;
+		makeroom( 0, n );
+		int pos = offset + length + n;
+		do {
+			bytes[--pos] = (byte) ('0' + x % 10);
+			x /= 10;
+		} while ( x != 0 );
+		if ( i < 0 )
+			bytes[--pos] = '-';
+		length += n;
+		return this;
+	}
+
 	/**
 	 * Append a Java String to the buffer.
 	 * The Java string will be converted to bytes using the UTF8 encoding. 
@@ -0,0 +1,199 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Template from which many {@link Globals} can be made cheaply, such as one per request.
+ * <p>
+ * The template is an ordinary {@link Globals} with its libraries loaded once.
+ * Each new {@link Globals} gets:
+ * <ul>
+ * <li>fresh instances of the libraries that keep a reference to the {@link Globals}
+ * they were loaded into, or other per-instance state, loaded by the {@link Setup};
+ * <li>a copy of every other table in the template, such as {@code string} or {@code table},
+ * which shares the library functions but not the table, so that changes made by one
+ * {@link Globals} are not seen by any other;
+ * <li>the other values of the template, shared as they are;
+ * <li>a compiler that shares the {@link Prototype}s compiled from the same chunk name and source
+ * among all the {@link Globals} made from this template.  It keeps the most recently used 
+ * {@link #DEFAULT_MAX_PROTOTYPES} chunks, or as many as set by {@link #setMaxPrototypes(int)}, 
+ * so that chunks made on the fly, such as by {@code load} of a generated string, do not accumulate.
+ * </ul>
+ * The template must not be changed, or used to run lua code, once this has been made from it,
+ * since it is then read by every call to {@link #newGlobals()}, which may run on any thread.
+ * Functions stored in the template are shared, so lua functions and library functions
+ * that refer to the template's {@link Globals} should be loaded by the {@link Setup} instead.
+ * <p>
+ * Typically a template is made using {@link org.luaj.vm2.lib.jse.JsePlatform#standardTemplate()}:
+ * <pre> {@code
+ * GlobalsTemplate template = JsePlatform.standardTemplate();
+ * ...
+ * Globals globals = template.newGlobals();
+ * globals.load(script, "main.lua").call();
+ * } </pre>
+ * @see Globals
+ * @see LuaTable#copy()
+ */
+public class GlobalsTemplate {
+
+	/** Loads into each new {@link Globals} the libraries that may not be shared with other {@link Globals}. */
+	public interface Setup {
+		/** Load the libraries into {@code globals}, which already has the template's compiler, loader and undumper. */
+		void setup(Globals globals);
+	}
+
+	/** Number of compiled chunks kept for sharing unless changed by {@link #setMaxPrototypes(int)}. */
+	public static final int DEFAULT_MAX_PROTOTYPES = 1024;
+
+	private final Globals template;
+	private final Setup setup;
+	private final Globals.Compiler compiler;
+
+	/** prototypes compiled by {@link #compiler}, by chunk name and source, least recently used first; guarded by itself */
+	private final LinkedHashMap<LuaString, Prototype> prototypes = new LinkedHashMap<LuaString, Prototype>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<LuaString, Prototype> eldest) {
+			return size() > maxPrototypes;
+		}
+	};
+	private volatile int maxPrototypes = DEFAULT_MAX_PROTOTYPES;
+
+	/** Make a template from a {@link Globals} with its libraries already loaded.
+	 * @param template the {@link Globals} to copy, which must not be changed after this
+	 * @param setup loader of the libraries that each new {@link Globals} needs its own instance of
+	 */
+	public GlobalsTemplate(Globals template, Setup setup) {
+		this.template = template;
+		this.setup = setup;
+		this.compiler = template.compiler != null? new SharedCompiler(template.compiler): null;
+	}
+
+	/** Make a new {@link Globals} from this template. May be called from any thread. */
+	public Globals newGlobals() {
+		Globals globals = new Globals();
+		globals.compiler = compiler;
+		globals.loader = template.loader;
+		globals.undumper = template.undumper;
+		globals.STDIN = template.STDIN;
+		globals.STDOUT = template.STDOUT;
+		globals.STDERR = template.STDERR;
+		setup.setup(globals);
+
+		IdentityHashMap<LuaValue, LuaValue> copies = new IdentityHashMap<LuaValue, LuaValue>();
+		copies.put(template, globals);
+		copyMissing(template, globals, copies);
+		LuaValue loaded = template.rawget("package").get("loaded");
+		LuaValue newloaded = globals.rawget("package").get("loaded");
+		if (loaded.istable() && newloaded.istable())
+			copyMissing((LuaTable) loaded, (LuaTable) newloaded, copies);
+		return globals;
+	}
+
+	/** Number of distinct prototypes compiled by the {@link Globals} made from this template and kept for sharing. */
+	public int getPrototypeCount() {
+		synchronized (prototypes) {
+			return prototypes.size();
+		}
+	}
+
+	/** Set the number of compiled chunks kept for sharing, dropping the least recently used beyond it; 0 turns sharing off. */
+	public void setMaxPrototypes(int n) {
+		if (n < 0)
+			throw new IllegalArgumentException("max prototypes must not be negative: " + n);
+		synchronized (prototypes) {
+			maxPrototypes = n;
+			for (Iterator<LuaString> i = prototypes.keySet().iterator(); prototypes.size() > n; ) {
+				i.next();
+				i.remove();
+			}
+		}
+	}
+
+	/** Add to {@code to} the entries of {@code from} whose keys it does not have. */
+	private static void copyMissing(LuaTable from, LuaTable to, IdentityHashMap<LuaValue, LuaValue> copies) {
+		LuaTable.Cursor c = new LuaTable.Cursor();
+		while (from.next(c.key, c))
+			if (to.rawget(c.key).isnil())
+				to.rawset(c.key, copyOf(c.value, copies));
+	}
+
+	/** Copy a table and the tables in it, keeping values that are not tables, and tables reached twice, as they are. */
+	private static LuaValue copyOf(LuaValue v, IdentityHashMap<LuaValue, LuaValue> copies) {
+		if (!(v instanceof LuaTable))
+			return v;
+		LuaValue copy = copies.get(v);
+		if (copy != null)
+			return copy;
+		LuaTable from = (LuaTable) v;
+		LuaTable t = from.copy();
+		copies.put(v, t);
+		LuaTable.Cursor c = new LuaTable.Cursor();
+		while (from.next(c.key, c))
+			if (c.value instanceof LuaTable)
+				t.rawset(c.key, copyOf(c.value, copies));
+		return t;
+	}
+
+	/** Compiler that compiles each chunk name and source only once for all the {@link Globals} made from the template. */
+	private final class SharedCompiler implements Globals.Compiler {
+		private final Globals.Compiler compiler;
+		SharedCompiler(Globals.Compiler compiler) {
+			this.compiler = compiler;
+		}
+		public Prototype compile(InputStream stream, String chunkname) throws IOException {
+			LuaString name = LuaString.valueOf(chunkname);
+			int n = name.rawlen() + 1;
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buf = new byte[n];
+			name.copyInto(0, buf, 0, n - 1);
+			baos.write(buf, 0, n);	// the name, then 0, then the source
+			for (int c; (c = stream.read()) != -1; )	// NOTE: stop at the first end, as LuaC does; a stream made by load() from a function may have more after it
+				baos.write(c);
+			byte[] bytes = baos.toByteArray();
+			LuaString key = LuaString.valueOf(bytes);
+			Prototype p;
+			synchronized (prototypes) {
+				p = prototypes.get(key);
+			}
+			if (p == null) {
+				p = compiler.compile(new ByteArrayInputStream(bytes, n, bytes.length - n), chunkname);	// NOTE: outside the lock, so that compiles on other threads are not held up
+				synchronized (prototypes) {
+					Prototype q = prototypes.get(key);
+					if (q != null)
+						p = q;
+					else
+						prototypes.put(key, p);
+				}
+			}
+			return p;
+		}
+	}
+}
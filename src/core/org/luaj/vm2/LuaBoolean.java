@@ -98,6 +98,6 @@ public final class LuaBoolean extends LuaValue {
 	}
 	
 	public LuaValue getmetatable() { 
-		return s_metatable; 
+		return Globals.typeMetatable(TBOOLEAN, s_metatable); 
 	}
 }
@@ -0,0 +1,42 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+/**
+ * {@link LuaError} thrown when lua code runs past the instruction quota or deadline 
+ * set with {@link Globals#setBudget(long, long)}.
+ * <p>
+ * {@code pcall} and {@code xpcall} do not catch it, and the budget stays exhausted until it is set again, 
+ * so that the error reaches the Java code that called into lua.
+ * @see Globals#setBudget(long, long)
+ */
+public class LuaBudgetError extends LuaError {
+	private static final long serialVersionUID = 1L;
+
+	/** True if the deadline passed, or false if the instruction quota ran out. */
+	public final boolean timeout;
+
+	public LuaBudgetError(boolean timeout) {
+		super(timeout? "script timed out": "script exceeded its instruction budget");
+		this.timeout = timeout;
+	}
+}
@@ -21,6 +21,10 @@
 ******************************************************************************/
 package org.luaj.vm2;
 
+import org.luaj.vm2.lib.BaseLib;
+import org.luaj.vm2.lib.CoroutineLib;
+import org.luaj.vm2.lib.DebugLib;
+
 /**
  * Extension of {@link LuaFunction} which executes lua bytecode. 
  * <p>
@@ -89,6 +93,9 @@ public class LuaClosure extends LuaFunction {
 	
 	final Globals globals;
 	
+	/** the compiled form of {@link #p} bound to the upvalues of this closure, once a tier compiler has made it; see {@link Globals#tier} */
+	private LuaFunction compiled;
+	
 	/** Create a closure around a Prototype with a specific environment.
 	 * If the prototype has upvalues, the environment will be written into the first upvalue.
 	 * @param p the Prototype to construct this Closure for. 
@@ -118,7 +125,7 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public LuaValue getmetatable() { 
-		return s_metatable; 
+		return Globals.typeMetatable(TFUNCTION, s_metatable); 
 	}
 	
 	public String tojstring() {
@@ -126,6 +133,11 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public final LuaValue call() {
+		if (compiled != null || p.compiled != null) {
+			LuaFunction f = compiled();
+			if (f != null)
+				try { return f.call(); } catch (LuaError le) { throw compiledError(le); }
+		}
 		LuaValue[] stack = new LuaValue[p.maxstacksize];
 		for (int i = 0; i < p.numparams; ++i )
 			stack[i] = NIL;
@@ -133,6 +145,11 @@ public class LuaClosure extends LuaFunction {
 	}
 
 	public final LuaValue call(LuaValue arg) {
+		if (compiled != null || p.compiled != null) {
+			LuaFunction f = compiled();
+			if (f != null)
+				try { return f.call(arg); } catch (LuaError le) { throw compiledError(le); }
+		}
 		LuaValue[] stack = new LuaValue[p.maxstacksize];
 		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
 		for (int i = 1; i < p.numparams; ++i )
@@ -144,6 +161,11 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public final LuaValue call(LuaValue arg1, LuaValue arg2) {
+		if (compiled != null || p.compiled != null) {
+			LuaFunction f = compiled();
+			if (f != null)
+				try { return f.call(arg1, arg2); } catch (LuaError le) { throw compiledError(le); }
+		}
 		LuaValue[] stack = new LuaValue[p.maxstacksize];
 		for (int i = 2; i < p.numparams; ++i )
 			stack[i] = NIL;
@@ -155,6 +177,11 @@ public class LuaClosure extends LuaFunction {
 	}
 
 	public final LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+		if (compiled != null || p.compiled != null) {
+			LuaFunction f = compiled();
+			if (f != null)
+				try { return f.call(arg1, arg2, arg3); } catch (LuaError le) { throw compiledError(le); }
+		}
 		LuaValue[] stack = new LuaValue[p.maxstacksize];
 		for (int i = 3; i < p.numparams; ++i )
 			stack[i] = NIL;
@@ -171,361 +198,654 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public final Varargs onInvoke(Varargs varargs) {
+		if (compiled != null || p.compiled != null) {
+			LuaFunction f = compiled();
+			if (f != null)
+				try { return f.onInvoke(varargs); } catch (LuaError le) { throw compiledError(le); }
+		}
 		LuaValue[] stack = new LuaValue[p.maxstacksize];
 		for ( int i=0; i<p.numparams; i++ )
 			stack[i] = varargs.arg(i+1);		
 		return execute(stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE);
 	}
 	
+	/** The compiled form of this closure, bound on first use after {@link Prototype#compiled} is set, 
+	 * or null while the debug library tracks calls, since only the interpreter calls hooks and keeps the call stack. 
+	 */
+	private LuaFunction compiled() {
+		if (globals != null && globals.debuglib != null && globals.debuglib.isTracingCalls())
+			return null;
+		if (compiled == null)
+			compiled = p.compiled.bind(upValues, globals);
+		return compiled;
+	}
+	
+	/** Process an error thrown by the compiled form as the interpreter does; the compiled code has set its file and line. */
+	private LuaError compiledError(LuaError le) {
+		if (le.traceback == null)
+			processErrorHooks(le, p, -1);
+		return le;
+	}
+	
+	/** XOWA.PERF: count a call or backward jump of {@link #p}, and pass it to the tier compiler once hot enough. */
+	private void heat(Globals.TierCompiler tier) {
+		int h = p.hotness;
+		if (h < 0)
+			return;
+		if (++h < tier.threshold())
+			p.hotness = h;
+		else {
+			p.hotness = -1;
+			tier.compile(p);
+		}
+	}
+
 	protected Varargs execute( LuaValue[] stack, Varargs varargs ) {
-		// loop through instructions
-		int i,a,b,c,pc=0,top=0;
-		LuaValue o;
-		Varargs v = NONE;
-		int[] code = p.code;
-		LuaValue[] k = p.k;
-		
+		// XOWA.PERF: check once per call whether the debug lib tracks calls, rather than once per instruction
+		DebugLib debuglib = null;
+		if (globals != null && globals.debuglib != null && globals.debuglib.isTracingCalls())
+			(debuglib = globals.debuglib).onCall( this, varargs, stack ); 
+
 		// upvalues are only possible when closures create closures
 		// TODO: use linked list.
 		UpValue[] openups = p.p.length>0? new UpValue[stack.length]: null;
 		
-		// allow for debug hooks
-		if (globals != null && globals.debuglib != null)
-			globals.debuglib.onCall( this, varargs, stack ); 
-
-		// process instructions
 		try {
-			while ( true ) {
-				if (globals != null && globals.debuglib != null)
-					globals.debuglib.onInstruction( pc, v, top ); 
-				
-				// pull out instruction
-				i = code[pc++];
-				a = ((i>>6) & 0xff);
-				
-				// process the op code
-				switch ( i & 0x3f ) {
+			return execute(stack, varargs, openups, null, null);
+		} finally {
+			if ( openups != null )
+				for ( int u=openups.length; --u>=0; )
+					if ( openups[u] != null )
+						openups[u].close();
+			if (debuglib != null)
+				debuglib.onReturn();
+		}
+	}
+
+	/**
+	 * The interpreter loop.  With s null, runs this closure on the given registers and returns its results.
+	 * Otherwise runs the stackless coroutine s from frame f, taking the registers from each frame in turn;
+	 * see {@link #executeFrames(LuaThread.State, Varargs)}.
+	 */
+	private Varargs execute( LuaValue[] stack, Varargs varargs, UpValue[] openups, LuaThread.State s, Frame f ) {
+		int i,a,b,c,pc=0,top=0;
+		LuaValue o;
+		Varargs v = NONE;
+		LuaClosure cl = this;
+		LuaTable.Cursor cursor = null;
+		
+		frames:
+		while ( true ) {
+			if ( s != null ) {
+				// load the frame state
+				cl = f.cl;
+				stack = f.stack;
+				varargs = f.varargs;
+				openups = f.openups;
+				pc = f.pc;
+				top = f.top;
+				v = f.v;
+			}
+			final Prototype p = cl.p;
+			final int[] code = p.code;
+			final LuaValue[] k = p.k;
+			final UpValue[] upValues = cl.upValues;
+			final Globals globals = cl.globals;
+			// XOWA.PERF: charge the budget, if any, only at calls and backward jumps; see Globals.setBudget
+			final Globals budget = globals != null && globals.isBudgeted()? globals: null;
+			// XOWA.PERF: count calls and backward jumps while a tier compiler is installed and calls are not traced; see Globals.TierCompiler
+			final Globals.TierCompiler tier = globals != null && globals.tier != null
+				&& (globals.debuglib == null || !globals.debuglib.isTracingCalls())? globals.tier: null;
+			if ( pc == 0 ) {
+				if (budget != null)
+					budget.charge(code.length);
+				if (tier != null)
+					cl.heat(tier);
+			}
+			
+			// process instructions
+			try {
+				while ( true ) {
+					// pull out instruction
+					i = code[pc++];
+					a = ((i>>6) & 0xff);
+					
+					// process the op code
+					switch ( i & 0x3f ) {
 				
-				case Lua.OP_MOVE:/*	A B	R(A):= R(B)					*/
-					stack[a] = stack[i>>>23];
-					continue;
-					
-				case Lua.OP_LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
-					stack[a] = k[i>>>14];
-					continue;
-					
-				case Lua.OP_LOADBOOL:/*	A B C	R(A):= (Bool)B: if (C) pc++			*/
-	                stack[a] = (i>>>23!=0)? LuaValue.TRUE: LuaValue.FALSE;
-	                if ((i&(0x1ff<<14)) != 0)
-	                    pc++; /* skip next instruction (if C) */
-	                continue;
+					case Lua.OP_MOVE:/*	A B	R(A):= R(B)					*/
+						stack[a] = stack[i>>>23];
+						continue;
+					
+					case Lua.OP_LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
+						stack[a] = k[i>>>14];
+						continue;
+					
+					case Lua.OP_LOADBOOL:/*	A B C	R(A):= (Bool)B: if (C) pc++			*/
+		                stack[a] = (i>>>23!=0)? LuaValue.TRUE: LuaValue.FALSE;
+		                if ((i&(0x1ff<<14)) != 0)
+		                    pc++; /* skip next instruction (if C) */
+		                continue;
 	
-				case Lua.OP_LOADNIL: /*	A B	R(A):= ...:= R(A+B):= nil			*/
-					for ( b=i>>>23; b-->=0; )
-						stack[a++] = LuaValue.NIL;
-					continue;
-					
-				case Lua.OP_GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
-	                stack[a] = upValues[i>>>23].getValue();
-	                continue;
-					
-				case Lua.OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
-					// stack[a] = upValues[i>>>23].getValue().get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					// XOWA:HACK: handle deprecated "arg" for "..."
-					int OP_GETTABUP_c = (i>>14)&0x1ff;
-					boolean OP_GETTABUP_b = OP_GETTABUP_c>0xff;
-					LuaValue OP_GETTABUP_idx = OP_GETTABUP_b ? k[OP_GETTABUP_c&0x0ff]: stack[OP_GETTABUP_c];
-					stack[a] = upValues[i>>>23].getValue().get(OP_GETTABUP_idx);
-					if (	p.is_vararg == 1
-					//	&&	stack[a] == NIL			// commented; DATE:2014-08-18
-						&& 	OP_GETTABUP_b
-						) {
-						if	("arg".equals(OP_GETTABUP_idx.tojstring()))
-							stack[a] = new LuaTable(varargs);
-					}
-					continue;
-	                
-				case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
-	                stack[a] = stack[i>>>23].get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_SETTABUP: /*	A B C	UpValue[A][RK(B)] := RK(C)			*/
-	                upValues[a].getValue().set(((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]), (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_SETUPVAL: /*	A B	UpValue[B]:= R(A)				*/
-					upValues[i>>>23].setValue(stack[a]);
-					continue;
-					
-				case Lua.OP_SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
-					stack[a].set(((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]), (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_NEWTABLE: /*	A B C	R(A):= {} (size = B,C)				*/
-					stack[a] = new LuaTable(i>>>23,(i>>14)&0x1ff);
-					continue;
-					
-				case Lua.OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
-					stack[a+1] = (o = stack[i>>>23]);
-					stack[a] = o.get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).add((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).sub((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mul((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).div((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mod((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).pow((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_UNM: /*	A B	R(A):= -R(B)					*/
-					stack[a] = stack[i>>>23].neg();
-					continue;
-					
-				case Lua.OP_NOT: /*	A B	R(A):= not R(B)				*/
-					stack[a] = stack[i>>>23].not();
-					continue;
-					
-				case Lua.OP_LEN: /*	A B	R(A):= length of R(B)				*/
-					stack[a] = stack[i>>>23].len();
-					continue;
-					
-				case Lua.OP_CONCAT: /*	A B C	R(A):= R(B).. ... ..R(C)			*/
-					b = i>>>23;
-					c = (i>>14)&0x1ff;
-					{
-						if ( c > b+1 ) {
-							Buffer sb = stack[c].buffer();
-							while ( --c>=b ) 
-								sb = stack[c].concat(sb);
-							stack[a] = sb.value();
-						} else {
-							stack[a] = stack[c-1].concat(stack[c]);
+					case Lua.OP_LOADNIL: /*	A B	R(A):= ...:= R(A+B):= nil			*/
+						for ( b=i>>>23; b-->=0; )
+							stack[a++] = LuaValue.NIL;
+						continue;
+					
+					case Lua.OP_GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
+		                stack[a] = upValues[i>>>23].getValue();
+		                continue;
+					
+					case Lua.OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
+						// stack[a] = upValues[i>>>23].getValue().get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						// XOWA:HACK: handle deprecated "arg" for "..."
+						int OP_GETTABUP_c = (i>>14)&0x1ff;
+						boolean OP_GETTABUP_b = OP_GETTABUP_c>0xff;
+						LuaValue OP_GETTABUP_idx = OP_GETTABUP_b ? k[OP_GETTABUP_c&0x0ff]: stack[OP_GETTABUP_c];
+						stack[a] = OP_GETTABUP_b? getk(upValues[i>>>23].getValue(), OP_GETTABUP_idx, cl, pc-1): upValues[i>>>23].getValue().get(OP_GETTABUP_idx);
+						if (	p.is_vararg == 1
+						//	&&	stack[a] == NIL			// commented; DATE:2014-08-18
+							&& 	OP_GETTABUP_b
+							) {
+							if	("arg".equals(OP_GETTABUP_idx.tojstring()))
+								stack[a] = new LuaTable(varargs);
 						}
-					}
-					continue;
-					
-				case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
-					pc  += (i>>>14)-0x1ffff;
-					if (a > 0) {
-						for (--a, b = openups.length; --b>=0; )
-							if (openups[b] != null && openups[b].index >= a) {
-								openups[b].close();
-								openups[b] = null;
-							}
-					}
-					continue;
-					
-				case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
-					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).eq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
-						++pc;
-					continue;
-					
-				case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
-					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lt_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
-						++pc;
-					continue;
-					
-				case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
-					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lteq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
-						++pc;
-					continue;
-					
-				case Lua.OP_TEST: /*	A C	if not (R(A) <=> C) then pc++			*/ 
-					if ( stack[a].toboolean() != ((i&(0x1ff<<14))!=0) ) 
-						++pc;
-					continue;
-					
-				case Lua.OP_TESTSET: /*	A B C	if (R(B) <=> C) then R(A):= R(B) else pc++	*/
-					/* note: doc appears to be reversed */
-					if ( (o=stack[i>>>23]).toboolean() != ((i&(0x1ff<<14))!=0) ) 
-						++pc;
-					else
-						stack[a] = o; // TODO: should be sBx? 
-					continue;
-					
-				case Lua.OP_CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
-					switch ( i & (Lua.MASK_B | Lua.MASK_C) ) {
-					case (1<<Lua.POS_B) | (0<<Lua.POS_C): v=stack[a].invoke(NONE); top=a+v.narg(); continue;
-					case (2<<Lua.POS_B) | (0<<Lua.POS_C): v=stack[a].invoke(stack[a+1]); top=a+v.narg(); continue;
-					case (1<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(); continue;
-					case (2<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1]); continue;
-					case (3<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1],stack[a+2]); continue;
-					case (4<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
-					case (1<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(); continue;
-					case (2<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1]); continue;
-					case (3<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2]); continue;
-					case (4<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
-					default:
+						continue;
+	                
+					case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
+		                stack[a] = (c=(i>>14)&0x1ff)>0xff? getk(stack[i>>>23], k[c&0x0ff], cl, pc-1): stack[i>>>23].get(stack[c]);
+						continue;
+					
+					case Lua.OP_SETTABUP: /*	A B C	UpValue[A][RK(B)] := RK(C)			*/
+		                upValues[a].getValue().set(((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]), (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_SETUPVAL: /*	A B	UpValue[B]:= R(A)				*/
+						upValues[i>>>23].setValue(stack[a]);
+						continue;
+					
+					case Lua.OP_SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
+						stack[a].set(((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]), (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_NEWTABLE: /*	A B C	R(A):= {} (size = B,C)				*/
+						stack[a] = new LuaTable(i>>>23,(i>>14)&0x1ff);
+						continue;
+					
+					case Lua.OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
+						stack[a+1] = (o = stack[i>>>23]);
+						stack[a] = (c=(i>>14)&0x1ff)>0xff? getk(o, k[c&0x0ff], cl, pc-1): o.get(stack[c]);
+						continue;
+					
+					case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).add((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).sub((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mul((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).div((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mod((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).pow((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_UNM: /*	A B	R(A):= -R(B)					*/
+						stack[a] = stack[i>>>23].neg();
+						continue;
+					
+					case Lua.OP_NOT: /*	A B	R(A):= not R(B)				*/
+						stack[a] = stack[i>>>23].not();
+						continue;
+					
+					case Lua.OP_LEN: /*	A B	R(A):= length of R(B)				*/
+						stack[a] = stack[i>>>23].len();
+						continue;
+					
+					case Lua.OP_CONCAT: /*	A B C	R(A):= R(B).. ... ..R(C)			*/
 						b = i>>>23;
 						c = (i>>14)&0x1ff;
-						v = b>0? 
-							varargsOf(stack,a+1,b-1): // exact arg count
-							varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
-						v = stack[a].invoke(v);
-						if ( c > 0 ) {
-							while ( --c > 0 )
-								stack[a+c-1] = v.arg(c);
-							v = NONE; // TODO: necessary?
-						} else {
-							top = a + v.narg();
+						{
+							if ( c > b+1 ) {
+								Buffer sb = stack[c].buffer();
+								while ( --c>=b ) 
+									sb = stack[c].concat(sb);
+								stack[a] = sb.value();
+							} else {
+								stack[a] = stack[c-1].concat(stack[c]);
+							}
 						}
 						continue;
-					}
 					
-				case Lua.OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
-					switch ( i & Lua.MASK_B ) {
-					case (1<<Lua.POS_B): return new TailcallVarargs(stack[a], NONE);
-					case (2<<Lua.POS_B): return new TailcallVarargs(stack[a], stack[a+1]);
-					case (3<<Lua.POS_B): return new TailcallVarargs(stack[a], varargsOf(stack[a+1],stack[a+2]));
-					case (4<<Lua.POS_B): return new TailcallVarargs(stack[a], varargsOf(stack[a+1],stack[a+2],stack[a+3]));
-					default:
-						b = i>>>23;
-						v = b>0? 
-							varargsOf(stack,a+1,b-1): // exact arg count
-							varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
-						return new TailcallVarargs( stack[a], v );
-					}
+					case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
+						pc  += (b = (i>>>14)-0x1ffff);
+						if (b < 0) {
+							if (budget != null)
+								budget.charge(-b);
+							if (tier != null)
+								cl.heat(tier);
+						}
+						if (a > 0) {
+							for (--a, b = openups.length; --b>=0; )
+								if (openups[b] != null && openups[b].index >= a) {
+									openups[b].close();
+									openups[b] = null;
+								}
+						}
+						continue;
 					
-				case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
-					b = i>>>23;
-					switch ( b ) {
-					case 0: return varargsOf(stack, a, top-v.narg()-a, v); 
-					case 1: return NONE;
-					case 2: return stack[a]; 
-					default:
-						return varargsOf(stack, a, b-1);
-					}
+					case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
+						if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).eq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+							++pc;
+						continue;
 					
-				case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
-					{
-			            LuaValue limit = stack[a + 1];
-						LuaValue step  = stack[a + 2];
-						LuaValue idx   = step.add(stack[a]);
-			            if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {
-		                    stack[a] = idx;
-		                    stack[a + 3] = idx;
-		                    pc += (i>>>14)-0x1ffff;
-			            }
-					}
-					continue;
+					case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
+						if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lt_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+							++pc;
+						continue;
 					
-				case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
-					{
-						LuaValue init  = stack[a].checknumber("'for' initial value must be a number");
-						LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
-						LuaValue step  = stack[a + 2].checknumber("'for' step must be a number");
-						stack[a] = init.sub(step);
-						stack[a + 1] = limit;
-						stack[a + 2] = step;
-						pc += (i>>>14)-0x1ffff;
-					}
-					continue;
+					case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
+						if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lteq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+							++pc;
+						continue;
+					
+					case Lua.OP_TEST: /*	A C	if not (R(A) <=> C) then pc++			*/ 
+						if ( stack[a].toboolean() != ((i&(0x1ff<<14))!=0) ) 
+							++pc;
+						continue;
+					
+					case Lua.OP_TESTSET: /*	A B C	if (R(B) <=> C) then R(A):= R(B) else pc++	*/
+						/* note: doc appears to be reversed */
+						if ( (o=stack[i>>>23]).toboolean() != ((i&(0x1ff<<14))!=0) ) 
+							++pc;
+						else
+							stack[a] = o; // TODO: should be sBx? 
+						continue;
+					
+					case Lua.OP_CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+						if ( s != null )
+							break; // stackless coroutine, see below
+						switch ( i & (Lua.MASK_B | Lua.MASK_C) ) {
+						case (1<<Lua.POS_B) | (0<<Lua.POS_C): v=stack[a].invoke(NONE); top=a+v.narg(); continue;
+						case (2<<Lua.POS_B) | (0<<Lua.POS_C): v=stack[a].invoke(stack[a+1]); top=a+v.narg(); continue;
+						case (1<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(); continue;
+						case (2<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1]); continue;
+						case (3<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1],stack[a+2]); continue;
+						case (4<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
+						case (1<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(); continue;
+						case (2<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1]); continue;
+						case (3<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2]); continue;
+						case (4<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
+						default:
+							b = i>>>23;
+							c = (i>>14)&0x1ff;
+							v = b>0? 
+								varargsOf(stack,a+1,b-1): // exact arg count
+								varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
+							v = stack[a].invoke(v);
+							if ( c > 0 ) {
+								while ( --c > 0 )
+									stack[a+c-1] = v.arg(c);
+								v = NONE; // TODO: necessary?
+							} else {
+								top = a + v.narg();
+							}
+							continue;
+						}
+					
+					case Lua.OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
+						if ( s != null )
+							break;
+						switch ( i & Lua.MASK_B ) {
+						case (1<<Lua.POS_B): return new TailcallVarargs(stack[a], NONE);
+						case (2<<Lua.POS_B): return new TailcallVarargs(stack[a], stack[a+1]);
+						case (3<<Lua.POS_B): return new TailcallVarargs(stack[a], varargsOf(stack[a+1],stack[a+2]));
+						case (4<<Lua.POS_B): return new TailcallVarargs(stack[a], varargsOf(stack[a+1],stack[a+2],stack[a+3]));
+						default:
+							b = i>>>23;
+							v = b>0? 
+								varargsOf(stack,a+1,b-1): // exact arg count
+								varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
+							return new TailcallVarargs( stack[a], v );
+						}
+					
+					case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
+						b = i>>>23;
+						switch ( b ) {
+						case 0: v = varargsOf(stack, a, top-v.narg()-a, v); break;
+						case 1: v = NONE; break;
+						case 2: v = stack[a]; break;
+						default: v = varargsOf(stack, a, b-1); break;
+						}
+						if ( s == null )
+							return v;
+						// stackless coroutine: return to the calling frame
+						f.close();
+						if ( (f = f.parent) == null ) {
+							s.status = LuaThread.STATUS_DEAD;
+							return v;
+						}
+						f.deliver(v);
+						continue frames;
+					
+					case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+						{
+				            LuaValue limit = stack[a + 1];
+							LuaValue step  = stack[a + 2];
+							LuaValue idx   = step.add(stack[a]);
+				            if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {
+			                    stack[a] = idx;
+			                    stack[a + 3] = idx;
+			                    pc += (i>>>14)-0x1ffff;
+			                    if (budget != null)
+			                    	budget.charge(0x1ffff-(i>>>14));
+			                    if (tier != null)
+			                    	cl.heat(tier);
+				            }
+						}
+						continue;
+					
+					case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
+						{
+							LuaValue init  = stack[a].checknumber("'for' initial value must be a number");
+							LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
+							LuaValue step  = stack[a + 2].checknumber("'for' step must be a number");
+							stack[a] = init.sub(step);
+							stack[a + 1] = limit;
+							stack[a + 2] = step;
+							pc += (i>>>14)-0x1ffff;
+						}
+						continue;
 
-				case Lua.OP_TFORCALL: /* A C	R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));	*/
-					v = stack[a].invoke(varargsOf(stack[a+1],stack[a+2]));
-					c = (i>>14) & 0x1ff;
-					while (--c >= 0)
-						stack[a+3+c] = v.arg(c+1);
-					v = NONE;
-					continue;
+					case Lua.OP_TFORCALL: /* A C	R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));	*/
+						if (BaseLib.isNext(stack[a]) && stack[a+1] instanceof LuaTable) {
+							// XOWA.PERF: step a cursor for a pairs() loop directly, instead of building args and results for each step;
+							// the cursor is only a hint checked against the table, so loops in this call can share it
+							if (cursor == null)
+								cursor = new LuaTable.Cursor();
+							((LuaTable) stack[a+1]).next(stack[a+2], cursor);
+							c = (i>>14) & 0x1ff;
+							while (--c >= 0)
+								stack[a+3+c] = c == 0 ? cursor.key : c == 1 ? cursor.value : NIL;
+							v = NONE;
+							continue;
+						}
+						if ( s != null )
+							break;
+						v = stack[a].invoke(varargsOf(stack[a+1],stack[a+2]));
+						c = (i>>14) & 0x1ff;
+						while (--c >= 0)
+							stack[a+3+c] = v.arg(c+1);
+						v = NONE;
+						continue;
 
-				case Lua.OP_TFORLOOP: /* A sBx	if R(A+1) ~= nil then { R(A)=R(A+1); pc += sBx */
-					if (!stack[a+1].isnil()) { /* continue loop? */
-						stack[a] = stack[a+1];  /* save control varible. */
-						pc += (i>>>14)-0x1ffff;
-					}
-					continue;
+					case Lua.OP_TFORLOOP: /* A sBx	if R(A+1) ~= nil then { R(A)=R(A+1); pc += sBx */
+						if (!stack[a+1].isnil()) { /* continue loop? */
+							stack[a] = stack[a+1];  /* save control varible. */
+							pc += (i>>>14)-0x1ffff;
+							if (budget != null)
+								budget.charge(0x1ffff-(i>>>14));
+							if (tier != null)
+								cl.heat(tier);
+						}
+						continue;
 					
-				case Lua.OP_SETLIST: /*	A B C	R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B	*/
-					{
-		                if ( (c=(i>>14)&0x1ff) == 0 )
-		                    c = code[pc++];
-		                int offset = (c-1) * Lua.LFIELDS_PER_FLUSH;
-		                o = stack[a];
-		                if ( (b=i>>>23) == 0 ) {
-		                    b = top - a - 1;
-		                    int m = b - v.narg(); 
-		                	int j=1;
-		                	for ( ;j<=m; j++ )
-		                    	o.set(offset+j, stack[a + j]);
-		                	for ( ;j<=b; j++ )
-		                    	o.set(offset+j, v.arg(j-m));
-		                } else {
-		                    o.presize( offset + b );
-		                    for (int j=1; j<=b; j++)
-		                    	o.set(offset+j, stack[a + j]);
-		                }
+					case Lua.OP_SETLIST: /*	A B C	R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B	*/
+						{
+			                if ( (c=(i>>14)&0x1ff) == 0 )
+			                    c = code[pc++];
+			                int offset = (c-1) * Lua.LFIELDS_PER_FLUSH;
+			                o = stack[a];
+			                if ( (b=i>>>23) == 0 ) {
+			                    b = top - a - 1;
+			                    int m = b - v.narg(); 
+			                	int j=1;
+			                	for ( ;j<=m; j++ )
+			                    	o.set(offset+j, stack[a + j]);
+			                	for ( ;j<=b; j++ )
+			                    	o.set(offset+j, v.arg(j-m));
+			                } else {
+			                    o.presize( offset + b );
+			                    for (int j=1; j<=b; j++)
+			                    	o.set(offset+j, stack[a + j]);
+			                }
+						}
+						continue;
+					
+					case Lua.OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx])	*/
+						{
+							Prototype newp = p.getp(i>>>14);
+							LuaClosure ncl = new LuaClosure(newp, globals);
+							Upvaldesc[] uv = newp.upvalues;
+							for ( int j=0, nup=uv.length; j<nup; ++j ) {
+								if (uv[j].instack)  /* upvalue refes to local variable? */
+									ncl.upValues[j] = findupval(stack, uv[j].idx, openups);
+								else  /* get upvalue from enclosing function */
+									ncl.upValues[j] = upValues[uv[j].idx];
+							}
+							stack[a] = ncl;
+						}
+						continue;
+					
+					case Lua.OP_VARARG: /*	A B	R(A), R(A+1), ..., R(A+B-1) = vararg		*/
+						b = i>>>23;
+						if ( b == 0 ) {
+							top = a + (b = varargs.narg());
+							v = varargs;
+						} else { 
+							for ( int j=1; j<b; ++j )
+								stack[a+j-1] = varargs.arg(j);
+						}
+						continue;				
+
+					case Lua.OP_EXTRAARG:
+						throw new java.lang.IllegalArgumentException("Uexecutable opcode: OP_EXTRAARG");
+
+					default:
+						throw new java.lang.IllegalArgumentException("Illegal opcode: " + (i & 0x3f));
 					}
-					continue;
 					
-				case Lua.OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx])	*/
+					// OP_CALL, OP_TAILCALL or OP_TFORCALL in a stackless coroutine: a call to a lua closure 
+					// pushes a frame instead of recursing, and a call to coroutine.yield saves the frames and returns
 					{
-						Prototype newp = p.p[i>>>14];
-						LuaClosure ncl = new LuaClosure(newp, globals);
-						Upvaldesc[] uv = newp.upvalues;
-						for ( int j=0, nup=uv.length; j<nup; ++j ) {
-							if (uv[j].instack)  /* upvalue refes to local variable? */
-								ncl.upValues[j] = findupval(stack, uv[j].idx, openups);
-							else  /* get upvalue from enclosing function */
-								ncl.upValues[j] = upValues[uv[j].idx];
+						boolean tailcall = (i & 0x3f) == Lua.OP_TAILCALL;
+						Varargs args;
+						if ( (i & 0x3f) == Lua.OP_TFORCALL )
+							args = varargsOf(stack[a+1],stack[a+2]);
+						else if ( (b=i>>>23) > 0 )
+							args = varargsOf(stack,a+1,b-1); // exact arg count
+						else
+							args = varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
+						o = stack[a];
+						if ( !o.isfunction() ) {
+							LuaValue h = o.metatag(CALL);
+							if ( h.isfunction() ) {
+								args = varargsOf(o, args);
+								o = h;
+							}
 						}
-						stack[a] = ncl;
-					}
-					continue;
-					
-				case Lua.OP_VARARG: /*	A B	R(A), R(A+1), ..., R(A+B-1) = vararg		*/
-					b = i>>>23;
-					if ( b == 0 ) {
-						top = a + (b = varargs.narg());
-						v = varargs;
-					} else { 
-						for ( int j=1; j<b; ++j )
-							stack[a+j-1] = varargs.arg(j);
+						if ( o instanceof LuaClosure ) {
+							if ( tailcall ) {
+								f.close();
+								f = new Frame((LuaClosure) o, f.parent, args);
+							} else {
+								f.pc = pc; f.top = top; f.v = v;
+								f = new Frame((LuaClosure) o, f, args);
+							}
+							continue frames;
+						}
+						if ( !s.threaded ) {
+							if ( CoroutineLib.isYield(o) ) {
+								if ( tailcall ) {
+									f.close();
+									s.frame = f.parent;
+								} else {
+									f.pc = pc; f.top = top; f.v = v;
+									s.frame = f;
+								}
+								s.yielded = true;
+								s.status = LuaThread.STATUS_SUSPENDED;
+								return args;
+							}
+							if ( mayCallBack(o, args) ) {
+								f.pc = pc-1; f.top = top; f.v = v;
+								s.frame = f;
+								return null;
+							}
+						}
+						v = o.invoke(args);
+						if ( tailcall ) {
+							f.close();
+							if ( (f = f.parent) == null ) {
+								s.status = LuaThread.STATUS_DEAD;
+								return v;
+							}
+							f.deliver(v);
+							continue frames;
+						}
+						f.pc = pc; f.top = top; f.v = v;
+						f.deliver(v);
+						top = f.top; v = f.v;
 					}
-					continue;				
-
-				case Lua.OP_EXTRAARG:
-					throw new java.lang.IllegalArgumentException("Uexecutable opcode: OP_EXTRAARG");
-
-				default:
-					throw new java.lang.IllegalArgumentException("Illegal opcode: " + (i & 0x3f));
 				}
+			} catch ( LuaError le ) {
+				if (le.traceback == null)
+					cl.processErrorHooks(le, p, pc);
+				if ( s != null )
+					closeFrames(f);
+				throw le;
+			} catch ( Exception e ) {
+				LuaError le = new LuaError(e);
+				cl.processErrorHooks(le, p, pc);
+				if ( s != null )
+					closeFrames(f);
+				throw le;
+			} catch ( Error e ) {
+				if ( s != null )
+					closeFrames(f);
+				throw e;
 			}
-		} catch ( LuaError le ) {
-			if (le.traceback == null)
-				processErrorHooks(le, p, pc);
-			throw le;
-		} catch ( Exception e ) {
-			LuaError le = new LuaError(e);
-			processErrorHooks(le, p, pc);
-			throw le;
-		} finally {
+		}
+	}
+
+	/** Limit on the number of nested frames in a stackless coroutine. */
+	static final int MAX_FRAMES = 200000;
+
+	/** 
+	 * Activation record of a {@link LuaClosure} running in a stackless coroutine.
+	 * Holds the state that the interpreter loop keeps in Java locals while running another frame. 
+	 */
+	static final class Frame {
+		final LuaClosure cl;
+		final Frame parent;
+		final int depth;
+		final LuaValue[] stack;
+		final Varargs varargs;
+		final UpValue[] openups;
+		final boolean tracing;
+		int pc = 0, top = 0;
+		Varargs v = NONE;
+		
+		Frame(LuaClosure cl, Frame parent, Varargs args) {
+			if (parent != null && parent.depth >= MAX_FRAMES)
+				throw new LuaError("stack overflow");
+			Prototype p = cl.p;
+			this.cl = cl;
+			this.parent = parent;
+			this.depth = parent != null? parent.depth + 1: 0;
+			this.stack = new LuaValue[p.maxstacksize];
+			for ( int i=0; i<p.numparams; i++ )
+				stack[i] = args.arg(i+1);
+			this.varargs = p.is_vararg!=0? args.subargs(p.numparams+1): NONE;
+			this.openups = p.p.length>0? new UpValue[stack.length]: null;
+			this.tracing = cl.globals != null && cl.globals.debuglib != null && cl.globals.debuglib.isTracingCalls();
+			if (tracing)
+				cl.globals.debuglib.onCall( cl, varargs, stack ); 
+		}
+		
+		void close() {
 			if ( openups != null )
 				for ( int u=openups.length; --u>=0; )
 					if ( openups[u] != null )
 						openups[u].close();
-			if (globals != null && globals.debuglib != null)
-				globals.debuglib.onReturn();
+			if (tracing)
+				cl.globals.debuglib.onReturn();
+		}
+
+		/** Store the results of the call at pc-1 into the registers, as OP_CALL or OP_TFORCALL would. */
+		void deliver(Varargs r) {
+			int i = cl.p.code[pc-1];
+			int a = (i>>6) & 0xff;
+			int c = (i>>14) & 0x1ff;
+			if ( (i & 0x3f) == Lua.OP_TFORCALL ) {
+				while (--c >= 0)
+					stack[a+3+c] = r.arg(c+1);
+				v = NONE;
+			} else if ( c > 0 ) {
+				while ( --c > 0 )
+					stack[a+c-1] = r.arg(c);
+				v = NONE;
+			} else {
+				top = a + r.narg();
+				v = r;
+			}
 		}
 	}
 
+	/** 
+	 * Run a stackless coroutine until it yields, returns, or must move to a Java thread.
+	 * Calls to lua closures push a {@link Frame} instead of recursing, 
+	 * and calls to coroutine.yield save the frames in the state and return.
+	 * @param s the coroutine state, with {@link LuaThread.State#frame} null on the first resume
+	 * @param args the arguments to the body on the first resume, otherwise the values returned by yield
+	 * @return the yielded or returned values, or null if the coroutine must continue on a Java thread
+	 */
+	static Varargs executeFrames(LuaThread.State s, Varargs resumeArgs) {
+		Frame f = s.frame;
+		s.frame = null;
+		if (s.yielded) {
+			s.yielded = false;
+			if (f == null) { // body tail-called yield
+				s.status = LuaThread.STATUS_DEAD;
+				return resumeArgs;
+			}
+			f.deliver(resumeArgs);
+		} else if (f == null) {
+			f = new Frame((LuaClosure) s.function, null, resumeArgs);
+		}
+		return f.cl.execute(null, null, null, s, f);
+	}
+	
+	private static void closeFrames(Frame f) {
+		for ( ; f != null; f = f.parent )
+			f.close();
+	}
+
+	/** 
+	 * Return true if calling Java function f with args may call back into lua, and so yield from within Java.
+	 * Only function arguments are checked; callbacks reached through metamethods or table arguments 
+	 * cannot yield in a stackless coroutine; see {@link LuaThread#stackless_coroutines}.
+	 */
+	private static boolean mayCallBack(LuaValue f, Varargs args) {
+		if (CoroutineLib.isCreate(f))
+			return false;
+		for ( int j=args.narg(); j>0; --j )
+			if ( args.arg(j).isfunction() )
+				return true;
+		return false;
+	}
+
 	/**
 	 *  Run the error hook if there is one
 	 *  @param msg the message to use in error hook processing. 
@@ -553,14 +873,28 @@ public class LuaClosure extends LuaFunction {
 	}
 
 	private void processErrorHooks(LuaError le, Prototype p, int pc) {
-		le.fileline = (p.source != null? p.source.tojstring(): "?") + ":" 
-			+ (p.lineinfo != null && pc >= 0 && pc < p.lineinfo.length? String.valueOf(p.lineinfo[pc]): "?");
+		int[] lineinfo = p.getlineinfo();
+		if (le.fileline == null)	// already set if thrown in code compiled by luajc 
+			le.fileline = (p.source != null? p.source.tojstring(): "?") + ":" 
+				+ (lineinfo != null && pc >= 0 && pc < lineinfo.length? String.valueOf(lineinfo[pc]): "?");
 		String err_msg = le.getMessage();
 		le.traceback = errorHook(err_msg, le.level);
 		// le.traceback = err_msg;	// TOMBSTONE: no longer needed; DATE:2016-09-09; traceback is often meaningless string: "table: 7e96cc33"; not sure why; note that Scribunto only gets traceback, so need a better error msg; for now, force traceback to be error_msg
 	}
 	
-	private UpValue findupval(LuaValue[] stack, short idx, UpValue[] openups) {
+	/** Get o[key] for a constant key, using the inline cache of the prototype of cl at pc when o is a table and key a string. */
+	static LuaValue getk(LuaValue o, LuaValue key, LuaClosure cl, int pc) {
+		if ( o instanceof LuaTable && key instanceof LuaString ) {
+			Prototype p = cl.p;
+			LuaTable.GetCache[] caches = p.getcache;
+			if ( caches == null )
+				p.getcache = caches = new LuaTable.GetCache[p.code.length];
+			return ((LuaTable) o).get((LuaString) key, caches, pc);
+		}
+		return o.get(key);
+	}
+	
+	private static UpValue findupval(LuaValue[] stack, short idx, UpValue[] openups) {
 		final int n = openups.length;
 		for (int i = 0; i < n; ++i)
 			if (openups[i] != null && openups[i].index == idx)
@@ -88,6 +88,32 @@ public class LuaError extends RuntimeException {
 	}	
 
 
+	/**
+	 * Set the file and line of an error thrown in, or through, a function compiled by luajc, 
+	 * as the interpreter does, unless already set by a function it called.
+	 * The line is that of the innermost frame of {@code f} in the stack trace, 
+	 * since the compiled classes carry the lua line numbers.
+	 * Called by the exception handler that luajc adds to each function.
+	 * @param e the error to rethrow
+	 * @param f the compiled function it was caught in
+	 * @param source the chunk name of the function
+	 * @return {@code e}
+	 */
+	public static LuaError fileline(LuaError e, LuaValue f, String source) {
+		if (e.fileline != null || e.traceback != null)
+			return e;
+		String classname = f.getClass().getName();
+		StackTraceElement[] st = e.getStackTrace();
+		int line = -1;
+		for (int i = 0; i < st.length; i++)
+			if (classname.equals(st[i].getClassName())) {
+				line = st[i].getLineNumber();
+				break;
+			}
+		e.fileline = source + ":" + (line >= 0? String.valueOf(line): "?");
+		return e;
+	}
+
 	/** 
 	 * Get the cause, if any.
 	 */
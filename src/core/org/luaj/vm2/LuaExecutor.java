@@ -0,0 +1,155 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of worker threads that runs lua functions for many {@link Sandbox}es at once.
+ * <p>
+ * Each {@link Sandbox} has its own {@link Globals}, and the calls submitted to it run one at a time,
+ * in the order submitted, on whichever worker is free, so that many sandboxes can use all the cores
+ * while each {@link Globals} is only ever used by one thread at a time.
+ * <p>
+ * Values that are not tables or userdata share static metatables, such as {@link LuaString#s_metatable}.
+ * The {@link Globals} of each sandbox is given its own copies with {@link Globals#isolateMetatables()}, 
+ * and is made current on the worker while its calls run, so that one sandbox changing the metatable 
+ * of strings does not change it for the others.
+ * <p>
+ * The other static state used while running lua code is either immutable, thread-safe, 
+ * or a cache whose entries are immutable and may be replaced by racing threads, 
+ * such as the cache of parsed lua patterns.
+ * The recent-strings cache is replaced by one with a table for each worker, 
+ * since a table shared by all the workers would be written by every core.
+ * <pre> {@code
+ * LuaExecutor executor = new LuaExecutor(Runtime.getRuntime().availableProcessors());
+ * GlobalsTemplate template = JsePlatform.standardTemplate();
+ * LuaExecutor.Sandbox sandbox = executor.newSandbox(template.newGlobals());
+ * Future<Varargs> result = sandbox.submit(sandbox.globals.load(script, "page.lua"), LuaValue.NONE);
+ * ...
+ * executor.shutdown();
+ * } </pre>
+ * @see GlobalsTemplate
+ * @see Snapshot
+ */
+public class LuaExecutor {
+
+	/** Most calls a sandbox runs before letting the other sandboxes have its worker. */
+	private static final int BATCH = 16;
+
+	private final ExecutorService workers;
+
+	/** Start a pool of worker threads.
+	 * @param threads number of workers, typically the number of cores
+	 */
+	public LuaExecutor(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Lua-worker-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if ( LuaString.cache.getClass() == StringCache.Table.class )
+			LuaString.cache = StringCache.newStriped(threads * 2, LuaString.RECENT_STRINGS_CACHE_SIZE, 1, LuaString.RECENT_STRINGS_MAX_LENGTH);
+	}
+
+	/** Make a sandbox that runs calls with a {@link Globals}, whose metatables are isolated from the others.
+	 * The {@link Globals} should not be used by any other thread afterwards except through the sandbox.
+	 */
+	public Sandbox newSandbox(Globals globals) {
+		globals.isolateMetatables();
+		return new Sandbox(globals);
+	}
+
+	/** Stop the workers once the calls already submitted have run. */
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	/** Wait for the workers to stop after {@link #shutdown()}.
+	 * @return true if they stopped, or false if the timeout passed first
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return workers.awaitTermination(timeout, unit);
+	}
+
+	/** A {@link Globals} whose calls run on the workers, one at a time. */
+	public final class Sandbox {
+		public final Globals globals;
+		private final ConcurrentLinkedQueue<FutureTask<Varargs>> calls = new ConcurrentLinkedQueue<FutureTask<Varargs>>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private final Runnable drain = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+
+		Sandbox(Globals globals) {
+			this.globals = globals;
+		}
+
+		/** Call a function with arguments on a worker, after the calls submitted before it. */
+		public Future<Varargs> submit(final LuaValue function, final Varargs args) {
+			return submit(new Callable<Varargs>() {
+				public Varargs call() {
+					return function.invoke(args);
+				}
+			});
+		}
+
+		/** Run Java code that uses the {@link Globals} on a worker, after the calls submitted before it. */
+		public Future<Varargs> submit(Callable<Varargs> task) {
+			FutureTask<Varargs> f = new FutureTask<Varargs>(task);
+			calls.add(f);
+			if ( scheduled.compareAndSet(false, true) )
+				workers.execute(drain);
+			return f;
+		}
+
+		/** Run the waiting calls, up to {@link #BATCH} of them, then give up the worker. */
+		private void drain() {
+			Globals prev = Globals.setCurrent(globals);
+			try {
+				FutureTask<Varargs> f;
+				for ( int n = 0; n < BATCH && ( f = calls.poll() ) != null; n++ )
+					f.run();
+			} finally {
+				Globals.setCurrent(prev);
+				scheduled.set(false);
+			}
+			// a call added after the last poll may have seen scheduled still set
+			if ( !calls.isEmpty() && scheduled.compareAndSet(false, true) )
+				workers.execute(drain);
+		}
+	}
+}
@@ -59,7 +59,7 @@ public class LuaFunction extends LuaValue {
 	}
 
 	public LuaValue getmetatable() { 
-		return s_metatable; 
+		return Globals.typeMetatable(TFUNCTION, s_metatable); 
 	}
 
 	public String tojstring() {
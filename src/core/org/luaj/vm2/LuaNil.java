@@ -74,7 +74,7 @@ public class LuaNil extends LuaValue {
 	}
 		
 	public LuaValue getmetatable() { 
-		return s_metatable; 
+		return Globals.typeMetatable(TNIL, s_metatable); 
 	}
 	
 	public boolean equals(Object o) {
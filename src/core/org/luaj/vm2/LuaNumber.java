@@ -70,7 +70,7 @@ public class LuaNumber extends LuaValue {
 	}
 	
 	public LuaValue getmetatable() { 
-		return s_metatable; 
+		return Globals.typeMetatable(TNUMBER, s_metatable); 
 	}
 
 	public LuaValue concat(LuaValue rhs)      { return rhs.concatTo(this); }
@@ -77,8 +77,11 @@ public class LuaString extends LuaValue implements Char_source {
 		return rv;
 	}
 	public byte[] SubstringAsBry(int bgn, int end) {
-		// NOTE: MUST use substring.m_bytes, not Substring().getBytes(); FOOTNOTE:SUBSTRING_MULTI_BYTE_CHARS ISSUE#:735; DATE:2020-05-03
-		return substring(bgn, end).m_bytes;
+		// NOTE: MUST use m_bytes, not Substring().getBytes(); FOOTNOTE:SUBSTRING_MULTI_BYTE_CHARS ISSUE#:735; DATE:2020-05-03
+		// NOTE: copy exact range; substring(bgn, end).m_bytes can be a larger shared backing array
+		byte[] rv = new byte[end - bgn];
+		System.arraycopy(m_bytes, m_offset + bgn, rv, 0, end - bgn);
+		return rv;
 	}
 	public int Index_of(Char_source find, int bgn) {
 		int find_len = find.Len_in_data();
@@ -144,15 +147,11 @@ public class LuaString extends LuaValue implements Char_source {
 	 * Exposed to package for testing. */
 	static final int RECENT_STRINGS_MAX_LENGTH = 32;
 
-	/** Simple cache of recently created strings that are short.
-	 * This is simply a list of strings, indexed by their hash codes modulo the cache size
-	 * that have been recently constructed.  If a string is being constructed frequently
-	 * from different contexts, it will generally show up as a cache hit and resolve
-	 * to the same value.  */
-	private static final class RecentShortStrings {
-		private static final LuaString recent_short_strings[] =
-				new LuaString[RECENT_STRINGS_CACHE_SIZE];
-	}
+	/** Cache of recently created strings that are short.
+	 * By default this is one table shared by all threads, indexed by hash code modulo the cache size.
+	 * Applications running lua on many threads may replace it with 
+	 * {@link StringCache#newThreadLocal(int, int, int)} or {@link StringCache#newStriped(int, int, int, int)}.  */
+	public static StringCache cache = StringCache.newShared(RECENT_STRINGS_CACHE_SIZE, 1, RECENT_STRINGS_MAX_LENGTH);
 
 	/**
 	 * Get a {@link LuaString} instance whose bytes match
@@ -186,14 +185,14 @@ public class LuaString extends LuaValue implements Char_source {
 	 * @return {@link LuaString} wrapping the byte buffer
 	 */
 	public static LuaString valueOf(byte[] bytes, int off, int len) {
-		if (len > RECENT_STRINGS_MAX_LENGTH)
+		final StringCache c = cache;
+		if (c == null || len > c.max_length)	// NOTE: cache is null while LuaValue constants are created, if LuaString is initialized before LuaValue
 			return valueFromCopy(bytes, off, len);
 		final int hash = hashCode(bytes, off, len);
-		final int bucket = hash & (RECENT_STRINGS_CACHE_SIZE - 1);
-		final LuaString t = RecentShortStrings.recent_short_strings[bucket];
-		if (t != null && t.m_hashcode == hash && t.byteseq(bytes, off, len)) return t;
+		final LuaString t = c.get(bytes, off, len, hash);
+		if (t != null) return t;
 		final LuaString s = valueFromCopy(bytes, off, len);
-		RecentShortStrings.recent_short_strings[bucket] = s;
+		c.put(s);
 		return s;
 	}
 
@@ -215,14 +214,14 @@ public class LuaString extends LuaValue implements Char_source {
 	 * @return {@link LuaString} wrapping the byte buffer, or an equivalent string.
 	 */
 	static public LuaString valueUsing(byte[] bytes, int off, int len) {
-		if (bytes.length > RECENT_STRINGS_MAX_LENGTH)
+		final StringCache c = cache;
+		if (c == null || bytes.length > c.max_length)
 			return new LuaString(bytes, off, len);
 		final int hash = hashCode(bytes, off, len);
-		final int bucket = hash & (RECENT_STRINGS_CACHE_SIZE - 1);
-		final LuaString t = RecentShortStrings.recent_short_strings[bucket];
-		if (t != null && t.m_hashcode == hash && t.byteseq(bytes, off, len)) return t;
+		final LuaString t = c.get(bytes, off, len, hash);
+		if (t != null) return t;
 		final LuaString s = new LuaString(bytes, off, len);
-		RecentShortStrings.recent_short_strings[bucket] = s;
+		c.put(s);
 		return s;
 	}
 
@@ -321,7 +320,7 @@ public class LuaString extends LuaValue implements Char_source {
 	}
 		
 	public LuaValue getmetatable() {
-		return s_metatable;
+		return Globals.typeMetatable(TSTRING, s_metatable);
 	}
 	
 	public int type() {
@@ -395,7 +394,6 @@ public class LuaString extends LuaValue implements Char_source {
 
 	// string comparison
 	public int strcmp(LuaValue lhs)           { return -lhs.strcmp(this); }
-	private static final Utf16_char lhs_tmp = new Utf16_char(), rhs_tmp = new Utf16_char();
 	public int strcmp(LuaString rhs) {
 		// for ( int i=0, j=0; i<m_length && j<rhs.m_length; ++i, ++j ) {
 		//    if ( m_bytes[m_offset+i] != rhs.m_bytes[rhs.m_offset+j] ) {
@@ -403,18 +401,31 @@ public class LuaString extends LuaValue implements Char_source {
 		//    }
 		// }
 		// XOWA: handle utf16 bytes
-		int lhs_idx = 0, rhs_idx = 0;
-		while (lhs_idx < m_length && rhs_idx < rhs.m_length) {
-			synchronized (lhs_tmp) {
-				Utf16_Decode_to_int(    m_bytes,     m_offset + lhs_idx, lhs_tmp);
-				Utf16_Decode_to_int(rhs.m_bytes, rhs.m_offset + rhs_idx, rhs_tmp);
-				int comp = lhs_tmp.Codepoint - rhs_tmp.Codepoint;
-				if (comp != 0)
-					return comp;
-				lhs_idx += lhs_tmp.Len;
-				rhs_idx += rhs_tmp.Len;
+		// XOWA.PERF: skip the bytes both strings share, then decode from the start of the first differing char; was decoding every char under a static lock, which also serialized parallel sorts
+		final byte[] lhs_bytes = m_bytes, rhs_bytes = rhs.m_bytes;
+		final int lhs_off = m_offset, rhs_off = rhs.m_offset;
+		final int len = m_length < rhs.m_length ? m_length : rhs.m_length;
+		int idx = 0;
+		while (idx < len && lhs_bytes[lhs_off + idx] == rhs_bytes[rhs_off + idx])
+			idx++;
+		if (idx == len)
+			return m_length - rhs.m_length;
+		for (int k = idx - 1; k >= 0 && k >= idx - 3; k--) {	// back up to the 1st byte of a char that the differing byte continues
+			byte b0 = lhs_bytes[lhs_off + k];
+			if ((b0 & 0xC0) != 0x80) {
+				if (k + Utf8_Len_of_char_by_1st_byte(b0) > idx)
+					idx = k;
+				break;
 			}
 		}
+		int lhs_idx = idx, rhs_idx = idx;
+		while (lhs_idx < m_length && rhs_idx < rhs.m_length) {
+			int comp = Utf16_Decode_to_int(lhs_bytes, lhs_off + lhs_idx) - Utf16_Decode_to_int(rhs_bytes, rhs_off + rhs_idx);
+			if (comp != 0)
+				return comp;
+			lhs_idx += Utf8_Len_of_char_by_1st_byte(lhs_bytes[lhs_off + lhs_idx]);
+			rhs_idx += Utf8_Len_of_char_by_1st_byte(rhs_bytes[rhs_off + rhs_idx]);
+		}
 		return m_length - rhs.m_length;
 	}
 	
@@ -586,7 +597,7 @@ public class LuaString extends LuaValue implements Char_source {
 	}
 	
 	/** Return true if the bytes in the supplied range match this LuaStrings bytes. */
-	private boolean byteseq(byte[] bytes, int off, int len) {
+	boolean byteseq(byte[] bytes, int off, int len) {
 		return (m_length == len && equals(m_bytes, m_offset, bytes, off, len));
 	}
 
@@ -23,6 +23,8 @@ package org.luaj.vm2;
 
 import java.lang.ref.WeakReference;
 import java.sql.Date;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Vector;
 
@@ -76,22 +78,54 @@ public class LuaTable extends LuaValue implements Metatable {
 	private static final int      MIN_HASH_CAPACITY = 2;
 	private static final LuaString N = valueOf("n");
 	
-	/** the array values */
+	/** the array values; null while the array part is typed, in which case they are in {@link #arrayInts} or {@link #arrayDoubles} */
 	protected LuaValue[] array;
 	
-	/** the hash part */
+	/** the array values while they are all integers, from 1 to {@link #arrayCount}; null otherwise */
+	protected int[] arrayInts;
+	
+	/** the array values while they are all numbers, but not all integers, from 1 to {@link #arrayCount}; null otherwise */
+	protected double[] arrayDoubles;
+	
+	/** the number of values in {@link #arrayInts} or {@link #arrayDoubles} */
+	protected int arrayCount;
+	
+	/** the least number of values for which a rehash or presize makes the array part typed, since reading a typed value boxes it */
+	static int TYPED_ARRAY_MIN = 64;
+	
+	/** the least number of values for which a sort without a comparator is split across threads */
+	static int PARALLEL_SORT_MIN = 1 << 13;
+	
+	/** the hash part of a table with weak keys or values */
 	protected Slot[] hash;
 	
+	/** the keys of the hash part of any other table, probed linearly; null when {@link #hash} is used instead */
+	protected LuaValue[] hashKeys;
+	
+	/** the values of the hash part, parallel to {@link #hashKeys}; a null value marks a removed key */
+	protected LuaValue[] hashValues;
+	
 	/** the number of hash entries */
 	protected int hashEntries;
 	
+	/** the number of used slots in {@link #hashKeys}, including removed keys */
+	protected int hashFill;
+	
 	/** metatable for this table, or null */
 	protected Metatable m_metatable;
 	
+	/** the snapshot that saves this table before its first change in each generation, or null */
+	Snapshot snapshot;
+	
+	/** the generation of {@link #snapshot} in which this table was last saved */
+	int snapshotGeneration;
+	
 	/** Construct empty table */
 	public LuaTable() {
 		array = NOVALS;
 		hash = NOBUCKETS;
+		hashKeys = NOVALS;
+		hashValues = NOVALS;
 	}
 	
 	/** 
@@ -168,17 +202,95 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 	
 	public void presize( int narray ) {
-		if ( narray > array.length )
+		willChange();
+		if ( narray > getArrayLength() ) {
+			if ( array == null )
+				untype();
 			array = resize( array, 1 << log2(narray) );
+		}
 	}
 
 	public void presize(int narray, int nhash) {
+		willChange();
 		if ( nhash > 0 && nhash < MIN_HASH_CAPACITY )
 			nhash = MIN_HASH_CAPACITY;
 		// Size of both parts must be a power of two.
-		array = (narray>0? new LuaValue[1 << log2(narray)]: NOVALS);
-		hash = (nhash>0? new Slot[1 << log2(nhash)]: NOBUCKETS);
+		arrayInts = null;
+		arrayDoubles = null;
+		arrayCount = 0;
+		if ( narray >= TYPED_ARRAY_MIN && !isWeak() ) {
+			// start typed, as for a list constructor; the first value that is not a number moves the values into array
+			array = null;
+			arrayInts = new int[1 << log2(narray)];
+		} else {
+			array = (narray>0? new LuaValue[1 << log2(narray)]: NOVALS);
+		}
+		if ( isWeak() ) {
+			hash = (nhash>0? new Slot[1 << log2(nhash)]: NOBUCKETS);
+			hashKeys = hashValues = null;
+		} else {
+			hash = NOBUCKETS;
+			hashKeys = (nhash>0? new LuaValue[hashCapacity(nhash)]: NOVALS);
+			hashValues = (nhash>0? new LuaValue[hashKeys.length]: NOVALS);
+		}
 		hashEntries = 0;
+		hashFill = 0;
+	}
+
+	/** Make a new table with the same entries and metatable as this one.
+	 * The values themselves are shared, not copied.
+	 * @return the new {@link LuaTable}
+	 */
+	public LuaTable copy() {
+		LuaTable t = new LuaTable();
+		if ( isWeak() ) {
+			t.setmetatable( getmetatable() );
+			t.presize( getArrayLength(), hashEntries );
+			Cursor c = new Cursor();
+			while ( next( c.key, c ) )
+				t.rawset( c.key, c.value );
+			return t;
+		}
+		t.array = array == null? null: array.length == 0? NOVALS: array.clone();
+		t.arrayInts = arrayInts == null? null: arrayInts.clone();
+		t.arrayDoubles = arrayDoubles == null? null: arrayDoubles.clone();
+		t.arrayCount = arrayCount;
+		if ( hashKeys.length > 0 ) {
+			t.hashKeys = hashKeys.clone();
+			t.hashValues = hashValues.clone();
+		}
+		t.hashEntries = hashEntries;
+		t.hashFill = hashFill;
+		t.m_metatable = m_metatable;
+		return t;
+	}
+
+	/** Take a {@link Snapshot} of this table and every table reachable from it, to which they can be restored later.
+	 * @return the new {@link Snapshot}
+	 * @see Snapshot
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/** Save this table in its {@link #snapshot}, if any, before its first change since the snapshot was taken or last restored */
+	private void willChange() {
+		if ( snapshot != null && snapshotGeneration != snapshot.generation )
+			snapshot.save( this );
+	}
+
+	/** Take back the contents and metatable that {@link #copy()} gave to {@code saved}, which is not used afterwards */
+	void restore( LuaTable saved ) {
+		array = saved.array;
+		arrayInts = saved.arrayInts;
+		arrayDoubles = saved.arrayDoubles;
+		arrayCount = saved.arrayCount;
+		hash = saved.hash;
+		hashKeys = saved.hashKeys;
+		hashValues = saved.hashValues;
+		hashEntries = saved.hashEntries;
+		hashFill = saved.hashFill;
+		m_metatable = saved.m_metatable;
 	}
 
 	/** Resize the table */
@@ -193,7 +305,7 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @return length of the array part, does not relate to count of objects in the table. 
 	 */
 	protected int getArrayLength() {
-		return array.length;
+		return array != null ? array.length : arrayInts != null ? arrayInts.length : arrayDoubles.length;
 	}
 
 	/** 
@@ -201,7 +313,7 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @return length of the hash part, does not relate to count of objects in the table. 
 	 */
 	protected int getHashLength() {
-		return hash.length;
+		return hashKeys != null ? hashKeys.length : hash.length;
 	}
 	
 	public LuaValue getmetatable() {
@@ -209,6 +321,7 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 	
 	public LuaValue setmetatable(LuaValue metatable) {
+		willChange();
 		boolean hadWeakKeys = m_metatable != null && m_metatable.useWeakKeys();
 		boolean hadWeakValues = m_metatable != null && m_metatable.useWeakValues();
 		m_metatable = metatableOf( metatable );
@@ -231,17 +344,30 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 
 	public LuaValue rawget( int key ) {
-		if ( key>0 && key<=array.length ) {
+		if ( array == null ) {
+			if ( key>0 && key<=getArrayLength() )
+				return typedget(key);
+		} else if ( key>0 && key<=array.length ) {
 			LuaValue v = m_metatable == null ? array[key-1] : m_metatable.arrayget(array, key-1);
 			return v != null ? v : NIL;
 		}
+		if ( hashKeys != null ) {
+			int i;
+			LuaValue v;
+			if ( hashEntries > 0 && ( i = hashFindInt(key) ) >= 0 && ( v = hashValues[i] ) != null )
+				return v;
+			return NIL;
+		}
 		return hashget( LuaInteger.valueOf(key) );
 	}
 
 	public LuaValue rawget( LuaValue key ) {
 		if ( key.isinttype() ) {
 			int ikey = key.toint();
-			if ( ikey>0 && ikey<=array.length ) {
+			if ( array == null ) {
+				if ( ikey>0 && ikey<=getArrayLength() )
+					return typedget(ikey);
+			} else if ( ikey>0 && ikey<=array.length ) {
 				LuaValue v = m_metatable == null
 						? array[ikey-1] : m_metatable.arrayget(array, ikey-1);
 				return v != null ? v : NIL;
@@ -250,8 +376,145 @@ public class LuaTable extends LuaValue implements Metatable {
 		return hashget( key );
 	}
 
+	/**
+	 * Get a value by a constant string key, as in {@code t.name} or {@code t:name()},
+	 * remembering in {@code caches[index]} where it was found, so that the next lookup 
+	 * at the same place can check that slot instead of hashing.
+	 * <p>
+	 * The entry records the slot of the key in the hash part, and whether the key was found 
+	 * in the table itself or in the {@code __index} table of its metatable, such as a class table 
+	 * holding methods.  It is checked against the keys of whichever table is looked up, 
+	 * so it also holds for other tables with the same keys in the same slots, such as objects 
+	 * made by the same constructor, or other objects of the same class.
+	 * Tables with weak keys or values are never cached.
+	 * @param key string key, which is never in the array part
+	 * @param caches per-instruction cache entries, such as those kept by each {@link LuaClosure}
+	 * @param index index of the entry for this lookup, such as the pc
+	 * @return value as from {@link #get(LuaValue)}
+	 */
+	public LuaValue get( LuaString key, GetCache[] caches, int index ) {
+		GetCache c = caches[index];
+		if ( c != null ) {
+			LuaValue v;
+			if ( c.metaslot < 0 ) {
+				if ( ( v = hashAt( c.slot, key ) ) != null )
+					return v;
+			} else if ( m_metatable instanceof LuaTable && hashget( key ) == NIL ) {
+				LuaValue h = ((LuaTable) m_metatable).hashAt( c.metaslot, INDEX );
+				if ( h instanceof LuaTable && ( v = ((LuaTable) h).hashAt( c.slot, key ) ) != null )
+					return v;
+			}
+		}
+		return getAndCache( key, caches, index );
+	}
+
+	/** Look up a key as {@link #get(LuaString, GetCache[], int)} does, and remember where it was found. */
+	private LuaValue getAndCache( LuaString key, GetCache[] caches, int index ) {
+		int i;
+		LuaValue v;
+		if ( hashKeys == null ) {
+			v = hashget( key );
+			return v.isnil() && m_metatable!=null? gettable(this,key): v;
+		}
+		if ( ( i = hashFind( key ) ) >= 0 && ( v = hashValues[i] ) != null ) {
+			caches[index] = new GetCache( i, -1 );
+			return v;
+		}
+		if ( m_metatable == null )
+			return NIL;
+		if ( m_metatable instanceof LuaTable ) {
+			LuaTable mt = (LuaTable) m_metatable;
+			int m;
+			LuaValue h;
+			if ( mt.hashKeys != null && ( m = mt.hashFind( INDEX ) ) >= 0 && ( h = mt.hashValues[m] ) instanceof LuaTable ) {
+				LuaTable t = (LuaTable) h;
+				if ( t.hashKeys != null && ( i = t.hashFind( key ) ) >= 0 && ( v = t.hashValues[i] ) != null ) {
+					caches[index] = new GetCache( i, m );
+					return v;
+				}
+			}
+		}
+		return gettable(this,key);
+	}
+
+	/** Return the value in a slot of the hash part if the slot holds {@code key}, or null. */
+	private LuaValue hashAt( int slot, LuaString key ) {
+		final LuaValue[] keys = hashKeys;
+		LuaValue k;
+		if ( keys == null || slot >= keys.length || ( k = keys[slot] ) == null || ( k != key && !key.raweq( k ) ) )
+			return null;
+		return hashValues[slot];
+	}
+
+	/**
+	 * Get {@code o[key]} for a constant key, using {@code caches[index]} when {@code o}
+	 * is a table and {@code key} a string.  Called from luajc generated code.
+	 * @see #get(LuaString, GetCache[], int)
+	 */
+	public static LuaValue getk( LuaValue o, LuaValue key, GetCache[] caches, int index ) {
+		return o instanceof LuaTable && key instanceof LuaString
+			? ((LuaTable) o).get((LuaString) key, caches, index)
+			: o.get(key);
+	}
+
+	/**
+	 * Set a value by a constant string key, as in {@code t.name = value}, using {@code caches[index]}
+	 * as {@link #get(LuaString, GetCache[], int)} does.  Only keys already in the table itself 
+	 * are set through the cache, since those do not depend on the metatable.
+	 * @param key string key, which is never in the array part
+	 * @param value value to set, which may be nil
+	 * @param caches per-instruction cache entries
+	 * @param index index of the entry for this assignment, such as the pc
+	 */
+	public void set( LuaString key, LuaValue value, GetCache[] caches, int index ) {
+		GetCache c = caches[index];
+		if ( c != null && c.metaslot < 0 && !value.isnil() && hashAt( c.slot, key ) != null ) {
+			willChange();
+			hashValues[c.slot] = value;
+			return;
+		}
+		set( (LuaValue) key, value );
+		int i;
+		if ( hashKeys != null && !value.isnil() && ( i = hashFind( key ) ) >= 0 && hashValues[i] != null )
+			caches[index] = new GetCache( i, -1 );
+	}
+
+	/**
+	 * Set {@code o[key] = value} for a constant key, using {@code caches[index]} when {@code o}
+	 * is a table and {@code key} a string.  Called from luajc generated code.
+	 * @see #set(LuaString, LuaValue, GetCache[], int)
+	 */
+	public static void setk( LuaValue o, LuaValue key, LuaValue value, GetCache[] caches, int index ) {
+		if ( o instanceof LuaTable && key instanceof LuaString )
+			((LuaTable) o).set((LuaString) key, value, caches, index);
+		else
+			o.set(key, value);
+	}
+
+	/**
+	 * Inline cache entry for {@link LuaTable#get(LuaString, GetCache[], int)} 
+	 * and {@link LuaTable#set(LuaString, LuaValue, GetCache[], int)}.
+	 * Entries refer to no table, so they keep none alive, and are immutable, 
+	 * so they may be replaced by racing threads without locking.
+	 */
+	public static final class GetCache {
+		final int slot;       // slot of the key in the hash part of the table holding it
+		final int metaslot;   // slot of __index in the metatable whose __index table holds the key, or -1 if the table looked up holds it
+		GetCache(int slot, int metaslot) {
+			this.slot = slot;
+			this.metaslot = metaslot;
+		}
+	}
+
 	protected LuaValue hashget(LuaValue key) {
 		if ( hashEntries > 0 ) {
+			if ( hashKeys != null ) {
+				int i;
+				LuaValue v;
+				if ( ( i = hashFind(key) ) >= 0 && ( v = hashValues[i] ) != null )
+					return v;
+				return NIL;
+			}
 			for ( Slot slot = hash[ hashSlot(key) ]; slot != null; slot = slot.rest() ) {
 				StrongSlot foundSlot;
 				if ( ( foundSlot = slot.find(key) ) != null ) {
@@ -276,18 +539,27 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 
 	public void rawset( int key, LuaValue value ) {
+		willChange();
 		if ( ! arrayset(key, value) )
 			hashset( LuaInteger.valueOf(key), value );
 	}
 
 	/** caller must ensure key is not nil */
 	public void rawset( LuaValue key, LuaValue value ) {
+		willChange();
 		if ( !key.isinttype() || !arrayset(key.toint(), value) )
 			hashset( key, value );
 	}
 
 	/** Set an array element */
 	private boolean arrayset( int key, LuaValue value ) {
+		if ( array == null ) {
+			if ( key<=0 || key>getArrayLength() )
+				return false;
+			if ( typedset(key, value) )
+				return true;
+			untype();
+		}
 		if ( key>0 && key<=array.length ) {
 			array[key - 1] = value.isnil() ? null :
 				(m_metatable != null ? m_metatable.wrap(value) : value);
@@ -296,6 +568,100 @@ public class LuaTable extends LuaValue implements Metatable {
 		return false;
 	}
 
+	/** Get an element of the typed array part, for a key from 1 to its capacity */
+	private LuaValue typedget( int key ) {
+		if ( key > arrayCount )
+			return NIL;
+		return arrayInts != null ? LuaInteger.valueOf(arrayInts[key-1]) : LuaDouble.valueOf(arrayDoubles[key-1]);
+	}
+
+	/** Set an element of the typed array part, for a key from 1 to its capacity; return false if the value would leave a hole or is not a number */
+	private boolean typedset( int key, LuaValue value ) {
+		final int n = arrayCount;
+		if ( value.isnil() ) {
+			if ( key < n )
+				return false;
+			if ( key == n )
+				arrayCount = n - 1;
+			return true;
+		}
+		if ( key > n+1 )
+			return false;
+		if ( arrayInts != null ) {
+			if ( value instanceof LuaInteger ) {
+				arrayInts[key-1] = ((LuaInteger) value).v;
+			} else if ( value instanceof LuaDouble ) {
+				final int[] ints = arrayInts;
+				final double[] doubles = new double[ints.length];
+				for ( int i = 0; i < n; i++ )
+					doubles[i] = ints[i];
+				doubles[key-1] = ((LuaDouble) value).v;
+				arrayDoubles = doubles;
+				arrayInts = null;
+			} else {
+				return false;
+			}
+		} else if ( value instanceof LuaNumber ) {
+			arrayDoubles[key-1] = value.todouble();
+		} else {
+			return false;
+		}
+		if ( key > n )
+			arrayCount = key;
+		return true;
+	}
+
+	/** Move the values of a typed array part back into {@link #array} */
+	private void untype() {
+		final int n = arrayCount;
+		final LuaValue[] a = new LuaValue[getArrayLength()];
+		if ( arrayInts != null ) {
+			for ( int i = 0; i < n; i++ )
+				a[i] = LuaInteger.valueOf(arrayInts[i]);
+		} else {
+			for ( int i = 0; i < n; i++ )
+				a[i] = LuaDouble.valueOf(arrayDoubles[i]);
+		}
+		array = a;
+		arrayInts = null;
+		arrayDoubles = null;
+		arrayCount = 0;
+	}
+
+	/** Make the array part typed if it holds at least {@link #TYPED_ARRAY_MIN} values, all numbers, with no holes */
+	private void retype() {
+		final LuaValue[] a = array;
+		int n = 0;
+		while ( n < a.length && a[n] != null )
+			n++;
+		if ( n < TYPED_ARRAY_MIN )
+			return;
+		for ( int i = n; i < a.length; i++ )
+			if ( a[i] != null )
+				return;
+		boolean ints = true;
+		for ( int i = 0; i < n; i++ ) {
+			if ( a[i] instanceof LuaInteger )
+				continue;
+			if ( !( a[i] instanceof LuaDouble ) )
+				return;
+			ints = false;
+		}
+		if ( ints ) {
+			final int[] t = new int[a.length];
+			for ( int i = 0; i < n; i++ )
+				t[i] = ((LuaInteger) a[i]).v;
+			arrayInts = t;
+		} else {
+			final double[] t = new double[a.length];
+			for ( int i = 0; i < n; i++ )
+				t[i] = a[i].todouble();
+			arrayDoubles = t;
+		}
+		array = null;
+		arrayCount = n;
+	}
+
 	/** Remove the element at a position in a list-table
 	 *  
 	 * @param pos the position to remove
@@ -347,7 +713,18 @@ public class LuaTable extends LuaValue implements Metatable {
 	 */
 	public LuaValue concat(LuaString sep, int i, int j) {
 		Buffer  sb = new Buffer ();
-		if ( i<=j ) {
+		if ( array == null && i >= 1 && i <= j && j <= arrayCount ) {
+			// typed array part: append numbers without boxing them or making strings of them
+			final int[] ints = arrayInts;
+			for ( int k = i; k <= j; k++ ) {
+				if ( k > i )
+					sb.append( sep );
+				if ( ints != null )
+					sb.append( ints[k-1] );
+				else
+					sb.append( LuaDouble.valueOf( arrayDoubles[k-1] ).checkstring() );
+			}
+		} else if ( i<=j ) {
 			sb.append( get(i).checkstring() );
 			while ( ++i<=j ) {
 				sb.append( sep );
@@ -387,6 +764,10 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @return key,value or nil
 	 */
 	public Varargs next( LuaValue key ) {
+		if ( array == null ) {
+			Cursor cursor = new Cursor();
+			return next( key, cursor ) ? varargsOf( cursor.key, cursor.value ) : NIL;
+		}
 		int i = 0;
 		do {
 			// find current key index
@@ -397,8 +778,15 @@ public class LuaTable extends LuaValue implements Metatable {
 						break;
 					}
 				}
-				if ( hash.length == 0 )
+				if ( getHashLength() == 0 )
 					error( "invalid key to 'next'" );
+				if ( hashKeys != null ) {
+					// removed keys stay in hashKeys until the next rehash, so they can still be passed to next()
+					if ( ( i = hashFind( key ) ) < 0 )
+						error( "invalid key to 'next'" );
+					i += 1+array.length;
+					break;
+				}
 				i = hashSlot( key );
 				// System.out.println(key.toString() + " " + i + " " + key.hashCode());
 				boolean found = false;
@@ -431,6 +819,14 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 
 		// check hash part
+		if ( hashKeys != null ) {
+			LuaValue[] values = hashValues;
+			for ( i -= array.length; i < values.length; ++i ) {
+				if ( values[i] != null )
+					return varargsOf(hashKeys[i], values[i]);
+			}
+			return NIL;
+		}
 		for ( i -= array.length; i < hash.length; ++i ) {
 			Slot slot = hash[i];
 			while ( slot != null ) {
@@ -445,6 +841,93 @@ public class LuaTable extends LuaValue implements Metatable {
 		return NIL;
 	}
 
+	/**
+	 * Get the next element after a particular key in the table, as {@link #next(LuaValue)} does,
+	 * storing it into a cursor instead of returning new varargs.
+	 * <p>
+	 * When key is the key found by the cursor's previous step, the scan resumes where
+	 * that key was found instead of looking it up again.  The position is checked against
+	 * the table before it is used, so modifying the table during traversal is as safe as
+	 * with {@link #next(LuaValue)}.
+	 * @param key key returned by the previous step, or nil to start
+	 * @param cursor cursor to resume from and to store the next key and value into
+	 * @return true if there was a next element, false if the end of the table was reached
+	 */
+	public boolean next( LuaValue key, Cursor cursor ) {
+		final LuaValue[] keys = hashKeys;
+		if ( keys == null ) {
+			// weak tables keep looking up the key in their Slots
+			Varargs n = next( key );
+			cursor.index = -1;
+			cursor.key = n.arg1();
+			cursor.value = n.arg(2);
+			return !cursor.key.isnil();
+		}
+		final LuaValue[] array = this.array;
+		final int arrayLength = getArrayLength();
+		int i = 0;
+		if ( ! key.isnil() ) {
+			int h = cursor.index - arrayLength;
+			if ( h >= 0 && h < keys.length && keys[h] == key ) {
+				i = cursor.index + 1;
+			} else if ( key instanceof LuaInteger && ((LuaInteger) key).v > 0 && ((LuaInteger) key).v <= arrayLength ) {
+				i = ((LuaInteger) key).v;
+			} else {
+				if ( keys.length == 0 || ( i = hashFind( key ) ) < 0 )
+					error( "invalid key to 'next'" );
+				i += 1+arrayLength;
+			}
+		}
+
+		// check array part
+		if ( array == null ) {
+			if ( i < arrayCount ) {
+				cursor.index = i;
+				cursor.key = LuaInteger.valueOf(i+1);
+				cursor.value = typedget(i+1);
+				return true;
+			}
+			if ( i < arrayLength )
+				i = arrayLength;
+		}
+		for ( ; i<arrayLength && array != null; ++i ) {
+			if ( array[i] != null ) {
+				cursor.index = i;
+				cursor.key = LuaInteger.valueOf(i+1);
+				cursor.value = array[i];
+				return true;
+			}
+		}
+
+		// check hash part
+		final LuaValue[] values = hashValues;
+		for ( i -= arrayLength; i < values.length; ++i ) {
+			if ( values[i] != null ) {
+				cursor.index = arrayLength + i;
+				cursor.key = keys[i];
+				cursor.value = values[i];
+				return true;
+			}
+		}
+		cursor.index = -1;
+		cursor.key = NIL;
+		cursor.value = NIL;
+		return false;
+	}
+
+	/**
+	 * Traversal state for {@link LuaTable#next(LuaValue, Cursor)}, such as the generic for loop keeps for pairs().
+	 * A cursor is meant for one traversal at a time and is not thread-safe.
+	 */
+	public static final class Cursor {
+		/** position of {@link #key} in the array part followed by the hash part, or -1 if unknown */
+		int index = -1;
+		/** key found by the last step, or nil at the end of the table */
+		public LuaValue key = NIL;
+		/** value found by the last step, or nil at the end of the table */
+		public LuaValue value = NIL;
+	}
+
 	/**
 	 * Get the next element after a particular key in the 
 	 * contiguous array part of a table 
@@ -462,11 +945,10 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @param func function to call
 	 */
 	public LuaValue foreach(LuaValue func) {
-		Varargs n;
-		LuaValue k = NIL;
+		Cursor cursor = new Cursor();
 		LuaValue v;
-		while ( !(k = ((n = next(k)).arg1())).isnil() )
-			if ( ! (v = func.call(k, n.arg(2))).isnil() )
+		while ( next(cursor.key, cursor) )
+			if ( ! (v = func.call(cursor.key, cursor.value)).isnil() )
 				return v;
 		return NIL;
 	}
@@ -492,11 +974,19 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @param value value to set
 	 */
 	public void hashset(LuaValue key, LuaValue value) {
+		willChange();
 		if ( value.isnil() )
 			hashRemove(key);
 		else {
 			int index = 0;
-			if ( hash.length > 0 ) {
+			if ( hashKeys != null ) {
+				if ( ( index = hashFind( key ) ) >= 0 ) {
+					if ( hashValues[index] == null )
+						++hashEntries;
+					hashValues[index] = value;
+					return;
+				}
+			} else if ( hash.length > 0 ) {
 				index = hashSlot( key );
 				for ( Slot slot = hash[ index ]; slot != null; slot = slot.rest() ) {
 					StrongSlot foundSlot;
@@ -523,7 +1013,14 @@ public class LuaTable extends LuaValue implements Metatable {
 				} else {
 					rehash( -1 );
 				}
-				index = hashSlot( key );
+				if ( hashKeys == null )
+					index = hashSlot( key );
+			}
+			if ( hashKeys != null ) {
+				hashInsert( hashKeys, hashValues, key, value );
+				++hashFill;
+				++hashEntries;
+				return;
 			}
 			Slot entry = ( m_metatable != null )
 				? m_metatable.entry( key, value )
@@ -571,7 +1068,13 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 
 	private void hashRemove( LuaValue key ) {
-		if ( hash.length > 0 ) {
+		if ( hashKeys != null ) {
+			int index;
+			if ( ( index = hashFind( key ) ) >= 0 && hashValues[index] != null ) {
+				hashValues[index] = null;
+				--hashEntries;
+			}
+		} else if ( hash.length > 0 ) {
 			int index = hashSlot(key);
 			for ( Slot slot = hash[index]; slot != null; slot = slot.rest() ) {
 				StrongSlot foundSlot;
@@ -585,9 +1088,80 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 
 	private boolean checkLoadFactor() {
+		if ( hashKeys != null )
+			return hashFill >= ( hashKeys.length * 3 ) >> 2;
 		return hashEntries >= hash.length;
 	}
 
+	/** Return true if the hash part must use {@link Slot}s, which is only the case for weak tables. */
+	private boolean isWeak() {
+		return m_metatable != null && ( m_metatable.useWeakKeys() || m_metatable.useWeakValues() );
+	}
+
+	/** Return the capacity of {@link #hashKeys} for n entries: a power of 2 that is at most 3/4 full, so that probing always ends at an empty slot. */
+	private static int hashCapacity( int n ) {
+		int capacity = n < MIN_HASH_CAPACITY ? MIN_HASH_CAPACITY : 1 << log2(n);
+		while ( ( ( capacity * 3 ) >> 2 ) < n )
+			capacity <<= 1;
+		return capacity;
+	}
+
+	/** Return the first slot to probe in {@link #hashKeys}; mixes in the high bits, since table and double hash codes vary little in the low bits. */
+	private static int hashIndex( int hashCode, int mask ) {
+		return ( hashCode ^ ( hashCode >>> 16 ) ) & mask;
+	}
+
+	/** 
+	 * Find the index of a key in {@link #hashKeys}
+	 * @param key key to look for
+	 * @return index of the key, whose value may be null if it was removed, or -1 if the key is not there
+	 */
+	private int hashFind( LuaValue key ) {
+		if ( key instanceof LuaInteger )
+			return hashFindInt( ((LuaInteger) key).v );
+		final LuaValue[] keys = hashKeys;
+		final int mask = keys.length - 1;
+		if ( mask < 0 )
+			return -1;
+		int i = hashIndex( key.hashCode(), mask );
+		LuaValue k;
+		if ( key instanceof LuaDouble ) {
+			// compare double keys directly instead of through raweq's double dispatch
+			final double d = ((LuaDouble) key).v;
+			for ( ; ( k = keys[i] ) != null; i = ( i + 1 ) & mask )
+				if ( k instanceof LuaDouble && ((LuaDouble) k).v == d )
+					return i;
+			return -1;
+		}
+		for ( ; ( k = keys[i] ) != null; i = ( i + 1 ) & mask )
+			if ( k == key || key.raweq( k ) )
+				return i;
+		return -1;
+	}
+
+	/** Same as {@link #hashFind(LuaValue)} for an integer key, without boxing it. */
+	private int hashFindInt( int key ) {
+		final LuaValue[] keys = hashKeys;
+		final int mask = keys.length - 1;
+		if ( mask < 0 )
+			return -1;
+		LuaValue k;
+		for ( int i = hashIndex( LuaInteger.hashCode( key ), mask ); ( k = keys[i] ) != null; i = ( i + 1 ) & mask )
+			if ( k instanceof LuaInteger && ((LuaInteger) k).v == key )
+				return i;
+		return -1;
+	}
+
+	/** Put a key that is not yet in keys into the first empty slot of its probe sequence. */
+	private static void hashInsert( LuaValue[] keys, LuaValue[] values, LuaValue key, LuaValue value ) {
+		final int mask = keys.length - 1;
+		int i = hashIndex( key.hashCode(), mask );
+		while ( keys[i] != null )
+			i = ( i + 1 ) & mask;
+		keys[i] = key;
+		values[i] = value;
+	}
+
 	private int countHashKeys() {
 		int keys = 0;
 		for ( int i = 0; i < hash.length; ++i ) {
@@ -626,6 +1200,18 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 
 		// Count integer keys in hash part
+		if ( hashKeys != null ) {
+			LuaValue[] keys = hashKeys;
+			int keys_len = keys.length;
+			for ( i = 0; i < keys_len; ++i ) {
+				LuaValue k = keys[i];
+				if ( k instanceof LuaInteger && ((LuaInteger) k).v > 0 && hashValues[i] != null ) {
+					nums[log2(((LuaInteger) k).v)]++;
+					total++;
+				}
+			}
+			return total;
+		}
 		int hash_len = hash.length;
 		for ( i = 0; i < hash_len; ++i ) {
 			for ( Slot s = hash[i]; s != null; s = s.rest() ) {
@@ -686,9 +1272,13 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * newKey < 0 next key will go in hash part
 	 */
 	private void rehash(int newKey) {
-		if ( m_metatable != null && ( m_metatable.useWeakKeys() || m_metatable.useWeakValues() )) {
+		if ( array == null )
+			untype();
+		final boolean weak = isWeak();
+		if ( weak ) {
 			// If this table has weak entries, hashEntries is just an upper bound.
-			hashEntries = countHashKeys();
+			if ( hashKeys == null )
+				hashEntries = countHashKeys();
 			if ( m_metatable.useWeakValues() ) {
 				dropWeakArrayValues();
 			}
@@ -715,8 +1305,12 @@ public class LuaTable extends LuaValue implements Metatable {
 
 		final LuaValue[] oldArray = array;
 		final Slot[] oldHash = hash;
+		final LuaValue[] oldKeys = hashKeys;
+		final LuaValue[] oldValues = hashValues;
 		final LuaValue[] newArray;
 		final Slot[] newHash;
+		final LuaValue[] newKeys;
+		final LuaValue[] newValues;
 
 		// Copy existing array entries and compute number of moving entries.
 		int movingToArray = 0;
@@ -746,17 +1340,41 @@ public class LuaTable extends LuaValue implements Metatable {
 		final int newCapacity;
 		final int newHashMask;
 
-		if (newHashSize > 0) {
+		if (!weak) {
+			// only weak tables keep Slots; all others use the open-addressed keys and values
+			newCapacity = newHashSize > 0 ? hashCapacity(newHashSize) : 0;
+			newHashMask = newCapacity - 1;
+			newHash = NOBUCKETS;
+			newKeys = newCapacity > 0 ? new LuaValue[ newCapacity ] : NOVALS;
+			newValues = newCapacity > 0 ? new LuaValue[ newCapacity ] : NOVALS;
+		} else if (newHashSize > 0) {
 			// round up to next power of 2.
 			newCapacity = ( newHashSize < MIN_HASH_CAPACITY )
 				? MIN_HASH_CAPACITY
 				: 1 << log2(newHashSize);
 			newHashMask = newCapacity - 1;
 			newHash = new Slot[ newCapacity ];
+			newKeys = newValues = null;
 		} else {
 			newCapacity = 0;
 			newHashMask = 0;
 			newHash = NOBUCKETS;
+			newKeys = newValues = null;
+		}
+
+		// Move hash keys and values
+		int newEntries = 0;
+		if ( oldKeys != null ) {
+			for ( int i = 0; i < oldKeys.length; ++i ) {
+				LuaValue k, v;
+				if ( ( v = oldValues[i] ) == null )
+					continue;
+				int ik = ( k = oldKeys[i] ) instanceof LuaInteger ? ((LuaInteger) k).v : 0;
+				if ( ik > 0 && ik <= newArraySize )
+					newArray[ ik - 1 ] = v;
+				else
+					newEntries += rehashAdd( newHash, newHashMask, newKeys, newValues, k, v );
+			}
 		}
 
 		// Move hash buckets
@@ -767,6 +1385,10 @@ public class LuaTable extends LuaValue implements Metatable {
 					StrongSlot entry = slot.first();
 					if (entry != null)
 						newArray[ k - 1 ] = entry.value();
+				} else if ( newKeys != null ) {
+					StrongSlot entry = slot.first();
+					if (entry != null)
+						newEntries += rehashAdd( newHash, newHashMask, newKeys, newValues, entry.key(), entry.value() );
 				} else {
 					if (newHash == NOBUCKETS) continue;	// XOWA:note that if newHash == NOBUCKETS, then array len == 0 and will fail at "newHash[j]" with ArrayIndexOutOfRange; DATE:2014-08-07
 					int j = slot.keyindex( newHashMask );
@@ -778,26 +1400,45 @@ public class LuaTable extends LuaValue implements Metatable {
 		// Move array values into hash portion
 		for ( int i = newArraySize; i < oldArray.length; ) {
 			LuaValue v;
-			if ( ( v = oldArray[ i++ ] ) != null ) {
-				int slot = hashmod( LuaInteger.hashCode( i ), newHashMask );
-				Slot newEntry;
-				if ( m_metatable != null ) {
-					newEntry = m_metatable.entry( valueOf(i), v );
-					if ( newEntry == null )
-						continue;
-				} else {
-					newEntry = defaultEntry( valueOf(i), v );
-				}
-				newHash[ slot ] = ( newHash[slot] != null )
-					? newHash[slot].add( newEntry ) : newEntry;
-			}
+			if ( ( v = oldArray[ i++ ] ) != null )
+				newEntries += rehashAdd( newHash, newHashMask, newKeys, newValues, valueOf(i), v );
 		}
 
 		hash = newHash;
+		hashKeys = newKeys;
+		hashValues = newValues;
 		array = newArray;
-		hashEntries -= movingToArray;
+		if ( newKeys != null ) {
+			hashEntries = hashFill = newEntries;
+			retype();
+		} else {
+			hashEntries -= movingToArray;
+			hashFill = 0;
+		}
+	}
+
+	/** Add an entry to the hash part being built by {@link #rehash(int)}: to newKeys and newValues if set, else as a Slot; return the number of entries added */
+	private int rehashAdd( Slot[] newHash, int newHashMask, LuaValue[] newKeys, LuaValue[] newValues, LuaValue key, LuaValue value ) {
+		if ( newKeys != null ) {
+			if ( newKeys.length == 0 )
+				return 0;
+			hashInsert( newKeys, newValues, key, value );
+			return 1;
+		}
+		if ( newHash == NOBUCKETS )
+			return 0;
+		Slot newEntry = ( m_metatable != null )
+			? m_metatable.entry( key, value )
+			: defaultEntry( key, value );
+		if ( newEntry == null )
+			return 0;
+		int slot = hashSlot( key, newHashMask );
+		newHash[ slot ] = ( newHash[slot] != null )
+			? newHash[slot].add( newEntry ) : newEntry;
+		return 1;
 	}
 
+
 	public Slot entry( LuaValue key, LuaValue value ) {
 		return defaultEntry( key, value );
 	}
@@ -834,12 +1475,25 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @param comparator {@link LuaValue} to be called to compare elements.
 	 */
 	public void sort(LuaValue comparator) {
+		willChange();
+		if ( comparator.isnil() && array != null && !isWeak() )
+			retype();
+		if ( array == null ) {
+			if ( comparator.isnil() ) {
+				// typed array part: numbers compare the same as with lt_b
+				sortTyped();
+				return;
+			}
+			untype();
+		}
 		if (m_metatable != null && m_metatable.useWeakValues()) {
 			dropWeakArrayValues();
 		}
 		int n = array.length;
 		while ( n > 0 && array[n-1] == null )
 			--n;
+		if ( n > 1 && comparator.isnil() && !isWeak() && sortStrings(n) )
+			return;
 		if ( n > 1 ) {
 			// original LuaJ sort; note that it uses MergeSort instead of QuickSort and is not stable
 			// heapSort(n, comparator);
@@ -858,6 +1512,44 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 	}
 
+	/** Sort the typed array part, across threads when it is large */
+	private void sortTyped() {
+		final int n = arrayCount;
+		if ( arrayInts != null ) {
+			if ( n >= PARALLEL_SORT_MIN )
+				Arrays.parallelSort( arrayInts, 0, n );
+			else
+				Arrays.sort( arrayInts, 0, n );
+		} else {
+			if ( n >= PARALLEL_SORT_MIN )
+				Arrays.parallelSort( arrayDoubles, 0, n );
+			else
+				Arrays.sort( arrayDoubles, 0, n );
+		}
+	}
+
+	/** Sort the first n values of the array part in place if they are all strings
+	 * @return false, leaving the array unchanged, if any value is not a string
+	 */
+	private boolean sortStrings(int n) {
+		final LuaValue[] a = array;
+		for ( int i = 0; i < n; i++ )
+			if ( !( a[i] instanceof LuaString ) )
+				return false;
+		if ( n >= PARALLEL_SORT_MIN )
+			Arrays.parallelSort( a, 0, n, STRCMP );
+		else
+			Arrays.sort( a, 0, n, STRCMP );
+		return true;
+	}
+
+	/** Orders strings as lt_b does */
+	private static final Comparator<LuaValue> STRCMP = new Comparator<LuaValue>() {
+		public int compare(LuaValue lhs, LuaValue rhs) {
+			return ((LuaString) lhs).strcmp((LuaString) rhs);
+		}
+	};
+
 	private void heapSort(int count, LuaValue cmpfunc) {
 		heapify(count, cmpfunc);
 		for ( int end=count-1; end>0; ) {
@@ -913,12 +1605,11 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @return count of keys in the table 
 	 * */
 	public int keyCount() {
-		LuaValue k = LuaValue.NIL;
-		for ( int i=0; true; i++ ) {
-			Varargs n = next(k);
-			if ( (k = n.arg1()).isnil() )
-				return i;
-		}
+		Cursor cursor = new Cursor();
+		int i = 0;
+		while ( next(cursor.key, cursor) )
+			i++;
+		return i;
 	}
 	
 	/** This may be deprecated in a future release.  
@@ -927,13 +1618,9 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * */
 	public LuaValue[] keys() {
 		Vector l = new Vector();
-		LuaValue k = LuaValue.NIL;
-		while ( true ) {
-			Varargs n = next(k);
-			if ( (k = n.arg1()).isnil() )
-				break;
-			l.addElement( k );
-		}
+		Cursor cursor = new Cursor();
+		while ( next(cursor.key, cursor) )
+			l.addElement( cursor.key );
 		LuaValue[] a = new LuaValue[l.size()];
 		l.copyInto(a);
 		return a;
@@ -961,6 +1648,12 @@ public class LuaTable extends LuaValue implements Metatable {
 	/** Unpack the elements from i to j inclusive */
 	public Varargs unpack(int i, int j) {
 		int n = j + 1 - i;
+		if ( array == null && n > 2 && i >= 1 && j <= arrayCount ) {
+			LuaValue[] v = new LuaValue[n];
+			for ( int k = 0; k < n; k++ )
+				v[k] = typedget(i+k);
+			return varargsOf(v);
+		}
 		switch (n) {
 		case 0: return NONE;
 		case 1: return get(i);
@@ -1460,10 +2153,23 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 	public int maxn() {
 		int n = 0;
-		int array_len = array.length;
-		for (int i = 0; i < array_len; i++)
-			if (array[i] != null)
-				n = i + 1;
+		if (array == null) {
+			n = arrayCount;
+		} else {
+			int array_len = array.length;
+			for (int i = 0; i < array_len; i++)
+				if (array[i] != null)
+					n = i + 1;
+		}
+		if ( hashKeys != null ) {
+			int keys_len = hashKeys.length;
+			for ( int i = 0; i < keys_len; i++ ) {
+				LuaValue key = hashKeys[i];
+				if ( key instanceof LuaInteger && ((LuaInteger) key).v > n && hashValues[i] != null )
+					n = ((LuaInteger) key).v;
+			}
+			return n;
+		}
 		int hash_len = hash.length;
 		for (int i = 0; i < hash_len; i++ ) {
 			Slot slot = hash[i];
@@ -1,6 +1,6 @@
 package org.luaj.vm2;
 
-class LuaTableSortDesb42 {
+public class LuaTableSortDesb42 {
 	private final LuaValue[] array;
 	private final Metatable m_metatable;
 	private final LuaValue cmpfunc;
@@ -23,6 +23,13 @@ package org.luaj.vm2;
 
 
 import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /** 
  * Subclass of {@link LuaValue} that implements 
@@ -51,6 +58,13 @@ import java.lang.ref.WeakReference;
  * {@link OrphanedThread} which is an {@link java.lang.Error}. 
  * Applications should not catch {@link OrphanedThread}, because it can break
  * the thread safety of luaj.
+ * <p>
+ * The Java thread that backs each coroutine is obtained from {@link #scheduler}.
+ * By default this is a {@link VirtualThreadScheduler} when the JVM supports 
+ * virtual threads, and a {@link PooledThreadScheduler} otherwise.
+ * Control is passed between the resuming thread and the coroutine thread 
+ * with {@link LockSupport#park(Object)} and {@link LockSupport#unpark(Thread)}.
+ * Optionally, coroutines can run without a Java thread; see {@link #stackless_coroutines}.
  *   
  * @see LuaValue
  * @see JsePlatform
@@ -61,12 +75,34 @@ public class LuaThread extends LuaValue {
 
 	public static LuaValue s_metatable;
 
+	/** Number of coroutines started on a Java thread, used to name the threads. 
+	 * Kept up to date from {@link #coroutine_counter}; changing it has no effect. */
 	public static int coroutine_count = 0;
 
+	private static final AtomicInteger coroutine_counter = new AtomicInteger();
+
 	/** Interval at which to check for lua threads that are no longer referenced. 
 	 * This can be changed by Java startup code if desired.
 	 */
 	static long thread_orphan_check_interval = 30000;
+
+	/** Scheduler used to start the Java thread backing each new coroutine. 
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static Scheduler scheduler = defaultScheduler();
+
+	/** When true, coroutines whose body is a {@link LuaClosure} run on the resuming thread,
+	 * keeping their call state in heap frames instead of a Java thread.
+	 * A coroutine moves to a Java thread from {@link #scheduler} when it calls a Java function 
+	 * with a function argument, such as {@code pcall}, since that function may yield.
+	 * <p>
+	 * Lua code reached through any other Java call cannot yield in this mode, because that call is 
+	 * already on the resuming thread's stack: for example a metamethod such as {@code __index}, 
+	 * or a function stored in a table argument, such as {@code __tostring} under {@code tostring(t)}.
+	 * Such a yield raises "attempt to yield across a Java call boundary", where a threaded coroutine 
+	 * would yield normally, so leave this off for scripts that yield from metamethods. 
+	 */
+	public static boolean stackless_coroutines = false;
 	
 	public static final int STATUS_INITIAL       = 0;
 	public static final int STATUS_SUSPENDED     = 1;
@@ -146,7 +182,7 @@ public class LuaThread extends LuaValue {
 	}
 	
 	public LuaValue getmetatable() { 
-		return s_metatable; 
+		return Globals.typeMetatable(TTHREAD, s_metatable); 
 	}
 	
 	public String getStatus() {
@@ -165,54 +201,201 @@ public class LuaThread extends LuaValue {
 		return s.lua_resume(this, args);
 	}
 
+	/** 
+	 * Interface for starting the Java thread that backs a coroutine. 
+	 * The runnable must be run exactly once on a thread other than the caller's.
+	 */
+	public interface Scheduler {
+		void start(Runnable runnable, String name);
+	}
+	
+	/** Return a {@link VirtualThreadScheduler} if supported by the JVM, or a {@link PooledThreadScheduler} otherwise. */
+	public static Scheduler defaultScheduler() {
+		Scheduler virtual = VirtualThreadScheduler.newIfSupported();
+		return virtual != null? virtual: new PooledThreadScheduler();
+	}
+
+	/** Scheduler that creates a new platform thread for every coroutine. */
+	public static class NewThreadScheduler implements Scheduler {
+		public void start(Runnable runnable, String name) {
+			new Thread(runnable, name).start();
+		}
+	}
+
+	/** 
+	 * Scheduler that reuses daemon threads from an unbounded pool. 
+	 * Threads whose coroutine has finished are kept idle for a short time before exiting. 
+	 */
+	public static class PooledThreadScheduler implements Scheduler {
+		private final ThreadPoolExecutor pool;
+		public PooledThreadScheduler() {
+			pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Coroutine-pool");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		public void start(final Runnable runnable, final String name) {
+			pool.execute(new Runnable() {
+				public void run() {
+					Thread t = Thread.currentThread();
+					t.setName(name);
+					try {
+						runnable.run();
+					} finally {
+						t.setName("Coroutine-pool");
+					}
+				}
+			});
+		}
+	}
+
+	/** 
+	 * Scheduler that runs each coroutine on a virtual thread. 
+	 * Virtual threads are looked up by reflection so that luaj still builds and runs on older JVMs.
+	 */
+	public static class VirtualThreadScheduler implements Scheduler {
+		private final Method ofVirtual, name, start;
+		private VirtualThreadScheduler(Method ofVirtual, Method name, Method start) {
+			this.ofVirtual = ofVirtual;
+			this.name = name;
+			this.start = start;
+		}
+		public void start(Runnable runnable, String name) {
+			try {
+				Object builder = ofVirtual.invoke(null);
+				builder = this.name.invoke(builder, name);
+				start.invoke(builder, runnable);
+			} catch (Exception e) {
+				throw new LuaError("cannot start virtual thread: "+e);
+			}
+		}
+		/** Return a new VirtualThreadScheduler, or null if the JVM does not support virtual threads. */
+		public static VirtualThreadScheduler newIfSupported() {
+			try {
+				Method ofVirtual = Thread.class.getMethod("ofVirtual");
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				Method name = builder.getMethod("name", String.class);
+				Method start = builder.getMethod("start", Runnable.class);
+				ofVirtual.invoke(null); // throws if virtual threads are a disabled preview feature
+				return new VirtualThreadScheduler(ofVirtual, name, start);
+			} catch (Throwable t) {
+				return null;
+			}
+		}
+	}
+
 	public static class State implements Runnable {
+		private static final int TURN_CALLER = 0;
+		private static final int TURN_COROUTINE = 1;
 		private final Globals globals;
 		final WeakReference lua_thread;
 		public final LuaValue function;
 		Varargs args = LuaValue.NONE;
 		Varargs result = LuaValue.NONE;
 		String error = null;
-		public int status = LuaThread.STATUS_INITIAL;
+		public volatile int status = LuaThread.STATUS_INITIAL;
+		
+		/** Stackless state: call frames are kept in {@link #frame} until the coroutine moves to a thread. */
+		final boolean stackless;
+		boolean threaded;
+		boolean yielded;
+		LuaClosure.Frame frame;
+		
+		/** Which side may run: the thread in lua_resume, or the coroutine thread.  
+		 * Fields above are published to the other side by the write to this field. */
+		private volatile int turn = TURN_CALLER;
+		private volatile Thread caller;
+		private volatile Thread coroutine;
 
 		State(Globals globals, LuaThread lua_thread, LuaValue function) {
 			this.globals = globals;
 			this.lua_thread = new WeakReference(lua_thread);
 			this.function = function;
+			this.stackless = stackless_coroutines && function instanceof LuaClosure;
 		}
 		
-		public synchronized void run() {
+		public void run() {
+			coroutine = Thread.currentThread();
+			final Globals current = Globals.setCurrent(globals);
 			try {
 				Varargs a = this.args;
 				this.args = LuaValue.NONE;
-				this.result = function.invoke(a);
+				this.result = stackless? LuaClosure.executeFrames(this, a): function.invoke(a);
 			} catch (Throwable t) {
 				this.error = t.getMessage();
 			} finally {
+				Globals.setCurrent(current);
 				this.status = LuaThread.STATUS_DEAD;
-				this.notify();
+				coroutine = null;
+				handoff(TURN_CALLER, caller);
+			}
+		}
+
+		/** Start the java thread that runs this coroutine.  If the scheduler throws, 
+		 * the turn stays with the caller and the status is set to {@code failed_status}, 
+		 * so the caller neither waits for a thread that never runs nor finds the coroutine running. */
+		private void start(int failed_status) {
+			boolean started = false;
+			this.turn = TURN_COROUTINE;
+			try {
+				int n = coroutine_counter.incrementAndGet();
+				coroutine_count = n;
+				scheduler.start(this, "Coroutine-"+n);
+				started = true;
+			} finally {
+				if (!started) {
+					this.turn = TURN_CALLER;
+					this.status = failed_status;
+				}
 			}
 		}
 
-		public synchronized Varargs lua_resume(LuaThread new_thread, Varargs args) {
+		public Varargs lua_resume(LuaThread new_thread, Varargs args) {
 			LuaThread previous_thread = globals.running;
 			try {
 				globals.running = new_thread;
 				this.args = args;
-				if (this.status == STATUS_INITIAL) {
+				this.caller = Thread.currentThread();
+				if (previous_thread != null)
+					previous_thread.state.status = STATUS_NORMAL;
+				if (stackless && !threaded) {
+					this.status = STATUS_RUNNING;
+					Varargs r;
+					try {
+						r = LuaClosure.executeFrames(this, args);
+					} catch (OrphanedThread o) {
+						throw o;
+					} catch (Throwable t) {
+						this.status = STATUS_DEAD;
+						this.error = t.getMessage();
+						r = LuaValue.NONE;
+					}
+					if (r != null)
+						return (this.error != null? 
+							LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(this.error)):
+							LuaValue.varargsOf(LuaValue.TRUE, r));
+					// call that may yield from Java; continue the frames on a thread
+					// frames stopped inside the java call cannot be continued without the thread
+					this.threaded = true;
+					start(STATUS_DEAD);
+				} else if (this.status == STATUS_INITIAL) {
 					this.status = STATUS_RUNNING; 
-					new Thread(this, "Coroutine-"+(++coroutine_count)).start();
+					start(STATUS_INITIAL);
 				} else {
-					this.notify();
+					this.status = STATUS_RUNNING;
+					handoff(TURN_COROUTINE, coroutine);
+				}
+				while (this.turn != TURN_CALLER) {
+					LockSupport.park(this);
+					if (Thread.interrupted())
+						throw new OrphanedThread();
 				}
-				if (previous_thread != null)
-					previous_thread.state.status = STATUS_NORMAL;
-				this.status = STATUS_RUNNING;
-				this.wait();
 				return (this.error != null? 
 					LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(this.error)):
 					LuaValue.varargsOf(LuaValue.TRUE, this.result));
-			} catch (InterruptedException ie) {
-				throw new OrphanedThread();
 			} finally {
 				this.args = LuaValue.NONE;
 				this.result = LuaValue.NONE;
@@ -223,27 +406,31 @@ public class LuaThread extends LuaValue {
 			}
 		}
 
-		public synchronized Varargs lua_yield(Varargs args) {
+		public Varargs lua_yield(Varargs args) {
 			try {
 				this.result = args;
 				this.status = STATUS_SUSPENDED;
-				this.notify();
-				do {
-					this.wait(thread_orphan_check_interval);
-					if (this.lua_thread.get() == null) {
+				handoff(TURN_CALLER, caller);
+				long interval = thread_orphan_check_interval * 1000000L;
+				while (this.turn != TURN_COROUTINE) {
+					LockSupport.parkNanos(this, interval);
+					if (Thread.interrupted() || this.lua_thread.get() == null) {
 						this.status = STATUS_DEAD;
 						throw new OrphanedThread();
 					}
-				} while (this.status == STATUS_SUSPENDED);
+				}
 				return this.args;
-			} catch (InterruptedException ie) {
-				this.status = STATUS_DEAD;
-				throw new OrphanedThread();
 			} finally {
 				this.args = LuaValue.NONE;
 				this.result = LuaValue.NONE;
 			}
 		}
+		
+		private void handoff(int turn, Thread waiter) {
+			this.turn = turn;
+			if (waiter != null)
+				LockSupport.unpark(waiter);
+		}
 	}
 		
 }
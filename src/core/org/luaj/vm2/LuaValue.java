@@ -1147,6 +1147,18 @@ public class LuaValue extends Varargs {
 	 */
 	public LuaValue get( int key ) { return get(LuaInteger.valueOf(key)); }
 
+	/** Get a value in a table including metatag processing using {@link INDEX}.
+	 * <p>
+	 * Used in lua-bytecode to Java-bytecode conversion for unboxed for-loop variables;
+	 * integral keys are looked up with {@link #get(int)}.
+	 * @param key the key to look up
+	 * @return {@link LuaValue} for that key, or {@link NIL} if not found
+	 * @throws LuaError if {@code this} is not a table,
+	 * or there is no {@link INDEX} metatag  
+	 * @see #get(LuaValue)
+	 */
+	public LuaValue get( double key ) { int i = (int) key; return i == key? get(i): get(LuaDouble.valueOf(key)); }
+
 	/** Get a value in a table including metatag processing using {@link INDEX}.
 	 * @param key the key to look up, must not be null
 	 * @return {@link LuaValue} for that key, or {@link NIL} if not found
@@ -1174,6 +1186,17 @@ public class LuaValue extends Varargs {
 	 */
 	public void set( int key, LuaValue value ) { set(LuaInteger.valueOf(key), value ); }
 	
+	/** Set a value in a table without metatag processing using {@link NEWINDEX}.
+	 * <p>
+	 * Used in lua-bytecode to Java-bytecode conversion for unboxed for-loop variables;
+	 * integral keys are set with {@link #set(int, LuaValue)}.
+	 * @param key the key to use
+	 * @param value the value to use, can be {@link NIL}, must not be null
+	 * @throws LuaError if {@code this} is not a table, 
+	 * or there is no {@link NEWINDEX} metatag  
+	 */
+	public void set( double key, LuaValue value ) { int i = (int) key; if ( i == key ) set(i, value); else set(LuaDouble.valueOf(key), value); }
+	
 	/** Set a value in a table without metatag processing using {@link NEWINDEX}.
 	 * @param key the key to use
 	 * @param value the value to use, must not be null
@@ -3122,6 +3145,17 @@ public class LuaValue extends Varargs {
 	 * @return true if limit has not been reached, false otherwise.
 	 */
 	public boolean testfor_b(LuaValue limit, LuaValue step) { return step.gt_b(0)? lteq_b(limit): gteq_b(limit); }
+
+	/** Perform end-condition test in for-loop processing on unboxed values. 
+	 * <p>
+	 * Used in lua-bytecode to Java-bytecode conversion.
+	 * 
+	 * @param index the current value of the loop index
+	 * @param limit the numerical limit to complete the for loop
+	 * @param step the numberical step size to use. 
+	 * @return true if limit has not been reached, false otherwise.
+	 */
+	public static boolean testfor_b(double index, double limit, double step) { return step > 0? index <= limit: index >= limit; }
 	
 	/**
 	 * Convert this value to a string if it is a {@link LuaString} or {@link LuaNumber}, 
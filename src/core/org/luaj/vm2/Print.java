@@ -278,7 +278,7 @@ public class Print extends Lua {
 			ps.print("  ; to " + (sbx + pc + 2));
 			break;
 		case OP_CLOSURE:
-			ps.print("  ; " + f.p[bx].getClass().getName());
+			ps.print("  ; " + f.getp(bx).getClass().getName());
 			break;
 		case OP_SETLIST:
 			if (c == 0)
@@ -295,7 +295,8 @@ public class Print extends Lua {
 	}
 
 	private static int getline(Prototype f, int pc) {
-		return pc>0 && f.lineinfo!=null && pc<f.lineinfo.length? f.lineinfo[pc]: -1;
+		int[] lineinfo = f.getlineinfo();
+		return pc>0 && lineinfo!=null && pc<lineinfo.length? lineinfo[pc]: -1;
 	}
 
 	static void printHeader(Prototype f) {
@@ -312,7 +313,7 @@ public class Print extends Lua {
 				+ f.code.length * 4 + " bytes at " + id(f) + ")\n");
 		ps.print(f.numparams + " param, " + f.maxstacksize + " slot, "
 				+ f.upvalues.length + " upvalue, ");
-		ps.print(f.locvars.length + " local, " + f.k.length
+		ps.print(f.getlocvars().length + " local, " + f.k.length
 				+ " constant, " + f.p.length + " function\n");
 	}
 
@@ -327,10 +328,11 @@ public class Print extends Lua {
 	}
 
 	static void printLocals(Prototype f) {
-		int i, n = f.locvars.length;
+		LocVars[] locvars = f.getlocvars();
+		int i, n = locvars.length;
 		ps.print("locals (" + n + ") for " + id(f) + ":\n");
 		for (i = 0; i < n; i++) {
-			ps.println("  "+i+"  "+f.locvars[i].varname+" "+(f.locvars[i].startpc+1)+" "+(f.locvars[i].endpc+1));
+			ps.println("  "+i+"  "+locvars[i].varname+" "+(locvars[i].startpc+1)+" "+(locvars[i].endpc+1));
 		}
 	}
 
@@ -365,7 +367,7 @@ public class Print extends Lua {
 			printUpValues(prototype);
 		}
 		for (i = 0; i < n; i++)
-			printFunction(prototype.p[i], full);
+			printFunction(prototype.getp(i), full);
 	}
 
 	private static void format( String s, int maxcols ) {
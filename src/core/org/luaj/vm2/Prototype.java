@@ -99,6 +99,42 @@ public class Prototype {
 	public int numparams;
 	public int is_vararg;
 	public int maxstacksize;
+	/* inline caches for table lookups with constant string keys, indexed by pc; created on first use and shared 
+	 * by every closure of this prototype, so closures made in a loop start warm; entries are immutable and refer to no table */
+	public LuaTable.GetCache[] getcache;
+	/* loader of the nested prototypes and debug info that were skipped when this was loaded; null once they are all loaded */
+	public volatile Lazy lazy;
+	/* calls and backward jumps counted by the interpreter while a tier compiler is installed; -1 once passed to it */
+	public int hotness;
+	/* compiled form, set by the tier compiler; null while only interpreted */
+	public volatile Compiled compiled;
+
+	/**
+	 * Loader for the parts of a prototype that a binary chunk loader skipped.
+	 * <p>
+	 * While {@link Prototype#lazy} is set, entries of {@link Prototype#p} are null until loaded, 
+	 * and so are {@link Prototype#lineinfo} and {@link Prototype#locvars}, 
+	 * so they should be read through {@link Prototype#getp(int)}, 
+	 * {@link Prototype#getlineinfo()} and {@link Prototype#getlocvars()}.
+	 */
+	public interface Lazy {
+		/** Load nested prototype i of f. */
+		Prototype loadp(Prototype f, int i);
+		/** Set the lineinfo and locvars of f. */
+		void loaddebug(Prototype f);
+	}
+
+	/**
+	 * Compiled form of a prototype, set into {@link Prototype#compiled} by a {@link Globals.TierCompiler}.
+	 * <p>
+	 * Once set, calls to closures of the prototype run the compiled code instead, 
+	 * except while the debug library tracks calls, since only the interpreter calls hooks.
+	 */
+	public interface Compiled {
+		/** Make a function running the compiled code with the upvalues of a closure, which it shares, 
+		 * and charging the budget of {@code globals}, if not null. */
+		LuaFunction bind(UpValue[] upvalues, Globals globals);
+	}
 
 	public Prototype() {}
 	
@@ -110,6 +146,52 @@ public class Prototype {
 		return source + ":" + linedefined+"-"+lastlinedefined;
 	}
 	
+	/** Get a function defined inside this function, loading it if needed. */
+	public Prototype getp(int i) {
+		return lazy == null? p[i]: loadp(i);
+	}
+
+	/** Get the map from opcodes to source lines, loading it if needed. */
+	public int[] getlineinfo() {
+		if ( lazy != null )
+			loaddebug();
+		return lineinfo;
+	}
+
+	/** Get the information about local variables, loading it if needed. */
+	public LocVars[] getlocvars() {
+		if ( lazy != null )
+			loaddebug();
+		return locvars;
+	}
+
+	private synchronized Prototype loadp(int i) {
+		Prototype f = p[i];
+		if ( f == null ) {
+			f = p[i] = lazy.loadp(this, i);
+			loaded();
+		}
+		return f;
+	}
+
+	private synchronized void loaddebug() {
+		if ( lineinfo == null ) {
+			lazy.loaddebug(this);
+			loaded();
+		}
+	}
+
+	/** Drop the loader once every part has been loaded, so that the getters no longer lock */
+	private void loaded() {
+		if ( lineinfo == null )
+			return;
+		for ( int i = 0; i < p.length; i++ )
+			if ( p[i] == null )
+				return;
+		lazy = null;
+	}
+	
+	
 	/** Get the name of a local variable.
 	 * 
 	 * @param number the local variable number to look up
@@ -118,6 +200,7 @@ public class Prototype {
 	 */
 	public LuaString getlocalname(int number, int pc) {
 	  int i;
+	  LocVars[] locvars = getlocvars();
 	  for (i = 0; i<locvars.length && locvars[i].startpc <= pc; i++) {
 	    if (pc < locvars[i].endpc) {  /* is variable active? */
 	    	number--;
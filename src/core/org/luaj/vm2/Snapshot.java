@@ -0,0 +1,110 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import java.util.ArrayList;
+
+/**
+ * Saved state of a {@link LuaTable} and of every table reachable from it, to which they can be restored,
+ * such as to reset a pooled {@link Globals} after each request instead of making a new one.
+ * <p>
+ * Taking the snapshot only marks the tables reachable from the root through keys, values and metatables.
+ * Each marked table is copied just before it is first changed, and {@link #restore()}
+ * puts back the copies of the tables that were changed, so that a restore costs
+ * time in proportion to the tables that were changed rather than to all the tables.
+ * Each restore starts a new generation, in which the tables are copied again before they are changed.
+ * <p>
+ * Only the contents and metatables of the marked tables are restored.
+ * State kept elsewhere, such as in the upvalues of lua functions, the fields of libraries,
+ * or the string metatable, which is shared by all {@link Globals}, is not restored.
+ * Tables made after the snapshot are not tracked, since they can only be reached through changes that are undone.
+ * A table belongs to at most one snapshot, the last one that reached it.
+ * <p>
+ * A snapshot is not thread-safe; it should be used only by the thread that runs lua code with its tables.
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * Snapshot snapshot = globals.snapshot();
+ * ...
+ * globals.load(script, "page.lua").call();
+ * snapshot.restore();
+ * } </pre>
+ * @see LuaTable#snapshot()
+ */
+public class Snapshot {
+
+	/** the generation in which the tables are saved before they are changed; never 0, which no table is saved in */
+	int generation = 1;
+
+	/** the tables changed in this generation */
+	private final ArrayList<LuaTable> tables = new ArrayList<LuaTable>();
+
+	/** the copies of {@link #tables} from before their first change */
+	private final ArrayList<LuaTable> saved = new ArrayList<LuaTable>();
+
+	/** Mark every table reachable from {@code root} as belonging to this snapshot. */
+	Snapshot(LuaTable root) {
+		ArrayList<LuaTable> pending = new ArrayList<LuaTable>();
+		mark(root, pending);
+		while (!pending.isEmpty()) {
+			LuaTable t = pending.remove(pending.size() - 1);
+			mark(t.getmetatable(), pending);
+			LuaTable.Cursor c = new LuaTable.Cursor();
+			while (t.next(c.key, c)) {
+				mark(c.key, pending);
+				mark(c.value, pending);
+			}
+		}
+	}
+
+	private void mark(LuaValue v, ArrayList<LuaTable> pending) {
+		if (v instanceof LuaTable) {
+			LuaTable t = (LuaTable) v;
+			if (t.snapshot != this) {
+				t.snapshot = this;
+				t.snapshotGeneration = 0;
+				pending.add(t);
+			}
+		}
+	}
+
+	/** Copy a table before its first change in this generation. */
+	void save(LuaTable t) {
+		t.snapshotGeneration = generation;
+		tables.add(t);
+		saved.add(t.copy());
+	}
+
+	/** Number of tables changed since the snapshot was taken or last restored. */
+	public int getChangedCount() {
+		return tables.size();
+	}
+
+	/** Put every changed table back as it was when the snapshot was taken, and start a new generation. */
+	public void restore() {
+		for (int i = tables.size() - 1; i >= 0; i--)
+			tables.get(i).restore(saved.get(i));
+		tables.clear();
+		saved.clear();
+		if (++generation == 0)
+			generation = 1;
+	}
+}
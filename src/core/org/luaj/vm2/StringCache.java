@@ -0,0 +1,287 @@
+/*******************************************************************************
+* Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cache of recently created short {@link LuaString}s.
+ * <p>
+ * If a string is being constructed frequently from different contexts,
+ * it will generally show up as a cache hit and resolve to the same value.
+ * The cache used by {@link LuaString#valueOf(byte[], int, int)} and
+ * {@link LuaString#valueUsing(byte[], int, int)} is {@link LuaString#cache}.
+ * <p>
+ * Each cache is a table of sets of {@code ways} entries, indexed by hash code.
+ * With one way, a new string replaces whatever was in its slot.
+ * With more than one, entries in a set are kept in most recently used order
+ * and the least recently used entry is evicted.
+ * <p>
+ * Caches may be shared by all threads, kept per thread, or striped by thread.
+ * Entries are immutable, so races between threads at worst lose an entry.
+ * <p>
+ * Hit and miss counts are kept when {@link #count} is true.
+ *
+ * @see LuaString
+ */
+public abstract class StringCache {
+
+	/** Strings longer than this are never cached. */
+	public final int max_length;
+
+	/** When true, hits and misses are counted.  Off by default to keep shared caches free of counter writes. */
+	public boolean count = false;
+
+	protected StringCache(int max_length) {
+		this.max_length = max_length;
+	}
+
+	/** Return a cached string with the given bytes, or null if there is none.
+	 * @param hash the hash code of the bytes, as computed by {@link LuaString#hashCode(byte[], int, int)} */
+	public abstract LuaString get(byte[] bytes, int off, int len, int hash);
+
+	/** Add a newly created string to the cache, possibly evicting another. */
+	public abstract void put(LuaString s);
+
+	/** Number of calls to {@link #get} that found a string while {@link #count} was true. */
+	public abstract long hits();
+
+	/** Number of calls to {@link #get} that found no string while {@link #count} was true. */
+	public abstract long misses();
+
+	/** Remove all entries and reset the counters. */
+	public abstract void clear();
+
+	/** Create a cache shared by all threads.
+	 * @param size number of entries, rounded up to a power of 2
+	 * @param ways number of entries per set; 1 for replace on collision, more for least-recently-used eviction
+	 * @param max_length length of the longest string to cache */
+	public static StringCache newShared(int size, int ways, int max_length) {
+		return new Table(size, ways, max_length);
+	}
+
+	/** Create a cache that keeps a separate table for each thread,
+	 * so that threads do not evict each other's strings or write to the same memory. */
+	public static StringCache newThreadLocal(int size, int ways, int max_length) {
+		return new PerThread(size, ways, max_length);
+	}
+
+	/** Create a cache made of {@code stripes} tables, with each thread using the table selected by its id.
+	 * This bounds memory when there are many short-lived threads. */
+	public static StringCache newStriped(int stripes, int size, int ways, int max_length) {
+		return new Striped(stripes, size, ways, max_length);
+	}
+
+	private static int powerOf2(int n) {
+		int p = 1;
+		while ( p < n )
+			p <<= 1;
+		return p;
+	}
+
+	/** Set-associative table of strings. */
+	static final class Table extends StringCache {
+		private final LuaString[] entries;
+		private final int ways;
+		private final int mask;
+		private final StringCache owner;
+		private long hits, misses;
+
+		Table(int size, int ways, int max_length) {
+			this(size, ways, max_length, null);
+		}
+
+		/** @param owner cache whose {@link #count} flag applies to this table, or null for this table's own */
+		Table(int size, int ways, int max_length, StringCache owner) {
+			super(max_length);
+			this.owner = owner != null? owner: this;
+			if ( ways < 1 )
+				throw new IllegalArgumentException("ways must be at least 1");
+			this.ways = ways;
+			int sets = powerOf2(Math.max(1, (size + ways - 1) / ways));
+			this.entries = new LuaString[sets * ways];
+			this.mask = sets - 1;
+		}
+
+		public LuaString get(byte[] bytes, int off, int len, int hash) {
+			final LuaString[] e = entries;
+			final int base = (hash & mask) * ways;
+			for ( int i=0; i<ways; i++ ) {
+				final LuaString t = e[base+i];
+				if ( t == null )
+					break;
+				if ( t.hashCode() == hash && t.byteseq(bytes, off, len) ) {
+					if ( i > 0 ) { // move to front
+						System.arraycopy(e, base, e, base+1, i);
+						e[base] = t;
+					}
+					if ( owner.count ) ++hits;
+					return t;
+				}
+			}
+			if ( owner.count ) ++misses;
+			return null;
+		}
+
+		public void put(LuaString s) {
+			final LuaString[] e = entries;
+			final int base = (s.hashCode() & mask) * ways;
+			if ( ways > 1 ) // evict least recently used
+				System.arraycopy(e, base, e, base+1, ways-1);
+			e[base] = s;
+		}
+
+		public long hits() {
+			return hits;
+		}
+
+		public long misses() {
+			return misses;
+		}
+
+		public void clear() {
+			java.util.Arrays.fill(entries, null);
+			hits = misses = 0;
+		}
+	}
+
+	/** One {@link Table} per thread, created on first use. 
+	 * Tables are weakly referenced for counting, so they are collected with their thread. */
+	static final class PerThread extends StringCache {
+		private final int size, ways;
+		private final List<WeakReference<Table>> tables = new ArrayList<WeakReference<Table>>();
+		private final ThreadLocal<Table> local = new ThreadLocal<Table>() {
+			protected Table initialValue() {
+				Table t = new Table(size, ways, max_length, PerThread.this);
+				synchronized (tables) {
+					for ( int i=tables.size(); --i>=0; )
+						if ( tables.get(i).get() == null )
+							tables.remove(i);
+					tables.add(new WeakReference<Table>(t));
+				}
+				return t;
+			}
+		};
+
+		PerThread(int size, int ways, int max_length) {
+			super(max_length);
+			this.size = size;
+			this.ways = ways;
+		}
+
+		private Table table() {
+			return local.get();
+		}
+
+		public LuaString get(byte[] bytes, int off, int len, int hash) {
+			return table().get(bytes, off, len, hash);
+		}
+
+		public void put(LuaString s) {
+			table().put(s);
+		}
+
+		public long hits() {
+			long n = 0;
+			synchronized (tables) {
+				for ( int i=0; i<tables.size(); i++ ) {
+					Table t = tables.get(i).get();
+					if ( t != null )
+						n += t.hits;
+				}
+			}
+			return n;
+		}
+
+		public long misses() {
+			long n = 0;
+			synchronized (tables) {
+				for ( int i=0; i<tables.size(); i++ ) {
+					Table t = tables.get(i).get();
+					if ( t != null )
+						n += t.misses;
+				}
+			}
+			return n;
+		}
+
+		/** Clears the counters of all threads, but only the entries of the calling thread. */
+		public void clear() {
+			synchronized (tables) {
+				for ( int i=0; i<tables.size(); i++ ) {
+					Table t = tables.get(i).get();
+					if ( t != null )
+						t.hits = t.misses = 0;
+				}
+			}
+			table().clear();
+		}
+	}
+
+	/** Fixed number of {@link Table}s, selected by thread id. */
+	static final class Striped extends StringCache {
+		private final Table[] stripes;
+		private final int mask;
+
+		Striped(int stripes, int size, int ways, int max_length) {
+			super(max_length);
+			int n = powerOf2(Math.max(1, stripes));
+			this.stripes = new Table[n];
+			for ( int i=0; i<n; i++ )
+				this.stripes[i] = new Table(size, ways, max_length, this);
+			this.mask = n - 1;
+		}
+
+		private Table table() {
+			return stripes[(int) Thread.currentThread().getId() & mask];
+		}
+
+		public LuaString get(byte[] bytes, int off, int len, int hash) {
+			return table().get(bytes, off, len, hash);
+		}
+
+		public void put(LuaString s) {
+			table().put(s);
+		}
+
+		public long hits() {
+			long n = 0;
+			for ( int i=0; i<stripes.length; i++ )
+				n += stripes[i].hits();
+			return n;
+		}
+
+		public long misses() {
+			long n = 0;
+			for ( int i=0; i<stripes.length; i++ )
+				n += stripes[i].misses();
+			return n;
+		}
+
+		public void clear() {
+			for ( int i=0; i<stripes.length; i++ )
+				stripes[i].clear();
+		}
+	}
+}
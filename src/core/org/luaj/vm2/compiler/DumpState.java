@@ -196,7 +196,7 @@ public class DumpState {
 		n = f.p.length;
 		dumpInt(n);
 		for (i = 0; i < n; i++)
-			dumpFunction(f.p[i]);
+			dumpFunction(f.getp(i));
 	}
 
 	void dumpUpvalues(final Prototype f) throws IOException {
@@ -214,14 +214,16 @@ public class DumpState {
 			dumpInt(0);
 		else
 			dumpString(f.source);
-		n = strip ? 0 : f.lineinfo.length;
+		int[] lineinfo = strip ? null : f.getlineinfo();
+		n = strip ? 0 : lineinfo.length;
 		dumpInt(n);
 		for (i = 0; i < n; i++)
-			dumpInt(f.lineinfo[i]);
-		n = strip ? 0 : f.locvars.length;
+			dumpInt(lineinfo[i]);
+		LocVars[] locvars = strip ? null : f.getlocvars();
+		n = strip ? 0 : locvars.length;
 		dumpInt(n);
 		for (i = 0; i < n; i++) {
-			LocVars lvi = f.locvars[i];
+			LocVars lvi = locvars[i];
 			dumpString(lvi.varname);
 			dumpInt(lvi.startpc);
 			dumpInt(lvi.endpc);
@@ -26,6 +26,7 @@ import java.io.InputStream;
 
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaBudgetError;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
@@ -211,10 +212,13 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 	final class pcall extends VarArgFunction {
 		public Varargs invoke(Varargs args) {
 			LuaValue func = args.checkvalue(1);
-			if (globals != null && globals.debuglib != null)
-				globals.debuglib.onCall(this);
+			final DebugLib debuglib = globals != null && globals.debuglib != null && globals.debuglib.isTracingCalls()? globals.debuglib: null;
+			if (debuglib != null)
+				debuglib.onCall(this);
 			try {
 				return varargsOf(TRUE, func.invoke(args.subargs(2)));
+			} catch ( LuaBudgetError e ) {
+				throw e;
 			} catch ( LuaError le ) {
 				final String m = le.getMessage();
 				return varargsOf(FALSE, m!=null? valueOf(m): NIL);
@@ -222,8 +226,8 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 				final String m = e.getMessage();
 				return varargsOf(FALSE, valueOf(m!=null? m: e.toString()));
 			} finally {
-				if (globals != null && globals.debuglib != null)
-					globals.debuglib.onReturn();
+				if (debuglib != null)
+					debuglib.onReturn();
 			}
 		}
 	}
@@ -364,10 +368,13 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 			final LuaValue preverror = t.errorfunc;
 			t.errorfunc = args.checkvalue(2);
 			try {
-				if (globals != null && globals.debuglib != null)
-					globals.debuglib.onCall(this);
+				final DebugLib debuglib = globals != null && globals.debuglib != null && globals.debuglib.isTracingCalls()? globals.debuglib: null;
+				if (debuglib != null)
+					debuglib.onCall(this);
 				try {
 					return varargsOf(TRUE, args.arg1().invoke(args.subargs(3)));
+				} catch ( LuaBudgetError e ) {
+					throw e;
 				} catch ( LuaError le ) {
 					final String m = le.getMessage();
 					return varargsOf(FALSE, m!=null? valueOf(m): NIL);
@@ -375,8 +382,8 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 					final String m = e.getMessage();
 					return varargsOf(FALSE, valueOf(m!=null? m: e.toString()));
 				} finally {
-					if (globals != null && globals.debuglib != null)
-						globals.debuglib.onReturn();
+					if (debuglib != null)
+						debuglib.onReturn();
 				}
 			} finally {
 				t.errorfunc = preverror;
@@ -395,6 +402,15 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 		}
 	}
 	
+	/**
+	 * Return true if f is the next function, as returned by pairs().  
+	 * The generic for loop in {@link org.luaj.vm2.LuaClosure} steps a {@link org.luaj.vm2.LuaTable.Cursor} 
+	 * for such loops instead of calling next.
+	 */
+	public static boolean isNext(LuaValue f) {
+		return f instanceof next;
+	}
+	
 	// // "ipairs", // (t) -> iter-func, t, 0
 	static final class ipairs extends VarArgFunction {
 		inext inext = new inext();
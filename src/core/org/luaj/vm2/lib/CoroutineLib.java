@@ -82,6 +82,16 @@ public class CoroutineLib extends TwoArgFunction {
 		return coroutine;
 	}
 
+	/** Return true if f is a coroutine.yield function. Used by stackless coroutines to yield without a Java thread. */
+	public static boolean isYield(LuaValue f) {
+		return f instanceof Yielding;
+	}
+
+	/** Return true if f is coroutine.create or coroutine.wrap, which take a function argument but never call it. */
+	public static boolean isCreate(LuaValue f) {
+		return f instanceof create || f instanceof wrap;
+	}
+
 	final class create extends LibFunction {
 		public LuaValue call(LuaValue f) {
 			return new LuaThread(globals, f.checkfunction());
@@ -109,7 +119,10 @@ public class CoroutineLib extends TwoArgFunction {
 		}
 	}
 	
-	final class yield extends VarArgFunction {
+	/** Marks the coroutine.yield function for {@link #isYield}, since 'yield' is a restricted name in newer java. */
+	interface Yielding {}
+
+	final class yield extends VarArgFunction implements Yielding {
 		public Varargs invoke(Varargs args) {
 			return globals.yield( args );
 		}
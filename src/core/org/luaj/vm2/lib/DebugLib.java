@@ -99,6 +99,11 @@ public class DebugLib extends TwoArgFunction {
 	private static final LuaString ACTIVELINES     = valueOf("activelines");  
 
 	Globals globals;
+
+	/** When true, lua calls are recorded for tracebacks and {@code debug.getinfo} even when no hook is set.  
+	 * When false, the default, lua closures do no debug bookkeeping until a hook is set with {@code debug.sethook}, 
+	 * so tracebacks and {@code debug.getinfo} only see the calls made while a hook is set. */
+	public boolean trace_calls = false;
 	
 	public LuaValue call(LuaValue modname, LuaValue env) {
 		globals = env.checkglobals();
@@ -298,6 +303,8 @@ public class DebugLib extends TwoArgFunction {
 	final class setmetatable extends TwoArgFunction { 
 		public LuaValue call(LuaValue value, LuaValue table) {
 			LuaValue mt = table.opttable(null);
+			if ( value.type() != TTABLE && value.type() != TUSERDATA && Globals.setTypeMetatable(value.type(), mt) )
+				return value;
 			switch ( value.type() ) {
 				case TNIL:      LuaNil.s_metatable      = mt; break;
 				case TNUMBER:   LuaNumber.s_metatable   = mt; break;
@@ -384,6 +391,12 @@ public class DebugLib extends TwoArgFunction {
 		}
 	}
 
+	/** Return true if lua closures should report calls and returns to this lib. 
+	 * This is checked once per call, for the running thread only; a hook set during a call takes effect for subsequent calls. */
+	public boolean isTracingCalls() {
+		return trace_calls || globals.running.hookfunc != null;
+	}
+
 	public void onCall(LuaFunction f) {
 		LuaThread t = globals.running;
 		if (t.inhook) return;
@@ -680,7 +693,7 @@ public class DebugLib extends TwoArgFunction {
 		}
 		int currentline() {
 			if ( !f.isclosure() ) return -1;
-			int[] li = f.checkclosure().p.lineinfo;
+			int[] li = f.checkclosure().p.getlineinfo();
 			return li==null || pc<0 || pc>=li.length? -1: li[pc]; 
 		}
 		String sourceline() {
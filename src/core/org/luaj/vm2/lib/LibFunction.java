@@ -21,9 +21,11 @@
 ******************************************************************************/
 package org.luaj.vm2.lib;
 
+import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.UpValue;
 import org.luaj.vm2.Varargs;
 
 /**
@@ -195,6 +197,31 @@ abstract public class LibFunction extends LuaFunction {
 		return new LuaValue[] { v };
 	}
 
+	/** Java code generation utility to share upvalue storage with a closure made by the compiled code, for tiered compilation */
+	protected static UpValue newupv(LuaValue[] storage) {
+		return new UpValue(storage, 0);
+	}
+
+	/** Java code generation utility to share an upvalue that is never assigned with a closure made by the compiled code, for tiered compilation */
+	protected static UpValue newupv(LuaValue v) {
+		return new UpValue(new LuaValue[] { v }, 0);
+	}
+
+	/** Set the upvalues of code compiled for a {@link org.luaj.vm2.Globals.TierCompiler}, which are shared with the interpreter.
+	 * @see org.luaj.vm2.Prototype.Compiled */
+	public void initupvalues(UpValue[] upvalues) {
+	}
+
+	/** Globals whose budget code compiled by luajc charges, or null; see {@link #initbudget(Globals)} */
+	protected Globals budget;
+
+	/** Set the Globals whose budget, if any, code compiled by luajc charges at entry and at backward branches.
+	 * Called by the loaders of compiled code, and by compiled code for the closures it makes.
+	 * @see Globals#setBudget(long, long) */
+	public void initbudget(Globals globals) {
+		budget = globals;
+	}
+
 	public LuaValue call() {
 		return argerror(1,"value");
 	}
@@ -9,25 +9,32 @@ import gplx.objects.strings.char_sources.*;
 
 public class Match_state {
 	private final Str_find_mgr find_mgr;
-	private final Str_char_class_mgr char_class_mgr;
-	private final Char_source src;
-	private final Char_source pat;
-	private final int src_len;
+	final Str_char_class_mgr char_class_mgr;
+	private final Str_pattern pattern;
+	private final Str_matcher matcher;
+	private final int matcher_pos;
+	final Char_source src;
+	final Char_source pat;
+	final int src_len;
 	private final int pat_len;
-	private final int[] capture_bgns;
-	private final int[] capture_lens;
-	private int level;
+	final int[] capture_bgns;
+	final int[] capture_lens;
+	int level;
 
 	public Match_state(Str_find_mgr find_mgr) {
 		this.find_mgr = find_mgr;
 		this.char_class_mgr = find_mgr.Char_class_mgr();
+		this.pattern = find_mgr.Pattern();
 		this.src = find_mgr.src;
 		this.src_len = find_mgr.src_len;
 		this.pat = find_mgr.pat;
 		this.pat_len = find_mgr.pat_len;
 		this.level = 0;
-		this.capture_bgns = new int[MAX_CAPTURES];
-		this.capture_lens = new int[MAX_CAPTURES];
+		int captures = pattern.Captures();	// XOWA.PERF: size by the capture count of the pattern, not MAX_CAPTURES
+		this.capture_bgns = new int[captures];
+		this.capture_lens = new int[captures];
+		this.matcher = find_mgr.Matcher_tree() ? pattern.Matcher(pat, char_class_mgr) : null;
+		this.matcher_pos = pattern.Anchor() ? 1 : 0;
 	}
 
 	public void reset() {
@@ -196,7 +203,7 @@ public class Match_state {
 	}
 
 
-	private int check_capture(int l) {
+	int check_capture(int l) {
 		l -= '1'; // NOTE: '1' b/c Lua uses %1 to means captures[0]
 		if (l < 0 || l >= level || this.capture_lens[l] == CAP_UNFINISHED) {
 			LuaValue.error("invalid capture index");
@@ -204,7 +211,7 @@ public class Match_state {
 		return l;
 	}
 
-	private int capture_to_close() {
+	int capture_to_close() {
 		int level = this.level;
 		for (level--; level >= 0; level--)
 			if (capture_lens[level] == CAP_UNFINISHED)
@@ -214,6 +221,8 @@ public class Match_state {
 	}
 
 	private int classend(int pat_pos) {
+		int rv = pattern.Class_end(pat_pos);
+		if (rv > 0) return rv;	// XOWA.PERF: use pre-parsed end; note that 0 is never a valid end
 		switch (pat.Get_data(pat_pos++)) {
 			case StringLib.L_ESC:
 				if (pat_pos == pat_len) {
@@ -237,28 +246,18 @@ public class Match_state {
 	}
 
 	private boolean matchbracketclass(int cur, int pat_pos, int ep) {
-		boolean sig = true;
-		if (pat.Get_data(pat_pos + 1) == '^') {
-			sig = false;
-			pat_pos++;
+		if (cur >= 0 && cur < 256) {
+			long[] bits = pattern.Class_bits(pat_pos);
+			if (bits != null) return (bits[cur >> 6] & (1L << cur)) != 0;
 		}
-		while (++pat_pos < ep) {
-			if (pat.Get_data(pat_pos) == StringLib.L_ESC) {
-				pat_pos++;
-				if (char_class_mgr.Match_class(cur, pat.Get_data(pat_pos)))
-					return sig;
-			}
-			else if ((pat.Get_data(pat_pos + 1) == '-') && (pat_pos + 2 < ep)) {
-				pat_pos += 2;
-				if (pat.Get_data(pat_pos - 2) <= cur && cur <= pat.Get_data(pat_pos))
-					return sig;
-			}
-			else if (pat.Get_data(pat_pos) == cur) return sig;
-		}
-		return !sig;
+		return Str_pattern.Match_bracket_class(pat, char_class_mgr, cur, pat_pos, ep);
 	}
 
 	private boolean singlematch(int cur, int pat_pos, int ep) {
+		if (cur >= 0 && cur < 256) {	// XOWA.PERF: use pre-parsed class bitset
+			long[] bits = pattern.Class_bits(pat_pos);
+			if (bits != null) return (bits[cur >> 6] & (1L << cur)) != 0;
+		}
 		switch (pat.Get_data(pat_pos)) {
 			case '.': return true;
 			case StringLib.L_ESC: return char_class_mgr.Match_class(cur, pat.Get_data(pat_pos + 1));
@@ -298,7 +297,7 @@ public class Match_state {
 
 		// keeps trying to match with the maximum repetitions 
 		while (i >= 0) {
-			int res = match(src_pos + i, ep + 1);
+			int res = match_pat(src_pos + i, ep + 1);
 			if (res != NULL)
 				return res;
 			i--; // else didn't match; reduce 1 repetition to try again
@@ -309,7 +308,7 @@ public class Match_state {
 	private int min_expand(int src_pos, int pat_pos, int ep) {
 		int src_len = src.Len_in_data();	// XOWA: cache string length; DATE: 2014-08-13
 		for (;;) {
-			int res = match(src_pos, ep + 1);
+			int res = match_pat(src_pos, ep + 1);
 			if (res != NULL)
 				return res;
 			else if (src_pos < src_len && singlematch(src.Get_data(src_pos), pat_pos, ep))
@@ -328,7 +327,7 @@ public class Match_state {
 		capture_bgns[level] = src_pos;
 		capture_lens[level] = what;
 		this.level = level + 1;
-		if ((res = match(src_pos, pat_pos)) == NULL) // match failed?
+		if ((res = match_pat(src_pos, pat_pos)) == NULL) // match failed?
 			this.level--; // undo capture
 		return res;
 	}
@@ -337,12 +336,12 @@ public class Match_state {
 		int l = capture_to_close();
 		int res;
 		capture_lens[l] = src_pos - capture_bgns[l]; // close capture
-		if ((res = match(src_pos, pat_pos)) == NULL) // match failed?
+		if ((res = match_pat(src_pos, pat_pos)) == NULL) // match failed?
 			capture_lens[l] = CAP_UNFINISHED; // undo capture
 		return res;
 	}
 
-	private int match_capture(int src_pos, int l) {
+	int match_capture(int src_pos, int l) {
 		l = check_capture(l);
 		int len = capture_lens[l];
 		
@@ -358,6 +357,12 @@ public class Match_state {
 	// Perform pat matching. If there is a match, returns offset into src
 	// where match ends, otherwise returns -1.
 	public int match(int src_pos, int pat_pos) {
+		if (matcher != null && pat_pos == matcher_pos)	// XOWA.PERF: use compiled tree if enabled; see Str_matcher
+			return matcher.Match(this, src_pos);
+		return match_pat(src_pos, pat_pos);
+	}
+
+	private int match_pat(int src_pos, int pat_pos) {
 		while (true) {
 			// Check if we are at the end of the pat - 
 			// equivalent to the '\0' case in the C version, but our pat
@@ -409,7 +414,7 @@ public class Match_state {
 								src_pos = match_capture(src_pos, c);
 								if (src_pos == NULL)
 									return NULL;
-								return match(src_pos, pat_pos + 2);
+								return match_pat(src_pos, pat_pos + 2);
 							}
 						}
 					}
@@ -424,7 +429,7 @@ public class Match_state {
 			switch (pc) {
 				case '?': // optional
 					int res;
-					if (m && ((res = match(src_pos + 1, ep + 1)) != NULL))
+					if (m && ((res = match_pat(src_pos + 1, ep + 1)) != NULL))
 						return res;
 					pat_pos = ep + 1;
 					continue;
@@ -445,8 +450,8 @@ public class Match_state {
 	}
 
 	private static final int NULL = -1;
-	private static final int MAX_CAPTURES = 32;
-	private static final int CAP_UNFINISHED = -1;
+	static final int MAX_CAPTURES = 32;
+	static final int CAP_UNFINISHED = -1;
 	public static final int CAP_POSITION = -2;
 }
 
@@ -2,7 +2,24 @@ package org.luaj.vm2.lib;
 
 // FOOTNOTE: UstringLibrary_APPROXIMATION
 public class Str_char_class_mgr__unicode extends Str_char_class_mgr {
+	// XOWA.PERF: look up precomputed class bits instead of calling Character.getType for every char; FOOTNOTE:CLASS_TABLE
 	@Override public boolean Match_class(int cp, int cls) {
+		final int cls_lower = cls < 97 ? cls + 32 : cls;
+		final int mask = cls_lower < CLASS_MASKS.length ? CLASS_MASKS[cls_lower] : 0;
+		if (mask == 0) // escaped; EX: "%b" -> "b"
+			return cls == cp;
+		if (cp < 0 || cp > Character.MAX_CODE_POINT) // EX: -1 for BOS in "%f"
+			return Match_class_by_type(cp, cls);
+		Plane plane = PLANES[cp >> 16];
+		if (plane == null)
+			plane = Plane__make(cp >> 16);
+		final int plane_cp = cp & 0xFFFF;
+		final boolean res = (plane.bits[(plane.blocks[plane_cp >> BLOCK_SHIFT] << BLOCK_SHIFT) | (plane_cp & BLOCK_MASK)] & mask) != 0;
+		return (cls_lower == cls) ? res : !res;
+	}
+
+	/** Match cp against cls by its Unicode general category. Used to build the class table, and kept for comparison. */
+	public boolean Match_class_by_type(int cp, int cls) {
 		final int cls_lower = cls < 97 ? cls + 32 : cls;
 		boolean res;
 		int char_type;
@@ -124,7 +141,110 @@ public class Str_char_class_mgr__unicode extends Str_char_class_mgr {
 		}
 		return (cls_lower == cls) ? res : !res;
 	}
+
+	private static final int BLOCK_SHIFT = 7;
+	private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+	private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+	private static final int
+	  BIT_ALPHA = 1 << 0, BIT_DIGIT = 1 << 1, BIT_LOWER = 1 << 2, BIT_UPPER = 1 << 3, BIT_CTRL = 1 << 4
+	, BIT_PUNCT = 1 << 5, BIT_SPACE = 1 << 6, BIT_WORD  = 1 << 7, BIT_HEX   = 1 << 8, BIT_NULL = 1 << 9
+	;
+	private static final int[] CLASS_MASKS = new int[128];	// class letter -> bit in Plane.bits
+	private static final Plane[] PLANES = new Plane[(Character.MAX_CODE_POINT + 1) >> 16];
+	static {
+		CLASS_MASKS[CLASS_ALPHA] = BIT_ALPHA;
+		CLASS_MASKS[CLASS_DIGIT] = BIT_DIGIT;
+		CLASS_MASKS[CLASS_LOWER] = BIT_LOWER;
+		CLASS_MASKS[CLASS_UPPER] = BIT_UPPER;
+		CLASS_MASKS[CLASS_CTRL ] = BIT_CTRL;
+		CLASS_MASKS[CLASS_PUNCT] = BIT_PUNCT;
+		CLASS_MASKS[CLASS_SPACE] = BIT_SPACE;
+		CLASS_MASKS[CLASS_WORD ] = BIT_WORD;
+		CLASS_MASKS[CLASS_HEX  ] = BIT_HEX;
+		CLASS_MASKS[CLASS_NULL ] = BIT_NULL;
+		Plane__make(0);
+	}
+	/** Class bits of one plane of 0x10000 code points. Fields are final so that a plane built by one thread is fully visible to others. */
+	private static final class Plane {
+		final char[] blocks;	// (code point & 0xFFFF) >> BLOCK_SHIFT -> block index in bits
+		final short[] bits;		// one bit per class for each code point of each distinct block
+		Plane(char[] blocks, short[] bits) {this.blocks = blocks; this.bits = bits;}
+	}
+	private static Plane Plane__make(int plane_idx) {
+		int block_count = 0x10000 >> BLOCK_SHIFT;
+		char[] blocks = new char[block_count];
+		java.util.HashMap<java.nio.ShortBuffer, Integer> distinct = new java.util.HashMap<java.nio.ShortBuffer, Integer>();
+		short[] bits = new short[0x10000];
+		int bits_len = 0;
+		for (int b = 0; b < block_count; b++) {
+			int cp_bgn = (plane_idx << 16) | (b << BLOCK_SHIFT);
+			for (int i = 0; i < BLOCK_SIZE; i++)
+				bits[bits_len + i] = (short)Class_bits(cp_bgn + i);
+			java.nio.ShortBuffer block = java.nio.ShortBuffer.wrap(bits, bits_len, BLOCK_SIZE).slice();
+			Integer idx = distinct.get(block);
+			if (idx == null) {	// store identical blocks once; EX: unassigned and CJK ranges
+				idx = Integer.valueOf(bits_len >> BLOCK_SHIFT);
+				distinct.put(block, idx);
+				bits_len += BLOCK_SIZE;
+			}
+			blocks[b] = (char)idx.intValue();
+		}
+		Plane rv = new Plane(blocks, java.util.Arrays.copyOf(bits, bits_len));
+		PLANES[plane_idx] = rv;	// NOTE: threads racing here build equal planes
+		return rv;
+	}
+	/** Return the class bits of cp; same rules as {@link #Match_class_by_type}, but with one call to Character.getType. */
+	private static int Class_bits(int cp) {
+		int rv = 0;
+		switch (Character.getType(cp)) {
+			case Character.UPPERCASE_LETTER:       rv = BIT_ALPHA | BIT_UPPER; break;
+			case Character.LOWERCASE_LETTER:       rv = BIT_ALPHA | BIT_LOWER; break;
+			case Character.TITLECASE_LETTER:
+			case Character.MODIFIER_LETTER:
+			case Character.OTHER_LETTER:           rv = BIT_ALPHA; break;
+			case Character.CONTROL:                rv = BIT_CTRL; break;
+			case Character.DECIMAL_DIGIT_NUMBER:   rv = BIT_DIGIT | BIT_WORD; break;
+			case Character.CONNECTOR_PUNCTUATION:  rv = BIT_PUNCT | BIT_WORD; break;
+			case Character.DASH_PUNCTUATION:
+			case Character.START_PUNCTUATION:
+			case Character.END_PUNCTUATION:
+			case Character.OTHER_PUNCTUATION:
+			case Character.INITIAL_QUOTE_PUNCTUATION:
+			case Character.FINAL_QUOTE_PUNCTUATION: rv = BIT_PUNCT; break;
+			case Character.SPACE_SEPARATOR:
+			case Character.LINE_SEPARATOR:
+			case Character.PARAGRAPH_SEPARATOR:    rv = BIT_SPACE; break;
+			case Character.NON_SPACING_MARK:
+			case Character.ENCLOSING_MARK:
+			case Character.COMBINING_SPACING_MARK:
+			case Character.LETTER_NUMBER:
+			case Character.OTHER_NUMBER:           rv = BIT_WORD; break;
+		}
+		if ((cp >= 0x9 && cp <= 0xd) || cp == 0x85)
+			rv |= BIT_SPACE;
+		if (Character.isAlphabetic(cp) || cp == 0x200C || cp == 0x200D)
+			rv |= BIT_WORD;
+		if  (  (cp >=    48 && cp <=    57)
+			|| (cp >=    65 && cp <=    70)
+			|| (cp >=    97 && cp <=   102)
+			|| (cp >= 65296 && cp <= 65305)
+			|| (cp >= 65313 && cp <= 65318)
+			|| (cp >= 65345 && cp <= 65350)
+			)
+			rv |= BIT_HEX;
+		if (cp == 0)
+			rv |= BIT_NULL;
+		return rv;
+	}
 /*
+== CLASS_TABLE ==
+* Match_class used to call Character.getType and walk a switch for every char; this is the inner loop of every ustring pattern function
+* The table is built by Class_bits, which follows the same rules as Match_class_by_type; Str_char_class_mgr__tst checks that both agree for every code point
+* Code points are split into planes of 0x10000 and blocks of 128; identical blocks within a plane are stored once
+** Plane.blocks maps a block to its position in Plane.bits; Plane.bits has one short per code point with one bit per class
+** The BMP is built at class load; other planes are built on first use since building all 17 takes about 0.2 seconds on a cold JVM
+* Code points outside 0 - 0x10FFFF (EX: -1 for BOS in "%f") fall back to Match_class_by_type
+
 == UstringLibrary_APPROXIMATION ==
 * This approximates the MediaWiki UstringLibrary.php section below
 * Most of the mapping from PHP to Java is based on https://www.regular-expressions.info/unicode.html
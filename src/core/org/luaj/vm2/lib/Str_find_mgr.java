@@ -35,6 +35,13 @@ public abstract class Str_find_mgr {
 	protected abstract Varargs    Result__make__nil();
 	protected void                Result__make__bgn_end(int bgn, int end) {}
 	public abstract Str_char_class_mgr Char_class_mgr();
+	/** True to match with compiled {@link Str_matcher} trees instead of interpreting the pattern in {@link Match_state}; subclasses decide. */
+	public boolean Matcher_tree() {return false;}
+	public Str_pattern Pattern() {	// XOWA.PERF: parse pattern once per pattern text, not once per call
+		if (pattern == null)
+			pattern = Str_pattern_cache.Instance.Get(pat, this.Char_class_mgr());
+		return pattern;
+	}	private Str_pattern pattern;
 	public Varargs Process(boolean adjust_base1) {
 		// adjust_base1 will be false when called by Scrib_pattern_matcher_xowa
 		if (adjust_base1) {
@@ -51,7 +58,7 @@ public abstract class Str_find_mgr {
 		}
 
 		// find mode and (plain or no special pattern characters)
-		if (find && (plain || Char_source_.Index_of_any(pat.Src(), SPECIALS_ARY) == Not_found)) {
+		if (find && (plain || !this.Pattern().Has_specials())) {
 			int result = src.Index_of(pat, src_bgn);
 			if (result != Not_found) {
 				return this.Result__make__plain(result + Base_1, result + pat_len);
@@ -59,17 +66,19 @@ public abstract class Str_find_mgr {
 		}
 		else {
 			// if ^ at BOS, enable anchor and skip forward 1
-			boolean anchor = false;
-			int pat_pos = 0;
-			if (pat_len > 0 && pat.Get_data(0) == '^') { // XOWA: check length > 0 else IndexOutOfBoundsException; PAGE:c:File:Nouveauxvoyagese-p378.png; DATE:2017-07-19
-				anchor = true;
-				pat_pos = 1;
-			}
+			Str_pattern pattern = this.Pattern();
+			boolean anchor = pattern.Anchor();
+			int pat_pos = anchor ? 1 : 0;
+			boolean skip_to_prefix = !anchor && pattern.Prefix_len() > 0;
 			
 			// match
 			int src_pos = src_bgn;
 			Match_state ms = new Match_state(this);			 
 			do {
+				if (skip_to_prefix) {	// XOWA.PERF: no match can start before the next occurrence of the literal prefix
+					src_pos = pattern.Find_prefix(src, src_pos, src_len);
+					if (src_pos == Not_found) break;
+				}
 				ms.reset();
 				int res = ms.match(src_pos, pat_pos);
 				if (res != Not_found) {
@@ -0,0 +1,304 @@
+package org.luaj.vm2.lib;
+
+import org.luaj.vm2.LuaValue;
+import gplx.objects.strings.char_sources.*;
+
+/**
+ * Lua pattern compiled to a tree of matcher nodes; an alternative to interpreting the pattern in {@link Match_state}.
+ * <p>
+ * Each pattern item becomes one node which holds the node for the rest of the pattern,
+ * so matching is a chain of calls with no switch on pattern chars and no re-scanning of classes.
+ * Runs of plain chars are compared in one node, and '%x' and '[...]' classes test the bitsets of {@link Str_pattern}.
+ * <p>
+ * Nodes follow {@link Match_state#match} item by item, including backtracking order, captures, '%b', '%f', and back references,
+ * so results and errors are the same as the interpreter.
+ * Trees are immutable and are built only for patterns held by {@link Str_pattern_cache};
+ * patterns that are malformed or not cached are left to the interpreter.
+ * <p>
+ * Whether a {@link Str_find_mgr} uses trees is decided by {@link Str_find_mgr#Matcher_tree()}.
+ */
+abstract class Str_matcher {
+	/** Match the rest of the pattern starting at src_pos; return the end of the match or {@link #NULL}. */
+	abstract int Match(Match_state ms, int src_pos);
+
+	/** Compile the pattern starting at pat_pos, which must be where {@link Str_pattern} started parsing, or return null if it cannot be compiled. */
+	static Str_matcher Compile(Char_source pat, Str_pattern pattern, Str_char_class_mgr char_class_mgr, int pat_pos) {
+		if (!pattern.Complete()) return null;	// malformed; leave errors to the interpreter
+		return Compile_rest(pat, pattern, char_class_mgr, pat_pos, pat.Len_in_data());
+	}
+
+	private static Str_matcher Compile_rest(Char_source pat, Str_pattern pattern, Str_char_class_mgr char_class_mgr, int pat_pos, int pat_len) {
+		if (pat_pos == pat_len)
+			return END;
+		switch (pat.Get_data(pat_pos)) {
+			case '(':
+				if (++pat_pos < pat_len && pat.Get_data(pat_pos) == ')')
+					return new Capture_bgn(Match_state.CAP_POSITION, Compile_rest(pat, pattern, char_class_mgr, pat_pos + 1, pat_len));
+				else
+					return new Capture_bgn(Match_state.CAP_UNFINISHED, Compile_rest(pat, pattern, char_class_mgr, pat_pos, pat_len));
+			case ')':
+				return new Capture_end(Compile_rest(pat, pattern, char_class_mgr, pat_pos + 1, pat_len));
+			case StringLib.L_ESC: {
+				int c = pat.Get_data(pat_pos + 1);
+				if (c == 'b')
+					return new Balance(pat.Get_data(pat_pos + 2), pat.Get_data(pat_pos + 3), Compile_rest(pat, pattern, char_class_mgr, pat_pos + 4, pat_len));
+				else if (c == 'f') {
+					pat_pos += 2;
+					int ep = pattern.Class_end(pat_pos);
+					return new Frontier(New_class(pat, pattern, char_class_mgr, pat_pos, ep), Compile_rest(pat, pattern, char_class_mgr, ep, pat_len));
+				}
+				else if (Character.isDigit((char)c))
+					return new Back_reference(c, Compile_rest(pat, pattern, char_class_mgr, pat_pos + 2, pat_len));
+				break;
+			}
+			case '$':
+				if (pat_pos + 1 == pat_len)
+					return END_OF_SRC;
+				break;
+		}
+
+		// single char class, with optional quantifier
+		int ep = pattern.Class_end(pat_pos);
+		int quantifier = ep < pat_len ? pat.Get_data(ep) : '\0';
+		switch (quantifier) {
+			case '?': return new Optional(New_class(pat, pattern, char_class_mgr, pat_pos, ep), Compile_rest(pat, pattern, char_class_mgr, ep + 1, pat_len));
+			case '*': return new Max_expand(New_class(pat, pattern, char_class_mgr, pat_pos, ep), 0, Compile_rest(pat, pattern, char_class_mgr, ep + 1, pat_len));
+			case '+': return new Max_expand(New_class(pat, pattern, char_class_mgr, pat_pos, ep), 1, Compile_rest(pat, pattern, char_class_mgr, ep + 1, pat_len));
+			case '-': return new Min_expand(New_class(pat, pattern, char_class_mgr, pat_pos, ep), Compile_rest(pat, pattern, char_class_mgr, ep + 1, pat_len));
+		}
+		if (ep == pat_pos + 1 && Is_literal(pat.Get_data(pat_pos))) {
+			// gather run of unquantified literals into one node
+			int run_end = ep;
+			while (run_end < pat_len && Is_literal(pat.Get_data(run_end)) && !Is_item_start(pat, run_end, pat_len)) {
+				int next = run_end + 1;
+				if (next < pat_len && Is_quantifier(pat.Get_data(next))) break;
+				run_end = next;
+			}
+			int[] chars = new int[run_end - pat_pos];
+			for (int i = 0; i < chars.length; i++)
+				chars[i] = pat.Get_data(pat_pos + i);
+			return new Literal(chars, Compile_rest(pat, pattern, char_class_mgr, run_end, pat_len));
+		}
+		return new Single(New_class(pat, pattern, char_class_mgr, pat_pos, ep), Compile_rest(pat, pattern, char_class_mgr, ep, pat_len));
+	}
+
+	/** True if c matches only itself when it starts a single char class. */
+	private static boolean Is_literal(int c) {
+		return c != '.' && c != StringLib.L_ESC && c != '[' && c != '(' && c != ')';
+	}
+	private static boolean Is_quantifier(int c) {
+		return c == '?' || c == '*' || c == '+' || c == '-';
+	}
+	/** True if the char at pat_pos is handled by Match_state.match before single char classes; only '$' at end of pattern for literals. */
+	private static boolean Is_item_start(Char_source pat, int pat_pos, int pat_len) {
+		return pat.Get_data(pat_pos) == '$' && pat_pos + 1 == pat_len;
+	}
+
+	private static Char_class New_class(Char_source pat, Str_pattern pattern, Str_char_class_mgr char_class_mgr, int pat_pos, int ep) {
+		int c = pat.Get_data(pat_pos);
+		switch (c) {
+			case '.':
+				return ANY;
+			case StringLib.L_ESC:
+				return new Char_class_esc(pattern.Class_bits(pat_pos), pat.Get_data(pat_pos + 1));
+			case '[':
+				return new Char_class_bracket(pattern.Class_bits(pat_pos), pat_pos, ep - 1);
+			default:
+				return new Char_class_char(c);
+		}
+	}
+
+	static final int NULL = -1;
+
+	/** Marks a pattern that cannot be compiled. */
+	static final Str_matcher NONE = new Str_matcher() {
+		int Match(Match_state ms, int src_pos) {throw new IllegalStateException();}
+	};
+
+	/** Test for one char of a single char class. */
+	static abstract class Char_class {
+		abstract boolean Matches(Match_state ms, int cur);
+	}
+	private static final Char_class ANY = new Char_class() {
+		boolean Matches(Match_state ms, int cur) {return true;}
+	};
+	private static final class Char_class_char extends Char_class {
+		private final int c;
+		Char_class_char(int c) {this.c = c;}
+		boolean Matches(Match_state ms, int cur) {return cur == c;}
+	}
+	private static final class Char_class_esc extends Char_class {
+		private final long[] bits;
+		private final int cls;
+		Char_class_esc(long[] bits, int cls) {this.bits = bits; this.cls = cls;}
+		boolean Matches(Match_state ms, int cur) {
+			if (cur >= 0 && cur < 256) return (bits[cur >> 6] & (1L << cur)) != 0;
+			return ms.char_class_mgr.Match_class(cur, cls);
+		}
+	}
+	private static final class Char_class_bracket extends Char_class {
+		private final long[] bits;
+		private final int pat_pos, ep;
+		Char_class_bracket(long[] bits, int pat_pos, int ep) {this.bits = bits; this.pat_pos = pat_pos; this.ep = ep;}
+		boolean Matches(Match_state ms, int cur) {
+			if (cur >= 0 && cur < 256) return (bits[cur >> 6] & (1L << cur)) != 0;
+			return Str_pattern.Match_bracket_class(ms.pat, ms.char_class_mgr, cur, pat_pos, ep);
+		}
+	}
+
+	private static final Str_matcher END = new Str_matcher() {
+		int Match(Match_state ms, int src_pos) {return src_pos;}
+	};
+	private static final Str_matcher END_OF_SRC = new Str_matcher() {
+		int Match(Match_state ms, int src_pos) {return src_pos == ms.src_len ? src_pos : NULL;}
+	};
+	private static final class Literal extends Str_matcher {
+		private final int[] chars;
+		private final Str_matcher next;
+		Literal(int[] chars, Str_matcher next) {this.chars = chars; this.next = next;}
+		int Match(Match_state ms, int src_pos) {
+			int[] chars = this.chars;
+			int len = chars.length;
+			if (ms.src_len - src_pos < len) return NULL;
+			Char_source src = ms.src;
+			for (int i = 0; i < len; i++)
+				if (src.Get_data(src_pos + i) != chars[i]) return NULL;
+			return next.Match(ms, src_pos + len);
+		}
+	}
+	private static final class Single extends Str_matcher {
+		private final Char_class cls;
+		private final Str_matcher next;
+		Single(Char_class cls, Str_matcher next) {this.cls = cls; this.next = next;}
+		int Match(Match_state ms, int src_pos) {
+			if (src_pos < ms.src_len && cls.Matches(ms, ms.src.Get_data(src_pos)))
+				return next.Match(ms, src_pos + 1);
+			return NULL;
+		}
+	}
+	private static final class Optional extends Str_matcher {
+		private final Char_class cls;
+		private final Str_matcher next;
+		Optional(Char_class cls, Str_matcher next) {this.cls = cls; this.next = next;}
+		int Match(Match_state ms, int src_pos) {
+			if (src_pos < ms.src_len && cls.Matches(ms, ms.src.Get_data(src_pos))) {
+				int res = next.Match(ms, src_pos + 1);
+				if (res != NULL) return res;
+			}
+			return next.Match(ms, src_pos);
+		}
+	}
+	/** '*' when min is 0; '+' when min is 1. */
+	private static final class Max_expand extends Str_matcher {
+		private final Char_class cls;
+		private final int min;
+		private final Str_matcher next;
+		Max_expand(Char_class cls, int min, Str_matcher next) {this.cls = cls; this.min = min; this.next = next;}
+		int Match(Match_state ms, int src_pos) {
+			Char_source src = ms.src;
+			int src_len = ms.src_len;
+			int i = 0;
+			while (src_pos + i < src_len && cls.Matches(ms, src.Get_data(src_pos + i)))
+				i++;
+			if (i < min) return NULL;
+			src_pos += min;
+			i -= min;
+			if (next == END) return src_pos + i;
+			for (; i >= 0; i--) {
+				int res = next.Match(ms, src_pos + i);
+				if (res != NULL) return res;
+			}
+			return NULL;
+		}
+	}
+	private static final class Min_expand extends Str_matcher {
+		private final Char_class cls;
+		private final Str_matcher next;
+		Min_expand(Char_class cls, Str_matcher next) {this.cls = cls; this.next = next;}
+		int Match(Match_state ms, int src_pos) {
+			int src_len = ms.src_len;
+			for (;;) {
+				int res = next.Match(ms, src_pos);
+				if (res != NULL)
+					return res;
+				else if (src_pos < src_len && cls.Matches(ms, ms.src.Get_data(src_pos)))
+					src_pos++;
+				else
+					return NULL;
+			}
+		}
+	}
+	private static final class Capture_bgn extends Str_matcher {
+		private final int what;
+		private final Str_matcher next;
+		Capture_bgn(int what, Str_matcher next) {this.what = what; this.next = next;}
+		int Match(Match_state ms, int src_pos) {
+			int level = ms.level;
+			if (level >= Match_state.MAX_CAPTURES) {
+				LuaValue.error("too many captures");
+			}
+			ms.capture_bgns[level] = src_pos;
+			ms.capture_lens[level] = what;
+			ms.level = level + 1;
+			int res = next.Match(ms, src_pos);
+			if (res == NULL)
+				ms.level--;
+			return res;
+		}
+	}
+	private static final class Capture_end extends Str_matcher {
+		private final Str_matcher next;
+		Capture_end(Str_matcher next) {this.next = next;}
+		int Match(Match_state ms, int src_pos) {
+			int l = ms.capture_to_close();
+			ms.capture_lens[l] = src_pos - ms.capture_bgns[l];
+			int res = next.Match(ms, src_pos);
+			if (res == NULL)
+				ms.capture_lens[l] = Match_state.CAP_UNFINISHED;
+			return res;
+		}
+	}
+	private static final class Balance extends Str_matcher {
+		private final int bgn, end;
+		private final Str_matcher next;
+		Balance(int bgn, int end, Str_matcher next) {this.bgn = bgn; this.end = end; this.next = next;}
+		int Match(Match_state ms, int src_pos) {
+			Char_source src = ms.src;
+			int src_len = ms.src_len;
+			if (src_pos >= src_len || src.Get_data(src_pos) != bgn) return NULL;
+			int count = 1;
+			while (++src_pos < src_len) {
+				int c = src.Get_data(src_pos);
+				if (c == end) {
+					if (--count == 0)
+						return next.Match(ms, src_pos + 1);
+				}
+				else if (c == bgn)
+					count++;
+			}
+			return NULL;
+		}
+	}
+	private static final class Frontier extends Str_matcher {
+		private final Char_class cls;
+		private final Str_matcher next;
+		Frontier(Char_class cls, Str_matcher next) {this.cls = cls; this.next = next;}
+		int Match(Match_state ms, int src_pos) {
+			int previous = (src_pos == 0) ? -1 : ms.src.Get_data(src_pos - 1);
+			int cur = (src_pos == ms.src_len) ? '\0' : ms.src.Get_data(src_pos);
+			if (cls.Matches(ms, previous) || !cls.Matches(ms, cur))
+				return NULL;
+			return next.Match(ms, src_pos);
+		}
+	}
+	private static final class Back_reference extends Str_matcher {
+		private final int c;
+		private final Str_matcher next;
+		Back_reference(int c, Str_matcher next) {this.c = c; this.next = next;}
+		int Match(Match_state ms, int src_pos) {
+			src_pos = ms.match_capture(src_pos, c);
+			if (src_pos == NULL) return NULL;
+			return next.Match(ms, src_pos);
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package org.luaj.vm2.lib;
+
+import org.luaj.vm2.LuaString;
+import gplx.objects.strings.char_sources.*;
+
+/**
+ * Pre-parsed form of a lua pattern, shared through {@link Str_pattern_cache}.
+ * <p>
+ * Holds what {@link Str_find_mgr} and {@link Match_state} would otherwise recompute on every call:
+ * whether the pattern has special chars, the '^' anchor, the literal prefix, the number of captures,
+ * the end of each single-char class, and a bitset of the chars 0-255 matched by each '%x' or '[...]' class.
+ * <p>
+ * Instances are immutable, so they can be shared by threads.
+ * Data is indexed by pattern position and is only recorded for well-formed items;
+ * {@link Match_state} falls back to scanning the pattern for anything not recorded, so errors are raised as before.
+ */
+public final class Str_pattern {
+	final Object key;
+	final Class<?> char_class_mgr_type;
+	private final boolean specials;
+	private final boolean anchor;
+	private final int[] prefix;
+	private final int captures;
+	private final int[] class_ends;
+	private final long[][] class_bits;
+	private final boolean complete;
+	private Str_matcher matcher;	// NOTE: built on first use; racing threads build equal trees
+
+	Str_pattern(Object key, Char_source pat, Str_char_class_mgr char_class_mgr, boolean make_bits) {
+		this.key = key;
+		this.char_class_mgr_type = char_class_mgr.getClass();
+		int pat_len = pat.Len_in_data();
+		this.specials = Char_source_.Index_of_any(pat.Src(), Str_find_mgr.SPECIALS_ARY) != Str_find_mgr.Not_found;
+		this.anchor = pat_len > 0 && pat.Get_data(0) == '^';
+		this.class_ends = new int[pat_len];
+		this.class_bits = make_bits ? new long[pat_len][] : null;
+
+		// walk items the same way Match_state.match does; stop at anything malformed
+		int pat_pos = anchor ? 1 : 0;
+		int prefix_len = 0;
+		boolean prefix_done = false;
+		int capture_count = 0;
+		boolean complete = false;
+		while (true) {
+			if (pat_pos >= pat_len) {
+				complete = true;
+				break;
+			}
+			int c = pat.Get_data(pat_pos);
+			if (c == '(') {
+				capture_count++;
+				prefix_done = true;
+				pat_pos++;
+				if (pat_pos < pat_len && pat.Get_data(pat_pos) == ')') // position capture
+					pat_pos++;
+				continue;
+			}
+			else if (c == ')') {
+				prefix_done = true;
+				pat_pos++;
+				continue;
+			}
+			else if (c == StringLib.L_ESC) {
+				if (pat_pos + 1 == pat_len) break;
+				int esc = pat.Get_data(pat_pos + 1);
+				if (esc == 'b') {
+					if (pat_pos + 4 > pat_len) break;
+					prefix_done = true;
+					pat_pos += 4;
+					continue;
+				}
+				else if (esc == 'f') {
+					pat_pos += 2;
+					if (pat_pos >= pat_len || pat.Get_data(pat_pos) != '[') break;
+					int ep = Class_end(pat, pat_pos, pat_len);
+					if (ep == Str_find_mgr.Not_found) break;
+					Class__add(pat, char_class_mgr, pat_pos, ep);
+					prefix_done = true;
+					pat_pos = ep;
+					continue;
+				}
+				else if (Character.isDigit((char)esc)) {
+					prefix_done = true;
+					pat_pos += 2;
+					continue;
+				}
+			}
+			else if (c == '$' && pat_pos + 1 == pat_len) {
+				complete = true;
+				break;
+			}
+
+			// single char class, with optional quantifier
+			int ep = Class_end(pat, pat_pos, pat_len);
+			if (ep == Str_find_mgr.Not_found) break;
+			Class__add(pat, char_class_mgr, pat_pos, ep);
+			int quantifier = ep < pat_len ? pat.Get_data(ep) : '\0';
+			boolean quantified = quantifier == '?' || quantifier == '*' || quantifier == '+' || quantifier == '-';
+			if (!prefix_done) {
+				if (ep == pat_pos + 1 && !quantified && SPECIALS_LITERAL.indexOf(c) == -1)
+					prefix_len++;
+				else
+					prefix_done = true;
+			}
+			pat_pos = quantified ? ep + 1 : ep;
+		}
+		this.complete = complete;
+		this.captures = complete ? capture_count : Match_state.MAX_CAPTURES;
+		int prefix_bgn = anchor ? 1 : 0;
+		this.prefix = new int[prefix_len];
+		for (int i = 0; i < prefix_len; i++)
+			prefix[i] = pat.Get_data(prefix_bgn + i);
+	}
+
+	/** True if the pattern has any of the special chars, in which case find cannot do a plain search. */
+	public boolean Has_specials() {return specials;}
+
+	/** True if the pattern starts with '^'. */
+	public boolean Anchor() {return anchor;}
+
+	/** Number of literal chars every match must start with; 0 if the pattern starts with a class, quantifier, or capture. */
+	public int Prefix_len() {return prefix.length;}
+
+	/** Number of captures in the pattern; {@link Match_state#MAX_CAPTURES} if the pattern could not be fully parsed. */
+	public int Captures() {return captures;}
+
+	/** True if every item was parsed; false if the pattern is malformed. */
+	public boolean Complete() {return complete;}
+
+	/** Return the matcher tree for the pattern after any '^', or null if the pattern is not cached or cannot be compiled. */
+	Str_matcher Matcher(Char_source pat, Str_char_class_mgr char_class_mgr) {
+		Str_matcher rv = matcher;
+		if (rv == null) {
+			rv = key == null ? null : Str_matcher.Compile(pat, this, char_class_mgr, anchor ? 1 : 0);
+			matcher = rv = rv == null ? Str_matcher.NONE : rv;
+		}
+		return rv == Str_matcher.NONE ? null : rv;
+	}
+
+	/** Return the end of the single char class starting at pat_pos, or 0 if it was not recorded. */
+	int Class_end(int pat_pos) {return class_ends[pat_pos];}
+
+	/** Return the bitset of chars 0-255 matched by the '%x' or '[...]' class at pat_pos, or null if there is none. */
+	long[] Class_bits(int pat_pos) {return class_bits == null ? null : class_bits[pat_pos];}
+
+	/** Return the first position at or after src_pos where src starts with the literal prefix, or {@link Str_find_mgr#Not_found}.
+	 *  Only meaningful for patterns that are not anchored and have a {@link #Prefix_len()} > 0. */
+	public int Find_prefix(Char_source src, int src_pos, int src_len) {
+		int[] prefix = this.prefix;
+		int prefix_len = prefix.length;
+		int first = prefix[0];
+		int last = src_len - prefix_len;
+		for (; src_pos <= last; src_pos++) {
+			if (src.Get_data(src_pos) != first) continue;
+			int i = 1;
+			while (i < prefix_len && src.Get_data(src_pos + i) == prefix[i])
+				i++;
+			if (i == prefix_len) return src_pos;
+		}
+		return Str_find_mgr.Not_found;
+	}
+
+	private void Class__add(Char_source pat, Str_char_class_mgr char_class_mgr, int pat_pos, int ep) {
+		class_ends[pat_pos] = ep;
+		if (class_bits == null) return;
+		int c = pat.Get_data(pat_pos);
+		long[] bits;
+		if (c == StringLib.L_ESC) {
+			int cls = pat.Get_data(pat_pos + 1);
+			bits = new long[4];
+			for (int cp = 0; cp < 256; cp++)
+				if (char_class_mgr.Match_class(cp, cls))
+					bits[cp >> 6] |= 1L << cp;
+		}
+		else if (c == '[') {
+			bits = new long[4];
+			for (int cp = 0; cp < 256; cp++)
+				if (Match_bracket_class(pat, char_class_mgr, cp, pat_pos, ep - 1))
+					bits[cp >> 6] |= 1L << cp;
+		}
+		else
+			return;
+		class_bits[pat_pos] = bits;
+	}
+
+	/** Same as Match_state.classend, but returns {@link Str_find_mgr#Not_found} instead of raising an error for a malformed class. */
+	private static int Class_end(Char_source pat, int pat_pos, int pat_len) {
+		switch (pat.Get_data(pat_pos++)) {
+			case StringLib.L_ESC:
+				if (pat_pos == pat_len) return Str_find_mgr.Not_found;
+				return pat_pos + 1;
+			case '[':
+				if (pat_pos < pat_len && pat.Get_data(pat_pos) == '^')
+					pat_pos++;
+				do {
+					if (pat_pos >= pat_len) return Str_find_mgr.Not_found;
+					if (pat.Get_data(pat_pos++) == StringLib.L_ESC && pat_pos != pat_len)
+						pat_pos++;
+				} while (pat_pos < pat_len && pat.Get_data(pat_pos) != ']');
+				if (pat_pos >= pat_len) return Str_find_mgr.Not_found;
+				return pat_pos + 1;
+			default:
+				return pat_pos;
+		}
+	}
+
+	/** Test cur against the bracket class "[...]" starting at pat_pos, where ep is the position of the closing ']'. */
+	static boolean Match_bracket_class(Char_source pat, Str_char_class_mgr char_class_mgr, int cur, int pat_pos, int ep) {
+		boolean sig = true;
+		if (pat.Get_data(pat_pos + 1) == '^') {
+			sig = false;
+			pat_pos++;
+		}
+		while (++pat_pos < ep) {
+			if (pat.Get_data(pat_pos) == StringLib.L_ESC) {
+				pat_pos++;
+				if (char_class_mgr.Match_class(cur, pat.Get_data(pat_pos)))
+					return sig;
+			}
+			else if ((pat.Get_data(pat_pos + 1) == '-') && (pat_pos + 2 < ep)) {
+				pat_pos += 2;
+				if (pat.Get_data(pat_pos - 2) <= cur && cur <= pat.Get_data(pat_pos))
+					return sig;
+			}
+			else if (pat.Get_data(pat_pos) == cur) return sig;
+		}
+		return !sig;
+	}
+
+	/** Chars that never match themselves when they start an item. */
+	private static final String SPECIALS_LITERAL = "^$*+?.([%-)]";
+
+	/** Return the key used to cache pat: a LuaString that does not share a larger backing array, or the String for other sources. */
+	static Object Key(Char_source pat) {
+		if (pat instanceof LuaString) {
+			LuaString s = (LuaString)pat;
+			return s.m_offset == 0 && s.m_bytes.length == s.m_length ? s : LuaString.valueOfCopy(s.m_bytes, s.m_offset, s.m_length);
+		}
+		return pat.Src();
+	}
+}
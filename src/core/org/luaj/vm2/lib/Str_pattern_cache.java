@@ -0,0 +1,56 @@
+package org.luaj.vm2.lib;
+
+import org.luaj.vm2.LuaString;
+import gplx.objects.strings.char_sources.*;
+
+/**
+ * Bounded cache of {@link Str_pattern}s, keyed by pattern text and {@link Str_char_class_mgr} type.
+ * <p>
+ * The cache is a direct-mapped table: a new pattern replaces whatever was in its slot.
+ * Entries are immutable, so the cache may be shared by all threads without locking;
+ * races between threads at worst lose an entry.
+ * Patterns longer than {@link #max_len} are parsed on every call and never cached.
+ * <p>
+ * The cache used by string.find, match, gmatch and gsub is {@link #Instance}.
+ */
+public final class Str_pattern_cache {
+	private final Str_pattern[] entries;
+	private final int mask;
+	public final int max_len;
+
+	/**
+	 * @param size number of entries, rounded up to a power of 2
+	 * @param max_len length of the longest pattern to cache
+	 */
+	public Str_pattern_cache(int size, int max_len) {
+		int n = 1;
+		while (n < size)
+			n <<= 1;
+		this.entries = new Str_pattern[n];
+		this.mask = n - 1;
+		this.max_len = max_len;
+	}
+
+	/** Return the parsed form of pat for the given char class manager, parsing it on a miss. */
+	public Str_pattern Get(Char_source pat, Str_char_class_mgr char_class_mgr) {
+		if (pat.Len_in_data() > max_len)
+			return new Str_pattern(null, pat, char_class_mgr, false);	// NOTE: skip class bitsets; they cost more than they save for a pattern used once
+		Object key = pat instanceof LuaString ? (Object)pat : pat.Src();
+		Class<?> type = char_class_mgr.getClass();
+		int idx = (key.hashCode() * 31 + type.hashCode()) & mask;
+		Str_pattern rv = entries[idx];
+		if (rv != null && rv.char_class_mgr_type == type && rv.key.equals(key))
+			return rv;
+		rv = new Str_pattern(Str_pattern.Key(pat), pat, char_class_mgr, true);
+		entries[idx] = rv;
+		return rv;
+	}
+
+	/** Remove all entries. */
+	public void Clear() {
+		java.util.Arrays.fill(entries, null);
+	}
+
+	/** Shared cache; may be replaced to change its size. */
+	public static Str_pattern_cache Instance = new Str_pattern_cache(256, 256);
+}
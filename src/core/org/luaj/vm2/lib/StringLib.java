@@ -529,16 +529,28 @@ public class StringLib extends TwoArgFunction {
 		private final int srclen;
 //		private final MatchState ms_old;
 		private final Match_state ms_new;
+		private final LuaString src;
+		private final Str_pattern pattern;
 		private int soffset;
 		public GMatchAux(Varargs args, LuaString src, LuaString pat) {
 			this.srclen = src.length();
+			this.src = src;
 			Str_find_mgr__lua find_mgr = new Str_find_mgr__lua(src, pat, 0, false, false);
 			this.ms_new = new Match_state(find_mgr);
+			// XOWA.PERF: skip to the literal prefix; note that gmatch treats a leading '^' as a literal, so only for unanchored patterns
+			this.pattern = find_mgr.Pattern().Anchor() || find_mgr.Pattern().Prefix_len() == 0 ? null : find_mgr.Pattern();
 //			this.ms_old = new MatchState(args, src, pat);
 			this.soffset = 0;
 		}
 		public Varargs invoke(Varargs args) {
 			for ( ; soffset<=srclen; soffset++ ) {
+				if ( pattern != null ) {
+					soffset = pattern.Find_prefix( src, soffset, srclen );
+					if ( soffset == -1 ) {
+						soffset = srclen + 1;
+						break;
+					}
+				}
 //				ms_old.reset();
 				ms_new.reset();
 //				int res_old = ms_old.match(soffset, 0);
@@ -610,17 +622,24 @@ public class StringLib extends TwoArgFunction {
 		LuaString p = args.checkstring( 2 );
 		LuaValue repl = args.arg( 3 );
 		int max_s = args.optint( 4, srclen + 1 );
-		final boolean anchor = p.length() > 0 && p.charAt( 0 ) == '^';
 		
 //		Buffer lbuf_old = new Buffer( srclen );
 //		MatchState ms_old = new MatchState( args, src, p );
-		Buffer lbuf = new Buffer( srclen );
 		Str_find_mgr__lua find_mgr = new Str_find_mgr__lua(src, p, 0, false, false);
 		Match_state ms_new = new Match_state(find_mgr);
+		Str_pattern pattern = find_mgr.Pattern();
+		final boolean anchor = pattern.Anchor();
+		final boolean skip_to_prefix = !anchor && pattern.Prefix_len() > 0;
 		
+		// XOWA.PERF: unmatched text is not copied char by char; runs between matches are copied in bulk when the next match is added
+		GsubResult rv = null;
 		int soffset = 0;
 		int n = 0;
 		while ( n < max_s ) {
+			if ( skip_to_prefix ) {	// XOWA.PERF: no match can start before the next occurrence of the literal prefix
+				soffset = pattern.Find_prefix( src, soffset, srclen );
+				if ( soffset == -1 ) break;
+			}
 //			ms_old.reset();
 			ms_new.reset();
 //			int res_old = ms_old.match( soffset, anchor ? 1 : 0 );
@@ -630,24 +649,101 @@ public class StringLib extends TwoArgFunction {
 //			}
 			if ( res != -1 ) {
 				n++;
+				if ( rv == null ) rv = new GsubResult( src );
+				rv.add_match( ms_new, soffset, res, repl );
 //				ms_old.add_value( lbuf_old, soffset, res, repl );
-				ms_new.add_value( lbuf, soffset, res, repl );
 			}
 			if ( res != -1 && res > soffset )
 				soffset = res;
-			else if ( soffset < srclen ) {
-//				lbuf_old.append( (byte) src.luaByte( soffset) );
-				lbuf.append( (byte) src.luaByte( soffset++ ) );
-			}
+			else if ( soffset < srclen )
+				soffset++;
 			else
 				break;
 			if ( anchor )
 				break;
 			if (soffset > srclen) break; // XOWA:assert soffset is in bounds, else will throw ArrayIndexOutOfBounds exception; DATE:2016-09-20
 		}
-		lbuf.append( src.substring( soffset, srclen ) );
-		return varargsOf(lbuf.tostring(), valueOf(n));
+		if ( n == 0 ) return varargsOf(src, LuaValue.ZERO); // XOWA.PERF: nothing replaced; return original string
+		return varargsOf(rv.tostring(), valueOf(n));
+	}
+
+	/** 
+	 * Result of gsub: runs of unmatched source text and replacements, joined when done.
+	 * <p>
+	 * Sources shorter than {@link #GSUB_SEGMENT_MIN} are written to one {@link Buffer}. 
+	 * For longer sources, unmatched runs are kept as offsets into the source and 
+	 * the replacements are appended to one shared buffer, each recorded by its length; 
+	 * the result is then copied once into an array of its exact size, 
+	 * rather than into a buffer that grows by doubling and is copied again.
+	 */
+	static final class GsubResult {
+		private final LuaString src;
+		private final Buffer lbuf;
+		private Buffer rbuf;		// replacements, in order
+		private int[] run_offs;		// per match: unmatched source run before it, then its replacement length 
+		private int[] run_lens;
+		private int[] repl_lens;
+		private int match_count;
+		private int src_copied;	// end of the source text that has been added
+		GsubResult( LuaString src ) {
+			this.src = src;
+			if ( src.m_length < GSUB_SEGMENT_MIN ) {
+				this.lbuf = new Buffer( src.m_length );
+			} else {
+				this.lbuf = null;
+				this.rbuf = new Buffer();
+				this.run_offs = new int[64];
+				this.run_lens = new int[64];
+				this.repl_lens = new int[64];
+			}
+		}
+		/** Add the unmatched source text before soffset, then the replacement for the match from soffset to end. */
+		void add_match( Match_state ms, int soffset, int end, LuaValue repl ) {
+			if ( lbuf != null ) {
+				lbuf.append( src, src_copied, soffset - src_copied );
+				ms.add_value( lbuf, soffset, end, repl );
+			} else {
+				if ( match_count == run_offs.length ) {
+					int n = match_count * 2;
+					run_offs = java.util.Arrays.copyOf( run_offs, n );
+					run_lens = java.util.Arrays.copyOf( run_lens, n );
+					repl_lens = java.util.Arrays.copyOf( repl_lens, n );
+				}
+				int rbuf_len = rbuf.length();
+				ms.add_value( rbuf, soffset, end, repl );
+				run_offs[match_count] = src_copied;
+				run_lens[match_count] = soffset - src_copied;
+				repl_lens[match_count] = rbuf.length() - rbuf_len;
+				match_count++;
+			}
+			src_copied = end;
+		}
+		/** Add the rest of the source and return the result. */
+		LuaString tostring() {
+			int rest = src.m_length - src_copied;
+			if ( lbuf != null ) {
+				lbuf.append( src, src_copied, rest );
+				return lbuf.tostring();
+			}
+			LuaString repls = rbuf.tostring();
+			int len = repls.m_length + rest;
+			for ( int i = 0; i < match_count; i++ )
+				len += run_lens[i];
+			byte[] bytes = new byte[len];
+			int pos = 0, repl_pos = 0;
+			for ( int i = 0; i < match_count; i++ ) {
+				src.copyInto( run_offs[i], bytes, pos, run_lens[i] );
+				pos += run_lens[i];
+				repls.copyInto( repl_pos, bytes, pos, repl_lens[i] );
+				pos += repl_lens[i];
+				repl_pos += repl_lens[i];
+			}
+			src.copyInto( src_copied, bytes, pos, rest );
+			return LuaString.valueUsing( bytes );
+		}
 	}
+	/** Length of the shortest gsub source whose result is built from segments; see {@link GsubResult}. */
+	static int GSUB_SEGMENT_MIN = 256 * 1024;
 	
 	/** 
 	 * string.len (s)
@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.vm2.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LocVars;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Upvaldesc;
+
+/**
+ * Class to load a lua binary chunk from a memory-mapped file,
+ * reading each part of it only when it is first needed.
+ * <p>
+ * Loading a function reads its code, constants and upvalues,
+ * but only skips over the functions defined inside it and its line and local variable info.
+ * Those are read from the mapped chunk by {@link Prototype#getp(int)},
+ * {@link Prototype#getlineinfo()} and {@link Prototype#getlocvars()},
+ * which is when a closure is made for the function, or an error or the debug library
+ * needs the line or local variable info.
+ * <p>
+ * The chunk is in the same format as is read by {@link LoadState} and written by {@link DumpState}:
+ * <pre> {@code
+ * Prototype p = MappedLoadState.load(new File("bundle.luac"), "bundle.lua");
+ * LuaClosure c = new LuaClosure(p, globals);
+ * c.call();
+ * } </pre>
+ *
+ * @see LoadState
+ * @see DumpState
+ * @see Prototype#lazy
+ */
+public class MappedLoadState {
+
+	private static final LuaValue[]     NOVALUES    = {};
+	private static final Prototype[] NOPROTOS    = {};
+	private static final LocVars[]   NOLOCVARS   = {};
+	private static final Upvaldesc[]  NOUPVALDESCS = {};
+	private static final int[]       NOINTS      = {};
+
+	/** size of header of binary files, including the signature */
+	private static final int HEADERSIZE = 4 + 8 + 6;
+
+	/** the chunk, starting at its signature, in the byte order of the chunk */
+	private final ByteBuffer buf;
+
+	private final int luacSizeofSizeT;
+	private final int luacNumberFormat;
+
+	private MappedLoadState(ByteBuffer buf, int luacSizeofSizeT, int luacNumberFormat) {
+		this.buf = buf;
+		this.luacSizeofSizeT = luacSizeofSizeT;
+		this.luacNumberFormat = luacNumberFormat;
+	}
+
+	/**
+	 * Map a lua binary file and load its main function.
+	 * The file is only read as the parts of the chunk are needed, so it should not change after this.
+	 * @param file the file to map
+	 * @param chunkname Name to apply to the loaded chunk
+	 * @return {@link Prototype} that was loaded, or null if the file does not start with the lua signature.
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public static Prototype load(File file, String chunkname) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return undump(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), chunkname);
+		} finally {
+			raf.close();	// the mapping stays valid after the channel is closed
+		}
+	}
+
+	/**
+	 * Load the main function of a lua binary chunk held in a buffer, from its position to its limit.
+	 * @param buf the chunk
+	 * @param chunkname Name to apply to the loaded chunk
+	 * @return {@link Prototype} that was loaded, or null if the chunk does not start with the lua signature.
+	 */
+	public static Prototype undump(ByteBuffer buf, String chunkname) {
+		buf = buf.slice();
+		if ( buf.limit() < HEADERSIZE )
+			return null;
+		for ( int i=0; i<LoadState.LUA_SIGNATURE.length; i++ )
+			if ( buf.get(i) != LoadState.LUA_SIGNATURE[i] )
+				return null;
+
+		// header: version, format, endianness, sizes of int, size_t, instruction and number, number format, tail
+		boolean littleEndian = buf.get(6) != 0;
+		int sizeofSizeT = buf.get(8);
+		int numberFormat = buf.get(11);
+		for ( int i=0; i<LoadState.LUAC_TAIL.length; ++i )
+			if ( buf.get(12 + i) != LoadState.LUAC_TAIL[i] )
+				throw new LuaError("Unexpeted byte in luac tail of header, index="+i);
+		switch ( numberFormat ) {
+		case LoadState.NUMBER_FORMAT_FLOATS_OR_DOUBLES:
+		case LoadState.NUMBER_FORMAT_INTS_ONLY:
+		case LoadState.NUMBER_FORMAT_NUM_PATCH_INT32:
+			break;
+		default:
+			throw new LuaError("unsupported int size");
+		}
+		buf.order(littleEndian? ByteOrder.LITTLE_ENDIAN: ByteOrder.BIG_ENDIAN);
+		MappedLoadState s = new MappedLoadState(buf, sizeofSizeT, numberFormat);
+		return s.loadFunction(new Reader(s, HEADERSIZE));
+	}
+
+	/**
+	 * Load a function prototype, skipping over its nested functions and debug info
+	 * @return {@link Prototype} instance that was loaded
+	 */
+	Prototype loadFunction(Reader r) {
+		Prototype f = new Prototype();
+		f.linedefined = r.loadInt();
+		f.lastlinedefined = r.loadInt();
+		f.numparams = r.loadUnsignedByte();
+		f.is_vararg = r.loadUnsignedByte();
+		f.maxstacksize = r.loadUnsignedByte();
+		f.code = r.loadIntArray();
+
+		int n = r.loadInt();
+		LuaValue[] values = n>0? new LuaValue[n]: NOVALUES;
+		for ( int i=0; i<n; i++ ) {
+			switch ( r.loadByte() ) {
+			case LoadState.LUA_TNIL:
+				values[i] = LuaValue.NIL;
+				break;
+			case LoadState.LUA_TBOOLEAN:
+				values[i] = (0 != r.loadUnsignedByte()? LuaValue.TRUE: LuaValue.FALSE);
+				break;
+			case LoadState.LUA_TINT:
+				values[i] = LuaInteger.valueOf( r.loadInt() );
+				break;
+			case LoadState.LUA_TNUMBER:
+				values[i] = r.loadNumber();
+				break;
+			case LoadState.LUA_TSTRING:
+				values[i] = r.loadString();
+				break;
+			default:
+				throw new IllegalStateException("bad constant");
+			}
+		}
+		f.k = values;
+
+		n = r.loadInt();
+		int[] protos = new int[n];
+		f.p = n>0? new Prototype[n]: NOPROTOS;
+		for ( int i=0; i<n; i++ ) {
+			protos[i] = r.pos;
+			r.skipFunction();
+		}
+
+		n = r.loadInt();
+		f.upvalues = n>0? new Upvaldesc[n]: NOUPVALDESCS;
+		for ( int i=0; i<n; i++ ) {
+			boolean instack = r.loadByte() != 0;
+			int idx = r.loadUnsignedByte();
+			f.upvalues[i] = new Upvaldesc(null, instack, idx);
+		}
+
+		// debug info: only the source and upvalue names are read now
+		int debug = r.pos;
+		f.source = r.loadString();
+		r.skipIntArray();
+		r.skipLocVars();
+		n = r.loadInt();
+		for ( int i=0; i<n; i++ )
+			f.upvalues[i].name = r.loadString();
+
+		f.lazy = new Skipped(this, protos, debug);
+		return f;
+	}
+
+	/** Positions of the parts of a prototype that were skipped */
+	private static final class Skipped implements Prototype.Lazy {
+		private final MappedLoadState s;
+		private final int[] protos;
+		private final int debug;
+		Skipped(MappedLoadState s, int[] protos, int debug) {
+			this.s = s;
+			this.protos = protos;
+			this.debug = debug;
+		}
+		public Prototype loadp(Prototype f, int i) {
+			return s.loadFunction(new Reader(s, protos[i]));
+		}
+		public void loaddebug(Prototype f) {
+			Reader r = new Reader(s, debug);
+			r.skipString();
+			int[] lineinfo = r.loadIntArray();
+			int n = r.loadInt();
+			LocVars[] locvars = n>0? new LocVars[n]: NOLOCVARS;
+			for ( int i=0; i<n; i++ ) {
+				LuaString varname = r.loadString();
+				int startpc = r.loadInt();
+				int endpc = r.loadInt();
+				locvars[i] = new LocVars(varname, startpc, endpc);
+			}
+			f.locvars = locvars;
+			f.lineinfo = lineinfo;
+		}
+	}
+
+	/** Cursor into the chunk; each load uses its own, since the parts of a chunk may be loaded on several threads */
+	private static final class Reader {
+		private final MappedLoadState s;
+		private final ByteBuffer buf;
+		int pos;
+		Reader(MappedLoadState s, int pos) {
+			this.s = s;
+			this.buf = s.buf;
+			this.pos = pos;
+		}
+		int loadByte() {
+			return buf.get(pos++);
+		}
+		int loadUnsignedByte() {
+			return buf.get(pos++) & 0xff;
+		}
+		int loadInt() {
+			int v = buf.getInt(pos);
+			pos += 4;
+			return v;
+		}
+		int[] loadIntArray() {
+			int n = loadInt();
+			if ( n == 0 )
+				return NOINTS;
+			int[] array = new int[n];
+			for ( int i=0; i<n; i++, pos+=4 )
+				array[i] = buf.getInt(pos);
+			return array;
+		}
+		void skipIntArray() {
+			int n = loadInt();
+			pos += n << 2;
+		}
+		int loadSize() {
+			if ( s.luacSizeofSizeT != 8 )
+				return loadInt();
+			long v = buf.getLong(pos);
+			pos += 8;
+			return (int) v;
+		}
+		LuaString loadString() {
+			int size = loadSize();
+			if ( size == 0 )
+				return null;
+			byte[] bytes = new byte[size];
+			ByteBuffer d = buf.duplicate();
+			d.position(pos);
+			d.get(bytes, 0, size);
+			pos += size;
+			return LuaString.valueOf( bytes, 0, bytes.length - 1 );
+		}
+		void skipString() {
+			int size = loadSize();
+			pos += size;
+		}
+		LuaValue loadNumber() {
+			if ( s.luacNumberFormat == LoadState.NUMBER_FORMAT_INTS_ONLY )
+				return LuaInteger.valueOf( loadInt() );
+			long bits = buf.getLong(pos);
+			pos += 8;
+			return LoadState.longBitsToLuaNumber( bits );
+		}
+		void skipLocVars() {
+			int n = loadInt();
+			for ( int i=0; i<n; i++ ) {
+				skipString();
+				pos += 8;
+			}
+		}
+		/** Move past a function without creating anything */
+		void skipFunction() {
+			pos += 4 + 4 + 3;
+			skipIntArray();
+			int n = loadInt();
+			for ( int i=0; i<n; i++ ) {
+				switch ( loadByte() ) {
+				case LoadState.LUA_TNIL: break;
+				case LoadState.LUA_TBOOLEAN: pos += 1; break;
+				case LoadState.LUA_TINT: pos += 4; break;
+				case LoadState.LUA_TNUMBER: pos += s.luacNumberFormat == LoadState.NUMBER_FORMAT_INTS_ONLY? 4: 8; break;
+				case LoadState.LUA_TSTRING: skipString(); break;
+				default: throw new IllegalStateException("bad constant");
+				}
+			}
+			n = loadInt();
+			for ( int i=0; i<n; i++ )
+				skipFunction();
+			n = loadInt();
+			pos += n * 2;
+			skipString();
+			skipIntArray();
+			skipLocVars();
+			n = loadInt();
+			for ( int i=0; i<n; i++ )
+				skipString();
+		}
+	}
+}
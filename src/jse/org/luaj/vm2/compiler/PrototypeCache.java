@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.vm2.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.Prototype;
+
+/**
+ * Compiler that keeps the {@link Prototype}s of compiled chunks in a directory,
+ * so that a later compile of the same source, in this or another JVM, only loads them.
+ * <p>
+ * Each entry is named by the SHA-1 of the chunk name and source,
+ * and holds the time the compile took followed by the chunk as written by {@link DumpState}.
+ * Entries are written to a temporary file and then renamed,
+ * so several JVMs may share one directory.
+ * Entries that cannot be read are compiled again, and entries that cannot be written are skipped.
+ * <p>
+ * To use a cache directory with the compiler already installed in a {@link Globals}:
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * PrototypeCache.install(globals, new File("luac-cache"));
+ * } </pre>
+ * @see Globals#compiler
+ * @see DumpState
+ * @see LoadState
+ */
+public class PrototypeCache implements Globals.Compiler {
+
+	/** Changed whenever the dump format or compiler output changes, so that old entries are not used. */
+	private static final String VERSION = "luaj-prototype-1";
+
+	private static final String SUFFIX = ".luac";
+
+	private final Globals.Compiler compiler;
+	private final File dir;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong compileNanos = new AtomicLong();
+	private final AtomicLong savedNanos = new AtomicLong();
+
+	/** Cache the prototypes compiled by {@code compiler} in the directory {@code dir}, which is created if needed. */
+	public PrototypeCache(Globals.Compiler compiler, File dir) {
+		this.compiler = compiler;
+		this.dir = dir;
+		dir.mkdirs();
+	}
+
+	/** Wrap the compiler installed in {@code globals} with a cache in the directory {@code dir}.
+	 * @return the installed cache, for reading its counts
+	 */
+	public static PrototypeCache install(Globals globals, File dir) {
+		PrototypeCache cache = new PrototypeCache(globals.compiler, dir);
+		globals.compiler = cache;
+		return cache;
+	}
+
+	public Prototype compile(InputStream stream, String chunkname) throws IOException {
+		byte[] source = readAll(stream);
+		File file = new File(dir, key(chunkname, source) + SUFFIX);
+		if (file.isFile()) {
+			long t0 = System.nanoTime();
+			long[] nanos = new long[1];
+			Prototype p = read(file, chunkname, nanos);
+			if (p != null) {
+				hits.incrementAndGet();
+				savedNanos.addAndGet(nanos[0] - (System.nanoTime() - t0));
+				return p;
+			}
+		}
+		misses.incrementAndGet();
+		long t0 = System.nanoTime();
+		Prototype p = compiler.compile(new ByteArrayInputStream(source), chunkname);
+		long t = System.nanoTime() - t0;
+		compileNanos.addAndGet(t);
+		write(file, p, t);
+		return p;
+	}
+
+	/** Load an entry, or return null if it is missing or cannot be read.
+	 * @param nanos set to the compile time stored in the entry
+	 */
+	private Prototype read(File file, String chunkname, long[] nanos) {
+		try {
+			DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				nanos[0] = is.readLong();
+				return LoadState.instance.undump(is, chunkname);
+			} finally {
+				is.close();
+			}
+		} catch (Exception e) {
+			file.delete();
+			return null;
+		}
+	}
+
+	/** Write an entry to a temporary file in the cache directory, then rename it into place. */
+	private void write(File file, Prototype p, long nanos) {
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				os.writeLong(nanos);
+				DumpState.dump(p, os, false);
+			} finally {
+				os.close();
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			tmp = null;
+		} catch (IOException e) {
+			// the cache is only an optimization; compile again next time
+		} finally {
+			if (tmp != null)
+				tmp.delete();
+		}
+	}
+
+	private static String key(String chunkname, byte[] source) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		md.update(utf8(VERSION));
+		md.update((byte) 0);
+		md.update(utf8(chunkname));
+		md.update((byte) 0);
+		byte[] digest = md.digest(source);
+		StringBuffer sb = new StringBuffer(digest.length * 2);
+		for (int i = 0; i < digest.length; i++) {
+			sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(digest[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Read up to the first end of stream, one byte at a time as {@link LuaC} does, 
+	 * since a stream such as the one load() makes from a reader function may have more after it. 
+	 */
+	private static byte[] readAll(InputStream stream) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		for (int c; (c = stream.read()) != -1; )
+			baos.write(c);
+		return baos.toByteArray();
+	}
+
+	/** Number of compiles answered from the cache. */
+	public long getHits() { return hits.get(); }
+
+	/** Number of compiles that ran the wrapped compiler. */
+	public long getMisses() { return misses.get(); }
+
+	/** Fraction of compiles answered from the cache, or 0 if there were none. */
+	public double getHitRate() {
+		long h = hits.get(), n = h + misses.get();
+		return n == 0 ? 0 : (double) h / n;
+	}
+
+	/** Time spent in the wrapped compiler, in nanoseconds. */
+	public long getCompileNanos() { return compileNanos.get(); }
+
+	/** Time the hits saved: the compile time recorded in each entry, less the time taken to load it, in nanoseconds. */
+	public long getSavedNanos() { return savedNanos.get(); }
+
+	public String toString() {
+		return "PrototypeCache[" + dir + ", hits=" + getHits() + ", misses=" + getMisses()
+			+ ", compile ms=" + getCompileNanos() / 1000000 + ", saved ms=" + getSavedNanos() / 1000000 + "]";
+	}
+}
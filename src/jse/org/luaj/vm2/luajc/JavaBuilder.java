@@ -34,6 +34,8 @@ import org.apache.bcel.generic.ASTORE;
 import org.apache.bcel.generic.ArrayType;
 import org.apache.bcel.generic.BranchInstruction;
 import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.DLOAD;
+import org.apache.bcel.generic.DSTORE;
 import org.apache.bcel.generic.CompoundInstruction;
 import org.apache.bcel.generic.ConstantPoolGen;
 import org.apache.bcel.generic.FieldGen;
@@ -51,15 +53,20 @@ import org.apache.bcel.generic.ObjectType;
 import org.apache.bcel.generic.PUSH;
 import org.apache.bcel.generic.Type;
 import org.luaj.vm2.Buffer;
+import org.luaj.vm2.Globals;
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaBoolean;
+import org.luaj.vm2.LuaDouble;
+import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaInteger;
 import org.luaj.vm2.LuaNumber;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
+import org.luaj.vm2.UpValue;
 import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.MathLib;
 import org.luaj.vm2.lib.OneArgFunction;
 import org.luaj.vm2.lib.ThreeArgFunction;
 import org.luaj.vm2.lib.TwoArgFunction;
@@ -73,8 +80,13 @@ public class JavaBuilder {
 	private static final String STR_LUASTRING = LuaString.class.getName();
 	private static final String STR_LUAINTEGER = LuaInteger.class.getName();
 	private static final String STR_LUANUMBER = LuaNumber.class.getName();
+	private static final String STR_LUADOUBLE = LuaDouble.class.getName();
 	private static final String STR_LUABOOLEAN = LuaBoolean.class.getName();
 	private static final String STR_LUATABLE = LuaTable.class.getName();
+	private static final String STR_GLOBALS = Globals.class.getName();
+	private static final String STR_GETCACHE = LuaTable.GetCache.class.getName();
+	private static final String STR_UPVALUE = UpValue.class.getName();
+	private static final String STR_LUAERROR = LuaError.class.getName();
 	private static final String STR_BUFFER = Buffer.class.getName();
 	private static final String STR_STRING = String.class.getName();
 	private static final String STR_JSEPLATFORM = "org.luaj.vm2.lib.jse.JsePlatform";
@@ -86,12 +98,17 @@ public class JavaBuilder {
 	private static final ObjectType TYPE_LUANUMBER = new ObjectType(STR_LUANUMBER);
 	private static final ObjectType TYPE_LUABOOLEAN = new ObjectType(STR_LUABOOLEAN);
 	private static final ObjectType TYPE_LUATABLE = new ObjectType(STR_LUATABLE);
+	private static final ObjectType TYPE_GETCACHE = new ObjectType(STR_GETCACHE);
+	private static final ObjectType TYPE_UPVALUE = new ObjectType(STR_UPVALUE);
+	private static final ObjectType TYPE_LUAERROR = new ObjectType(STR_LUAERROR);
+	private static final ObjectType TYPE_GLOBALS = new ObjectType(STR_GLOBALS);
 	private static final ObjectType TYPE_BUFFER = new ObjectType(STR_BUFFER);
 	private static final ObjectType TYPE_STRING = new ObjectType(STR_STRING);
 	
 	private static final ArrayType TYPE_LOCALUPVALUE = new ArrayType( TYPE_LUAVALUE, 1 );
 	private static final ArrayType TYPE_CHARARRAY = new ArrayType( Type.CHAR, 1 );
 	private static final ArrayType TYPE_STRINGARRAY = new ArrayType( TYPE_STRING, 1 );
+	private static final ArrayType TYPE_GETCACHEARRAY = new ArrayType( TYPE_GETCACHE, 1 );
 
 
 	private static final String STR_FUNCV = VarArgFunction.class.getName();
@@ -104,6 +121,9 @@ public class JavaBuilder {
 	private static final Type[] ARG_TYPES_NONE = {};
 	private static final Type[] ARG_TYPES_INT =  { Type.INT };
 	private static final Type[] ARG_TYPES_DOUBLE = { Type.DOUBLE };
+	private static final Type[] ARG_TYPES_DOUBLE_DOUBLE = { Type.DOUBLE, Type.DOUBLE };
+	private static final Type[] ARG_TYPES_DOUBLE_DOUBLE_DOUBLE = { Type.DOUBLE, Type.DOUBLE, Type.DOUBLE };
+	private static final Type[] ARG_TYPES_DOUBLE_LUAVALUE = { Type.DOUBLE, TYPE_LUAVALUE };
 	private static final Type[] ARG_TYPES_STRING = { Type.STRING };
 	private static final Type[] ARG_TYPES_CHARARRAY = { TYPE_CHARARRAY };
 	private static final Type[] ARG_TYPES_INT_LUAVALUE = { Type.INT, TYPE_LUAVALUE };
@@ -120,6 +140,12 @@ public class JavaBuilder {
 	private static final Type[] ARG_TYPES_BUFFER = { TYPE_BUFFER };
 	private static final Type[] ARG_TYPES_STRINGARRAY = { TYPE_STRINGARRAY };
 	private static final Type[] ARG_TYPES_LUAVALUE_STRINGARRAY = { TYPE_LUAVALUE, TYPE_STRINGARRAY };
+	private static final Type[] ARG_TYPES_LUAVALUE_LUAVALUE_GETCACHEARRAY_INT = { TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_GETCACHEARRAY, Type.INT };
+	private static final Type[] ARG_TYPES_LUAVALUE_LUAVALUE_LUAVALUE_GETCACHEARRAY_INT = { TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_GETCACHEARRAY, Type.INT };
+	private static final Type[] ARG_TYPES_UPVALUEARRAY = { new ArrayType( TYPE_UPVALUE, 1 ) };
+	private static final Type[] ARG_TYPES_LUAERROR_LUAVALUE_STRING = { TYPE_LUAERROR, TYPE_LUAVALUE, Type.STRING };
+	private static final Type[] ARG_TYPES_GLOBALS = { TYPE_GLOBALS };
+	private static final Type[] ARG_TYPES_GLOBALS_INT = { TYPE_GLOBALS, Type.INT };
 
 	// names, arg types for main prototype classes
 	private static final String[]     SUPER_NAME_N   = { STR_FUNC0, STR_FUNC1, STR_FUNC2, STR_FUNC3, STR_FUNCV, };
@@ -136,6 +162,9 @@ public class JavaBuilder {
 	private static final String PREFIX_PLAIN_SLOT   = "s";
 	private static final String PREFIX_UPVALUE_SLOT = "a";
 	private static final String NAME_VARRESULT      = "v";
+	private static final String NAME_GETCACHE       = "getcache";
+	private static final String PREFIX_FORLOOP      = "f";
+	private static final String PREFIX_NUMBER       = "n";
 	
 	// basic info
 	private final ProtoInfo pi;
@@ -198,8 +227,7 @@ public class JavaBuilder {
 
 		// create the fields
 		for ( int i=0; i<p.upvalues.length; i++ ) {
-			boolean isrw = pi.isReadWriteUpvalue( pi.upvals[i] ); 
-			Type uptype = isrw? (Type) TYPE_LOCALUPVALUE: (Type) TYPE_LUAVALUE;
+			Type uptype = upvalueType( pi.upvals[i] );
 			FieldGen fg = new FieldGen(0, uptype, upvalueName(i), cp);
 			cg.addField(fg.getField());
 		}
@@ -259,6 +287,25 @@ public class JavaBuilder {
 				storeLocal(-1, slot);
 			}
 		}		
+		chargeBudget(p.code.length);
+	}
+
+	/** Catch LuaError around the whole function to set its file and line, as the interpreter does; see LuaError.fileline */
+	private void addErrorHandler() {
+		InstructionHandle start = main.getStart(), end = main.getEnd();
+		InstructionHandle handler = main.append(InstructionConstants.THIS);
+		main.append(new PUSH(cp, p.source != null? p.source.tojstring(): "?"));
+		main.append(factory.createInvoke(STR_LUAERROR, "fileline", TYPE_LUAERROR, ARG_TYPES_LUAERROR_LUAVALUE_STRING, Constants.INVOKESTATIC));
+		main.append(InstructionConstants.ATHROW);
+		mg.addExceptionHandler(start, end, handler, TYPE_LUAERROR);
+	}
+
+	/** Charge the budget of the Globals this was loaded with, if any, at entry and at backward branches, as the interpreter does */
+	private void chargeBudget(int n) {
+		append(InstructionConstants.THIS);
+		append(factory.createFieldAccess(classname, "budget", TYPE_GLOBALS, Constants.GETFIELD));
+		append(new PUSH(cp, n));
+		append(factory.createInvoke(STR_GLOBALS, "chargeBudget", Type.VOID, ARG_TYPES_GLOBALS_INT, Constants.INVOKESTATIC));
 	}
 	
 	public byte[] completeClass(boolean genmain) {
@@ -278,13 +325,14 @@ public class JavaBuilder {
 		cg.addEmptyConstructor(Constants.ACC_PUBLIC);
 		
 		// gen method
+		addErrorHandler();
 		resolveBranches();
 		mg.setMaxStack();
 		cg.addMethod(mg.getMethod());
 		main.dispose();
 
 		// add initupvalue1(LuaValue env) to initialize environment for main chunk 
-		if (p.upvalues.length == 1 && superclassType == SUPERTYPE_VARARGS) {
+		if (p.upvalues.length == 1 && superclassType == SUPERTYPE_VARARGS && !pi.tiered) {
 			MethodGen mg = new MethodGen( Constants.ACC_PUBLIC | Constants.ACC_FINAL, // access flags
 					Type.VOID, // return type
 					ARG_TYPES_LUAVALUE, // argument types
@@ -307,6 +355,28 @@ public class JavaBuilder {
 			main.dispose();
 		}
 		
+		// add initupvalues(UpValue[] upvalues) to share the upvalues of an interpreted closure
+		if (pi.tiered) {
+			MethodGen mg = new MethodGen( Constants.ACC_PUBLIC | Constants.ACC_FINAL, // access flags
+					Type.VOID, // return type
+					ARG_TYPES_UPVALUEARRAY, // argument types
+					new String[] { "upvalues" }, // arg names
+					"initupvalues", 
+					STR_LUAVALUE, // method, defining class
+					main, cp);
+			for ( int i=0; i<p.upvalues.length; i++ ) {
+				append(InstructionConstants.THIS);
+				append(new ALOAD(1));
+				append(new PUSH(cp, i));
+				append(InstructionConstants.AALOAD);
+				append(factory.createFieldAccess(classname, upvalueName(i), TYPE_UPVALUE, Constants.PUTFIELD));
+			}
+			append(InstructionConstants.RETURN);
+			mg.setMaxStack();
+			cg.addMethod(mg.getMethod());
+			main.dispose();
+		}
+		
 		// add main function so class is invokable from the java command line 
 		if (genmain) {
 			MethodGen mg = new MethodGen( Constants.ACC_PUBLIC | Constants.ACC_STATIC, // access flags
@@ -437,10 +507,17 @@ public class JavaBuilder {
 		return PREFIX_UPVALUE+upindex;
 	}
 	
+	private Type upvalueType(UpvalInfo u) {
+		return pi.tiered? (Type) TYPE_UPVALUE: pi.isReadWriteUpvalue( u )? (Type) TYPE_LOCALUPVALUE: (Type) TYPE_LUAVALUE;
+	}
+	
 	public void loadUpvalue(int upindex) {
 		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
 		append(InstructionConstants.THIS);
-		if ( isrw ) {
+		if ( pi.tiered ) {
+			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_UPVALUE, Constants.GETFIELD));
+			append(factory.createInvoke(STR_UPVALUE, "getValue", TYPE_LUAVALUE, ARG_TYPES_NONE, Constants.INVOKEVIRTUAL));
+		} else if ( isrw ) {
 			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LOCALUPVALUE, Constants.GETFIELD));
 			append(new PUSH(cp,0));
 			append(InstructionConstants.AALOAD);
@@ -452,7 +529,11 @@ public class JavaBuilder {
 	public void storeUpvalue(int pc, int upindex, int slot) {
 		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
 		append(InstructionConstants.THIS);
-		if ( isrw ) {
+		if ( pi.tiered ) {
+			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_UPVALUE, Constants.GETFIELD));
+			loadLocal(pc, slot);
+			append(factory.createInvoke(STR_UPVALUE, "setValue", Type.VOID, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
+		} else if ( isrw ) {
 			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LOCALUPVALUE, Constants.GETFIELD));
 			append(new PUSH(cp,0));
 			loadLocal(pc, slot);
@@ -511,6 +592,35 @@ public class JavaBuilder {
         append(factory.createInvoke(STR_LUAVALUE, "get", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
 	}
 	
+	private boolean hasGetCache;
+	
+	/** Get a table value by a constant string key, through an inline cache entry for this pc. */
+	public void getTableConstant(int pc) {
+		loadGetCache(pc);
+        append(factory.createInvoke(STR_LUATABLE, "getk", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE_GETCACHEARRAY_INT, Constants.INVOKESTATIC));
+	}
+	
+	/** Set a table value by a constant string key, through an inline cache entry for this pc. */
+	public void setTableConstant(int pc) {
+		loadGetCache(pc);
+        append(factory.createInvoke(STR_LUATABLE, "setk", Type.VOID, ARG_TYPES_LUAVALUE_LUAVALUE_LUAVALUE_GETCACHEARRAY_INT, Constants.INVOKESTATIC));
+	}
+	
+	/** Push the inline cache entries of this class, which has one per pc, and the pc. */
+	private void loadGetCache(int pc) {
+		if ( ! hasGetCache ) {
+			FieldGen fg = new FieldGen(Constants.ACC_STATIC | Constants.ACC_FINAL, 
+					TYPE_GETCACHEARRAY, NAME_GETCACHE, cp);
+			cg.addField(fg.getField());
+			init.append(new PUSH(cp, p.code.length));
+			init.append(new ANEWARRAY(cp.addClass(STR_GETCACHE)));
+			init.append(factory.createPutStatic(classname, NAME_GETCACHE, TYPE_GETCACHEARRAY));
+			hasGetCache = true;
+		}
+		append(factory.createGetStatic(classname, NAME_GETCACHE, TYPE_GETCACHEARRAY));
+		append(new PUSH(cp, pc));
+	}
+	
 	public void setTable() {
         append(factory.createInvoke(STR_LUAVALUE, "set", Type.VOID, ARG_TYPES_LUAVALUE_LUAVALUE, Constants.INVOKEVIRTUAL));
 	}
@@ -571,6 +681,128 @@ public class JavaBuilder {
 		append(factory.createInvoke(STR_LUAVALUE, "testfor_b", Type.BOOLEAN, ARG_TYPES_LUAVALUE_LUAVALUE, Constants.INVOKEVIRTUAL));
 	}
 
+	// --------------------- unboxed for-loop support -------------------------
+	
+	/** Allocate a local for an unboxed for-loop control value, returning its index. */
+	public int newForLoopLocal(int pc, String name) {
+		return mg.addLocalVariable(PREFIX_FORLOOP+pc+name, Type.DOUBLE, null, null).getIndex();
+	}
+	
+	public void loadDouble(int index) {
+		append(new DLOAD(index));
+	}
+	
+	public void storeDouble(int index) {
+		append(new DSTORE(index));
+	}
+
+	/** Replace the LuaValue on the stack with its double value, or throw a LuaError with message. */
+	public void checkNumberToDouble(String message) {
+		append(new PUSH(cp, message));
+		append(factory.createInvoke(STR_LUAVALUE, "checknumber", TYPE_LUANUMBER, ARG_TYPES_STRING, Constants.INVOKEVIRTUAL));
+		append(factory.createInvoke(STR_LUAVALUE, "todouble", Type.DOUBLE, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+	}
+	
+	public void forprepUnboxed(int index, int step) {
+		append(new DLOAD(index));
+		append(new DLOAD(step));
+		append(InstructionConstants.DSUB);
+		append(new DSTORE(index));
+	}
+
+	/** Advance an unboxed for-loop index, leaving the result of the end-condition test on the stack. */
+	public void forloopUnboxed(int index, int limit, int step) {
+		append(new DLOAD(index));
+		append(new DLOAD(step));
+		append(InstructionConstants.DADD);
+		append(new DSTORE(index));
+		append(new DLOAD(index));
+		append(new DLOAD(limit));
+		append(new DLOAD(step));
+		append(factory.createInvoke(STR_LUAVALUE, "testfor_b", Type.BOOLEAN, ARG_TYPES_DOUBLE_DOUBLE_DOUBLE, Constants.INVOKESTATIC));
+	}
+	
+	/** Box the double on the stack. */
+	public void valueOfDouble() {
+		append(factory.createInvoke(STR_LUAVALUE, "valueOf", TYPE_LUANUMBER, ARG_TYPES_DOUBLE, Constants.INVOKESTATIC));
+	}
+
+	public void getTableDouble() {
+		append(factory.createInvoke(STR_LUAVALUE, "get", TYPE_LUAVALUE, ARG_TYPES_DOUBLE, Constants.INVOKEVIRTUAL));
+	}
+	
+	public void setTableDouble() {
+		append(factory.createInvoke(STR_LUAVALUE, "set", Type.VOID, ARG_TYPES_DOUBLE_LUAVALUE, Constants.INVOKEVIRTUAL));
+	}
+
+	public void unaryopDouble(int o) { // OP_UNM only
+		append(InstructionConstants.DNEG);
+		valueOfDouble();
+	}
+	
+	/** Binary operation on a LuaValue and a double on the stack.
+	 * @param doubleIsLhs true if the double is the left hand operand, as in {@code i - x}  */
+	public void binaryopDouble(int o, boolean doubleIsLhs) {
+		String op;
+		switch (o) {
+			default: 
+			case Lua.OP_ADD: op = "add"; break;
+			case Lua.OP_SUB: op = doubleIsLhs? "subFrom": "sub"; break;
+			case Lua.OP_MUL: op = "mul"; break;
+			case Lua.OP_DIV: op = doubleIsLhs? "divInto": "div"; break;
+			case Lua.OP_MOD: op = doubleIsLhs? "modFrom": "mod"; break;
+			case Lua.OP_POW: op = doubleIsLhs? "powWith": "pow"; break;
+		}
+        append(factory.createInvoke(STR_LUAVALUE, op, TYPE_LUAVALUE, ARG_TYPES_DOUBLE, Constants.INVOKEVIRTUAL));
+	}
+
+	/** Allocate a local for the unboxed result of arithmetic at pc, returning its index. */
+	public int newNumberLocal(int pc) {
+		return mg.addLocalVariable(PREFIX_NUMBER+pc, Type.DOUBLE, null, null).getIndex();
+	}
+
+	public void loadDoubleConstant(double value) {
+		append(new PUSH(cp, value));
+	}
+
+	/** Arithmetic on two doubles on the stack, or one for OP_UNM, leaving an unboxed double. */
+	public void arithopDoubles(int o) {
+		switch (o) {
+			default: 
+			case Lua.OP_ADD: append(InstructionConstants.DADD); break;
+			case Lua.OP_SUB: append(InstructionConstants.DSUB); break;
+			case Lua.OP_MUL: append(InstructionConstants.DMUL); break;
+			case Lua.OP_DIV: append(factory.createInvoke(STR_LUADOUBLE, "ddiv_d", Type.DOUBLE, ARG_TYPES_DOUBLE_DOUBLE, Constants.INVOKESTATIC)); break;
+			case Lua.OP_MOD: append(factory.createInvoke(STR_LUADOUBLE, "dmod_d", Type.DOUBLE, ARG_TYPES_DOUBLE_DOUBLE, Constants.INVOKESTATIC)); break;
+			case Lua.OP_POW: append(factory.createInvoke(MathLib.class.getName(), "dpow_d", Type.DOUBLE, ARG_TYPES_DOUBLE_DOUBLE, Constants.INVOKESTATIC)); break;
+			case Lua.OP_UNM: append(InstructionConstants.DNEG); break;
+		}
+	}
+
+	/** Binary operation on two doubles on the stack, boxing the result. */
+	public void binaryopDoubles(int o) {
+		switch (o) {
+			default: 
+			case Lua.OP_ADD: append(InstructionConstants.DADD); valueOfDouble(); break;
+			case Lua.OP_SUB: append(InstructionConstants.DSUB); valueOfDouble(); break;
+			case Lua.OP_MUL: append(InstructionConstants.DMUL); valueOfDouble(); break;
+			case Lua.OP_DIV: append(factory.createInvoke(STR_LUADOUBLE, "ddiv", TYPE_LUAVALUE, ARG_TYPES_DOUBLE_DOUBLE, Constants.INVOKESTATIC)); break;
+			case Lua.OP_MOD: append(factory.createInvoke(STR_LUADOUBLE, "dmod", TYPE_LUAVALUE, ARG_TYPES_DOUBLE_DOUBLE, Constants.INVOKESTATIC)); break;
+		}
+	}
+
+	/** Comparison of a LuaValue and a double on the stack.
+	 * @param doubleIsLhs true if the double is the left hand operand, as in {@code i < x}  */
+	public void compareopDouble(int o, boolean doubleIsLhs) {
+		String op;
+		switch (o) {
+			default: 
+			case Lua.OP_LT: op = doubleIsLhs? "gt_b": "lt_b"; break;
+			case Lua.OP_LE: op = doubleIsLhs? "gteq_b": "lteq_b"; break;
+		}
+        append(factory.createInvoke(STR_LUAVALUE, op, Type.BOOLEAN, ARG_TYPES_DOUBLE, Constants.INVOKEVIRTUAL));
+	}
+
 	public void loadArrayArgs(int pc, int firstslot, int nargs) {
 		append(new PUSH(cp, nargs));
 		append(new ANEWARRAY(cp.addClass(STR_LUAVALUE)));
@@ -639,11 +871,14 @@ public class JavaBuilder {
 		append(factory.createNew(new ObjectType(protoname)));
 		append(InstructionConstants.DUP);
 		append(factory.createInvoke(protoname, "<init>", Type.VOID, Type.NO_ARGS, Constants.INVOKESPECIAL));
+		append(InstructionConstants.DUP);
+		append(InstructionConstants.THIS);
+		append(factory.createFieldAccess(classname, "budget", TYPE_GLOBALS, Constants.GETFIELD));
+		append(factory.createInvoke(protoname, "initbudget", Type.VOID, ARG_TYPES_GLOBALS, Constants.INVOKEVIRTUAL));
 	}
 
 	public void closureInitUpvalueFromUpvalue(String protoname, int newup, int upindex) {
-		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
-		Type uptype = isrw? (Type) TYPE_LOCALUPVALUE: (Type) TYPE_LUAVALUE;
+		Type uptype = upvalueType( pi.upvals[upindex] );
 		String srcname = upvalueName(upindex);
 		String destname = upvalueName(newup);
 		append(InstructionConstants.THIS);
@@ -657,6 +892,10 @@ public class JavaBuilder {
 		String destname = upvalueName(newup);
 		int index = findSlotIndex( srcslot, isrw );
 		append(new ALOAD(index));
+		if ( pi.tiered ) {
+			append(factory.createInvoke(classname, "newupv", TYPE_UPVALUE, isrw? ARG_TYPES_LUAVALUEARRAY: ARG_TYPES_LUAVALUE, Constants.INVOKESTATIC));
+			uptype = TYPE_UPVALUE;
+		}
 		append(factory.createFieldAccess(protoname, destname, uptype, Constants.PUTFIELD));
 	}
 	
@@ -744,6 +983,8 @@ public class JavaBuilder {
 	public static final int BRANCH_IFEQ = 3;
 	
 	public void addBranch( int pc, int branchType, int targetpc ) {
+		if ( targetpc <= pc )
+			chargeBudget(pc + 1 - targetpc);
 		switch ( branchType ) {
 		default: 
 		case BRANCH_GOTO: branches[pc]  = new GOTO(null); break;
@@ -23,6 +23,7 @@ package org.luaj.vm2.luajc;
 
 import org.luaj.vm2.LocVars;
 import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Upvaldesc;
 
@@ -36,19 +37,24 @@ public class JavaGen {
 	public final String classname;
 	public final byte[] bytecode;
 	public final JavaGen[] inners;
+	private ForLoop[] forloops;
+	private NumberVar[] numbers;
 	
 	public JavaGen( Prototype p, String classname, String filename, boolean genmain ) {
 		this( new ProtoInfo(p,classname), classname, filename, genmain );
 	}
 	
-	private JavaGen( ProtoInfo pi, String classname, String filename, boolean genmain ) {
+	JavaGen( ProtoInfo pi, String classname, String filename, boolean genmain ) {
 		this.classname = classname;
 		
 		// build this class
 		JavaBuilder builder = new JavaBuilder(pi, classname, filename);
+		this.forloops = findForLoops(pi, builder);
+		this.numbers = findNumberVars(pi, builder);
 		scanInstructions(pi, classname, builder);
-		for (int i = 0; i < pi.prototype.locvars.length; ++i) {
-			LocVars l = pi.prototype.locvars[i];
+		LocVars[] locvars = pi.prototype.getlocvars();
+		for (int i = 0; i < locvars.length; ++i) {
+			LocVars l = locvars[i];
 			builder.setVarStartEnd(i, l.startpc, l.endpc, l.varname.tojstring());
 		}
 		this.bytecode = builder.completeClass(genmain);
@@ -66,6 +72,7 @@ public class JavaGen {
 
 	private void scanInstructions(ProtoInfo pi, String classname, JavaBuilder builder) {
 		Prototype p = pi.prototype;
+		int[] lineinfo = p.getlineinfo();
 		int vresultbase = -1;
 		
 		for ( int bi=0; bi<pi.blocklist.length; bi++ ) {
@@ -83,13 +90,16 @@ public class JavaGen {
 				
 				final int pc0 = pc; // closure changes pc
 				final int ins = p.code[pc];
-				final int line = pc < p.lineinfo.length? p.lineinfo[pc]: -1;
+				final int line = pc < lineinfo.length? lineinfo[pc]: -1;
 				final int o = Lua.GET_OPCODE(ins);
 				int a = Lua.GETARG_A(ins);
 				int b = Lua.GETARG_B(ins);
 				int bx = Lua.GETARG_Bx(ins);
 				int sbx = Lua.GETARG_sBx(ins);
 				int c = Lua.GETARG_C(ins);
+				ForLoop f;
+				NumberVar n;
+				int d;
 	
 				switch ( o ) {	
 				case Lua.OP_GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
@@ -114,9 +124,19 @@ public class JavaGen {
 				case Lua.OP_UNM: /*	A B	R(A):= -R(B)					*/
 				case Lua.OP_NOT: /*	A B	R(A):= not R(B)				*/
 				case Lua.OP_LEN: /*	A B	R(A):= length of R(B)				*/
-					builder.loadLocal( pc, b );
-					builder.unaryop( o );
-					builder.storeLocal( pc, a );
+					if ( (n = findNumberDef( pc )) != null ) {
+						loadNumber( p, builder, pc, b );
+						builder.arithopDoubles( o );
+						storeNumber( builder, n );
+					} else if ( (d = findDouble( p, pc, b )) >= 0 ) {
+						builder.loadDouble( d );
+						builder.unaryopDouble( o );
+						builder.storeLocal( pc, a );
+					} else {
+						builder.loadLocal( pc, b );
+						builder.unaryop( o );
+						builder.storeLocal( pc, a );
+					}
 					break;
 					
 				case Lua.OP_LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
@@ -136,14 +156,19 @@ public class JavaGen {
 				case Lua.OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
 					builder.loadUpvalue( b );
 					loadLocalOrConstant( p, builder, pc, c );
-					builder.getTable();
+					getTable( p, builder, pc, c );
 					builder.storeLocal( pc, a );
 					break;
 
 				case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
 					builder.loadLocal( pc, b );
-					loadLocalOrConstant( p, builder, pc, c );
-					builder.getTable();
+					if ( (d = findDouble( p, pc, c )) >= 0 ) {
+						builder.loadDouble( d );
+						builder.getTableDouble();
+					} else {
+						loadLocalOrConstant( p, builder, pc, c );
+						getTable( p, builder, pc, c );
+					}
 					builder.storeLocal( pc, a );
 					break;
 					
@@ -151,14 +176,20 @@ public class JavaGen {
 					builder.loadUpvalue( a );
 					loadLocalOrConstant( p, builder, pc, b );
 					loadLocalOrConstant( p, builder, pc, c );
-					builder.setTable();
+					setTable( p, builder, pc, b );
 					break;
 	
 				case Lua.OP_SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
 					builder.loadLocal( pc, a );
-					loadLocalOrConstant( p, builder, pc, b );
-					loadLocalOrConstant( p, builder, pc, c );
-					builder.setTable();
+					if ( (d = findDouble( p, pc, b )) >= 0 ) {
+						builder.loadDouble( d );
+						loadLocalOrConstant( p, builder, pc, c );
+						builder.setTableDouble();
+					} else {
+						loadLocalOrConstant( p, builder, pc, b );
+						loadLocalOrConstant( p, builder, pc, c );
+						setTable( p, builder, pc, b );
+					}
 					break;
 					
 				case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
@@ -167,9 +198,32 @@ public class JavaGen {
 				case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
 				case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
 				case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
-					loadLocalOrConstant( p, builder, pc, b );
-					loadLocalOrConstant( p, builder, pc, c );
-					builder.binaryop( o );
+					if ( (n = findNumberDef( pc )) != null ) {
+						loadNumber( p, builder, pc, b );
+						loadNumber( p, builder, pc, c );
+						builder.arithopDoubles( o );
+						storeNumber( builder, n );
+						break;
+					}
+					if ( (d = findDouble( p, pc, b )) >= 0 ) {
+						if ( b == c ) {
+							builder.loadDouble( d );
+							builder.loadDouble( d );
+							builder.binaryopDoubles( o );
+						} else {
+							loadLocalOrConstant( p, builder, pc, c );
+							builder.loadDouble( d );
+							builder.binaryopDouble( o, true );
+						}
+					} else if ( (d = findDouble( p, pc, c )) >= 0 ) {
+						loadLocalOrConstant( p, builder, pc, b );
+						builder.loadDouble( d );
+						builder.binaryopDouble( o, false );
+					} else {
+						loadLocalOrConstant( p, builder, pc, b );
+						loadLocalOrConstant( p, builder, pc, c );
+						builder.binaryop( o );
+					}
 					builder.storeLocal( pc, a );
 					break;
 					
@@ -178,7 +232,7 @@ public class JavaGen {
 					builder.dup();
 					builder.storeLocal(pc, a+1);
 					loadLocalOrConstant( p, builder, pc, c );
-					builder.getTable();
+					getTable( p, builder, pc, c );
 					builder.storeLocal(pc, a);
 					break;
 					
@@ -215,9 +269,19 @@ public class JavaGen {
 				case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
 				case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
 				case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
-					loadLocalOrConstant( p, builder, pc, b );
-					loadLocalOrConstant( p, builder, pc, c );
-					builder.compareop(o);
+					if ( (d = findDouble( p, pc, b )) >= 0 ) {
+						loadLocalOrConstant( p, builder, pc, c );
+						builder.loadDouble( d );
+						builder.compareopDouble( o, true );
+					} else if ( (d = findDouble( p, pc, c )) >= 0 ) {
+						loadLocalOrConstant( p, builder, pc, b );
+						builder.loadDouble( d );
+						builder.compareopDouble( o, false );
+					} else {
+						loadLocalOrConstant( p, builder, pc, b );
+						loadLocalOrConstant( p, builder, pc, c );
+						builder.compareop(o);
+					}
 					builder.addBranch(pc, (a!=0? JavaBuilder.BRANCH_IFEQ: JavaBuilder.BRANCH_IFNE), pc+2);
 					break;
 	
@@ -329,24 +393,28 @@ public class JavaGen {
 					break;
 					
 				case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
+					f = findForLoop(pc);
 					builder.loadLocal(pc, a);
+					builder.checkNumberToDouble("'for' initial value must be a number");
+					builder.storeDouble(f.index);
+					builder.loadLocal(pc, a+1);
+					builder.checkNumberToDouble("'for' limit must be a number");
+					builder.storeDouble(f.limit);
 					builder.loadLocal(pc, a+2);
-					builder.binaryop( Lua.OP_SUB );
-					builder.storeLocal(pc, a);
+					builder.checkNumberToDouble("'for' step must be a number");
+					builder.storeDouble(f.step);
+					builder.forprepUnboxed(f.index, f.step);
 					builder.addBranch(pc, JavaBuilder.BRANCH_GOTO, pc+1+sbx);
 					break;
 					
 				case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
-					builder.loadLocal(pc, a);
-					builder.loadLocal(pc, a+2);
-					builder.binaryop( Lua.OP_ADD );
-					builder.dup();
-					builder.dup();
-					builder.storeLocal(pc, a);
-					builder.storeLocal(pc, a+3);
-					builder.loadLocal(pc, a+1); // limit
-					builder.loadLocal(pc, a+2); // step
-					builder.testForLoop();
+					f = findForLoop(pc+sbx);
+					builder.forloopUnboxed(f.index, f.limit, f.step);
+					if ( f.boxed ) {
+						builder.loadDouble(f.index);
+						builder.valueOfDouble();
+						builder.storeLocal(pc, a+3);
+					}
 					builder.addBranch(pc, JavaBuilder.BRANCH_IFNE, pc+1+sbx);
 					break;
 				
@@ -389,7 +457,7 @@ public class JavaGen {
 					
 				case Lua.OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))	*/
 				{
-					Prototype newp = p.p[bx];
+					Prototype newp = p.getp(bx);
 					int nup = newp.upvalues.length;
 					String protoname = pi.subprotos[bx].name;
 					builder.closureCreate( protoname );
@@ -427,6 +495,334 @@ public class JavaGen {
 		}
 	}
 
+	/** 
+	 * Numeric for-loop whose index, limit and step are kept in double locals.
+	 * The loop variable R(A+3) is also left unboxed when every use of it in the body 
+	 * can take a double: a table key, an arithmetic operand, or an ordered comparison. 
+	 */
+	private static final class ForLoop {
+		final int a, prep, loop; // base register, pc of OP_FORPREP and OP_FORLOOP
+		final boolean boxed;     // true if R(A+3) is boxed on each iteration
+		final int index, limit, step;
+		ForLoop(int a, int prep, int loop, boolean boxed, JavaBuilder builder) {
+			this.a = a;
+			this.prep = prep;
+			this.loop = loop;
+			this.boxed = boxed;
+			this.index = builder.newForLoopLocal(prep, "index");
+			this.limit = builder.newForLoopLocal(prep, "limit");
+			this.step = builder.newForLoopLocal(prep, "step");
+		}
+	}
+	
+	private static ForLoop[] findForLoops(ProtoInfo pi, JavaBuilder builder) {
+		Prototype p = pi.prototype;
+		int n = 0;
+		ForLoop[] loops = new ForLoop[p.code.length];
+		for ( int pc=0; pc<p.code.length; pc++ ) {
+			int ins = p.code[pc];
+			if ( Lua.GET_OPCODE(ins) != Lua.OP_FORPREP || pi.vars[0][pc] == null ) 
+				continue;
+			int a = Lua.GETARG_A(ins);
+			int loop = pc + 1 + Lua.GETARG_sBx(ins);
+			loops[n++] = new ForLoop(a, pc, loop, isLoopVarBoxed(pi, a+3, pc, loop), builder);
+		}
+		ForLoop[] result = new ForLoop[n];
+		System.arraycopy(loops, 0, result, 0, n);
+		return result;
+	}
+	
+	/** Return true unless every read of the loop variable in the loop body can use the unboxed index. */
+	private static boolean isLoopVarBoxed(ProtoInfo pi, int slot, int prep, int loop) {
+		VarInfo var = pi.vars[slot][loop];
+		if ( var.upvalue != null )
+			return true;
+		Prototype p = pi.prototype;
+		for ( int pc=prep+1; pc<loop; pc++ ) {
+			if ( pi.vars[slot][pc] == null ) // dead code
+				continue;
+			int ins = p.code[pc];
+			if ( ! reads(p, ins, slot) )
+				continue;
+			if ( pi.vars[slot][pc] != var || ! isUnboxedRead(p, ins, slot) )
+				return true;
+		}
+		return false;
+	}
+
+	/** Return true if the instruction reads the value in a slot. */
+	private static boolean reads(Prototype p, int ins, int slot) {
+		int a = Lua.GETARG_A(ins);
+		int b = Lua.GETARG_B(ins);
+		int c = Lua.GETARG_C(ins);
+		switch ( Lua.GET_OPCODE(ins) ) {
+		case Lua.OP_MOVE: case Lua.OP_UNM: case Lua.OP_NOT: case Lua.OP_LEN: case Lua.OP_TESTSET:
+			return b == slot;
+		case Lua.OP_ADD: case Lua.OP_SUB: case Lua.OP_MUL: case Lua.OP_DIV: case Lua.OP_MOD: case Lua.OP_POW:
+		case Lua.OP_EQ: case Lua.OP_LT: case Lua.OP_LE: case Lua.OP_SETTABUP:
+			return b == slot || c == slot;
+		case Lua.OP_GETTABLE: case Lua.OP_SELF:
+			return b == slot || c == slot;
+		case Lua.OP_GETTABUP:
+			return c == slot;
+		case Lua.OP_SETTABLE:
+			return a == slot || b == slot || c == slot;
+		case Lua.OP_CONCAT:
+			return slot >= b && slot <= c;
+		case Lua.OP_FORPREP: case Lua.OP_FORLOOP: case Lua.OP_TFORCALL:
+			return slot >= a && slot <= a+2;
+		case Lua.OP_TFORLOOP:
+			return slot == a+1;
+		case Lua.OP_CALL: case Lua.OP_TAILCALL: case Lua.OP_SETLIST:
+			return slot >= a && (b == 0 || slot <= a+b);
+		case Lua.OP_RETURN:
+			return slot >= a && (b == 0 || slot <= a+b-2);
+		case Lua.OP_SETUPVAL: case Lua.OP_TEST:
+			return a == slot;
+		case Lua.OP_CLOSURE: {
+			Upvaldesc[] upvalues = p.getp(Lua.GETARG_Bx(ins)).upvalues;
+			for ( int k=0; k<upvalues.length; k++ )
+				if ( upvalues[k].instack && upvalues[k].idx == slot )
+					return true;
+			return false;
+		}
+		default:
+			return false;
+		}
+	}
+	
+	/** Return true if the instruction's reads of a slot can use an unboxed double. */
+	private static boolean isUnboxedRead(Prototype p, int ins, int slot) {
+		int a = Lua.GETARG_A(ins);
+		int b = Lua.GETARG_B(ins);
+		int c = Lua.GETARG_C(ins);
+		switch ( Lua.GET_OPCODE(ins) ) {
+		case Lua.OP_GETTABLE:
+			return c == slot && b != slot;
+		case Lua.OP_SETTABLE:
+			return b == slot && a != slot && c != slot;
+		case Lua.OP_ADD: case Lua.OP_SUB: case Lua.OP_MUL: case Lua.OP_DIV: case Lua.OP_MOD: case Lua.OP_POW:
+			if ( b == slot )
+				return c != slot || Lua.GET_OPCODE(ins) != Lua.OP_POW;
+			return isNumberConstant(p, b);
+		case Lua.OP_LT: case Lua.OP_LE:
+			if ( b == slot )
+				return c != slot;
+			return isNumberConstant(p, b);
+		case Lua.OP_UNM:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isNumberConstant(Prototype p, int borc) {
+		return Lua.ISK(borc) && p.k[Lua.INDEXK(borc)].type() == LuaValue.TNUMBER;
+	}
+
+	/** 
+	 * Result of arithmetic whose operands are all known to be numbers, kept in a double local.
+	 * Operands are known to be numbers when they are number constants, unboxed for-loop variables,
+	 * or other such results, so no metamethod can apply and no guard is needed.
+	 * Reads of it in its basic block that can take a double use the local;
+	 * it is boxed into its slot as well only when some other read needs a LuaValue,
+	 * or when it may be read after its basic block. 
+	 */
+	private static final class NumberVar {
+		final int slot, def;   // slot assigned and pc of the arithmetic
+		final int end;         // last pc in the basic block whose reads of the slot see this value
+		boolean boxed;         // true if also boxed into its slot
+		final int index;
+		NumberVar(int slot, int def, int end, boolean boxed, JavaBuilder builder) {
+			this.slot = slot;
+			this.def = def;
+			this.end = end;
+			this.boxed = boxed;
+			this.index = builder.newNumberLocal(def);
+		}
+	}
+
+	private static final int WRITES_NONE = 0, WRITES_ALL = 1, WRITES_MAYBE = 2;
+
+	private NumberVar[] findNumberVars(ProtoInfo pi, JavaBuilder builder) {
+		Prototype p = pi.prototype;
+		int[] code = p.code;
+		numbers = new NumberVar[0];
+		NumberVar[] found = new NumberVar[code.length];
+		int n = 0;
+		for ( int pc=0; pc<code.length; pc++ ) {
+			int ins = code[pc];
+			int o = Lua.GET_OPCODE(ins);
+			int a = Lua.GETARG_A(ins);
+			if ( o < Lua.OP_ADD || o > Lua.OP_UNM || pi.vars[a][pc] == null || pi.vars[a][pc].upvalue != null )
+				continue;
+			if ( ! isNumberOperand(p, pc, Lua.GETARG_B(ins)) || (o != Lua.OP_UNM && ! isNumberOperand(p, pc, Lua.GETARG_C(ins))) )
+				continue;
+			
+			// the value is seen until the slot is next assigned in the block
+			BasicBlock block = pi.blocks[pc];
+			int end = block.pc1;
+			boolean boxed = false;
+			for ( int q=pc+1; q<=block.pc1; q++ ) {
+				int w = writes(code[q], a);
+				if ( w != WRITES_NONE ) {
+					end = q;
+					boxed = w == WRITES_MAYBE;
+					break;
+				}
+				if ( q == block.pc1 )
+					boxed = isLiveAfter(pi, block, a);
+			}
+			if ( pc == block.pc1 )
+				boxed = isLiveAfter(pi, block, a);
+			found[n++] = new NumberVar(a, pc, end, boxed, builder);
+			numbers = new NumberVar[n];
+			System.arraycopy(found, 0, numbers, 0, n);
+		}
+		
+		// box those with a read that needs a LuaValue
+		for ( int i=0; i<n; i++ ) {
+			NumberVar v = numbers[i];
+			for ( int q=v.def+1; q<=v.end && ! v.boxed; q++ )
+				if ( reads(p, code[q], v.slot) && findNumberDef(q) == null && ! isUnboxedRead(p, code[q], v.slot) )
+					v.boxed = true;
+		}
+		return numbers;
+	}
+
+	/** Return true if an operand is known to be a number at pc. */
+	private boolean isNumberOperand(Prototype p, int pc, int borc) {
+		if ( Lua.ISK(borc) )
+			return isNumberConstant(p, borc);
+		return findUnboxed(pc, borc) != null || findNumber(pc, borc) != null;
+	}
+
+	/** Return whether an instruction assigns a slot: not at all, always, or only on some paths or in a way kept elsewhere. */
+	private static int writes(int ins, int slot) {
+		int a = Lua.GETARG_A(ins);
+		int b = Lua.GETARG_B(ins);
+		int c = Lua.GETARG_C(ins);
+		switch ( Lua.GET_OPCODE(ins) ) {
+		case Lua.OP_MOVE: case Lua.OP_LOADK: case Lua.OP_LOADKX: case Lua.OP_LOADBOOL: case Lua.OP_GETUPVAL:
+		case Lua.OP_GETTABUP: case Lua.OP_GETTABLE: case Lua.OP_NEWTABLE: 
+		case Lua.OP_ADD: case Lua.OP_SUB: case Lua.OP_MUL: case Lua.OP_DIV: case Lua.OP_MOD: case Lua.OP_POW:
+		case Lua.OP_UNM: case Lua.OP_NOT: case Lua.OP_LEN: case Lua.OP_CONCAT: case Lua.OP_CLOSURE:
+			return a == slot? WRITES_ALL: WRITES_NONE;
+		case Lua.OP_LOADNIL:
+			return slot >= a && slot <= a+b? WRITES_ALL: WRITES_NONE;
+		case Lua.OP_SELF:
+			return slot == a || slot == a+1? WRITES_ALL: WRITES_NONE;
+		case Lua.OP_CALL:
+			return slot < a? WRITES_NONE: c == 0? WRITES_MAYBE: slot <= a+c-2? WRITES_ALL: WRITES_NONE;
+		case Lua.OP_VARARG:
+			return slot < a? WRITES_NONE: b == 0? WRITES_MAYBE: slot <= a+b-2? WRITES_ALL: WRITES_NONE;
+		case Lua.OP_TFORCALL:
+			return slot >= a+3 && slot <= a+2+c? WRITES_ALL: WRITES_NONE;
+		case Lua.OP_TESTSET: case Lua.OP_TFORLOOP: case Lua.OP_FORPREP:
+			return slot == a? WRITES_MAYBE: WRITES_NONE;
+		case Lua.OP_FORLOOP:
+			return slot == a || slot == a+3? WRITES_MAYBE: WRITES_NONE;
+		default:
+			return WRITES_NONE;
+		}
+	}
+
+	/** Return true if a slot may be read after a basic block, before it is next assigned. */
+	private static boolean isLiveAfter(ProtoInfo pi, BasicBlock block, int slot) {
+		Prototype p = pi.prototype;
+		java.util.List<BasicBlock> queue = new java.util.ArrayList<BasicBlock>();
+		java.util.Set<BasicBlock> visited = new java.util.HashSet<BasicBlock>();
+		for ( int i=0, n=block.next!=null? block.next.length: 0; i<n; i++ )
+			queue.add(block.next[i]);
+		while ( ! queue.isEmpty() ) {
+			BasicBlock b = queue.remove(queue.size()-1);
+			if ( ! visited.add(b) )
+				continue;
+			VarInfo v = pi.vars[slot][b.pc0];
+			if ( v != null && v.isPhiVar() && v.upvalue != null )
+				return true;	// converted to an upvalue at block start
+			boolean assigned = false;
+			for ( int pc=b.pc0; pc<=b.pc1 && ! assigned; pc++ ) {
+				if ( reads(p, p.code[pc], slot) )
+					return true;
+				int w = writes(p.code[pc], slot);
+				if ( w == WRITES_MAYBE )
+					return true;
+				assigned = w == WRITES_ALL;
+			}
+			if ( ! assigned )
+				for ( int i=0, n=b.next!=null? b.next.length: 0; i<n; i++ )
+					queue.add(b.next[i]);
+		}
+		return false;
+	}
+
+	/** Return the value kept unboxed in a slot at pc, or null. */
+	private NumberVar findNumber(int pc, int slot) {
+		for ( int i=0; i<numbers.length; i++ ) {
+			NumberVar v = numbers[i];
+			if ( v.slot == slot && pc > v.def && pc <= v.end )
+				return v;
+		}
+		return null;
+	}
+
+	/** Return the value computed unboxed at pc, or null. */
+	private NumberVar findNumberDef(int pc) {
+		for ( int i=0; i<numbers.length; i++ )
+			if ( numbers[i].def == pc )
+				return numbers[i];
+		return null;
+	}
+
+	/** Return the index of the double local holding a slot at pc, if the instruction there can read it as a double, or -1. */
+	private int findDouble(Prototype p, int pc, int slot) {
+		ForLoop f = findUnboxed(pc, slot);
+		if ( f != null )
+			return f.index;
+		NumberVar v = findNumber(pc, slot);
+		if ( v != null && isUnboxedRead(p, p.code[pc], slot) )
+			return v.index;
+		return -1;
+	}
+
+	/** Load an operand known to be a number as a double. */
+	private void loadNumber(Prototype p, JavaBuilder builder, int pc, int borc) {
+		if ( Lua.ISK(borc) ) {
+			builder.loadDoubleConstant(p.k[Lua.INDEXK(borc)].todouble());
+			return;
+		}
+		ForLoop f = findUnboxed(pc, borc);
+		builder.loadDouble(f != null? f.index: findNumber(pc, borc).index);
+	}
+
+	/** Store the double on the stack into the local of a value, and into its slot if it is boxed. */
+	private void storeNumber(JavaBuilder builder, NumberVar v) {
+		builder.storeDouble(v.index);
+		if ( v.boxed ) {
+			builder.loadDouble(v.index);
+			builder.valueOfDouble();
+			builder.storeLocal(v.def, v.slot);
+		}
+	}
+
+	private ForLoop findForLoop(int prep) {
+		for ( int i=0; i<forloops.length; i++ )
+			if ( forloops[i].prep == prep )
+				return forloops[i];
+		throw new IllegalStateException("no for loop at "+prep);
+	}
+	
+	/** Return the loop whose unboxed loop variable is in a slot at pc, or null. */
+	private ForLoop findUnboxed(int pc, int slot) {
+		for ( int i=0; i<forloops.length; i++ ) {
+			ForLoop f = forloops[i];
+			if ( ! f.boxed && slot == f.a+3 && pc > f.prep && pc < f.loop )
+				return f;
+		}
+		return null;
+	}
+
 	private void loadVarargResults(JavaBuilder builder, int pc, int a, int vresultbase) {
 		if ( vresultbase <= a ) {
 			builder.loadVarresult();
@@ -438,6 +834,20 @@ public class JavaGen {
 		}
 	}
 
+	private void getTable(Prototype p, JavaBuilder builder, int pc, int c) {
+		if ( c>0xff && p.k[c&0xff].type() == LuaValue.TSTRING )
+			builder.getTableConstant( pc );
+		else
+			builder.getTable();
+	}
+
+	private void setTable(Prototype p, JavaBuilder builder, int pc, int b) {
+		if ( b>0xff && p.k[b&0xff].type() == LuaValue.TSTRING )
+			builder.setTableConstant( pc );
+		else
+			builder.setTable();
+	}
+
 	private void loadLocalOrConstant(Prototype p, JavaBuilder builder, int pc, int borc) {
 		if ( borc<=0xff )
 			builder.loadLocal( pc, borc );
@@ -1,11 +1,14 @@
 package org.luaj.vm2.luajc;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.LibFunction;
 
 /*******************************************************************************
 * Copyright (c) 2010 Luaj.org. All rights reserved.
@@ -30,7 +33,7 @@ import org.luaj.vm2.Prototype;
 ******************************************************************************/
 public class JavaLoader extends ClassLoader {
 
-	private Map<String,byte[]> unloaded = new HashMap<String,byte[]>();
+	private Map<String,byte[]> unloaded = Collections.synchronizedMap(new HashMap<String,byte[]>());
 	
 	public JavaLoader() {
 	}
@@ -50,6 +53,8 @@ public class JavaLoader extends ClassLoader {
 			Class c = loadClass( classname );
 			LuaFunction v = (LuaFunction) c.newInstance();
 			v.initupvalue1(env);
+			if ( v instanceof LibFunction && env instanceof Globals )
+				((LibFunction) v).initbudget((Globals) env);
 			return v;
 		} catch ( Exception e ) {
 			e.printStackTrace();
@@ -58,13 +63,17 @@ public class JavaLoader extends ClassLoader {
 	}
 
 	public void include( JavaGen jg ) {
-		unloaded.put( jg.classname, jg.bytecode );
+		include( jg.classname, jg.bytecode );
 		for ( int i=0, n=jg.inners!=null? jg.inners.length: 0; i<n; i++ )
 			include( jg.inners[i] );
 	}
 
+	public void include( String classname, byte[] bytecode ) {
+		unloaded.put( classname, bytecode );
+	}
+
 	public Class findClass(String classname) throws ClassNotFoundException {
-		byte[] bytes = (byte[]) unloaded.get(classname);
+		byte[] bytes = (byte[]) unloaded.remove(classname); // defined only once, so the bytes are not kept
 		if ( bytes != null )
 			return defineClass(classname, bytes, 0, bytes.length);
 		return super.findClass(classname);
@@ -109,7 +109,7 @@ public class LuaJC implements Globals.Loader {
 		return loader.load(p, classname, luaname, globals);
 	}
 	
-	private static String toStandardJavaClassName( String luachunkname ) {
+	static String toStandardJavaClassName( String luachunkname ) {
 		String stub = toStub( luachunkname );
 		StringBuffer classname = new StringBuffer();
 		for (int i = 0, n = stub.length(); i < n; ++i) {
@@ -119,7 +119,7 @@ public class LuaJC implements Globals.Loader {
 		return classname.toString();
 	}
 	
-	private static String toStandardLuaFileName( String luachunkname ) {
+	static String toStandardLuaFileName( String luachunkname ) {
 		String stub = toStub( luachunkname );
 		String filename = stub.replace('.','/')+".lua";
 		return filename.startsWith("@")? filename.substring(1): filename;
@@ -0,0 +1,462 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.UpValue;
+import org.luaj.vm2.compiler.DumpState;
+
+/**
+ * Loader which compiles chunks to java bytecode as {@link LuaJC} does, 
+ * but in the background, and only once for all the {@link Globals} it is installed in.
+ * <p>
+ * Each chunk is keyed by the SHA-1 of its chunk name and its dumped {@link Prototype},
+ * which is the same for the same source.
+ * The first load of a chunk returns an interpreted {@link LuaClosure} and queues the chunk 
+ * on a bounded pool of compiler threads; once compiled, calls of that closure run the compiled code.
+ * Later loads of the same chunk, from any {@link Globals}, return the compiled code directly,
+ * from classes defined once in a class loader shared by all of them.
+ * Loads of a chunk that is still being compiled are not queued again.
+ * When the queue is full, the chunk is left interpreted and queued again on its next load.
+ * <p>
+ * Optionally the generated class files are also kept in a directory, 
+ * so that another JVM using the same directory does not compile them again.
+ * Entries are written to a temporary file and then renamed, like {@link org.luaj.vm2.compiler.PrototypeCache};
+ * entries that cannot be read are compiled again.
+ * <p>
+ * Chunks are compiled as for a {@link TieredCompiler}, so their code shares its upvalues with the interpreter,
+ * and chunks that it leaves interpreted are left interpreted here too. 
+ * Chunks loaded while the debug library of their {@link Globals} tracks calls are also left interpreted,
+ * since only the interpreter calls hooks and keeps the call stack.
+ * Classes stay loaded for as long as this is used.
+ * <p>
+ * To use one service for many {@link Globals}:
+ * <pre> {@code
+ * LuaJCService service = new LuaJCService(2, 100, new File("luajc-cache"));
+ * Globals globals = JsePlatform.standardGlobals();
+ * LuaJCService.install(globals, service);
+ * globals.load(script, "main.lua").call();
+ * } </pre>
+ * This requires the bcel library to be on the class path to work as expected.  
+ * @see LuaJC
+ * @see TieredCompiler
+ * @see Globals#loader
+ */
+public class LuaJCService implements Globals.Loader {
+
+	/** Changed whenever the format of the entries or the code luajc generates changes, so that old entries are not used. */
+	private static final String VERSION = "luaj-luajc-3";
+
+	/** Classes of the code generator, whose class files are digested into each key, 
+	 * so that entries written by another build of the generator are not used. */
+	private static final String[] GENERATOR = { "JavaGen", "JavaBuilder", "ProtoInfo", "BasicBlock", "UpvalInfo", "VarInfo" };
+	private static final byte[] GENERATOR_DIGEST = generatorDigest();
+
+	private static final String SUFFIX = ".classes";
+
+	private final File dir;
+	private final ThreadPoolExecutor executor;
+	private final JavaLoader loader = new JavaLoader();
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private int pending;
+
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong compiles = new AtomicLong();
+	private final AtomicLong joined = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong hashNanos = new AtomicLong();
+	private final AtomicLong generateNanos = new AtomicLong();
+	private final AtomicLong defineNanos = new AtomicLong();
+	private final AtomicLong readNanos = new AtomicLong();
+	private final AtomicLong writeNanos = new AtomicLong();
+
+	/** Make a compilation service.
+	 * @param threads number of compiler threads, which are daemons
+	 * @param queue number of chunks that may wait for a compiler thread
+	 * @param dir directory to keep the class files in, which is created if needed, or null to keep them only in memory
+	 */
+	public LuaJCService(int threads, int queue, File dir) {
+		this.dir = dir;
+		if (dir != null)
+			dir.mkdirs();
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+			new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LuaJC-compile-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+
+	/** Install the service as the loader of {@code globals}.
+	 * @return the service, for reading its counts
+	 */
+	public static LuaJCService install(Globals globals, LuaJCService service) {
+		globals.loader = service;
+		return service;
+	}
+
+	public LuaFunction load(Prototype p, String chunkname, LuaValue env) throws IOException {
+		if (env instanceof Globals && ((Globals) env).debuglib != null && ((Globals) env).debuglib.isTracingCalls())
+			return new LuaClosure(p, env);
+		long t0 = System.nanoTime();
+		String key = key(chunkname, p);
+		hashNanos.addAndGet(System.nanoTime() - t0);
+		Entry e = entries.get(key);
+		boolean started = false;
+		if (e == null) {
+			Entry n = new Entry();
+			if ((e = entries.putIfAbsent(key, n)) == null) {
+				start(key, e = n, p, chunkname);
+				started = true;
+			}
+		}
+		synchronized (e) {
+			if (e.compiled != null) {
+				if (!started)
+					memoryHits.incrementAndGet();
+				UpValue[] upvalues = new UpValue[p.upvalues.length];
+				if (upvalues.length > 0)
+					upvalues[0] = new UpValue(new LuaValue[] {env}, 0);
+				return e.compiled.bind(upvalues, env instanceof Globals? (Globals) env: null);
+			}
+			if (e.waiting != null) {
+				e.waiting.add(p);
+				if (!started)
+					joined.incrementAndGet();
+			}
+		}
+		return new LuaClosure(p, env);
+	}
+
+	/** Define the classes of a new entry from the directory, or else queue it to be compiled. */
+	private void start(final String key, final Entry e, final Prototype p, final String chunkname) {
+		if (dir != null) {
+			long t0 = System.nanoTime();
+			Map<String, byte[]> classes = read(key);
+			readNanos.addAndGet(System.nanoTime() - t0);
+			if (classes != null) {
+				try {
+					done(e, define(classes, classname(key)));
+					diskHits.incrementAndGet();
+					return;
+				} catch (Exception ex) {
+					new File(dir, key + SUFFIX).delete();
+				} catch (LinkageError ex) {
+					new File(dir, key + SUFFIX).delete();
+				}
+			}
+		}
+		synchronized (this) {
+			++pending;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						compile(key, e, p, chunkname);
+					} finally {
+						finished();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			rejected.incrementAndGet();
+			entries.remove(key, e);
+			done(e, null);
+			finished();
+		}
+	}
+
+	private void compile(String key, Entry e, Prototype p, String chunkname) {
+		if (!TieredCompiler.isCompilable(p)) {
+			failed.incrementAndGet();
+			done(e, null);
+			return;
+		}
+		String classname = classname(key);
+		try {
+			long t0 = System.nanoTime();
+			JavaGen gen = new JavaGen(new ProtoInfo(p, classname, true), classname, LuaJC.toStandardLuaFileName(chunkname), false);
+			Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+			collect(gen, classes);
+			long t1 = System.nanoTime();
+			generateNanos.addAndGet(t1 - t0);
+			Prototype.Compiled c = define(classes, classname);
+			long t2 = System.nanoTime();
+			defineNanos.addAndGet(t2 - t1);
+			compiles.incrementAndGet();
+			done(e, c);
+			if (dir != null) {
+				write(key, classes);
+				writeNanos.addAndGet(System.nanoTime() - t2);
+			}
+		} catch (Exception ex) {
+			failed.incrementAndGet();
+			done(e, null);
+		} catch (LinkageError ex) {
+			failed.incrementAndGet();
+			done(e, null);
+		}
+	}
+
+	/** Define the classes in the shared class loader, and link the main class. */
+	private Prototype.Compiled define(Map<String, byte[]> classes, String classname) throws Exception {
+		for (Map.Entry<String, byte[]> c : classes.entrySet())
+			loader.include(c.getKey(), c.getValue());
+		Class<?> c = loader.loadClass(classname);
+		c.getDeclaredConstructor().newInstance();	// link and verify now, rather than on the first call
+		return new TieredCompiler.Compiled(c);
+	}
+
+	/** Set the compiled code, or null if it failed, into the entry and the prototypes waiting for it. */
+	private static void done(Entry e, Prototype.Compiled compiled) {
+		synchronized (e) {
+			e.compiled = compiled;
+			if (compiled != null)
+				for (int i = 0; i < e.waiting.size(); i++)
+					e.waiting.get(i).compiled = compiled;
+			e.waiting = null;
+		}
+	}
+
+	private synchronized void finished() {
+		if (--pending == 0)
+			notifyAll();
+	}
+
+	/** Wait until no chunk is queued or being compiled, or the timeout passes.
+	 * @return true if none is 
+	 */
+	public synchronized boolean awaitIdle(long millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + millis;
+		for (long left = millis; pending > 0 && left > 0; left = end - System.currentTimeMillis())
+			wait(left);
+		return pending == 0;
+	}
+
+	/** Stop the compiler threads; chunks still queued are left interpreted. */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static void collect(JavaGen gen, Map<String, byte[]> classes) {
+		classes.put(gen.classname, gen.bytecode);
+		for (int i = 0, n = gen.inners != null? gen.inners.length: 0; i < n; i++)
+			collect(gen.inners[i], classes);
+	}
+
+	/** Read the classes of an entry, or return null if it is missing or cannot be read. */
+	private Map<String, byte[]> read(String key) {
+		File file = new File(dir, key + SUFFIX);
+		if (!file.isFile())
+			return null;
+		try {
+			long size = file.length();
+			DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+				for (int i = 0, n = is.readInt(); i < n; i++) {
+					String name = is.readUTF();
+					int len = is.readInt();
+					if (len < 0 || len > size)
+						throw new IOException("bad class length " + len + " in " + file);
+					byte[] bytes = new byte[len];
+					is.readFully(bytes);
+					classes.put(name, bytes);
+				}
+				return classes;
+			} finally {
+				is.close();
+			}
+		} catch (Exception e) {
+			file.delete();
+			return null;
+		}
+	}
+
+	/** Write an entry to a temporary file in the directory, then rename it into place. */
+	private void write(String key, Map<String, byte[]> classes) {
+		File file = new File(dir, key + SUFFIX);
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				os.writeInt(classes.size());
+				for (Map.Entry<String, byte[]> c : classes.entrySet()) {
+					os.writeUTF(c.getKey());
+					os.writeInt(c.getValue().length);
+					os.write(c.getValue());
+				}
+			} finally {
+				os.close();
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			tmp = null;
+		} catch (IOException e) {
+			// the directory is only an optimization; compile again next time
+		} finally {
+			if (tmp != null)
+				tmp.delete();
+		}
+	}
+
+	private static String classname(String key) {
+		return "luajc_" + key;
+	}
+
+	private static String key(String chunkname, Prototype p) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DumpState.dump(p, baos, false);
+		md.update(VERSION.getBytes("UTF-8"));
+		md.update((byte) 0);
+		md.update(GENERATOR_DIGEST);
+		md.update(chunkname.getBytes("UTF-8"));
+		md.update((byte) 0);
+		byte[] digest = md.digest(baos.toByteArray());
+		StringBuffer sb = new StringBuffer(digest.length * 2);
+		for (int i = 0; i < digest.length; i++) {
+			sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(digest[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/** Digest of the class files of the code generator, or random bytes if they cannot be read, so that no old entry is used. */
+	private static byte[] generatorDigest() {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] buf = new byte[4096];
+			for (int i = 0; i < GENERATOR.length; i++) {
+				InputStream is = LuaJCService.class.getResourceAsStream(GENERATOR[i] + ".class");
+				if (is == null)
+					throw new IOException("no class file for " + GENERATOR[i]);
+				try {
+					for (int n; (n = is.read(buf)) != -1; )
+						md.update(buf, 0, n);
+				} finally {
+					is.close();
+				}
+			}
+			return md.digest();
+		} catch (Exception e) {
+			byte[] b = new byte[20];
+			new SecureRandom().nextBytes(b);
+			return b;
+		}
+	}
+
+	/** Loads answered with compiled code, from memory or from the directory. */
+	public long getHits() { return memoryHits.get() + diskHits.get(); }
+
+	/** Entries defined from the directory instead of compiled. */
+	public long getDiskHits() { return diskHits.get(); }
+
+	/** Chunks compiled. */
+	public long getCompiles() { return compiles.get(); }
+
+	/** Loads of a chunk that was already queued or being compiled. */
+	public long getJoined() { return joined.get(); }
+
+	/** Chunks left interpreted because the queue was full. */
+	public long getRejected() { return rejected.get(); }
+
+	/** Chunks left interpreted because they could not be compiled. */
+	public long getFailed() { return failed.get(); }
+
+	/** Time spent dumping and hashing prototypes to find their entries, in nanoseconds. */
+	public long getHashNanos() { return hashNanos.get(); }
+
+	/** Time spent generating class files, in nanoseconds. */
+	public long getGenerateNanos() { return generateNanos.get(); }
+
+	/** Time spent defining and linking compiled classes, in nanoseconds. */
+	public long getDefineNanos() { return defineNanos.get(); }
+
+	/** Time spent reading entries from the directory, in nanoseconds. */
+	public long getReadNanos() { return readNanos.get(); }
+
+	/** Time spent writing entries to the directory, in nanoseconds. */
+	public long getWriteNanos() { return writeNanos.get(); }
+
+	public String toString() {
+		return "LuaJCService[" + dir + ", hits=" + getHits() + ", disk hits=" + getDiskHits() + ", compiles=" + getCompiles()
+			+ ", joined=" + getJoined() + ", rejected=" + getRejected() + ", failed=" + getFailed()
+			+ ", hash ms=" + getHashNanos() / 1000000 + ", generate ms=" + getGenerateNanos() / 1000000 
+			+ ", define ms=" + getDefineNanos() / 1000000 + ", read ms=" + getReadNanos() / 1000000 
+			+ ", write ms=" + getWriteNanos() / 1000000 + "]";
+	}
+
+	/** Compiled code of a chunk, once done, and the prototypes of the closures waiting for it. */
+	private static final class Entry {
+		Prototype.Compiled compiled;
+		List<Prototype> waiting = new ArrayList<Prototype>();
+	}
+}
@@ -24,17 +24,29 @@ public class ProtoInfo {
 	public final VarInfo[][] vars;        // Each variable
 	public final UpvalInfo[] upvals;      // from outer scope
 	public final UpvalInfo[][] openups;   // per slot, upvalues allocated by this prototype
+	public final boolean tiered;          // upvalues are UpValue objects shared with the interpreter
 	
 	// A main chunk proto info.
 	public ProtoInfo(Prototype p, String name) {
 		// For the outer chunk, we have one upvalue which is the environment.
-		this(p,name,null);
+		this(p,name,null,false);
 	}
 	
-	private ProtoInfo(Prototype p, String name, UpvalInfo[] u) {
+	// A proto info for any prototype, whose closures take their upvalues from the interpreter.
+	public ProtoInfo(Prototype p, String name, boolean tiered) {
+		this(p,name,null,tiered);
+	}
+	
+	private ProtoInfo(Prototype p, String name, UpvalInfo[] u, boolean tiered) {
 		this.name = name;
 		this.prototype = p;
-		this.upvals = u != null? u: new UpvalInfo[] { new UpvalInfo(this) };
+		this.tiered = tiered;
+		if ( u == null ) {
+			u = new UpvalInfo[tiered? p.upvalues.length: 1];
+			for ( int i=0; i<u.length; i++ )
+				u[i] = new UpvalInfo(this);
+		}
+		this.upvals = u;
 		this.subprotos = p.p!=null&&p.p.length>0? new ProtoInfo[p.p.length]: null;
 		
 		// find basic blocks
@@ -334,7 +346,7 @@ public class ProtoInfo {
 				case Lua.OP_CLOSURE: { /*	A Bx	R(A) := closure(KPROTO[Bx], R(A), ... ,R(A+n))	*/
 					a = Lua.GETARG_A( ins );
 					b = Lua.GETARG_Bx( ins );
-					Upvaldesc[] upvalues = prototype.p[b].upvalues;
+					Upvaldesc[] upvalues = prototype.getp(b).upvalues;
 					for (int k = 0, nups = upvalues.length; k < nups; ++k)
 						if (upvalues[k].instack)
 							v[upvalues[k].idx][pc].isreferenced = true;
@@ -398,8 +410,7 @@ public class ProtoInfo {
 	}					
 	
 	private void substituteVariable(int slot, VarInfo vold, VarInfo vnew) {
-		for ( int i=0, n=prototype.code.length; i<n; i++ )
-			replaceAll( vars[slot], vars[slot].length, vold, vnew );
+		replaceAll( vars[slot], vars[slot].length, vold, vnew );
 	}
 
 	private void replaceAll(VarInfo[] v, int n, VarInfo vold, VarInfo vnew) {
@@ -417,14 +428,14 @@ public class ProtoInfo {
 		for ( int pc=0; pc<n; pc++ ) {
 			if ( Lua.GET_OPCODE(code[pc]) == Lua.OP_CLOSURE ) {
 				int bx = Lua.GETARG_Bx(code[pc]);
-				Prototype newp = prototype.p[bx];
+				Prototype newp = prototype.getp(bx);
 				UpvalInfo[] newu = new UpvalInfo[newp.upvalues.length];
 				String newname = name + "$" + names[bx];
 				for ( int j=0; j<newp.upvalues.length; ++j ) {
 					Upvaldesc u = newp.upvalues[j];
 					newu[j] = u.instack? findOpenUp(pc,u.idx) : upvals[u.idx];
 				}
-				subprotos[bx] = new ProtoInfo(newp, newname, newu);
+				subprotos[bx] = new ProtoInfo(newp, newname, newu, tiered);
 			}
 		}
 		
@@ -0,0 +1,198 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.UpValue;
+import org.luaj.vm2.lib.LibFunction;
+
+/**
+ * Tier compiler which interprets lua bytecode first, then compiles the prototypes 
+ * that are called or loop often into java bytecode as {@link LuaJC} does.
+ * <p>
+ * The interpreter counts the calls and backward jumps of each {@link Prototype}, 
+ * and passes it to this once the count reaches the threshold.  
+ * By default it is compiled on a background thread, while the interpreter keeps running it;
+ * once done, later calls of its closures, and closures made from it, run the compiled code.
+ * A call that is running when compilation finishes completes in the interpreter.
+ * <p>
+ * The compiled code shares the upvalues of the interpreted closures,
+ * so it may be used while the enclosing function is still being interpreted.
+ * Prototypes that may read the deprecated {@code arg} table of a vararg function are left interpreted,
+ * as are those the code generator fails on. 
+ * Like {@link LuaJC}, compiled code does not call debug hooks. 
+ * <p>
+ * To install it:
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * TieredCompiler.install(globals);
+ * globals.load(script, "main.lua").call();
+ * } </pre>
+ * This requires the bcel library to be on the class path to work as expected.  
+ * @see Globals.TierCompiler
+ * @see Prototype#compiled
+ * @see LuaJC
+ */
+public class TieredCompiler implements Globals.TierCompiler {
+
+	/** Default number of calls and backward jumps after which a prototype is compiled */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	private static final LuaString ARG = LuaValue.valueOf("arg");
+
+	private static ExecutorService background;
+	private static final AtomicInteger serial = new AtomicInteger();
+
+	private final int threshold;
+	private final Executor executor;
+	private final AtomicInteger compiled = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/** Make a tier compiler.
+	 * @param threshold number of calls and backward jumps after which a prototype is compiled
+	 * @param executor runs the compilations, or null to compile on the thread that found the prototype hot 
+	 */
+	public TieredCompiler(int threshold, Executor executor) {
+		this.threshold = threshold;
+		this.executor = executor;
+	}
+
+	/** Install a tier compiler with the default threshold, which compiles on a shared background thread. */
+	public static TieredCompiler install(Globals globals) {
+		return install(globals, new TieredCompiler(DEFAULT_THRESHOLD, background()));
+	}
+
+	/** Install a tier compiler, which may be shared by many {@link Globals}. */
+	public static TieredCompiler install(Globals globals, TieredCompiler tier) {
+		globals.tier = tier;
+		return tier;
+	}
+
+	/** The shared background thread, a daemon, made on first use. */
+	private static synchronized Executor background() {
+		if (background == null)
+			background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LuaJC-tier");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return background;
+	}
+
+	public int threshold() {
+		return threshold;
+	}
+
+	public void compile(final Prototype p) {
+		if (executor == null) {
+			compileNow(p);
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					compileNow(p);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			failed.incrementAndGet();	// stays interpreted
+		}
+	}
+
+	/** Number of prototypes compiled. */
+	public int getCompiledCount() {
+		return compiled.get();
+	}
+
+	/** Number of prototypes left interpreted because they could not be compiled. */
+	public int getFailedCount() {
+		return failed.get();
+	}
+
+	private void compileNow(Prototype p) {
+		if (!isCompilable(p)) {
+			failed.incrementAndGet();
+			return;
+		}
+		String filename = LuaJC.toStandardLuaFileName(p.source.tojstring());
+		String classname = LuaJC.toStandardJavaClassName(filename) + "_" + p.linedefined + "$t" + serial.incrementAndGet();
+		try {
+			JavaGen gen = new JavaGen(new ProtoInfo(p, classname, true), classname, filename, false);
+			JavaLoader loader = new JavaLoader();
+			loader.include(gen);
+			Class<?> c = loader.loadClass(classname);
+			c.getDeclaredConstructor().newInstance();	// link and verify now, rather than on the first call
+			p.compiled = new Compiled(c);
+			compiled.incrementAndGet();
+		} catch (Exception e) {
+			failed.incrementAndGet();
+		} catch (LinkageError e) {
+			failed.incrementAndGet();
+		}
+	}
+
+	/** Load the parts of {@code p} skipped by a lazy loader, and check that luajc compiles all of it the same as the interpreter runs it. */
+	static boolean isCompilable(Prototype p) {
+		if (p.is_vararg != 0) {
+			for (int i = 0; i < p.k.length; i++)
+				if (ARG.raweq(p.k[i]))
+					return false;	// XOWA:HACK: the interpreter makes "arg" from "..."; see LuaClosure.execute 
+		}
+		p.getlineinfo();
+		for (int i = 0; i < p.p.length; i++)
+			if (!isCompilable(p.getp(i)))
+				return false;
+		return true;
+	}
+
+	/** A compiled prototype, whose class is instantiated for each closure. */
+	static final class Compiled implements Prototype.Compiled {
+		private final Constructor<?> c;
+		Compiled(Class<?> c) throws NoSuchMethodException {
+			this.c = c.getDeclaredConstructor();
+		}
+		public LuaFunction bind(UpValue[] upvalues, Globals globals) {
+			try {
+				LibFunction f = (LibFunction) c.newInstance();
+				f.initupvalues(upvalues);
+				f.initbudget(globals);
+				return f;
+			} catch (Exception e) {
+				throw new IllegalStateException("bad class gen: "+e);
+			}
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.perf;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.luaj.vm2.lib.Str_char_class_mgr;
+import org.luaj.vm2.lib.Str_char_class_mgr__ascii;
+import org.luaj.vm2.lib.Str_char_class_mgr__unicode;
+
+/**
+ * Compare the cost of testing chars against the pattern classes %a, %w, %p, %s and %d.
+ * <p>
+ * Each code point of the text is tested against every class with the ascii manager,
+ * the unicode manager's Character.getType switch, and the unicode manager's class table.
+ * The text is read from a file of wiki text if given, else a built-in sample of wikitext
+ * in several scripts is used.
+ * <p>
+ * Usage: java org.luaj.perf.CharClassBench [iterations] [file]
+ */
+public class CharClassBench {
+	static final String SAMPLE =
+		"'''Berlin''' is the [[capital city|capital]] and largest city of [[Germany]] by both area and population.<ref>{{cite web|url=https://example.org|title=Population 2019}}</ref> " +
+		"Its 3,769,495 inhabitants make it the most populous city proper of the [[European Union]].\n" +
+		"== Geschichte ==\nDie Stadt wurde 1237 erstmals urkundlich erwähnt; Köpenick, Spandau und Cölln gehören heute dazu. „Zitat“ – Straße, Größe, Übergang.\n" +
+		"'''Москва́''' — столица [[Россия|России]], город федерального значения, административный центр Центрального федерального округа.\n" +
+		"'''東京都'''（とうきょうと）は、[[日本]]の首都。人口は約1400万人で、日本の都道府県で最も多い。\n" +
+		"'''القاهرة''' هي عاصمة [[مصر|جمهورية مصر العربية]] وأكبر مدنها، عدد سكانها ٩٫٥ مليون نسمة.\n" +
+		"{| class=\"wikitable\"\n|-\n! Year !! Pop.\n|-\n| 1990 || 3,433,695\n|-\n| 2020 || 3,664,088\n|}\n";
+	static final int[] CLASSES = { 'a', 'w', 'p', 's', 'd' };
+	static final String[] MODES = { "ascii", "unicode switch", "unicode table" };
+
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0? Integer.parseInt(args[0]): 200;
+		String text = args.length > 1? new String(Files.readAllBytes(new File(args[1]).toPath()), StandardCharsets.UTF_8): repeat(SAMPLE, 50);
+		int[] cps = text.codePoints().toArray();
+		Str_char_class_mgr ascii = new Str_char_class_mgr__ascii();
+		Str_char_class_mgr__unicode unicode = new Str_char_class_mgr__unicode();
+		System.out.println(cps.length + " code points, " + n + " iterations");
+		for ( int round=0; round<3; round++ ) {
+			for ( int m=0; m<MODES.length; m++ ) {
+				long t0 = System.nanoTime();
+				int hits = 0;
+				for ( int i=0; i<n; i++ ) {
+					for ( int c=0; c<CLASSES.length; c++ ) {
+						int cls = CLASSES[c];
+						switch ( m ) {
+						case 0: for ( int j=0; j<cps.length; j++ ) if ( ascii.Match_class(cps[j], cls) ) hits++; break;
+						case 1: for ( int j=0; j<cps.length; j++ ) if ( unicode.Match_class_by_type(cps[j], cls) ) hits++; break;
+						default: for ( int j=0; j<cps.length; j++ ) if ( unicode.Match_class(cps[j], cls) ) hits++; break;
+						}
+					}
+				}
+				long t = System.nanoTime() - t0;
+				double ns = (double) t / ((long) n * cps.length * CLASSES.length);
+				System.out.println("  " + pad(MODES[m], 16) + String.format("%6.2f", ns) + " ns/test  (" + hits + " hits)");
+			}
+			System.out.println();
+		}
+	}
+
+	static String repeat(String s, int n) {
+		StringBuffer sb = new StringBuffer();
+		for ( int i=0; i<n; i++ )
+			sb.append(s);
+		return sb.toString();
+	}
+
+	static String pad(String s, int n) {
+		StringBuffer sb = new StringBuffer(s);
+		while ( sb.length() < n )
+			sb.append(' ');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.perf;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/** 
+ * Compare interpreter loop cost with and without the debug library.
+ * <p>
+ * Each script is run with no debug lib, with the debug lib installed and no hook set, which is the default, 
+ * with the debug lib tracing calls for tracebacks, and with a hook set, which also traces calls.
+ * <p>
+ * Usage: java org.luaj.perf.DebugHookBench [iterations]
+ */
+public class DebugHookBench {
+	static final String[] NAMES = { "opcodes", "calls" };
+	static final String[] SCRIPTS = {
+		// tight loop of register, arithmetic and comparison opcodes
+		"local n = ...\n" +
+		"local a, b = 0, 1\n" +
+		"for i = 1, n do\n" +
+		"  a = a + i * 2 - b\n" +
+		"  if a > 1000000 then a = a % 7 end\n" +
+		"  b = -b\n" +
+		"end\n" +
+		"return a",
+		// many small lua to lua calls
+		"local n = ...\n" +
+		"local function add(x, y) return x + y end\n" +
+		"local s = 0\n" +
+		"for i = 1, n do s = add(s, i % 3) end\n" +
+		"return s",
+	};
+	static final String[] MODES = { "no debuglib", "no hooks", "tracing calls", "hook set" };
+
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0? Integer.parseInt(args[0]): 2000000;
+		for ( int s=0; s<SCRIPTS.length; s++ ) {
+			System.out.println("--- "+NAMES[s]+" x "+n);
+			for ( int m=0; m<MODES.length; m++ ) {
+				Globals globals = newGlobals(m);
+				LuaValue chunk = globals.load(SCRIPTS[s], NAMES[s]);
+				LuaValue arg = LuaValue.valueOf(n);
+				for ( int i=0; i<5; i++ ) // warm up
+					chunk.call(arg);
+				long best = Long.MAX_VALUE;
+				for ( int i=0; i<10; i++ ) {
+					long t0 = System.nanoTime();
+					chunk.call(arg);
+					best = Math.min(best, System.nanoTime() - t0);
+				}
+				System.out.println(pad(MODES[m], 16)+(best/1000000)+" ms, "+(best*1000/n/1000.0)+" ns/iteration");
+			}
+		}
+	}
+
+	private static Globals newGlobals(int mode) {
+		if ( mode == 0 )
+			return JsePlatform.standardGlobals();
+		Globals globals = JsePlatform.debugGlobals();
+		switch ( mode ) {
+		case 2: 
+			globals.debuglib.trace_calls = true;
+			break;
+		case 3: 
+			globals.load("debug.sethook(function() end, '', 1000000000)").call();
+			break;
+		}
+		return globals;
+	}
+
+	private static String pad(String s, int n) {
+		StringBuffer sb = new StringBuffer(s);
+		while ( sb.length() < n ) 
+			sb.append(' ');
+		return sb.toString();
+	}
+}
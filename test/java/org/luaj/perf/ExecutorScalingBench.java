@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.perf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.luaj.vm2.GlobalsTemplate;
+import org.luaj.vm2.LuaExecutor;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Measure how the throughput of {@link LuaExecutor} scales from 1 worker to one per core.
+ * <p>
+ * For each number of workers, four sandboxes per worker are made from one {@link GlobalsTemplate},
+ * so that they share compiled prototypes, and each runs the same script, which uses strings,
+ * string methods, tables and globals, a fixed number of times.
+ * The speedup is the throughput relative to 1 worker; near-linear scaling shows that
+ * the sandboxes do not contend on shared state.
+ * <p>
+ * Usage: java org.luaj.perf.ExecutorScalingBench [max workers] [calls per sandbox]
+ */
+public class ExecutorScalingBench {
+	static final String SCRIPT =
+		"local t = {}\n" +
+		"for i = 1, 200 do\n" +
+		"  local s = ('item' .. i):upper()\n" +
+		"  t[#t + 1] = s:sub(2, 4) .. string.format('%d', i % 7)\n" +
+		"end\n" +
+		"table.sort(t)\n" +
+		"count = (count or 0) + 1\n" +
+		"return #table.concat(t, ',')\n";
+
+	public static void main(String[] args) throws Exception {
+		int max = args.length > 0? Integer.parseInt(args[0]): Runtime.getRuntime().availableProcessors();
+		int calls = args.length > 1? Integer.parseInt(args[1]): 500;
+		GlobalsTemplate template = JsePlatform.standardTemplate();
+		System.out.println(Runtime.getRuntime().availableProcessors() + " cores, " + calls + " calls per sandbox");
+		double base = 0;
+		for ( int round=0; round<2; round++ ) {
+			for ( int workers=1; workers<=max; workers*=2 ) {
+				double rate = run(template, workers, calls);
+				if ( workers == 1 )
+					base = rate;
+				System.out.println(String.format("  %3d workers %12.0f calls/s  speedup %5.2f", workers, rate, rate / base));
+				if ( workers < max && workers * 2 > max )
+					workers = max / 2;
+			}
+			System.out.println();
+		}
+	}
+
+	static double run(GlobalsTemplate template, int workers, int calls) throws Exception {
+		LuaExecutor executor = new LuaExecutor(workers);
+		int n = workers * 4;
+		LuaExecutor.Sandbox[] sandboxes = new LuaExecutor.Sandbox[n];
+		LuaValue[] chunks = new LuaValue[n];
+		for ( int i=0; i<n; i++ ) {
+			sandboxes[i] = executor.newSandbox(template.newGlobals());
+			chunks[i] = sandboxes[i].globals.load(SCRIPT, "bench");
+		}
+		List<Future<Varargs>> results = new ArrayList<Future<Varargs>>();
+		long t0 = System.nanoTime();
+		for ( int c=0; c<calls; c++ )
+			for ( int i=0; i<n; i++ )
+				results.add(sandboxes[i].submit(chunks[i], LuaValue.NONE));
+		for ( int i=0; i<results.size(); i++ )
+			results.get(i).get();
+		long t = System.nanoTime() - t0;
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		return (double) n * calls / t * 1e9;
+	}
+}
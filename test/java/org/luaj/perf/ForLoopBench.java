@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.perf;
+
+import java.lang.management.ManagementFactory;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.LuaJC;
+
+/** 
+ * Measure time and bytes allocated per iteration of numeric for-loops, 
+ * in the interpreter and in luajc compiled code.
+ * <p>
+ * In compiled code the loop index, limit and step are kept in double locals, 
+ * and the loop variable is only boxed when it is used other than as a table key, 
+ * arithmetic operand or comparison operand.  The interpreter keeps the loop variable 
+ * in its register array, so it is boxed once per iteration.
+ * Arithmetic on the loop variable and number constants is also kept in double locals 
+ * in compiled code, as is arithmetic on those results.
+ * <p>
+ * Allocation is read from {@link com.sun.management.ThreadMXBean}, so this needs a JVM that provides it.
+ * <p>
+ * Usage: java org.luaj.perf.ForLoopBench [iterations]
+ */
+public class ForLoopBench {
+	static final String[] NAMES = { "counter", "table build", "table read", "arithmetic" };
+	static final String[] SCRIPTS = {
+		// loop variable only used in arithmetic and comparisons
+		"local n = ...\n" +
+		"local c = 0\n" +
+		"for i = 1, n do\n" +
+		"  if i % 1000 < 1 then c = c + 1 end\n" +
+		"end\n" +
+		"return c",
+		// loop variable as table key
+		"local n = ...\n" +
+		"local t = {}\n" +
+		"for i = 1, n do t[i] = true end\n" +
+		"for i = n, 1, -1 do t[i] = nil end\n" +
+		"return #t",
+		// loop variable as table key, value read into a temporary
+		"local n = ...\n" +
+		"local t = {}\n" +
+		"for i = 1, 1000 do t[i] = i % 2 == 0 end\n" +
+		"local c = 0\n" +
+		"for i = 1, n do\n" +
+		"  if t[i % 1000 + 1] then c = c + 1 end\n" +
+		"end\n" +
+		"return c",
+		// temporaries computed from the loop variable and constants
+		"local n = ...\n" +
+		"local c = 0\n" +
+		"for i = 1, n do\n" +
+		"  local d = i % 7\n" +
+		"  local y = (i - d) / 7 * 2 + d ^ 2 - 0.5\n" +
+		"  if y < 1000 then c = c + 1 end\n" +
+		"end\n" +
+		"return c",
+	};
+	static final String[] MODES = { "interpreter", "luajc" };
+
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0? Integer.parseInt(args[0]): 1000000;
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		for ( int s=0; s<SCRIPTS.length; s++ ) {
+			System.out.println("--- "+NAMES[s]+" x "+n);
+			for ( int m=0; m<MODES.length; m++ ) {
+				Globals globals = JsePlatform.standardGlobals();
+				if ( m == 1 )
+					LuaJC.install(globals);
+				LuaValue chunk = globals.load(SCRIPTS[s], NAMES[s]);
+				LuaValue arg = LuaValue.valueOf(n);
+				for ( int i=0; i<5; i++ ) // warm up
+					chunk.call(arg);
+				long best = Long.MAX_VALUE, bytes = Long.MAX_VALUE;
+				for ( int i=0; i<10; i++ ) {
+					long b0 = mx.getThreadAllocatedBytes(tid);
+					long t0 = System.nanoTime();
+					chunk.call(arg);
+					best = Math.min(best, System.nanoTime() - t0);
+					bytes = Math.min(bytes, mx.getThreadAllocatedBytes(tid) - b0);
+				}
+				System.out.println(pad(MODES[m], 16)+(best/1000000)+" ms, "+(best*1000/n/1000.0)+" ns/iteration, "
+						+(bytes*100/n/100.0)+" bytes/iteration");
+			}
+		}
+	}
+
+	private static String pad(String s, int n) {
+		StringBuffer sb = new StringBuffer(s);
+		while ( sb.length() < n ) 
+			sb.append(' ');
+		return sb.toString();
+	}
+}
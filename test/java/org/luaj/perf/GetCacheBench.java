@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.perf;
+
+import java.lang.management.ManagementFactory;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/** 
+ * Measure time and bytes allocated per iteration of constant-key field lookups in the interpreter, 
+ * from one closure called many times and from a new closure made and called once per iteration.
+ * <p>
+ * The inline caches for these lookups belong to the {@link org.luaj.vm2.Prototype}, 
+ * so a closure made in a loop finds the entries its predecessors filled in, 
+ * rather than allocating and filling caches of its own that are used only once.
+ * <p>
+ * Allocation is read from {@link com.sun.management.ThreadMXBean}, so this needs a JVM that provides it.
+ * <p>
+ * Usage: java org.luaj.perf.GetCacheBench [iterations]
+ */
+public class GetCacheBench {
+	static final String[] NAMES = { "one closure", "closure per iteration" };
+	static final String[] SCRIPTS = {
+		"local n = ...\n" +
+		"local t = { a = 1, b = 2, c = 3, d = 4, e = 5, f = 6, g = 7, h = 8 }\n" +
+		"local function f() return t.a + t.d + t.g + t.h end\n" +
+		"local s = 0\n" +
+		"for i = 1, n do s = s + f() end\n" +
+		"return s",
+		"local n = ...\n" +
+		"local t = { a = 1, b = 2, c = 3, d = 4, e = 5, f = 6, g = 7, h = 8 }\n" +
+		"local s = 0\n" +
+		"for i = 1, n do\n" +
+		"  local f = function() return t.a + t.d + t.g + t.h end\n" +
+		"  s = s + f()\n" +
+		"end\n" +
+		"return s",
+	};
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0? Integer.parseInt(args[0]): 1000000;
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		for ( int s=0; s<SCRIPTS.length; s++ ) {
+			Globals globals = JsePlatform.standardGlobals();
+			LuaValue chunk = globals.load(SCRIPTS[s], NAMES[s]);
+			LuaValue arg = LuaValue.valueOf(n);
+			for ( int i=0; i<5; i++ ) // warm up
+				chunk.call(arg);
+			long best = Long.MAX_VALUE, bytes = Long.MAX_VALUE;
+			for ( int i=0; i<10; i++ ) {
+				long b0 = mx.getThreadAllocatedBytes(tid);
+				long t0 = System.nanoTime();
+				chunk.call(arg);
+				best = Math.min(best, System.nanoTime() - t0);
+				bytes = Math.min(bytes, mx.getThreadAllocatedBytes(tid) - b0);
+			}
+			System.out.println(NAMES[s]+": "+(best*1000/n/1000.0)+" ns/iteration, "+(bytes*100/n/100.0)+" bytes/iteration");
+		}
+	}
+}
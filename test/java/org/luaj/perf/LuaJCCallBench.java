@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.perf;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.LuaJC;
+
+/** 
+ * Measure the time of call-heavy and table-heavy scripts in the interpreter and in luajc compiled code:
+ * recursive fib, method calls on objects with a shared metatable, and table reads and writes in a loop.
+ * <p>
+ * Usage: java org.luaj.perf.LuaJCCallBench [scale]
+ */
+public class LuaJCCallBench {
+	static final String[] NAMES = { "fib", "methods", "tables" };
+	static final String[] SCRIPTS = {
+		// recursive calls of a global function, comparisons and arithmetic with constants
+		"local n = ...\n" +
+		"function fib(k) if k < 2 then return k end return fib(k - 1) + fib(k - 2) end\n" +
+		"local s = 0\n" +
+		"for i = 1, n do s = s + fib(15) end\n" +
+		"return s",
+		// method calls through __index of a class table, and field updates
+		"local n = ...\n" +
+		"local Point = {}\n" +
+		"Point.__index = Point\n" +
+		"function Point.new(x, y) return setmetatable({x = x, y = y}, Point) end\n" +
+		"function Point:add(o) return Point.new(self.x + o.x, self.y + o.y) end\n" +
+		"function Point:len2() return self.x * self.x + self.y * self.y end\n" +
+		"function Point:move(dx) self.x = self.x + dx end\n" +
+		"local p, q = Point.new(0, 0), Point.new(1, 2)\n" +
+		"local s = 0\n" +
+		"for i = 1, n * 1000 do\n" +
+		"  p:move(1)\n" +
+		"  s = s + p:add(q):len2() % 7\n" +
+		"end\n" +
+		"return s",
+		// reads and writes of array elements and fields of a record
+		"local n = ...\n" +
+		"local t, r = {}, {count = 0, total = 0}\n" +
+		"for i = 1, 100 do t[i] = i end\n" +
+		"for k = 1, n * 10 do\n" +
+		"  for i = 1, 100 do\n" +
+		"    local v = t[i]\n" +
+		"    r.count = r.count + 1\n" +
+		"    r.total = r.total + v\n" +
+		"  end\n" +
+		"end\n" +
+		"return r.total / r.count",
+	};
+	static final String[] MODES = { "interpreter", "luajc" };
+
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0? Integer.parseInt(args[0]): 100;
+		for ( int s=0; s<SCRIPTS.length; s++ ) {
+			System.out.println("--- "+NAMES[s]+" x "+n);
+			for ( int m=0; m<MODES.length; m++ ) {
+				Globals globals = JsePlatform.standardGlobals();
+				if ( m == 1 )
+					LuaJC.install(globals);
+				LuaValue chunk = globals.load(SCRIPTS[s], NAMES[s]);
+				LuaValue arg = LuaValue.valueOf(n);
+				for ( int i=0; i<5; i++ ) // warm up
+					chunk.call(arg);
+				long best = Long.MAX_VALUE;
+				for ( int i=0; i<10; i++ ) {
+					long t0 = System.nanoTime();
+					chunk.call(arg);
+					best = Math.min(best, System.nanoTime() - t0);
+				}
+				System.out.println(pad(MODES[m], 16)+(best/1000)+" us");
+			}
+		}
+	}
+
+	private static String pad(String s, int n) {
+		StringBuffer sb = new StringBuffer(s);
+		while ( sb.length() < n ) 
+			sb.append(' ');
+		return sb.toString();
+	}
+}
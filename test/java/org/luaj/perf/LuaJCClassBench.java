@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.perf;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.List;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.JavaGen;
+import org.luaj.vm2.luajc.LuaJC;
+
+/** 
+ * Measure the time luajc takes to generate classes, their size, and the metaspace they use 
+ * while loaded and after the {@link Globals} that loaded them are dropped.
+ * <p>
+ * Each chunk is a module of many small functions, with a different constant in each, 
+ * as when a module is edited and reloaded.  Generation time is for the bytecode only, 
+ * from an already compiled {@link Prototype}.  Each chunk is then loaded by {@link LuaJC} 
+ * into its own {@link Globals} and called; luajc defines the classes of each chunk in 
+ * a class loader of its own, so they are unloaded once nothing refers to its functions.
+ * <p>
+ * Metaspace is read from the "Metaspace" memory pool, so this needs a JVM that provides it.
+ * <p>
+ * Usage: java org.luaj.perf.LuaJCClassBench [chunks] [functions per chunk]
+ */
+public class LuaJCClassBench {
+
+	public static void main(String[] args) throws Exception {
+		int chunks = args.length > 0? Integer.parseInt(args[0]): 500;
+		int functions = args.length > 1? Integer.parseInt(args[1]): 20;
+		Globals compiler = JsePlatform.standardGlobals();
+		String[] scripts = new String[chunks];
+		Prototype[] prototypes = new Prototype[chunks];
+		for ( int i=0; i<chunks; i++ ) {
+			scripts[i] = script(i, functions);
+			prototypes[i] = compiler.compilePrototype(new java.io.StringReader(scripts[i]), "module"+i);
+		}
+
+		// generation
+		System.out.println("--- generate "+chunks+" chunks of "+functions+" functions");
+		for ( int round=0; round<3; round++ ) {
+			long bytes = 0, classes = 0;
+			long t0 = System.nanoTime();
+			for ( int i=0; i<chunks; i++ ) {
+				JavaGen gen = new JavaGen(prototypes[i], "module"+i, "module"+i+".lua", false);
+				bytes += size(gen);
+				classes += count(gen);
+			}
+			long t = System.nanoTime() - t0;
+			System.out.println("  "+(t/1000/chunks)+" us/chunk, "+(bytes/classes)+" bytes/class, "+(bytes/chunks)+" bytes/chunk");
+		}
+
+		// loading and unloading
+		ClassLoadingMXBean cl = ManagementFactory.getClassLoadingMXBean();
+		System.out.println("--- load "+chunks+" chunks, each into its own globals");
+		gc();
+		long m0 = metaspace(), u0 = cl.getUnloadedClassCount();
+		Globals[] loaded = new Globals[chunks];
+		long t0 = System.nanoTime();
+		for ( int i=0; i<chunks; i++ ) {
+			loaded[i] = JsePlatform.standardGlobals();
+			LuaJC.install(loaded[i]);
+			LuaValue module = loaded[i].load(scripts[i], "module"+i).call();
+			module.get("f0").call(LuaValue.valueOf(10));
+			loaded[i].set("module", module);
+		}
+		long t = System.nanoTime() - t0;
+		gc();
+		long m1 = metaspace();
+		System.out.println("  "+(t/1000/chunks)+" us/chunk to generate, define and call");
+		System.out.println("  metaspace while loaded: +"+((m1-m0)/1024)+" KiB, "+((m1-m0)/chunks)+" bytes/chunk");
+		loaded = null;
+		gc();
+		long m2 = metaspace();
+		System.out.println("  metaspace after dropping the globals: +"+((m2-m0)/1024)+" KiB, "
+				+(cl.getUnloadedClassCount()-u0)+" classes unloaded");
+	}
+
+	/** Module of small functions, differing from the modules of other {@code n} by a constant. */
+	static String script(int n, int functions) {
+		StringBuffer sb = new StringBuffer("local m = {}\n");
+		for ( int f=0; f<functions; f++ ) {
+			sb.append("function m.f"+f+"(a, b)\n");
+			sb.append("  local s = 0\n");
+			sb.append("  for i = 1, a do s = s + i * "+(n+f)+" end\n");
+			sb.append("  local t = { s, a, b }\n");
+			sb.append("  return #t > 2 and t[1] or tostring(b) .. '"+n+"'\n");
+			sb.append("end\n");
+		}
+		sb.append("return m\n");
+		return sb.toString();
+	}
+
+	private static long size(JavaGen gen) {
+		long n = gen.bytecode.length;
+		for ( int i=0, k=gen.inners!=null? gen.inners.length: 0; i<k; i++ )
+			n += size(gen.inners[i]);
+		return n;
+	}
+
+	private static long count(JavaGen gen) {
+		long n = 1;
+		for ( int i=0, k=gen.inners!=null? gen.inners.length: 0; i<k; i++ )
+			n += count(gen.inners[i]);
+		return n;
+	}
+
+	private static long metaspace() {
+		List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+		for ( int i=0; i<pools.size(); i++ )
+			if ( "Metaspace".equals(pools.get(i).getName()) )
+				return pools.get(i).getUsage().getUsed();
+		return 0;
+	}
+
+	private static void gc() throws InterruptedException {
+		for ( int i=0; i<3; i++ ) {
+			System.gc();
+			Thread.sleep(100);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.perf;
+
+import java.util.Random;
+
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaTableSortC;
+import org.luaj.vm2.LuaTableSortDesb42;
+import org.luaj.vm2.LuaTableSortQuick;
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Compare the cost of table.sort without a comparator on tables of 1k to 1M values.
+ * <p>
+ * Strings are sorted with {@link LuaTableSortC}, {@link LuaTableSortQuick},
+ * {@link LuaTableSortDesb42} and {@link LuaTable#sort(LuaValue)}, which sorts
+ * all-string arrays with Arrays.sort, or Arrays.parallelSort when large.
+ * Numbers are sorted with {@link LuaTableSortDesb42} on boxed values
+ * and with {@link LuaTable#sort(LuaValue)} on the typed array part.
+ * <p>
+ * Each table is rebuilt from the same random values before each timed sort.
+ * <p>
+ * Usage: java org.luaj.perf.TableSortBench [max size]
+ */
+public class TableSortBench {
+	static final String[] MODES = { "LuaTableSortC", "LuaTableSortQuick", "LuaTableSortDesb42", "LuaTable.sort" };
+
+	public static void main(String[] args) {
+		int max = args.length > 0? Integer.parseInt(args[0]): 1000000;
+		Random rnd = new Random(20201018);
+		for ( int round=0; round<2; round++ ) {
+			for ( int n=1000; n<=max; n*=10 ) {
+				LuaValue[] strs = new LuaValue[n];
+				LuaValue[] nums = new LuaValue[n];
+				for ( int i=0; i<n; i++ ) {
+					int v = rnd.nextInt();
+					strs[i] = LuaValue.valueOf("k" + v);
+					nums[i] = LuaValue.valueOf(v);
+				}
+				int reps = Math.max(1, 1000000 / n);
+				System.out.println(n + " values, " + reps + " reps");
+				for ( int m=0; m<MODES.length; m++ )
+					System.out.println("  strings " + pad(MODES[m], 20) + String.format("%10.1f", time(m, strs, reps)) + " us/sort");
+				for ( int m=2; m<MODES.length; m++ )
+					System.out.println("  numbers " + pad(MODES[m], 20) + String.format("%10.1f", time(m, nums, reps)) + " us/sort");
+			}
+			System.out.println();
+		}
+	}
+
+	static double time(int mode, LuaValue[] values, int reps) {
+		long t = 0;
+		int n = values.length;
+		for ( int r=0; r<reps; r++ ) {
+			LuaTable table = null;
+			LuaValue[] copy = null;
+			if ( mode == 2 )
+				copy = values.clone();
+			else {
+				table = new LuaTable();
+				for ( int i=0; i<n; i++ )
+					table.rawset(i+1, values[i]);
+			}
+			long t0 = System.nanoTime();
+			switch ( mode ) {
+			case 0: new LuaTableSortC(table, LuaValue.NIL).auxsort(1, n); break;
+			case 1: new LuaTableSortQuick(table, LuaValue.NIL).sort(0, n-1); break;
+			case 2: new LuaTableSortDesb42(null, copy, n, LuaValue.NIL).sort(n); break;
+			default: table.sort(LuaValue.NIL); break;
+			}
+			t += System.nanoTime() - t0;
+		}
+		return t / 1000.0 / reps;
+	}
+
+	static String pad(String s, int n) {
+		StringBuffer sb = new StringBuffer(s);
+		while ( sb.length() < n )
+			sb.append(' ');
+		return sb.toString();
+	}
+}
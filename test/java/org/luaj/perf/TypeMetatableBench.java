@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.perf;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/** 
+ * Measure the time per string method call, such as {@code s:len()}, which looks up the string metatable, 
+ * before any {@link Globals} has isolated metatables, after one has on another thread, 
+ * and from a {@link Globals} with isolated metatables that is current on the calling thread.
+ * <p>
+ * Usage: java org.luaj.perf.TypeMetatableBench [iterations]
+ */
+public class TypeMetatableBench {
+	static final String[] NAMES = { "shared", "shared, other isolated", "isolated, current" };
+	static final String SCRIPT = 
+		"local n = ...\n" +
+		"local s, m = 'abc', 0\n" +
+		"for i = 1, n do m = m + s:len() end\n" +
+		"return m";
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0? Integer.parseInt(args[0]): 1000000;
+		LuaValue arg = LuaValue.valueOf(n);
+		for ( int s=0; s<NAMES.length; s++ ) {
+			Globals globals = JsePlatform.standardGlobals();
+			if ( s == 1 ) {
+				JsePlatform.standardGlobals().isolateMetatables();
+			} else if ( s == 2 ) {
+				globals.isolateMetatables();
+				Globals.setCurrent(globals);
+			}
+			LuaValue chunk = globals.load(SCRIPT, NAMES[s]);
+			for ( int i=0; i<5; i++ ) // warm up
+				chunk.call(arg);
+			long best = Long.MAX_VALUE;
+			for ( int i=0; i<10; i++ ) {
+				long t0 = System.nanoTime();
+				chunk.call(arg);
+				best = Math.min(best, System.nanoTime() - t0);
+			}
+			System.out.println(NAMES[s]+": "+(best*1000/n/1000.0)+" ns/iteration");
+		}
+	}
+}
@@ -50,7 +50,7 @@ public class TableHashTest extends TestCase {
 		
 		String[] keys = { "abc", "def", "ghi", "jkl", "mno", "pqr", "stu", "wxy", "z01",
 				"cd", "ef", "g", "hi", "jk", "lm", "no", "pq", "rs", };		
-		int[] capacities = { 0, 2, 2, 4, 4, 8, 8, 8, 8, 16, 16, 16, 16, 16, 16, 16, 16, 32, 32, 32 };
+		int[] capacities = { 0, 2, 4, 4, 8, 8, 8, 16, 16, 16, 16, 16, 16, 32, 32, 32, 32, 32, 32, 32 };
 		for ( int i = 0; i < keys.length; ++i ) {
 			assertEquals( capacities[i], t.getHashLength() );
 			String si = "Test Value! "+i;
@@ -0,0 +1,71 @@
+package org.luaj.vm2;
+
+import org.junit.*;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import gplx.tests.Gftest_fxt;
+
+public class GlobalsTemplate_tst {
+	private final GlobalsTemplate_fxt fxt = new GlobalsTemplate_fxt();
+	@Test public void Run() {
+		Globals g = fxt.New();
+		Gftest_fxt.Eq__str("ABC3", fxt.Run(g, "return string.upper('abc') .. #table.concat({1, 2, 3})"));
+		Gftest_fxt.Eq__str("ab", fxt.Run(g, "return ('a'):rep(1) .. 'b'"));
+	}
+	@Test public void Isolated() {
+		Globals a = fxt.New(), b = fxt.New();
+		fxt.Run(a, "string.x = 1; x = 2; table.insert = nil; package.loaded.string.y = 3");
+		Gftest_fxt.Eq__str("nil nil function nil", fxt.Run(b, "return tostring(string.x) .. ' ' .. tostring(x) .. ' ' .. type(table.insert) .. ' ' .. tostring(string.y)"));
+		Gftest_fxt.Eq__str("1 3", fxt.Run(a, "return string.x .. ' ' .. string.y"));	// string and package.loaded.string are still the same table
+	}
+	@Test public void Own_libs() {	// libraries that refer to their globals are loaded for each
+		Globals a = fxt.New(), b = fxt.New();
+		Gftest_fxt.Eq__bool(true, a.get("_G") == a && b.get("_G") == b);
+		fxt.Run(a, "package.preload.m = function() return 'a' end");
+		Gftest_fxt.Eq__str("a", fxt.Run(a, "return require('m')"));
+		Gftest_fxt.Eq__str("false", fxt.Run(b, "return tostring(pcall(require, 'm'))"));
+		Gftest_fxt.Eq__str("1", fxt.Run(b, "return load('y = 1 return y')()"));
+		Gftest_fxt.Eq__str("nil", fxt.Run(a, "return tostring(y)"));
+	}
+	@Test public void Prototypes_shared() {
+		String script = "local n = 0 for i = 1, 3 do n = n + i end return n";
+		Gftest_fxt.Eq__str("6", fxt.Run(fxt.New(), script));
+		Gftest_fxt.Eq__str("6", fxt.Run(fxt.New(), script));
+		Gftest_fxt.Eq__int(1, fxt.Template().getPrototypeCount());
+		fxt.Run(fxt.New(), "return 1");
+		Gftest_fxt.Eq__int(2, fxt.Template().getPrototypeCount());
+	}
+	@Test public void Prototypes_bounded() {	// least recently used chunks are dropped
+		fxt.Template().setMaxPrototypes(2);
+		Globals g = fxt.New();
+		Prototype p1 = fxt.Compile(g, "return 1");
+		Prototype p2 = fxt.Compile(g, "return 2");
+		fxt.Compile(g, "return 1");
+		fxt.Compile(g, "return 3");
+		Gftest_fxt.Eq__int(2, fxt.Template().getPrototypeCount());
+		Gftest_fxt.Eq__bool(true, fxt.Compile(fxt.New(), "return 1") == p1);
+		Gftest_fxt.Eq__bool(false, fxt.Compile(fxt.New(), "return 2") == p2);
+		fxt.Template().setMaxPrototypes(0);
+		Gftest_fxt.Eq__int(0, fxt.Template().getPrototypeCount());
+		Gftest_fxt.Eq__str("1", fxt.Run(g, "return 1"));
+		Gftest_fxt.Eq__int(0, fxt.Template().getPrototypeCount());
+	}
+	@Test public void Reader_function() {
+		Gftest_fxt.Eq__str("1,2", fxt.Run(fxt.New(), "local t, n = {'return 1', '', ' + 41'}, 0 local f = load(function() n = n + 1 return t[n] end) return f() .. ',' .. n"));
+	}
+}
+class GlobalsTemplate_fxt {
+	private final GlobalsTemplate template = JsePlatform.standardTemplate();
+	public GlobalsTemplate Template() {return template;}
+	public Globals New() {return template.newGlobals();}
+	public Prototype Compile(Globals g, String script) {
+		try {
+			return g.compiler.compile(new java.io.ByteArrayInputStream(script.getBytes("UTF-8")), "chunk");
+		} catch (java.io.IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	public String Run(Globals g, String script) {
+		return g.load(script, "chunk").call().tojstring();
+	}
+}
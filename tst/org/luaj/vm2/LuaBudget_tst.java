@@ -0,0 +1,71 @@
+package org.luaj.vm2;
+
+import org.junit.*;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.LuaJC;
+
+import gplx.tests.Gftest_fxt;
+
+public class LuaBudget_tst {
+	private final LuaBudget_fxt fxt = new LuaBudget_fxt();
+	@Test public void Loop() {
+		fxt.Test__exceeded("while true do end", 100000, 0, false);
+		fxt.Test__exceeded("local n = 0 for i = 1, 1e9 do n = n + i end", 100000, 0, false);
+		fxt.Test__exceeded("local t = setmetatable({}, {__index = function(t, k) return k end}) for k, v in function() return 1, 2 end do end", 100000, 0, false);
+	}
+	@Test public void Calls() {	// recursion without loops is charged at each call
+		fxt.Test__exceeded("local function f(n) return f(n + 1) end return f(1)", 100000, 0, false);
+	}
+	@Test public void Deadline() {
+		fxt.Test__exceeded("while true do end", 0, 50, true);
+	}
+	@Test public void Pcall() {	// pcall does not catch the budget error
+		fxt.Test__exceeded("pcall(function() while true do end end) return 'caught'", 100000, 0, false);
+	}
+	@Test public void Within() {
+		fxt.Test__run("local n = 0 for i = 1, 100 do n = n + i end return n", 100000, 0, "5050");
+	}
+	@Test public void None() {	// without a budget, nothing is charged
+		fxt.Test__run("local n = 0 for i = 1, 1000 do n = n + i end return n", 0, 0, "500500");
+		Gftest_fxt.Eq__bool(false, fxt.Globals().isBudgeted());
+	}
+	@Test public void Other_globals() {	// compiled code charges the Globals it was loaded with, not the one with a budget on the thread
+		Globals budgeted = JsePlatform.standardGlobals();
+		budgeted.setBudget(1000, 0);
+		fxt.Test__run("local n = 0 for i = 1, 100000 do n = n + 1 end return n", 0, 0, "100000");
+		Gftest_fxt.Eq__int(1000, (int) budgeted.getInstructionsLeft());
+	}
+	@Test public void Reset() {	// a new budget replaces an exhausted one
+		fxt.Test__exceeded("while true do end", 1000, 0, false);
+		fxt.Globals().setBudget(1000, 0);
+		Gftest_fxt.Eq__str("1", fxt.Globals().load("return 1").call().tojstring());
+		fxt.Globals().clearBudget();
+		Gftest_fxt.Eq__str("1", fxt.Globals().load("local n = 0 for i = 1, 1000 do n = n + 1 end return 1").call().tojstring());
+	}
+}
+class LuaBudget_fxt {
+	private Globals globals;
+	public Globals Globals() {return globals;}
+	public void Test__exceeded(String script, long instructions, long millis, boolean timeout) {
+		Test__exceeded(script, instructions, millis, timeout, false);
+		Test__exceeded(script, instructions, millis, timeout, true);
+	}
+	public void Test__run(String script, long instructions, long millis, String expd) {
+		Gftest_fxt.Eq__str(expd, Run(script, instructions, millis, false));
+		Gftest_fxt.Eq__str(expd, Run(script, instructions, millis, true));
+	}
+	private void Test__exceeded(String script, long instructions, long millis, boolean timeout, boolean luajc) {
+		LuaBudgetError err = null;
+		try {Run(script, instructions, millis, luajc);}
+		catch (LuaBudgetError e) {err = e;}
+		Gftest_fxt.Eq__bool(true, err != null);
+		Gftest_fxt.Eq__bool(timeout, err.timeout);
+	}
+	private String Run(String script, long instructions, long millis, boolean luajc) {
+		globals = JsePlatform.standardGlobals();
+		if (luajc) LuaJC.install(globals);
+		LuaValue chunk = globals.load(script, "script");
+		globals.setBudget(instructions, millis);
+		return chunk.call().tojstring();
+	}
+}
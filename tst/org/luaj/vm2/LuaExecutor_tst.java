@@ -0,0 +1,76 @@
+package org.luaj.vm2;
+
+import java.util.concurrent.Future;
+
+import org.junit.*;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import gplx.tests.Gftest_fxt;
+
+public class LuaExecutor_tst {
+	private final LuaExecutor_fxt fxt = new LuaExecutor_fxt();
+	@After public void term() throws Exception {
+		fxt.Term();
+	}
+	@Test public void Order() throws Exception {	// calls to one sandbox run one at a time, in order
+		LuaExecutor.Sandbox sandbox = fxt.New();
+		Future<Varargs> last = null;
+		for (int i = 0; i < 100; i++)
+			last = fxt.Submit(sandbox, "n = (n or 0) + 1; s = (s or '') .. (n % 10); return n");
+		Gftest_fxt.Eq__str("100", last.get().arg1().tojstring());
+		Gftest_fxt.Eq__str("1234567890", fxt.Run(sandbox, "return s:sub(1, 10)"));
+	}
+	@Test public void String_metatable() throws Exception {	// string methods come from the sandbox's own string table
+		LuaExecutor.Sandbox a = fxt.New(), b = fxt.New();
+		fxt.Run(a, "function string.who() return 'a' end");
+		Gftest_fxt.Eq__str("a", fxt.Run(a, "return ('x'):who()"));
+		Gftest_fxt.Eq__str("false", fxt.Run(b, "return tostring(pcall(function() return ('x'):who() end))"));
+		fxt.Run(b, "getmetatable('').__index = {upper = function() return 'b' end}");
+		Gftest_fxt.Eq__str("b", fxt.Run(b, "return ('x'):upper()"));
+		Gftest_fxt.Eq__str("X", fxt.Run(a, "return ('x'):upper()"));
+		Gftest_fxt.Eq__str("x", LuaValue.valueOf("x").get("lower").call(LuaValue.valueOf("X")).tojstring());	// outside of any sandbox
+	}
+	@Test public void Coroutine() throws Exception {	// coroutines use the metatables of their sandbox
+		LuaExecutor.Sandbox a = fxt.New();
+		fxt.Run(a, "function string.who() return 'a' end");
+		Gftest_fxt.Eq__str("a", fxt.Run(a, "return coroutine.wrap(function() coroutine.yield(('x'):who()) end)()"));
+	}
+	@Test public void Current() {	// isolated metatables are used only while their Globals is current
+		Globals a = JsePlatform.standardGlobals(), b = JsePlatform.standardGlobals();
+		a.isolateMetatables();
+		b.isolateMetatables();
+		LuaValue shared = LuaString.s_metatable;
+		Globals prev = Globals.setCurrent(a);
+		LuaValue mt_a = LuaValue.valueOf("x").getmetatable();
+		Globals prev_b = Globals.setCurrent(b);
+		LuaValue mt_b = LuaValue.valueOf("x").getmetatable();
+		Globals.setCurrent(prev_b);
+		Gftest_fxt.Eq__bool(true, mt_a == LuaValue.valueOf("x").getmetatable());
+		Globals.setCurrent(prev);
+		Gftest_fxt.Eq__bool(true, mt_a != shared && mt_b != shared && mt_a != mt_b);
+		Gftest_fxt.Eq__bool(true, shared == LuaValue.valueOf("x").getmetatable());
+	}
+	@Test public void Error() throws Exception {
+		LuaExecutor.Sandbox a = fxt.New();
+		String err = null;
+		try {fxt.Run(a, "error('oops')");}
+		catch (java.util.concurrent.ExecutionException e) {err = e.getCause().getMessage();}
+		Gftest_fxt.Eq__bool(true, err.indexOf("oops") >= 0);
+		Gftest_fxt.Eq__str("1", fxt.Run(a, "return 1"));
+	}
+}
+class LuaExecutor_fxt {
+	private final LuaExecutor executor = new LuaExecutor(2);
+	private final GlobalsTemplate template = JsePlatform.standardTemplate();
+	public LuaExecutor.Sandbox New() {return executor.newSandbox(template.newGlobals());}
+	public Future<Varargs> Submit(LuaExecutor.Sandbox sandbox, String script) {
+		return sandbox.submit(sandbox.globals.load(script, "chunk"), LuaValue.NONE);
+	}
+	public String Run(LuaExecutor.Sandbox sandbox, String script) throws Exception {
+		return Submit(sandbox, script).get().arg1().tojstring();
+	}
+	public void Term() throws Exception {
+		executor.shutdown();
+		executor.awaitTermination(1, java.util.concurrent.TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,157 @@
+package org.luaj.vm2;
+
+import org.junit.*;
+
+import gplx.tests.Gftest_fxt;
+
+public class LuaTable_getk_tst {
+	private final Luaj_script_fxt fxt = new Luaj_script_fxt();
+	@Before public void init() {
+		fxt.Clear();
+	}
+	@Test public void Same_table() {
+		LuaTable t = new LuaTable();
+		LuaString key = LuaString.valueOf("a");
+		LuaTable.GetCache[] caches = new LuaTable.GetCache[1];
+		t.set(key, LuaValue.valueOf(1));
+		Gftest_fxt.Eq__int(1, t.get(key, caches, 0).toint());
+		Gftest_fxt.Eq__int(1, t.get(key, caches, 0).toint());
+		t.set(key, LuaValue.valueOf(2));	// update
+		Gftest_fxt.Eq__int(2, t.get(key, caches, 0).toint());
+		t.set(key, LuaValue.NIL);			// remove
+		Gftest_fxt.Eq__bool(true, t.get(key, caches, 0).isnil());
+		t.set(key, LuaValue.valueOf(3));	// reinsert
+		Gftest_fxt.Eq__int(3, t.get(key, caches, 0).toint());
+		for (int i = 0; i < 64; i++)		// rehash
+			t.set("k" + i, LuaValue.valueOf(i));
+		Gftest_fxt.Eq__int(3, t.get(key, caches, 0).toint());
+	}
+	@Test public void Other_table() {
+		LuaTable t1 = new LuaTable();
+		LuaTable t2 = new LuaTable();
+		LuaString key = LuaString.valueOf("a");
+		LuaTable.GetCache[] caches = new LuaTable.GetCache[1];
+		t1.set(key, LuaValue.valueOf(1));
+		t2.set(key, LuaValue.valueOf(2));
+		Gftest_fxt.Eq__int(1, t1.get(key, caches, 0).toint());
+		Gftest_fxt.Eq__int(2, t2.get(key, caches, 0).toint());
+		Gftest_fxt.Eq__int(1, t1.get(key, caches, 0).toint());
+	}
+	@Test public void Same_layout() {	// tables with the same keys in the same order share a cache entry
+		LuaTable t1 = new LuaTable();
+		LuaTable t2 = new LuaTable();
+		LuaTable t3 = new LuaTable();
+		LuaString key = LuaString.valueOf("b");
+		LuaTable.GetCache[] caches = new LuaTable.GetCache[1];
+		t1.set("a", LuaValue.valueOf(1)); t1.set(key, LuaValue.valueOf(2));
+		t2.set("a", LuaValue.valueOf(3)); t2.set(key, LuaValue.valueOf(4));
+		t3.set("c", LuaValue.valueOf(5));
+		Gftest_fxt.Eq__int(2, t1.get(key, caches, 0).toint());
+		Gftest_fxt.Eq__int(4, t2.get(key, caches, 0).toint());
+		Gftest_fxt.Eq__bool(true, t3.get(key, caches, 0).isnil());
+		Gftest_fxt.Eq__int(2, t1.get(key, caches, 0).toint());
+	}
+	@Test public void Inherited() {
+		LuaTable cls = new LuaTable();
+		LuaTable mt = new LuaTable();
+		LuaTable o = new LuaTable();
+		LuaString key = LuaString.valueOf("f");
+		LuaTable.GetCache[] caches = new LuaTable.GetCache[1];
+		cls.set(key, LuaValue.valueOf(1));
+		mt.set(LuaValue.INDEX, cls);
+		o.setmetatable(mt);
+		Gftest_fxt.Eq__int(1, o.get(key, caches, 0).toint());
+		Gftest_fxt.Eq__int(1, o.get(key, caches, 0).toint());
+		o.set(key, LuaValue.valueOf(2));	// shadowed by the object
+		Gftest_fxt.Eq__int(2, o.get(key, caches, 0).toint());
+		o.set(key, LuaValue.NIL);
+		Gftest_fxt.Eq__int(1, o.get(key, caches, 0).toint());
+		LuaTable other = new LuaTable();	// __index replaced
+		other.set(key, LuaValue.valueOf(3));
+		mt.set(LuaValue.INDEX, other);
+		Gftest_fxt.Eq__int(3, o.get(key, caches, 0).toint());
+		mt.set(LuaValue.INDEX, LuaValue.NIL);
+		Gftest_fxt.Eq__bool(true, o.get(key, caches, 0).isnil());
+	}
+	@Test public void Set() {
+		LuaTable t = new LuaTable();
+		LuaString key = LuaString.valueOf("a");
+		LuaTable.GetCache[] caches = new LuaTable.GetCache[1];
+		LuaTable.setk(t, key, LuaValue.valueOf(1), caches, 0);	// insert
+		LuaTable.setk(t, key, LuaValue.valueOf(2), caches, 0);	// update
+		Gftest_fxt.Eq__int(2, t.rawget(key).toint());
+		LuaTable.setk(t, key, LuaValue.NIL, caches, 0);			// remove
+		Gftest_fxt.Eq__bool(true, t.rawget(key).isnil());
+		LuaTable.setk(t, key, LuaValue.valueOf(3), caches, 0);
+		Gftest_fxt.Eq__int(3, t.get(key, caches, 0).toint());
+	}
+	@Test public void Script__field() {
+		fxt.Init__script
+			( "local t = {a=1}"
+			, "local s = ''"
+			, "for i = 1, 4 do"
+			, "  s = s .. tostring(t.a)"
+			, "  if i == 1 then t.a = 2"
+			, "  elseif i == 2 then t.a = nil"
+			, "  elseif i == 3 then t.a = 4 end"
+			, "end"
+			, "return s"
+			);
+		fxt.Test("12nil4");
+	}
+	@Test public void Script__index_metamethod() {
+		fxt.Init__script
+			( "local t = setmetatable({}, {__index=function(t, k) return 'mt' end})"
+			, "local s = ''"
+			, "for i = 1, 3 do"
+			, "  s = s .. t.a .. ';'"
+			, "  if i == 1 then rawset(t, 'a', 'raw') end"
+			, "  if i == 2 then rawset(t, 'a', nil) end"
+			, "end"
+			, "return s"
+			);
+		fxt.Test("mt;raw;mt;");
+	}
+	@Test public void Script__self_and_globals() {
+		fxt.Init__script
+			( "local o = {n=0}"
+			, "function o:inc() self.n = self.n + 1 end"
+			, "for i = 1, 3 do o:inc() end"
+			, "x = 1"
+			, "local s = 0"
+			, "for i = 1, 3 do s = s + x; x = x * 10 end"
+			, "return o.n .. ',' .. s"
+			);
+		fxt.Test("3,111");
+	}
+	@Test public void Script__methods() {
+		fxt.Init__script
+			( "local P = {}"
+			, "P.__index = P"
+			, "function P:get() return self.v end"
+			, "local W = setmetatable({}, {__newindex=function(t, k, v) rawset(t, k, v * 10) end})"
+			, "local s = ''"
+			, "for i = 1, 3 do"
+			, "  local o = setmetatable({v = i}, P)"
+			, "  s = s .. o:get()"
+			, "  W.x = i"
+			, "  s = s .. W.x .. ';'"
+			, "  W.x = nil"
+			, "end"
+			, "P.get = function(self) return 'new' end"
+			, "return s .. setmetatable({}, P):get()"
+			);
+		fxt.Test("110;220;330;new");
+	}
+	@Test public void Script__weak_values() {
+		fxt.Init__script
+			( "local t = setmetatable({}, {__mode='v'})"
+			, "local v = {}"
+			, "t.a = v"
+			, "local n = 0"
+			, "for i = 1, 3 do if t.a == v then n = n + 1 end end"
+			, "return n"
+			);
+		fxt.Test("3");
+	}
+}
@@ -0,0 +1,108 @@
+package org.luaj.vm2;
+
+import org.junit.*;
+
+import gplx.tests.Gftest_fxt;
+
+public class LuaTable_hash_tst {
+	private final LuaTable_hash_fxt fxt = new LuaTable_hash_fxt();
+	@Test public void Key_types() {
+		LuaTable t = new LuaTable();
+		LuaTable tkey = new LuaTable();
+		t.set(-1, "neg");
+		t.set(100000, "big");
+		t.set(LuaValue.valueOf(1.5), LuaValue.valueOf("dbl"));
+		t.set(LuaValue.valueOf(2.0), LuaValue.valueOf("int"));	// normalized to 2
+		t.set("s", "str");
+		t.set(tkey, LuaValue.valueOf("tbl"));
+		t.set(LuaValue.TRUE, LuaValue.valueOf("bool"));
+		Gftest_fxt.Eq__str("neg" , t.get(-1).tojstring());
+		Gftest_fxt.Eq__str("big" , t.get(LuaValue.valueOf(100000)).tojstring());
+		Gftest_fxt.Eq__str("dbl" , t.get(LuaValue.valueOf(1.5)).tojstring());
+		Gftest_fxt.Eq__str("int" , t.get(2).tojstring());
+		Gftest_fxt.Eq__str("str" , t.get(LuaString.valueOf("s")).tojstring());
+		Gftest_fxt.Eq__str("tbl" , t.get(tkey).tojstring());
+		Gftest_fxt.Eq__str("bool", t.get(LuaValue.TRUE).tojstring());
+		Gftest_fxt.Eq__bool(true , t.get(new LuaTable()).isnil());
+		Gftest_fxt.Eq__int(100000, t.maxn());
+	}
+	@Test public void Random() {
+		java.util.Random rnd = new java.util.Random(20201018);
+		LuaTable t = new LuaTable();
+		java.util.HashMap<LuaValue, LuaValue> expd = new java.util.HashMap<LuaValue, LuaValue>();
+		LuaValue[] keys = new LuaValue[300];
+		for (int i = 0; i < keys.length; i++) {
+			switch (i % 4) {
+				case 0: keys[i] = LuaValue.valueOf(i - 100); break;
+				case 1: keys[i] = LuaValue.valueOf(i + 0.25); break;
+				case 2: keys[i] = LuaString.valueOf("k" + i); break;
+				default: keys[i] = new LuaTable(); break;
+			}
+		}
+		for (int i = 0; i < 20000; i++) {
+			LuaValue key = keys[rnd.nextInt(keys.length)];
+			LuaValue val = rnd.nextInt(3) == 0 ? LuaValue.NIL : LuaValue.valueOf(i);
+			t.rawset(key, val);
+			if (val.isnil()) expd.remove(key); else expd.put(key, val);
+		}
+		for (int i = 0; i < keys.length; i++) {
+			LuaValue val = expd.get(keys[i]);
+			Gftest_fxt.Eq__str(val == null ? "nil" : val.tojstring(), t.rawget(keys[i]).tojstring());
+		}
+		Gftest_fxt.Eq__int(expd.size(), t.keyCount());
+	}
+	@Test public void Next__remove_during_traversal() {
+		LuaTable t = fxt.Make(200);
+		int count = 0;
+		for (Varargs n = t.next(LuaValue.NIL); !n.arg1().isnil(); n = t.next(n.arg1())) {
+			t.rawset(n.arg1(), LuaValue.NIL);
+			count++;
+		}
+		Gftest_fxt.Eq__int(200, count);
+		Gftest_fxt.Eq__int(0, t.keyCount());
+	}
+	@Test public void Next__assign_during_traversal() {
+		LuaTable t = fxt.Make(200);
+		int count = 0;
+		for (Varargs n = t.next(LuaValue.NIL); !n.arg1().isnil(); n = t.next(n.arg1())) {
+			t.rawset(n.arg1(), LuaValue.NIL);	// remove and set again
+			t.rawset(n.arg1(), LuaValue.valueOf(count++));
+		}
+		Gftest_fxt.Eq__int(200, count);
+		Gftest_fxt.Eq__int(200, t.keyCount());
+	}
+	@Test public void Next__invalid_key() {
+		LuaTable t = fxt.Make(4);
+		String err = null;
+		try {t.next(LuaString.valueOf("missing"));}
+		catch (LuaError e) {err = e.getMessage();}
+		Gftest_fxt.Eq__str("invalid key to 'next'", err);
+	}
+	@Test public void Weak_mode_change() {
+		LuaTable t = fxt.Make(50);
+		t.setmetatable(LuaValue.tableOf(new LuaValue[] {LuaValue.MODE, LuaValue.valueOf("k")}));
+		Gftest_fxt.Eq__bool(true, t.hashKeys == null);
+		Gftest_fxt.Eq__int(50, t.keyCount());
+		t.setmetatable(LuaValue.NIL);
+		Gftest_fxt.Eq__bool(true, t.hashKeys != null);
+		Gftest_fxt.Eq__int(50, t.keyCount());
+		Gftest_fxt.Eq__str("v7", t.get("k7").tojstring());
+	}
+	@Test public void Tombstones_compacted() {
+		LuaTable t = new LuaTable();
+		for (int i = 0; i < 10000; i++) {
+			t.set("k" + i, "v");
+			t.set("k" + i, LuaValue.NIL);
+		}
+		Gftest_fxt.Eq__int(0, t.keyCount());
+		Gftest_fxt.Eq__bool(true, t.getHashLength() <= 4);
+	}
+}
+class LuaTable_hash_fxt {
+	public LuaTable Make(int len) {
+		LuaTable rv = new LuaTable();
+		for (int i = 0; i < len; i++)
+			rv.set("k" + i, "v" + i);
+		return rv;
+	}
+}
@@ -0,0 +1,116 @@
+package org.luaj.vm2;
+
+import org.junit.*;
+
+import gplx.tests.Gftest_fxt;
+
+public class LuaTable_next_tst {
+	private final Luaj_script_fxt fxt = new Luaj_script_fxt();
+	@Before public void init() {
+		fxt.Clear();
+	}
+	@Test public void Cursor() {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 3; i++)
+			t.set(i, LuaValue.valueOf("a" + i));
+		for (int i = 0; i < 50; i++)
+			t.set("k" + i, LuaValue.valueOf(i));
+		LuaTable.Cursor cursor = new LuaTable.Cursor();
+		String expd = "", actl = "";
+		for (Varargs n = t.next(LuaValue.NIL); !n.arg1().isnil(); n = t.next(n.arg1()))
+			expd += n.arg1().tojstring() + "=" + n.arg(2).tojstring() + ";";
+		while (t.next(cursor.key, cursor))
+			actl += cursor.key.tojstring() + "=" + cursor.value.tojstring() + ";";
+		Gftest_fxt.Eq__str(expd, actl);
+		Gftest_fxt.Eq__bool(true, cursor.key.isnil());
+	}
+	@Test public void Cursor__other_key() {	// key not from the cursor's last step is looked up
+		LuaTable t = new LuaTable();
+		for (int i = 0; i < 10; i++)
+			t.set("k" + i, LuaValue.valueOf(i));
+		LuaTable.Cursor cursor = new LuaTable.Cursor();
+		t.next(LuaValue.NIL, cursor);
+		t.next(cursor.key, cursor);
+		LuaValue key = cursor.key;
+		Varargs expd = t.next(key);
+		t.next(LuaString.valueOf("k9"), cursor);
+		t.next(key, cursor);
+		Gftest_fxt.Eq__str(expd.arg1().tojstring(), cursor.key.tojstring());
+	}
+	@Test public void Pairs() {
+		fxt.Init__script
+			( "local t = {'a', 'b', x = 1, y = 2}"
+			, "local n = 0"
+			, "for k, v in pairs(t) do n = n + 1 end"
+			, "local keys = 0"
+			, "for k in pairs(t) do keys = keys + 1 end"
+			, "return n .. ',' .. keys"
+			);
+		fxt.Test("4,4");
+	}
+	@Test public void Pairs__clear_during_traversal() {
+		fxt.Init__script
+			( "local t = {}"
+			, "for i = 1, 100 do t['k' .. i] = i; t[i * 1000] = i end"
+			, "local n = 0"
+			, "for k, v in pairs(t) do t[k] = nil; n = n + 1 end"
+			, "return n .. ',' .. tostring(next(t))"
+			);
+		fxt.Test("200,nil");
+	}
+	@Test public void Pairs__nested() {
+		fxt.Init__script
+			( "local t = {a = 1, b = 2, c = 3}"
+			, "local n = 0"
+			, "for k1 in pairs(t) do for k2 in pairs(t) do n = n + 1 end end"
+			, "return n"
+			);
+		fxt.Test("9");
+	}
+	@Test public void Pairs__called_directly() {
+		fxt.Init__script
+			( "local t1 = {a = 1, b = 2}"
+			, "local t2 = {a = 3, b = 4}"
+			, "local f = pairs(t1)"
+			, "local k, v = f(t1, nil)"
+			, "local k2, v2 = f(t2, k)"
+			, "return (t2[k] - v == 2) and (t2[k2] == v2) and (k2 ~= k)"
+			);
+		fxt.Test("true");
+	}
+	@Test public void Pairs__returns_next() {
+		fxt.Init__script
+			( "local t = {a = 1}"
+			, "return tostring(select(1, pairs(t)) == next) .. ',' .. tostring(pairs(t) == pairs({}))"
+			);
+		fxt.Test("true,true");
+	}
+	@Test public void Pairs__next_loop() {	// for loops over next directly take the same path as pairs
+		fxt.Init__script
+			( "local t = {'a', 'b', x = 1, y = 2}"
+			, "local n = 0"
+			, "for k, v in next, t do n = n + 1 end"
+			, "for k, v in next, t, 2 do n = n + 10 end"
+			, "return n"
+			);
+		fxt.Test("24");
+	}
+	@Test public void Pairs__weak() {
+		fxt.Init__script
+			( "local t = setmetatable({}, {__mode = 'k'})"
+			, "for i = 1, 10 do t['k' .. i] = i end"
+			, "local n = 0"
+			, "for k, v in pairs(t) do n = n + v end"
+			, "return n"
+			);
+		fxt.Test("55");
+	}
+	@Test public void Pairs__coroutine() {
+		fxt.Init__script
+			( "local t = {a = 1, b = 2, c = 3}"
+			, "local co = coroutine.wrap(function() for k, v in pairs(t) do coroutine.yield(v) end end)"
+			, "return co() + co() + co()"
+			);
+		fxt.Test("6");
+	}
+}
@@ -0,0 +1,76 @@
+package org.luaj.vm2;
+
+import org.junit.*;
+
+import gplx.tests.Gftest_fxt;
+
+public class LuaTable_sort_tst {
+	private final LuaTable_sort_fxt fxt = new LuaTable_sort_fxt();
+	@After public void term() {
+		LuaTable.PARALLEL_SORT_MIN = 1 << 13;
+	}
+	@Test public void Strings() {
+		fxt.Test__sort(fxt.Make("d", "b", "a", "c", "ab", ""), ",a,ab,b,c,d");
+	}
+	@Test public void Strings__utf8() {
+		fxt.Test__sort(fxt.Make("z", "é", "ê", "e", "日本", "日", "aé", "aê", "a"), "a,aé,aê,e,z,é,ê,日,日本");
+	}
+	@Test public void Strings__parallel() {
+		LuaTable.PARALLEL_SORT_MIN = 4;
+		java.util.Random rnd = new java.util.Random(20201018);
+		String[] ary = new String[5000];
+		for (int i = 0; i < ary.length; i++)
+			ary[i] = "k" + rnd.nextInt(1000) + (i % 3 == 0 ? "é" : "");
+		LuaTable t = fxt.Make(ary);
+		LuaValue[] expd = fxt.Sort_desb42(ary);
+		t.sort(LuaValue.NIL);
+		for (int i = 0; i < expd.length; i++)
+			Gftest_fxt.Eq__str(expd[i].tojstring(), t.get(i + 1).tojstring());
+	}
+	@Test public void Numbers__retyped() {
+		LuaTable.PARALLEL_SORT_MIN = 4;
+		LuaTable t = new LuaTable();
+		for (int i = 0; i < 100; i++)
+			t.set(i + 1, LuaValue.valueOf((i * 37) % 100 - 50));
+		t.set(2, LuaValue.valueOf(0.5));
+		t.sort(LuaValue.NIL);
+		Gftest_fxt.Eq__bool(true, t.arrayDoubles != null);
+		Gftest_fxt.Eq__str("-50", t.get(1).tojstring());
+		Gftest_fxt.Eq__str("0.5", t.get(51).tojstring());
+		Gftest_fxt.Eq__str("49", t.get(100).tojstring());
+	}
+	@Test public void Mixed__error() {
+		String err = null;
+		LuaTable t = fxt.Make("a", "b");
+		t.set(3, LuaValue.TRUE);
+		try {t.sort(LuaValue.NIL);}
+		catch (LuaError e) {err = e.getMessage();}
+		Gftest_fxt.Eq__bool(true, err != null && err.startsWith("attempt to compare"));
+	}
+	@Test public void Comparator() {
+		LuaTable t = fxt.Make("a", "c", "b");
+		t.sort(new org.luaj.vm2.lib.TwoArgFunction() {
+			public LuaValue call(LuaValue lhs, LuaValue rhs) {return LuaValue.valueOf(rhs.lt_b(lhs));}
+		});
+		Gftest_fxt.Eq__str("c,b,a", t.concat(LuaString.valueOf(","), 1, 3).tojstring());
+	}
+}
+class LuaTable_sort_fxt {
+	public LuaTable Make(String... ary) {
+		LuaTable rv = new LuaTable();
+		for (int i = 0; i < ary.length; i++)
+			rv.set(i + 1, LuaValue.valueOf(ary[i]));
+		return rv;
+	}
+	public LuaValue[] Sort_desb42(String... ary) {
+		LuaValue[] rv = new LuaValue[ary.length];
+		for (int i = 0; i < ary.length; i++)
+			rv[i] = LuaValue.valueOf(ary[i]);
+		new LuaTableSortDesb42(null, rv, rv.length, LuaValue.NIL).sort(rv.length);
+		return rv;
+	}
+	public void Test__sort(LuaTable t, String expd) {
+		t.sort(LuaValue.NIL);
+		Gftest_fxt.Eq__str(expd, t.concat(LuaString.valueOf(","), 1, t.length()).tojstring());
+	}
+}
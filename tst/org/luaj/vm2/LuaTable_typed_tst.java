@@ -0,0 +1,124 @@
+package org.luaj.vm2;
+
+import org.junit.*;
+
+import gplx.tests.Gftest_fxt;
+
+public class LuaTable_typed_tst {
+	private final LuaTable_typed_fxt fxt = new LuaTable_typed_fxt();
+	@Before public void init() {
+		LuaTable.TYPED_ARRAY_MIN = 4;
+	}
+	@After public void term() {
+		LuaTable.TYPED_ARRAY_MIN = 64;
+	}
+	@Test public void Ints() {
+		LuaTable t = fxt.Make(1, 2, 3, 1000, -5);
+		fxt.Test__type(t, "int", 5);
+		Gftest_fxt.Eq__int(1000, t.rawget(4).toint());
+		Gftest_fxt.Eq__bool(true, t.rawget(6).isnil());
+		Gftest_fxt.Eq__bool(true, t.rawget(LuaValue.valueOf(0)).isnil());
+		Gftest_fxt.Eq__int(5, t.length());
+		t.set(6, LuaValue.valueOf(6));	// append
+		t.set(1, LuaValue.valueOf(7));	// replace
+		fxt.Test__type(t, "int", 6);
+		Gftest_fxt.Eq__str("7,2,3,1000,-5,6", fxt.Concat(t));
+	}
+	@Test public void Doubles() {
+		LuaTable t = fxt.Make(1, 2, 3, 4);
+		t.set(2, LuaValue.valueOf(2.5));
+		fxt.Test__type(t, "double", 4);
+		Gftest_fxt.Eq__str("1,2.5,3,4", fxt.Concat(t));
+		Gftest_fxt.Eq__bool(true, t.rawget(1).isinttype());	// integral doubles read back as ints
+	}
+	@Test public void Untype__other_type() {
+		LuaTable t = fxt.Make(1, 2, 3, 4);
+		t.set(2, LuaValue.valueOf("b"));
+		fxt.Test__type(t, "value", 0);
+		Gftest_fxt.Eq__str("1,b,3,4", fxt.Concat(t));
+	}
+	@Test public void Untype__hole() {
+		LuaTable t = fxt.Make(1, 2, 3, 4);
+		t.set(2, LuaValue.NIL);
+		fxt.Test__type(t, "value", 0);
+		Gftest_fxt.Eq__bool(true, t.rawget(2).isnil());
+		Gftest_fxt.Eq__int(4, t.rawget(4).toint());
+	}
+	@Test public void Remove_last() {
+		LuaTable t = fxt.Make(1, 2, 3, 4);
+		t.set(4, LuaValue.NIL);
+		fxt.Test__type(t, "int", 3);
+		Gftest_fxt.Eq__int(3, t.length());
+		Gftest_fxt.Eq__int(2, t.remove(2).toint());
+		Gftest_fxt.Eq__str("1,3", fxt.Concat(t));
+		t.insert(1, LuaValue.valueOf(9));
+		Gftest_fxt.Eq__str("9,1,3", fxt.Concat(t));
+		fxt.Test__type(t, "int", 3);
+	}
+	@Test public void Presize__strings() {
+		LuaTable t = new LuaTable(8, 0);
+		fxt.Test__type(t, "int", 0);
+		t.set(1, LuaValue.valueOf("a"));
+		t.set(2, LuaValue.valueOf("b"));
+		fxt.Test__type(t, "value", 0);
+		Gftest_fxt.Eq__str("a,b", fxt.Concat(t));
+		Gftest_fxt.Eq__int(8, t.getArrayLength());
+	}
+	@Test public void Grow() {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 1000; i++)
+			t.set(i, LuaValue.valueOf(i * 2));
+		fxt.Test__type(t, "int", 1000);
+		Gftest_fxt.Eq__int(1000, t.length());
+		Gftest_fxt.Eq__int(2000, t.rawget(1000).toint());
+	}
+	@Test public void Sort() {
+		LuaTable t = fxt.Make(5, 3, 4, 1, 2);
+		t.sort(LuaValue.NIL);
+		fxt.Test__type(t, "int", 5);
+		Gftest_fxt.Eq__str("1,2,3,4,5", fxt.Concat(t));
+		t.set(1, LuaValue.valueOf(4.5));
+		t.sort(LuaValue.NIL);
+		Gftest_fxt.Eq__str("2,3,4,4.5,5", fxt.Concat(t));
+	}
+	@Test public void Unpack() {
+		LuaTable t = fxt.Make(1, 2, 3, 4, 5);
+		Varargs v = t.unpack(2, 4);
+		Gftest_fxt.Eq__int(3, v.narg());
+		Gftest_fxt.Eq__int(2, v.arg(1).toint());
+		Gftest_fxt.Eq__int(4, v.arg(3).toint());
+		Gftest_fxt.Eq__int(7, t.unpack(1, 7).narg());
+		Gftest_fxt.Eq__bool(true, t.unpack(1, 7).arg(6).isnil());
+	}
+	@Test public void Next() {
+		LuaTable t = fxt.Make(1, 2, 3, 4);
+		t.set("k", LuaValue.valueOf("v"));
+		String actl = "";
+		for (Varargs n = t.next(LuaValue.NIL); !n.arg1().isnil(); n = t.next(n.arg1()))
+			actl += n.arg1().tojstring() + "=" + n.arg(2).tojstring() + ";";
+		Gftest_fxt.Eq__str("1=1;2=2;3=3;4=4;k=v;", actl);
+		Gftest_fxt.Eq__int(4, t.maxn());
+	}
+	@Test public void Weak() {
+		LuaTable t = fxt.Make(1, 2, 3, 4);
+		t.setmetatable(LuaValue.tableOf(new LuaValue[] {LuaValue.MODE, LuaValue.valueOf("v")}));
+		fxt.Test__type(t, "value", 0);
+		Gftest_fxt.Eq__str("1,2,3,4", fxt.Concat(t));
+	}
+}
+class LuaTable_typed_fxt {
+	public LuaTable Make(int... ary) {
+		LuaTable rv = new LuaTable(ary.length, 0);
+		for (int i = 0; i < ary.length; i++)
+			rv.set(i + 1, LuaValue.valueOf(ary[i]));
+		return rv;
+	}
+	public String Concat(LuaTable t) {
+		return t.concat(LuaString.valueOf(","), 1, t.length()).tojstring();
+	}
+	public void Test__type(LuaTable t, String expd, int expd_count) {
+		String actl = t.arrayInts != null ? "int" : t.arrayDoubles != null ? "double" : "value";
+		Gftest_fxt.Eq__str(expd, actl);
+		Gftest_fxt.Eq__int(expd_count, t.arrayCount);
+	}
+}
@@ -0,0 +1,196 @@
+package org.luaj.vm2;
+
+import org.junit.*;
+
+import gplx.tests.Gftest_fxt;
+
+public class LuaThread_tst {
+	private final Luaj_script_fxt fxt = new Luaj_script_fxt();
+	private LuaThread.Scheduler scheduler_orig;
+	@Before public void init() {
+		scheduler_orig = LuaThread.scheduler;
+		fxt.Clear();
+	}
+	@After public void term() {
+		LuaThread.scheduler = scheduler_orig;
+		LuaThread.stackless_coroutines = false;
+	}
+	@Test public void Pooled() {
+		LuaThread.scheduler = new LuaThread.PooledThreadScheduler();
+		Test__all();
+	}
+	@Test public void New_thread() {
+		LuaThread.scheduler = new LuaThread.NewThreadScheduler();
+		Test__all();
+	}
+	@Test public void Virtual() {
+		LuaThread.Scheduler virtual = LuaThread.VirtualThreadScheduler.newIfSupported();
+		if (virtual == null) return; // JVM does not support virtual threads
+		LuaThread.scheduler = virtual;
+		Test__all();
+	}
+	@Test public void Stackless() {
+		Counting_scheduler scheduler = new Counting_scheduler();
+		LuaThread.scheduler = scheduler;
+		LuaThread.stackless_coroutines = true;
+		Test__all();
+
+		// yield from nested lua calls, tail calls and generic-for iterators
+		fxt.Init__script
+			( "local function leaf(x) return coroutine.yield(x) end"
+			, "local function mid(x) local r = leaf(x * 10) return r + 1 end"
+			, "local function iter(_, i) if i < 3 then coroutine.yield(-i) return i + 1 end end"
+			, "local co = coroutine.wrap(function()"
+			, "  local s = mid(1)"
+			, "  for i in iter, nil, 0 do s = s + i end"
+			, "  return s"
+			, "end)"
+			, "local out = {}"
+			, "local r = co()"
+			, "while true do"
+			, "  out[#out + 1] = r"
+			, "  if #out > 10 then break end"
+			, "  r = co(5)"
+			, "  if r > 0 then out[#out + 1] = r break end"
+			, "end"
+			, "return table.concat(out, ',')"
+			);
+		fxt.Test("10,0,-1,-2,12");
+		Gftest_fxt.Eq__int(0, scheduler.count);
+
+		// deep recursion does not use the java stack
+		fxt.Init__script
+			( "local function sum(n) if n == 0 then return 0 end return n + sum(n - 1) end"
+			, "local _, r = coroutine.resume(coroutine.create(function() return sum(50000) end))"
+			, "return r"
+			);
+		fxt.Test("1250025000");
+
+		// pcall moves the coroutine to a thread, which can then yield from inside pcall
+		fxt.Init__script
+			( "local co = coroutine.create(function()"
+			, "  local ok, v = pcall(function() return coroutine.yield(1) + 1 end)"
+			, "  coroutine.yield(v)"
+			, "  return 'done'"
+			, "end)"
+			, "local _, a = coroutine.resume(co)"
+			, "local _, b = coroutine.resume(co, 2)"
+			, "local _, c = coroutine.resume(co)"
+			, "return a .. ',' .. b .. ',' .. c .. ',' .. coroutine.status(co)"
+			);
+		fxt.Test("1,3,done,dead");
+		Gftest_fxt.Eq__int(1, scheduler.count);
+	}
+	@Test public void Yield_across_java() {
+		// threaded: metamethods and callbacks in table arguments can yield
+		LuaThread.scheduler = new LuaThread.NewThreadScheduler();
+		Test__yield_across_java("true,x,true,y");
+
+		// stackless: only functions passed directly to a java function can yield; see LuaThread.stackless_coroutines
+		LuaThread.stackless_coroutines = true;
+		Test__yield_across_java("false,attempt to yield across a Java call boundary,false,attempt to yield across a Java call boundary");
+	}
+	private void Test__yield_across_java(String expd) {
+		fxt.Init__script
+			( "local function run(f)"
+			, "  local co = coroutine.create(f)"
+			, "  local ok, r = coroutine.resume(co)"
+			, "  if ok then ok, r = coroutine.resume(co, r) end"
+			, "  return tostring(ok) .. ',' .. (string.match(r, 'attempt to yield across a Java call boundary') or r)"
+			, "end"
+			, "local mt = {__index = function(t, k) return coroutine.yield(k) end}"
+			, "local obj = setmetatable({}, {__tostring = function() return coroutine.yield('y') end})"
+			, "return run(function() return setmetatable({}, mt).x end) .. ',' .. run(function() return tostring(obj) end)"
+			);
+		fxt.Test(expd);
+	}
+	@Test public void Start_fails() {
+		Failing_scheduler scheduler = new Failing_scheduler();
+		LuaThread.scheduler = scheduler;
+
+		// coroutine stays resumable when its thread cannot be started
+		scheduler.fail = true;
+		fxt.Init__script
+			( "local co = coroutine.create(function(a) return a + 1 end)"
+			, "local ok = pcall(coroutine.resume, co, 1)"
+			, "return tostring(ok) .. ',' .. coroutine.status(co)"
+			);
+		fxt.Test("false,suspended");
+		scheduler.fail = false;
+		fxt.Init__script
+			( "local co = coroutine.create(function(a) return a + 1 end)"
+			, "local _, r = coroutine.resume(co, 1)"
+			, "return r .. ',' .. coroutine.status(co)"
+			);
+		fxt.Test("2,dead");
+
+		// stackless coroutine moving to a thread is dead when the thread cannot be started
+		LuaThread.stackless_coroutines = true;
+		scheduler.fail = true;
+		fxt.Init__script
+			( "local co = coroutine.create(function() pcall(coroutine.yield) end)"
+			, "local ok = pcall(coroutine.resume, co)"
+			, "return tostring(ok) .. ',' .. coroutine.status(co)"
+			);
+		fxt.Test("false,dead");
+	}
+	static class Failing_scheduler implements LuaThread.Scheduler {
+		public boolean fail;
+		public void start(Runnable runnable, String name) {
+			if (fail) throw new IllegalStateException("cannot start " + name);
+			new Thread(runnable, name).start();
+		}
+	}
+	static class Counting_scheduler implements LuaThread.Scheduler {
+		public int count;
+		public void start(Runnable runnable, String name) {
+			count++;
+			new Thread(runnable, name).start();
+		}
+	}
+	private void Test__all() {
+		// resume / yield passes values both ways
+		fxt.Init__script
+			( "local co = coroutine.create(function(a, b)"
+			, "  local c = coroutine.yield(a + b)"
+			, "  local d, e = coroutine.yield(c * 2)"
+			, "  return d + e"
+			, "end)"
+			, "local _, r1 = coroutine.resume(co, 1, 2)"
+			, "local _, r2 = coroutine.resume(co, 10)"
+			, "local _, r3 = coroutine.resume(co, 4, 5)"
+			, "local ok, err = coroutine.resume(co)"
+			, "return r1 .. ',' .. r2 .. ',' .. r3 .. ',' .. coroutine.status(co) .. ',' .. tostring(ok) .. ',' .. err"
+			);
+		fxt.Test("3,20,9,dead,false,cannot resume dead coroutine");
+
+		// wrap as iterator; many short-lived coroutines
+		fxt.Init__script
+			( "local sum = 0"
+			, "for i = 1, 200 do"
+			, "  for v in coroutine.wrap(function() for j = 1, 3 do coroutine.yield(j) end end) do"
+			, "    sum = sum + v"
+			, "  end"
+			, "end"
+			, "return sum"
+			);
+		fxt.Test("1200");
+
+		// errors are returned to resumer; nested coroutines report status
+		fxt.Init__script
+			( "local outer"
+			, "local inner = coroutine.create(function()"
+			, "  coroutine.yield(coroutine.status(outer))"
+			, "  error('fail')"
+			, "end)"
+			, "outer = coroutine.create(function()"
+			, "  local _, s = coroutine.resume(inner)"
+			, "  local ok, err = coroutine.resume(inner)"
+			, "  return s .. ',' .. tostring(ok) .. ',' .. string.match(err, 'fail')"
+			, "end)"
+			, "local _, r = coroutine.resume(outer)"
+			, "return r"
+			);
+		fxt.Test("normal,false,fail");
+	}
+}
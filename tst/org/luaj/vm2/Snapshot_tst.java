@@ -0,0 +1,73 @@
+package org.luaj.vm2;
+
+import org.junit.*;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import gplx.tests.Gftest_fxt;
+
+public class Snapshot_tst {
+	private final Snapshot_fxt fxt = new Snapshot_fxt();
+	@Test public void Globals() {
+		fxt.Run("x = 1; print = nil; _G.string.x = 2; table.insert = string.upper");
+		fxt.Restore(3);
+		fxt.Test__run("return tostring(x) .. type(print) .. tostring(string.x) .. type(table.insert)", "nilfunctionnilfunction");
+		fxt.Test__run("return table.insert == string.upper", "false");
+	}
+	@Test public void Array() {
+		fxt.Run("t = {1, 2, 3, 'a', b = 'c'}");
+		fxt.Snapshot();
+		fxt.Run("table.insert(t, 1, 0); table.remove(t); t.b = nil; t.d = 4; table.sort(t, function(a, b) return tostring(a) > tostring(b) end)");
+		fxt.Restore(1);
+		fxt.Test__run("return table.concat(t, ',') .. t.b .. tostring(t.d)", "1,2,3,acnil");
+	}
+	@Test public void Typed_array() {
+		fxt.Run("t = {} for i = 1, 100 do t[i] = 101 - i end");
+		fxt.Snapshot();
+		fxt.Run("table.sort(t); t[101] = 0.5; t[1] = 'x'");
+		fxt.Restore(1);
+		fxt.Test__run("return #t .. ',' .. t[1] .. ',' .. t[100]", "100,100,1");
+	}
+	@Test public void Metatable() {
+		fxt.Run("t = setmetatable({}, {__index = function() return 'a' end})");
+		fxt.Snapshot();
+		fxt.Run("getmetatable(t).__index = function() return 'b' end; setmetatable(t, nil)");
+		fxt.Restore(2);
+		fxt.Test__run("return t.x", "a");
+	}
+	@Test public void Generations() {	// each restore starts again from the snapshot
+		fxt.Run("n = 0");
+		fxt.Snapshot();
+		fxt.Run("n = n + 1");
+		fxt.Restore(1);
+		fxt.Run("n = n + 2; n = n + 3");
+		fxt.Restore(1);
+		fxt.Test__run("return n", "0");
+		fxt.Restore(0);
+	}
+	@Test public void New_tables() {	// tables made after the snapshot are not tracked
+		fxt.Run("t = {}; t.u = {}; t.u.x = 1; t.u.x = 2");
+		fxt.Restore(1);
+		fxt.Test__run("return tostring(t)", "nil");
+	}
+	@Test public void Cache() {	// cached field lookups see the restored values
+		fxt.Run("function f() return string.x end");
+		fxt.Snapshot();
+		fxt.Run("string.x = 'a'");
+		fxt.Test__run("return f()", "a");
+		fxt.Restore(1);
+		fxt.Test__run("return tostring(f())", "nil");
+	}
+}
+class Snapshot_fxt {
+	private final Globals globals = JsePlatform.standardGlobals();
+	private Snapshot snapshot = globals.snapshot();
+	public void Snapshot() {snapshot = globals.snapshot();}
+	public void Run(String script) {globals.load(script, "chunk").call();}
+	public void Restore(int changed) {
+		Gftest_fxt.Eq__int(changed, snapshot.getChangedCount());
+		snapshot.restore();
+	}
+	public void Test__run(String script, String expd) {
+		Gftest_fxt.Eq__str(expd, globals.load(script, "chunk").call().tojstring());
+	}
+}
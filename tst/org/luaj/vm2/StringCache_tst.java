@@ -0,0 +1,94 @@
+package org.luaj.vm2;
+
+import org.junit.*;
+
+import gplx.tests.Gftest_fxt;
+
+public class StringCache_tst {
+	private final StringCache_fxt fxt = new StringCache_fxt();
+	@After public void term() {
+		fxt.Term();
+	}
+	@Test public void Direct__collision_evicts() {
+		fxt.Init__cache(StringCache.newShared(128, 1, 32));
+		LuaString abc = fxt.Make("abc");
+		fxt.Make("lyz"); // same bucket as "abc"
+		fxt.Test__same(false, abc, fxt.Make("abc"));
+	}
+	@Test public void Lru__collision_kept() {
+		fxt.Init__cache(StringCache.newShared(128, 2, 32));
+		LuaString abc = fxt.Make("abc");
+		LuaString lyz = fxt.Make("lyz"); // same set as "abc"
+		fxt.Test__same(true, abc, fxt.Make("abc"));
+		fxt.Test__same(true, lyz, fxt.Make("lyz"));
+	}
+	@Test public void Lru__evicts_least_recent() {
+		fxt.Init__cache(StringCache.newShared(1, 2, 32)); // 1 set of 2
+		LuaString a = fxt.Make("a");
+		LuaString b = fxt.Make("b");
+		fxt.Make("a"); // "a" is now most recent
+		fxt.Make("c"); // evicts "b"
+		fxt.Test__same(true, a, fxt.Make("a"));
+		fxt.Test__same(false, b, fxt.Make("b"));
+	}
+	@Test public void Max_length() {
+		fxt.Init__cache(StringCache.newShared(128, 1, 2));
+		fxt.Test__same(true, fxt.Make("ab"), fxt.Make("ab"));
+		fxt.Test__same(false, fxt.Make("abc"), fxt.Make("abc"));
+	}
+	@Test public void Counts() {
+		StringCache cache = StringCache.newShared(128, 1, 32);
+		cache.count = true;
+		fxt.Init__cache(cache);
+		fxt.Make("abc");
+		fxt.Make("abc");
+		fxt.Make("xyz");
+		fxt.Test__counts(cache, 1, 2);
+		cache.clear();
+		fxt.Test__counts(cache, 0, 0);
+	}
+	@Test public void Thread_local() throws Exception {
+		final StringCache cache = StringCache.newThreadLocal(128, 1, 32);
+		cache.count = true;
+		fxt.Init__cache(cache);
+		LuaString abc = fxt.Make("abc");
+		final LuaString[] other = new LuaString[1];
+		Thread t = new Thread() {
+			public void run() {
+				other[0] = LuaString.valueOf("abc");
+			}
+		};
+		t.start();
+		t.join();
+		fxt.Test__same(false, abc, other[0]);       // other thread has its own table
+		fxt.Test__same(true, abc, fxt.Make("abc")); // this thread's table still has "abc"
+		fxt.Test__counts(cache, 1, 2);
+	}
+	@Test public void Striped() {
+		StringCache cache = StringCache.newStriped(4, 128, 1, 32);
+		cache.count = true;
+		fxt.Init__cache(cache);
+		fxt.Test__same(true, fxt.Make("abc"), fxt.Make("abc"));
+		fxt.Test__counts(cache, 1, 1);
+	}
+}
+class StringCache_fxt {
+	private StringCache cache_orig;
+	public void Init__cache(StringCache cache) {
+		if (cache_orig == null) cache_orig = LuaString.cache;
+		LuaString.cache = cache;
+	}
+	public void Term() {
+		if (cache_orig != null) LuaString.cache = cache_orig;
+	}
+	public LuaString Make(String s) {
+		return LuaString.valueOf(s);
+	}
+	public void Test__same(boolean expd, LuaString lhs, LuaString rhs) {
+		Gftest_fxt.Eq__bool(expd, lhs == rhs);
+	}
+	public void Test__counts(StringCache cache, long hits, long misses) {
+		Gftest_fxt.Eq__int((int)hits, (int)cache.hits());
+		Gftest_fxt.Eq__int((int)misses, (int)cache.misses());
+	}
+}
@@ -0,0 +1,94 @@
+package org.luaj.vm2.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+
+import org.junit.*;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import gplx.tests.Gftest_fxt;
+
+public class MappedLoadState_tst {
+	private final MappedLoadState_fxt fxt = new MappedLoadState_fxt();
+	private static final String SCRIPT = MappedLoadState_fxt.Concat_w_nl
+		( "local t = {1.5, 'a', true, n = 2^40}"
+		, "local function add(a, b)"
+		, "  local function inner(x) return x + b end"
+		, "  return inner(a)"
+		, "end"
+		, "local function unused() return function() return 'never' end end"
+		, "function fail(x) return x.y.z end"
+		, "return add(1, 2) .. t[2] .. tostring(t[3]) .. t.n"
+		);
+	@After public void term() {
+		fxt.Term();
+	}
+	@Test public void Lazy() throws Exception {
+		Prototype p = fxt.Load(SCRIPT);
+		Gftest_fxt.Eq__bool(true, p.lazy != null);
+		Gftest_fxt.Eq__bool(true, p.p[0] == null && p.p[1] == null && p.p[2] == null);
+		Gftest_fxt.Eq__bool(true, p.lineinfo == null);
+		Gftest_fxt.Eq__str("3a" + "true" + "1099511627776", fxt.Run(p));
+		Gftest_fxt.Eq__bool(true, p.p[0].p[0] != null);	// inner was made when add was called
+		Gftest_fxt.Eq__bool(true, p.p[1].p[0] == null);	// unused was never called
+	}
+	@Test public void Dump__same() throws Exception {	// every part loads the same as it was compiled
+		Prototype p = fxt.Load(SCRIPT);
+		Gftest_fxt.Eq__str(fxt.Dump(fxt.Compile(SCRIPT)), fxt.Dump(p));
+		Gftest_fxt.Eq__bool(true, p.lazy == null);
+		Gftest_fxt.Eq__str("a", p.p[0].getlocvars()[0].varname.tojstring());
+	}
+	@Test public void Error__line() throws Exception {
+		Prototype p = fxt.Load(SCRIPT);
+		fxt.Run(p);
+		String err = null;
+		try {fxt.Globals().get("fail").call();}
+		catch (LuaError e) {err = e.getMessage();}
+		Gftest_fxt.Eq__bool(true, err.indexOf("chunk:7") >= 0);
+	}
+	@Test public void Not_binary() throws Exception {
+		Gftest_fxt.Eq__bool(true, MappedLoadState.load(fxt.Write("return 1".getBytes("UTF-8")), "chunk") == null);
+	}
+}
+class MappedLoadState_fxt {
+	private final Globals globals = JsePlatform.standardGlobals();
+	private File file;
+	public Globals Globals() {return globals;}
+	public Prototype Compile(String script) throws Exception {
+		return globals.compilePrototype(new StringReader(script), "@chunk");
+	}
+	public String Dump(Prototype p) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		DumpState.dump(p, os, false);
+		return new String(os.toByteArray(), "ISO-8859-1");
+	}
+	public Prototype Load(String script) throws Exception {
+		return MappedLoadState.load(Write(Dump(Compile(script)).getBytes("ISO-8859-1")), "@chunk");
+	}
+	public File Write(byte[] bytes) throws Exception {
+		file = File.createTempFile("luaj", ".luac");
+		FileOutputStream os = new FileOutputStream(file);
+		os.write(bytes);
+		os.close();
+		return file;
+	}
+	public String Run(Prototype p) {
+		return new LuaClosure(p, globals).call().tojstring();
+	}
+	public void Term() {
+		if (file != null)
+			file.delete();
+	}
+	public static String Concat_w_nl(String... lines) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < lines.length; i++)
+			sb.append(lines[i]).append('\n');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,105 @@
+package org.luaj.vm2.compiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+
+import org.junit.*;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import gplx.tests.Gftest_fxt;
+
+public class PrototypeCache_tst {
+	private final PrototypeCache_fxt fxt = new PrototypeCache_fxt();
+	@Before public void init() throws Exception {
+		fxt.Clear();
+	}
+	@After public void term() {
+		fxt.Term();
+	}
+	@Test public void Hit() throws Exception {
+		String script = "local function f(a, ...) return a .. select('#', ...) .. 'z' end return f(1.5, 2, 3)";
+		fxt.Test__run(script, "chunk", "1.52z");
+		fxt.Test__counts(0, 1);
+		fxt.Test__run(script, "chunk", "1.52z");
+		fxt.Test__counts(1, 1);
+		Gftest_fxt.Eq__int(1, fxt.Entries());
+	}
+	@Test public void Hit__other_jvm() throws Exception {	// a new cache on the same directory starts with its entries
+		fxt.Test__run("return 1", "chunk", "1");
+		fxt.Clear_cache();
+		fxt.Test__run("return 1", "chunk", "1");
+		fxt.Test__counts(1, 0);
+	}
+	@Test public void Miss__chunkname() throws Exception {
+		fxt.Test__run("return 1", "a", "1");
+		fxt.Test__run("return 1", "b", "1");
+		fxt.Test__counts(0, 2);
+	}
+	@Test public void Source_name() throws Exception {
+		fxt.Test__run("return 1", "@Module:A", "1");
+		Prototype p = fxt.Compile("return 1", "@Module:A");
+		Gftest_fxt.Eq__str("@Module:A", p.source.tojstring());	// same as LuaC
+		fxt.Test__counts(1, 1);
+	}
+	@Test public void Reader_function() throws Exception {	// stops at the first empty piece, as LuaC does
+		String script = "local t, n = {'return 1', '', ' + 41'}, 0"
+			+ " local f = load(function() n = n + 1 return t[n] end)"
+			+ " return f() .. ',' .. n";
+		fxt.Test__run(script, "chunk", "1,2");
+		fxt.Test__run(script, "chunk", "1,2");
+		fxt.Test__counts(2, 2);
+	}
+	@Test public void Corrupt() throws Exception {
+		fxt.Test__run("return 1", "chunk", "1");
+		fxt.Corrupt_entries();
+		fxt.Test__run("return 1", "chunk", "1");
+		fxt.Test__counts(0, 2);
+		fxt.Test__run("return 1", "chunk", "1");
+		fxt.Test__counts(1, 2);
+	}
+}
+class PrototypeCache_fxt {
+	private File dir;
+	private Globals globals;
+	private PrototypeCache cache;
+	public void Clear() throws Exception {
+		dir = File.createTempFile("luaj", "cache");
+		dir.delete();
+		Clear_cache();
+	}
+	public void Clear_cache() {
+		globals = JsePlatform.standardGlobals();
+		cache = PrototypeCache.install(globals, dir);
+	}
+	public void Term() {
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++)
+			files[i].delete();
+		dir.delete();
+	}
+	public Prototype Compile(String script, String chunkname) throws Exception {
+		return globals.compilePrototype(new StringReader(script), chunkname);
+	}
+	public void Test__run(String script, String chunkname, String expd) throws Exception {
+		Gftest_fxt.Eq__str(expd, new LuaClosure(Compile(script, chunkname), globals).call().tojstring());
+	}
+	public void Test__counts(int hits, int misses) {
+		Gftest_fxt.Eq__int(hits, (int) cache.getHits());
+		Gftest_fxt.Eq__int(misses, (int) cache.getMisses());
+	}
+	public int Entries() {
+		return dir.listFiles().length;
+	}
+	public void Corrupt_entries() throws Exception {
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			FileOutputStream os = new FileOutputStream(files[i]);
+			os.write(new byte[] {0, 1, 2});
+			os.close();
+		}
+	}
+}
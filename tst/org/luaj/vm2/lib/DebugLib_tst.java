@@ -0,0 +1,28 @@
+package org.luaj.vm2.lib;
+
+import org.junit.*;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import gplx.tests.Gftest_fxt;
+
+public class DebugLib_tst {
+	private final Globals globals = JsePlatform.debugGlobals();
+	@Test public void Tracing__running_thread() {	// calls are only tracked while a hook is set, unless trace_calls is set
+		Gftest_fxt.Eq__bool(false, globals.debuglib.isTracingCalls());
+		globals.load("debug.sethook(function() end, 'c')").call();
+		Gftest_fxt.Eq__bool(true, globals.debuglib.isTracingCalls());
+		globals.load("debug.sethook()").call();
+		Gftest_fxt.Eq__bool(false, globals.debuglib.isTracingCalls());
+		globals.debuglib.trace_calls = true;
+		Gftest_fxt.Eq__bool(true, globals.debuglib.isTracingCalls());
+	}
+	@Test public void Tracing__dead_coroutine() {	// a coroutine that dies with a hook set does not make other threads track calls
+		globals.load("local co = coroutine.create(function() debug.sethook(function() end, 'c') end) coroutine.resume(co) return coroutine.status(co)").call();
+		Gftest_fxt.Eq__bool(false, globals.debuglib.isTracingCalls());
+	}
+	@Test public void Tracing__hook_set_in_pcall() {	// pcall only pops the debug call stack entry it pushed
+		globals.load("pcall(debug.sethook, function() end, 'c') pcall(debug.sethook)").call();
+		Gftest_fxt.Eq__str("stack traceback:\n\t[Java]: in ?", globals.load("return debug.traceback()").call().tojstring());
+	}
+}
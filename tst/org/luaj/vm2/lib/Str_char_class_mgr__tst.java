@@ -189,6 +189,17 @@ public class Str_char_class_mgr__tst {
 		.Test(fxt.Rule(MGR_A7, MGR_U8).Is(CLASS_NULL, CLASS_CTRL).Is_not(CLASS_UPPER, CLASS_ALPHA, CLASS_LOWER, CLASS_DIGIT, CLASS_WORD, CLASS_PUNCT, CLASS_SPACE, CLASS_HEX))
 		;		
 	}
+
+	@Test public void Table_eq_type() { // PURPOSE: class table must agree with Character.getType rules for every code point
+		Str_char_class_mgr__unicode mgr = new Str_char_class_mgr__unicode();
+		int[] classes = new int[] {CLASS_ALPHA, CLASS_DIGIT, CLASS_LOWER, CLASS_UPPER, CLASS_CTRL, CLASS_PUNCT, CLASS_SPACE, CLASS_WORD, CLASS_HEX, CLASS_NULL, 'b', '.', 'A', 'D', 'W', 'Z'};
+		for (int cp = -1; cp <= Character.MAX_CODE_POINT; cp++) {
+			for (int cls : classes) {
+				if (mgr.Match_class(cp, cls) != mgr.Match_class_by_type(cp, cls))
+					Gftest_fxt.Eq__bool(mgr.Match_class_by_type(cp, cls), mgr.Match_class(cp, cls), "cp=" + cp + " cls=" + (char)cls);
+			}
+		}
+	}
 }
 class Str_char_class_mgr__fxt {
 	private final Str_char_class_mgr mgr_ascii = new Str_char_class_mgr__ascii();
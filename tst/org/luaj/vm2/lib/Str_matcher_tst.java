@@ -0,0 +1,133 @@
+package org.luaj.vm2.lib;
+
+import org.junit.*;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Luaj_fxt;
+import org.luaj.vm2.Varargs;
+
+import gplx.tests.Gftest_fxt;
+
+public class Str_matcher_tst {
+	private final Str_matcher_fxt fxt = new Str_matcher_fxt();
+	@After public void term() {
+		Str_find_mgr__lua.Matcher_tree_enabled = false;
+		Str_find_mgr__xowa.Matcher_tree_enabled = false;
+	}
+	@Test public void Literal() {
+		fxt.Test("abcabc", "ca");
+		fxt.Test("abcabc", "^ab");
+		fxt.Test("abcabc", "bc$");
+		fxt.Test("a$b^c", "$b^");
+		fxt.Test("abbbc", "ab*c");
+		fxt.Test("aaa", "a-a");
+	}
+	@Test public void Quantifiers() {
+		fxt.Test("aaab", "a*");
+		fxt.Test("aaab", "a+b");
+		fxt.Test("aaab", "a-b");
+		fxt.Test("aaab", "a?a?b");
+		fxt.Test("<a><b>", "<.->");
+		fxt.Test("<a><b>", "<.*>");
+		fxt.Test("", ".*");
+	}
+	@Test public void Classes() {
+		fxt.Test("ab12 cd", "%d+");
+		fxt.Test("ab12 cd", "%A+");
+		fxt.Test("ab12 cd", "[%s%d]+");
+		fxt.Test("ab12 cd", "[^a-c]+");
+		fxt.Test("a]b", "[]]");
+		fxt.Test("aæb", "[æ]+");
+		fxt.Test("aæb", "[À-ÿ]");
+	}
+	@Test public void Captures() {
+		fxt.Test("key = val", "(%w+)%s*=%s*(%w+)");
+		fxt.Test("abc", "()b()");
+		fxt.Test("abab", "(ab)%1");
+		fxt.Test("a(b)c", "%((.-)%)");
+		fxt.Test("hello", "((l)(l))");
+	}
+	@Test public void Balance_and_frontier() {
+		fxt.Test("x(a(b)c)y", "%b()");
+		fxt.Test("THE (quick) fox", "%f[%a]%a+");
+		fxt.Test("THE (quick) fox", "%f[%l]%a+");
+		fxt.Test("THE (quick) fox", "%a+%f[%A]$");
+	}
+	@Test public void Errors() {
+		fxt.Test("abc", "a%1");
+		fxt.Test("abc", "b)");
+		fxt.Test("abc", "a%");
+		fxt.Test("abc", "(a)%2");
+	}
+	@Test public void Random() {
+		String[] items = new String[] {"a", "b", "ab", ".", "%a", "%d", "%s", "%W", "[ab]", "[^a]", "[%d-]", "(", ")", "()", "%b()", "%f[%w]", "%1", "^", "$", "-", "%%"};
+		String[] quantifiers = new String[] {"", "", "", "*", "+", "-", "?"};
+		String[] srcs = new String[] {"", "a", "ab ab", "aab1-(b)", "b(a(b))a 12", "  ab--ba  ", "æaæ"};
+		java.util.Random rnd = new java.util.Random(20201018);
+		for (int i = 0; i < 2000; i++) {
+			StringBuilder pat = new StringBuilder();
+			int len = 1 + rnd.nextInt(5);
+			for (int j = 0; j < len; j++) {
+				pat.append(items[rnd.nextInt(items.length)]);
+				pat.append(quantifiers[rnd.nextInt(quantifiers.length)]);
+			}
+			fxt.Test(srcs[rnd.nextInt(srcs.length)], pat.toString());
+		}
+	}
+}
+class Str_matcher_fxt {
+	/** Run find, match, gmatch, gsub, and the xowa find with the interpreter and the matcher tree, and compare results and errors. */
+	public void Test(String src, String pat) {
+		Gftest_fxt.Eq__str(Run(src, pat, false), Run(src, pat, true), pat);
+	}
+	private static String Run(String src, String pat, boolean tree) {
+		Str_find_mgr__lua.Matcher_tree_enabled = tree;
+		Str_find_mgr__xowa.Matcher_tree_enabled = tree;
+		String rv = "";
+		rv += Call(src, pat, 0) + "|";
+		rv += Call(src, pat, 1) + "|";
+		rv += Call(src, pat, 2) + "|";
+		rv += Call(src, pat, 3) + "|";
+		rv += Call(src, pat, 4);
+		return rv;
+	}
+	private static String Call(String src, String pat, int type) {
+		try {
+			switch (type) {
+				case 0: return StringLib.find(Luaj_fxt.New_varargs(src, pat)).tojstring();
+				case 1: return Join(StringLib.match(Luaj_fxt.New_varargs(src, pat, 2)));
+				case 2: {
+					Varargs itr = StringLib.gmatch(Luaj_fxt.New_varargs(src, pat));
+					String rv = "";
+					for (int i = 0; i < 10; i++) {
+						Varargs itm = itr.arg1().invoke();
+						if (itm.isnil(1)) break;
+						rv += Join(itm) + ";";
+					}
+					return rv;
+				}
+				case 3: return Join(StringLib.gsub(Luaj_fxt.New_varargs(src, pat, "<%0>")));
+				default: {
+					Str_find_mgr__xowa mgr = new Str_find_mgr__xowa(LuaString.valueOf(src), LuaString.valueOf(pat), 0, false, false);
+					mgr.Process(false);
+					String rv = mgr.Bgn() + "-" + mgr.End();
+					int[] captures = mgr.Captures_ary();
+					if (captures != null)
+						for (int i = 0; i < captures.length; i++)
+							rv += "," + captures[i];
+					return rv;
+				}
+			}
+		} catch (Exception e) {
+			return "err:" + e.getMessage();
+		}
+	}
+	private static String Join(Varargs args) {
+		String rv = "";
+		for (int i = 1; i <= args.narg(); i++) {
+			LuaValue arg = args.arg(i);
+			rv += (i == 1 ? "" : ",") + arg.tojstring();
+		}
+		return rv;
+	}
+}
@@ -0,0 +1,113 @@
+package org.luaj.vm2.lib;
+
+import org.junit.*;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.Luaj_fxt;
+import org.luaj.vm2.Varargs;
+
+import gplx.objects.brys.Bry_;
+import gplx.tests.Gftest_fxt;
+
+public class Str_pattern_cache_tst {
+	private final Str_pattern_cache_fxt fxt = new Str_pattern_cache_fxt();
+	@Test public void Hit() {
+		Str_pattern_cache cache = new Str_pattern_cache(16, 8);
+		Str_char_class_mgr ascii = new Str_char_class_mgr__ascii();
+		Str_pattern pattern = cache.Get(LuaString.valueOf("%a+"), ascii);
+		Gftest_fxt.Eq__bool(true, pattern == cache.Get(LuaString.valueOf("%a+"), ascii));
+		Gftest_fxt.Eq__bool(true, pattern == cache.Get(LuaString.valueOf(Bry_.New_utf08("x%a+"), 1, 3), ascii));	// substring with m_offset
+		Gftest_fxt.Eq__bool(false, pattern == cache.Get(LuaString.valueOf("%a+"), new Str_char_class_mgr__unicode()));
+		Gftest_fxt.Eq__bool(false, cache.Get(LuaString.valueOf("%a+%a+%a+"), ascii) == cache.Get(LuaString.valueOf("%a+%a+%a+"), ascii));	// longer than max_len
+	}
+	@Test public void Parse() {
+		fxt.Test__parse("abc"        , false, false, 3, 0);
+		fxt.Test__parse("^abc"       , true , true , 3, 0);
+		fxt.Test__parse("ab*c"       , true , false, 1, 0);
+		fxt.Test__parse("ab(c)()"    , true , false, 2, 2);
+		fxt.Test__parse("%b()(x)"    , true , false, 0, 1);
+		fxt.Test__parse("%f[(]a[(]"  , true , false, 0, 0);
+		fxt.Test__parse("[a-z]+x"    , true , false, 0, 0);
+		fxt.Test__parse("x%"         , true , false, 1, Match_state.MAX_CAPTURES);	// malformed
+		fxt.Test__parse("x[a"        , true , false, 1, Match_state.MAX_CAPTURES);	// malformed
+	}
+	@Test public void Find() {
+		fxt.Test__find("abcabc", "ca");
+		fxt.Test__find("abcabc", "c(a)");
+		fxt.Test__find("abcabc", "^ab");
+		fxt.Test__find("abcabc", "^bc");
+		fxt.Test__find("abcabc", "x");
+		fxt.Test__find("abcabc", "bc$");
+		fxt.Test__find("ab12cd", "%d+");
+		fxt.Test__find("ab12cd", "[^%a]+");
+		fxt.Test__find("ab12cd", "[b-c1]+");
+		fxt.Test__find("ab12cd", "%Ac");
+		fxt.Test__find("THE (quick) fox", "%f[%a]%a+");
+		fxt.Test__find("THE (quick) fox", "%b()");
+		fxt.Test__find("x = y", "(%w+)%s*=%s*(%w+)");
+		fxt.Test__find("a.b", "%.");
+		fxt.Test__find("a]b", "[]]");
+		fxt.Test__find("aæb", "[æ]");
+		fxt.Test__find("abab", "(ab)%1");
+		fxt.Test__find("ab", "()b()");
+	}
+	@Test public void Error() {
+		fxt.Test__error("abc", "a%", "malformed pat (ends with '%')");
+		fxt.Test__error("abc", "a%1", "invalid capture index");
+	}
+	@Test public void Gmatch() {
+		fxt.Test__gmatch("k1=v1, k2=v2", "k(%d)=(%w+)", "1 v1;2 v2;");
+		fxt.Test__gmatch("^a^a", "^a", "^a;^a;");	// gmatch treats '^' as literal
+		fxt.Test__gmatch("aaa", "aa", "aa;");
+	}
+	@Test public void Gsub() {
+		fxt.Test__gsub("hello world", "o", "0", "hell0 w0rld");
+		fxt.Test__gsub("hello world", "(%w+)", "<%1>", "<hello> <world>");
+		fxt.Test__gsub("hello world", "^h", "H", "Hello world");
+	}
+}
+class Str_pattern_cache_fxt {
+	public void Test__parse(String pat, boolean expd_specials, boolean expd_anchor, int expd_prefix_len, int expd_captures) {
+		Str_pattern pattern = new Str_pattern_cache(16, 64).Get(LuaString.valueOf(pat), new Str_char_class_mgr__ascii());
+		Gftest_fxt.Eq__bool(expd_specials, pattern.Has_specials());
+		Gftest_fxt.Eq__bool(expd_anchor, pattern.Anchor());
+		Gftest_fxt.Eq__int(expd_prefix_len, pattern.Prefix_len());
+		Gftest_fxt.Eq__int(expd_captures, pattern.Captures());
+	}
+	/** Compare find and match, twice so the second call hits the cache, against the original MatchState implementation. */
+	public void Test__find(String src, String pat) {
+		for (int i = 0; i < 2; i++) {
+			for (int init = -1; init <= 2; init++) {
+				Varargs args = Luaj_fxt.New_varargs(src, pat, init);
+				Gftest_fxt.Eq__str(StringLib.str_find_aux(args, true).tojstring(), StringLib.find(args).tojstring());
+				Gftest_fxt.Eq__str(StringLib.str_find_aux(args, false).tojstring(), StringLib.match(args).tojstring());
+			}
+		}
+	}
+	public void Test__error(String src, String pat, String expd) {
+		for (int i = 0; i < 2; i++) {
+			String actl = null;
+			try {
+				StringLib.find(Luaj_fxt.New_varargs(src, pat));
+			} catch (Exception e) {
+				actl = e.getMessage();
+			}
+			Gftest_fxt.Eq__str(expd, actl);
+		}
+	}
+	public void Test__gmatch(String src, String pat, String expd) {
+		Varargs itr = StringLib.gmatch(Luaj_fxt.New_varargs(src, pat));
+		String actl = "";
+		while (true) {
+			Varargs rv = itr.arg1().invoke();
+			if (rv.isnil(1)) break;
+			for (int i = 1; i <= rv.narg(); i++)
+				actl += (i == 1 ? "" : " ") + rv.tojstring(i);
+			actl += ";";
+		}
+		Gftest_fxt.Eq__str(expd, actl);
+	}
+	public void Test__gsub(String src, String pat, String repl, String expd) {
+		Varargs actl = StringLib.gsub(Luaj_fxt.New_varargs(src, pat, repl));
+		Gftest_fxt.Eq__str(expd, actl.tojstring(1));
+	}
+}
@@ -45,7 +45,7 @@ class StringLib_fxt {
 		Varargs actl = StringLib.match(args);
 		Gftest_fxt.Eq__str(expd, actl.tojstring());
 	}
-	public void Test__gsub(String src, String pat, String repl, String expd) {
+	public void Test__gsub(Object src, String pat, String repl, String expd) {
 		Varargs args = Luaj_fxt.New_varargs(src, pat, repl);
 		Varargs actl = StringLib.gsub(args);
 		Gftest_fxt.Eq__str(expd, actl.tojstring(1));
@@ -1,7 +1,14 @@
 package org.luaj.vm2.lib;
 
 import org.junit.Test;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.Luaj_fxt;
 import org.luaj.vm2.Luaj_script_fxt;
+import org.luaj.vm2.Varargs;
+
+import gplx.objects.brys.Bry_;
+import gplx.tests.Gftest_fxt;
 
 public class StringLib_gsub_tst {
 	private final StringLib_fxt fxt = new StringLib_fxt();
@@ -23,4 +30,35 @@ public class StringLib_gsub_tst {
 	@Test public void Percent_at_eos() { // ISSUE#:571; DATE:2019-09-08
 		fxt.Test__gsub("a", "a", "%", "%");
 	}
+	@Test public void Percent_0() { // fails with "oell[ ] w[ ]rld" if Buffer.append(byte[]) writes to start of buffer
+		fxt.Test__gsub("hello world", "o", "[%0]", "hell[o] w[o]rld");
+		fxt.Test__gsub(LuaString.valueOf(Bry_.New_utf08("xhello"), 1, 5), "l+", "[%0]", "he[ll]o"); // substring with m_offset
+	}
+	@Test public void No_match__same_string() {
+		LuaString src = LuaString.valueOf("hello world");
+		Varargs actl = StringLib.gsub(Luaj_fxt.New_varargs(src, "xyz", "abc"));
+		Gftest_fxt.Eq__bool(true, src == actl.arg1());
+		Gftest_fxt.Eq__int(0, actl.toint(2));
+	}
+	@Test public void Unmatched_runs() {
+		fxt.Test__gsub("a,b,,c", ",", ";", "a;b;;c");
+		fxt.Test__gsub("abc", "", "-", "-a-b-c-");
+		fxt.Test__gsub("abc", "x*", "-", "-a-b-c-");
+		fxt.Test__gsub("hello world", "o w", "_", "hell_orld");
+		fxt.Test__gsub("hello world", "^hel", "", "lo world");
+		fxt.Test__gsub("hello world", "^el", "", "hello world");
+	}
+	@Test public void Segments() {
+		int segment_min = StringLib.GSUB_SEGMENT_MIN;
+		StringLib.GSUB_SEGMENT_MIN = 1;
+		try {
+			fxt.Test__gsub("a,b,,c", ",", ";", "a;b;;c");
+			fxt.Test__gsub("abc", "", "-", "-a-b-c-");
+			fxt.Test__gsub("hello world", "(o)", "[%1%0]", "hell[oo] w[oo]rld");
+			fxt.Test__gsub("hello world", "o", "", "hell wrld");
+			fxt.Test__gsub_tbl("hello", "l", new LuaTable(), "hello");
+		} finally {
+			StringLib.GSUB_SEGMENT_MIN = segment_min;
+		}
+	}
 }
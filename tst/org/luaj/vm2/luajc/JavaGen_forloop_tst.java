@@ -0,0 +1,97 @@
+package org.luaj.vm2.luajc;
+
+import org.junit.*;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import gplx.tests.Gftest_fxt;
+
+public class JavaGen_forloop_tst {
+	private final JavaGen_forloop_fxt fxt = new JavaGen_forloop_fxt();
+	@Test public void Table_key() {
+		fxt.Test
+			( "local t = {}"
+			, "for i = 1, 5 do t[i] = i * 2 end"
+			, "for i = 5, 4, -1 do t[i] = nil end"
+			, "local s = ''"
+			, "for i = 1, 5 do s = s .. tostring(t[i]) .. ';' end"
+			, "return s"
+			, ""
+			, "2;4;6;nil;nil;"
+			);
+	}
+	@Test public void Arithmetic() {
+		fxt.Test
+			( "local s = ''"
+			, "for i = 1, 3 do s = s .. (i + 1) .. (1 - i) .. (i * i) .. (i / 2) .. (2 ^ i) .. (i % 2) .. (-i) .. ';' end"
+			, "return s"
+			, ""
+			, "2010.521-1;3-14140-2;4-291.581-3;"
+			);
+	}
+	@Test public void Compare() {
+		fxt.Test
+			( "local s = ''"
+			, "for i = 1, 4 do if i < 2 or 3 <= i then s = s .. i end end"
+			, "return s"
+			, ""
+			, "134"
+			);
+	}
+	@Test public void Fractional_step() {
+		fxt.Test
+			( "local s = ''"
+			, "for i = 1, 0, -0.25 do s = s .. i .. ';' end"
+			, "return s"
+			, ""
+			, "1;0.75;0.5;0.25;0;"
+			);
+	}
+	@Test public void Beyond_int() {
+		fxt.Test
+			( "local s = ''"
+			, "for i = 2147483646, 2147483648 do s = s .. i .. ';' end"
+			, "return s"
+			, ""
+			, "2147483646;2147483647;2147483648;"
+			);
+	}
+	@Test public void Boxed__closure_and_reassign() {
+		fxt.Test
+			( "local fs = {}"
+			, "for i = 1, 3 do fs[i] = function() return i end end"
+			, "local s = ''"
+			, "for i = 1, 3 do i = i * 10; s = s .. i .. ';' end"
+			, "return fs[1]() .. fs[3]() .. ';' .. s"
+			, ""
+			, "13;10;20;30;"
+			);
+	}
+	@Test public void Error__not_a_number() {
+		fxt.Test
+			( "local ok, err = pcall(function() for i = 1, {} do end end)"
+			, "return string.match(err, 'limit must be a number')"
+			, ""
+			, "limit must be a number"
+			);
+	}
+}
+class JavaGen_forloop_fxt {
+	/** Run script, given by all lines but the last, in the interpreter and with luajc; the last line is the expected result. */
+	public void Test(String... lines) {
+		String script = "";
+		for (int i = 0; i < lines.length - 2; i++)
+			script += lines[i] + "\n";
+		String expd = lines[lines.length - 1];
+		Gftest_fxt.Eq__str(expd, Run(script, false));
+		Gftest_fxt.Eq__str(expd, Run(script, true));
+	}
+	private static String Run(String script, boolean luajc) {
+		Globals globals = JsePlatform.standardGlobals();
+		if (luajc) LuaJC.install(globals);
+		LuaValue chunk = globals.load(script, "script");
+		return chunk.call().tojstring();
+	}
+}
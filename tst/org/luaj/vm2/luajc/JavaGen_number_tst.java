@@ -0,0 +1,63 @@
+package org.luaj.vm2.luajc;
+
+import org.junit.*;
+
+public class JavaGen_number_tst {
+	private final JavaGen_forloop_fxt fxt = new JavaGen_forloop_fxt();
+	@Test public void Expression() {
+		fxt.Test
+			( "local s = 0"
+			, "for i = 1, 4 do local x = i * 2 + 1; local y = -x / 4 - i; s = s + y * y end"
+			, "return s"
+			, ""
+			, "75.25"
+			);
+	}
+	@Test public void Mod_pow_div_by_zero() {
+		fxt.Test
+			( "local s = ''"
+			, "for i = -2, 2 do local m = (i * 3) % 4; local p = (i + 1) ^ 2; local d = (i - i) / i; s = s .. m .. ',' .. p .. ',' .. tostring(d) .. ';' end"
+			, "return s"
+			, ""
+			, "2,1,0;1,0,0;0,1,nan;3,4,0;2,9,0;"
+			);
+	}
+	@Test public void Live_after_block() {
+		fxt.Test
+			( "local x"
+			, "for i = 1, 3 do x = i * i; if x > 4 then break end end"
+			, "local y = 0"
+			, "for i = 1, 2 do y = i + 0.5; end"
+			, "return x .. ';' .. y"
+			, ""
+			, "9;2.5"
+			);
+	}
+	@Test public void Branch() {
+		fxt.Test
+			( "local s = ''"
+			, "for i = 1, 4 do local x = i - 2; if x < 0 then s = s .. 'n' elseif x <= 0 then s = s .. 'z' else s = s .. x end end"
+			, "return s"
+			, ""
+			, "nz12"
+			);
+	}
+	@Test public void Table_and_reassign() {
+		fxt.Test
+			( "local t = {}"
+			, "for i = 1, 3 do local k = i + 1; t[k] = k * 10; k = 'a' .. k; t[k] = i end"
+			, "return t[2] .. t[4] .. t.a3 .. t.a4"
+			, ""
+			, "204023"
+			);
+	}
+	@Test public void Closure() {
+		fxt.Test
+			( "local fs = {}"
+			, "for i = 1, 3 do local x = i * 2; fs[i] = function() return x end end"
+			, "return fs[1]() + fs[3]()"
+			, ""
+			, "8"
+			);
+	}
+}
@@ -0,0 +1,148 @@
+package org.luaj.vm2.luajc;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.*;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import gplx.tests.Gftest_fxt;
+
+public class LuaJCService_tst {
+	private final LuaJCService_fxt fxt = new LuaJCService_fxt();
+	private static final String SCRIPT = "local n = 0 for i = 1, 10 do n = n + i end local function f(a) return a .. n end return f('x')";
+	@Before public void init() throws Exception {
+		fxt.Clear();
+	}
+	@After public void term() {
+		fxt.Term();
+	}
+	@Test public void Shared() throws Exception {	// the first load is interpreted until compiled; later loads share the class
+		LuaValue first = fxt.Load(SCRIPT, "chunk");	// compiled already only if the compiler thread finished before load returned
+		fxt.Await();
+		Gftest_fxt.Eq__str("x55", first.call().tojstring());
+		LuaValue second = fxt.Load(SCRIPT, "chunk");
+		Gftest_fxt.Eq__bool(false, second instanceof LuaClosure);
+		Gftest_fxt.Eq__str("x55", second.call().tojstring());
+		if (first instanceof LuaClosure)
+			Gftest_fxt.Eq__bool(true, ((LuaClosure) first).p.compiled != null);	// so the first now runs the compiled code too
+		fxt.Test__counts(1, 1, 0);
+	}
+	@Test public void Joined() throws Exception {	// loads while compiling wait for the same compile
+		fxt.Load(SCRIPT, "chunk");
+		fxt.Load(SCRIPT, "chunk");
+		fxt.Await();
+		Gftest_fxt.Eq__int(1, (int) fxt.Service().getCompiles());
+		Gftest_fxt.Eq__int(1, (int) (fxt.Service().getJoined() + fxt.Service().getHits()));
+	}
+	@Test public void Chunkname() throws Exception {
+		fxt.Load(SCRIPT, "a");
+		fxt.Load(SCRIPT, "b");
+		fxt.Await();
+		fxt.Test__counts(0, 2, 0);
+	}
+	@Test public void Disk() throws Exception {	// a new service on the same directory defines the classes without compiling
+		fxt.Load(SCRIPT, "chunk");
+		fxt.Await();
+		fxt.Clear_service();
+		LuaValue f = fxt.Load(SCRIPT, "chunk");
+		Gftest_fxt.Eq__bool(false, f instanceof LuaClosure);
+		Gftest_fxt.Eq__str("x55", f.call().tojstring());
+		fxt.Test__counts(1, 0, 1);
+	}
+	@Test public void Disk__corrupt() throws Exception {
+		fxt.Load(SCRIPT, "chunk");
+		fxt.Await();
+		fxt.Corrupt_entries();
+		fxt.Clear_service();
+		Gftest_fxt.Eq__str("x55", fxt.Load(SCRIPT, "chunk").call().tojstring());
+		fxt.Await();
+		fxt.Test__counts(0, 1, 0);
+	}
+	@Test public void Disk__bad_length() throws Exception {	// a length past the end of the file is a miss, not an allocation
+		fxt.Load(SCRIPT, "chunk");
+		fxt.Await();
+		fxt.Write_entries(Integer.MAX_VALUE - 8);
+		fxt.Clear_service();
+		Gftest_fxt.Eq__str("x55", fxt.Load(SCRIPT, "chunk").call().tojstring());
+		fxt.Await();
+		fxt.Test__counts(0, 1, 0);
+		fxt.Write_entries(-1);
+		fxt.Clear_service();
+		Gftest_fxt.Eq__str("x55", fxt.Load(SCRIPT, "chunk").call().tojstring());
+		fxt.Await();
+		fxt.Test__counts(0, 1, 0);
+	}
+	@Test public void Debug() throws Exception {	// left interpreted while the debug library tracks calls
+		LuaValue f = fxt.Load_debug(SCRIPT, "chunk");
+		fxt.Await();
+		Gftest_fxt.Eq__bool(true, f instanceof LuaClosure);
+		Gftest_fxt.Eq__bool(true, ((LuaClosure) f).p.compiled == null);
+		Gftest_fxt.Eq__str("x55", f.call().tojstring());
+		fxt.Test__counts(0, 0, 0);
+	}
+}
+class LuaJCService_fxt {
+	private File dir;
+	private LuaJCService service;
+	public LuaJCService Service() {return service;}
+	public void Clear() throws Exception {
+		dir = File.createTempFile("luaj", "classes");
+		dir.delete();
+		Clear_service();
+	}
+	public void Clear_service() {
+		if (service != null)
+			service.shutdown();
+		service = new LuaJCService(1, 10, dir);
+	}
+	public void Term() {
+		service.shutdown();
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++)
+			files[i].delete();
+		dir.delete();
+	}
+	public LuaValue Load(String script, String chunkname) {
+		Globals globals = JsePlatform.standardGlobals();
+		LuaJCService.install(globals, service);
+		return globals.load(script, chunkname);
+	}
+	public LuaValue Load_debug(String script, String chunkname) {
+		Globals globals = JsePlatform.debugGlobals();
+		globals.debuglib.trace_calls = true;
+		LuaJCService.install(globals, service);
+		return globals.load(script, chunkname);
+	}
+	public void Await() throws Exception {
+		Gftest_fxt.Eq__bool(true, service.awaitIdle(10000));
+	}
+	public void Test__counts(int hits, int compiles, int disk_hits) {
+		Gftest_fxt.Eq__int(hits, (int) service.getHits());
+		Gftest_fxt.Eq__int(compiles, (int) service.getCompiles());
+		Gftest_fxt.Eq__int(disk_hits, (int) service.getDiskHits());
+	}
+	public void Write_entries(int len) throws Exception {	// one class with the given length
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			DataOutputStream os = new DataOutputStream(new FileOutputStream(files[i]));
+			os.writeInt(1);
+			os.writeUTF("c");
+			os.writeInt(len);
+			os.close();
+		}
+	}
+	public void Corrupt_entries() throws Exception {
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			FileOutputStream os = new FileOutputStream(files[i]);
+			os.write(new byte[] {0, 1, 2});
+			os.close();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package org.luaj.vm2.luajc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.*;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import gplx.tests.Gftest_fxt;
+
+public class TieredCompiler_tst {
+	private final TieredCompiler_fxt fxt = new TieredCompiler_fxt();
+	@Test public void Open_upvalue() {	// compiled code shares upvalues the interpreter still writes on its stack
+		fxt.Test
+			( "local count = 0"
+			, "local function inc(n) count = count + n return count end"
+			, "for i = 1, 100 do inc(1) end"
+			, "count = count + 1000"
+			, "return inc(1) .. ';' .. count"
+			, ""
+			, "1101;1101"
+			);
+		Gftest_fxt.Eq__bool(true, fxt.Tier().getCompiledCount() >= 1);
+	}
+	@Test public void Closure__made_by_compiled() {
+		fxt.Test
+			( "local function make(x) return function() x = x + 1 return x end end"
+			, "local f"
+			, "for i = 1, 50 do f = make(i) end"
+			, "f()"
+			, "return f()"
+			, ""
+			, "52"
+			);
+	}
+	@Test public void Closure__made_by_interpreter() {	// closures made after the compile run the compiled class
+		fxt.Test
+			( "local k = 3"
+			, "for i = 1, 50 do g = function(a) return a * k end g(i) end"
+			, "return g(2)"
+			, ""
+			, "6"
+			);
+		Gftest_fxt.Eq__bool(true, fxt.Globals().get("g") instanceof LuaClosure);
+		Gftest_fxt.Eq__bool(true, fxt.Tier().getCompiledCount() >= 1);
+	}
+	@Test public void Error__fileline() {	// same position before and after the compile, including closures made by compiled code
+		fxt.Test
+			( "local function f() error('boom') end"
+			, "local function make() return function() error('made') end end"
+			, "local seen, n = {}, 0"
+			, "for i = 1, 50 do"
+			, "  local _, e = pcall(f)"
+			, "  local _, e2 = pcall(make())"
+			, "  e = e .. ';' .. e2"
+			, "  if not seen[e] then seen[e] = true n = n + 1 end"
+			, "end"
+			, "return n .. ';' .. next(seen)"
+			, ""
+			, "1;script:1 boom;script:2 made"
+			);
+		Gftest_fxt.Eq__bool(true, fxt.Tier().getCompiledCount() >= 2);
+	}
+	@Test public void Debug_calls() {	// stays interpreted while the debug library tracks calls, so getinfo sees each call
+		fxt.Init_debug(true);
+		fxt.Test
+			( "local function f() return debug.getinfo(1, 'l').currentline end"
+			, "local s = 0"
+			, "for i = 1, 50 do s = s + f() end"
+			, "return s"
+			, ""
+			, "50"
+			);
+		Gftest_fxt.Eq__int(0, fxt.Tier().getCompiledCount());
+	}
+	@Test public void Debug_idle() {	// compiled while the debug library is loaded but neither tracks calls nor has a hook set
+		fxt.Init_debug(false);
+		fxt.Test
+			( "local function f(a) return a + 1 end"
+			, "local s = 0"
+			, "for i = 1, 50 do s = f(s) end"
+			, "return s"
+			, ""
+			, "50"
+			);
+		Gftest_fxt.Eq__bool(true, fxt.Tier().getCompiledCount() >= 1);
+	}
+	@Test public void Cold() {
+		fxt.Test
+			( "local function f(a) return a + 1 end"
+			, "return f(f(1))"
+			, ""
+			, "3"
+			);
+		Gftest_fxt.Eq__int(0, fxt.Tier().getCompiledCount());
+		Gftest_fxt.Eq__bool(true, fxt.Globals().load("return 1").call() != null);
+	}
+	@Test public void Vararg_arg() {	// XOWA:HACK: "arg" of a vararg function is only made by the interpreter
+		fxt.Test
+			( "function f(...) return arg.n end"
+			, "for i = 1, 50 do f(1, 2) end"
+			, "return f(1, 2)"
+			, ""
+			, "2"
+			);
+		Gftest_fxt.Eq__bool(true, fxt.Tier().getFailedCount() >= 1);
+	}
+	@Test public void Background() {	// calls keep running in the interpreter until the compilation is done
+		fxt.Init_queued();
+		fxt.Test
+			( "function f(a) return a + 1 end"
+			, "for i = 1, 50 do f(i) end"
+			, "return f(1)"
+			, ""
+			, "2"
+			);
+		LuaValue f = fxt.Globals().get("f");
+		Gftest_fxt.Eq__int(0, fxt.Tier().getCompiledCount());
+		fxt.Run_queued();
+		Gftest_fxt.Eq__bool(true, fxt.Tier().getCompiledCount() >= 1);
+		Gftest_fxt.Eq__str("3", f.call(LuaValue.valueOf(2)).tojstring());
+	}
+}
+class TieredCompiler_fxt {
+	private final List<Runnable> queued = new ArrayList<Runnable>();
+	private Executor executor;
+	private boolean debug, trace_calls;
+	private Globals globals;
+	private TieredCompiler tier;
+	public Globals Globals() {return globals;}
+	public TieredCompiler Tier() {return tier;}
+	public void Init_queued() {
+		executor = new Executor() {
+			public void execute(Runnable r) {queued.add(r);}
+		};
+	}
+	public void Init_debug(boolean trace_calls) {debug = true; this.trace_calls = trace_calls;}
+	public void Run_queued() {
+		for (int i = 0; i < queued.size(); i++)
+			queued.get(i).run();
+		queued.clear();
+	}
+	/** Run script, given by all lines but the last, interpreting until a prototype has run 10 times; the last line is the expected result. */
+	public void Test(String... lines) {
+		String script = "";
+		for (int i = 0; i < lines.length - 2; i++)
+			script += lines[i] + "\n";
+		globals = debug? JsePlatform.debugGlobals(): JsePlatform.standardGlobals();
+		if (debug)
+			globals.debuglib.trace_calls = trace_calls;
+		tier = TieredCompiler.install(globals, new TieredCompiler(10, executor));
+		LuaValue chunk = globals.load(script, "script");
+		Gftest_fxt.Eq__str(lines[lines.length - 1], chunk.call().tojstring());
+	}
+}